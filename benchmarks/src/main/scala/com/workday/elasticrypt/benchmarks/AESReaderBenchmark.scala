@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017 Workday, Inc.
+ *
+ * This software is available under the MIT license.
+ * Please see the LICENSE.txt file in this project.
+ */
+
+package com.workday.elasticrypt.benchmarks
+
+import java.io.File
+import java.util.concurrent.TimeUnit
+
+import org.apache.lucene.util.AESReader
+import org.openjdk.jmh.annotations._
+
+/**
+  * Reads through AESReader: a sequential scan of a whole file of fileSize bytes, and readSize-byte reads at random
+  * positions, which decrypt one or two pages each.
+  */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+class AESReaderBenchmark {
+  import BenchmarkData._
+
+  @Param(Array("16", "64", "256"))
+  var pageSize: Int = _
+
+  @Param(Array("4194304"))
+  var fileSize: Int = _
+
+  @Param(Array("4096"))
+  var readSize: Int = _
+
+  private[this] val numPositions = 1024
+  private[this] var file: File = _
+  private[this] var reader: AESReader = _
+  private[this] var buffer: Array[Byte] = _
+  private[this] var positions: Array[Long] = _
+  private[this] var next = 0
+
+  @Setup(Level.Trial)
+  def setup(): Unit = {
+    file = encryptedFile("aes_reader", pageSize, randomBytes(fileSize))
+    reader = openReader(file, pageSize)
+    buffer = new Array[Byte](readSize)
+    positions = randomPositions(numPositions, fileSize - readSize)
+  }
+
+  @TearDown(Level.Trial)
+  def tearDown(): Unit = {
+    reader.close()
+    file.delete()
+  }
+
+  @Benchmark
+  def sequentialRead(): Long = {
+    reader.seek(0)
+    var remaining = reader.length
+    while (remaining > 0) {
+      val n = Math.min(remaining, readSize.toLong).toInt
+      readFully(reader, buffer, n)
+      remaining -= n
+    }
+    reader.length
+  }
+
+  @Benchmark
+  def randomRead(): Byte = {
+    reader.seek(positions(next))
+    next = (next + 1) & (numPositions - 1)
+    readFully(reader, buffer, readSize)
+    buffer(0)
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017 Workday, Inc.
+ *
+ * This software is available under the MIT license.
+ * Please see the LICENSE.txt file in this project.
+ */
+
+package com.workday.elasticrypt.benchmarks
+
+import java.io.{File, RandomAccessFile}
+import java.util.concurrent.TimeUnit
+
+import org.apache.lucene.util.{AESWriter, HmacFileHeader}
+import org.openjdk.jmh.annotations._
+
+/**
+  * Sequential writes through AESWriter: each operation encrypts a whole file of fileSize bytes, written writeSize
+  * bytes at a time, including the header and the padded last page.
+  */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+class AESWriterBenchmark {
+  import BenchmarkData._
+
+  @Param(Array("16", "64", "256"))
+  var pageSize: Int = _
+
+  @Param(Array("1048576"))
+  var fileSize: Int = _
+
+  @Param(Array("4096"))
+  var writeSize: Int = _
+
+  private[this] var file: File = _
+  private[this] var data: Array[Byte] = _
+
+  @Setup(Level.Trial)
+  def setup(): Unit = {
+    file = File.createTempFile("aes_writer", ".bench")
+    data = randomBytes(writeSize)
+  }
+
+  @TearDown(Level.Trial)
+  def tearDown(): Unit = file.delete()
+
+  @Benchmark
+  def sequentialWrite(): Long = {
+    val raf = new RandomAccessFile(file, "rw")
+    raf.setLength(0)
+    val writer = new AESWriter(file.getName, raf, pageSize, keyProvider, INDEX_NAME, new HmacFileHeader(raf, keyProvider, INDEX_NAME))
+    var written = 0L
+    while (written < fileSize) {
+      writer.write(data, 0, writeSize)
+      written += writeSize
+    }
+    writer.close()
+    written
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017 Workday, Inc.
+ *
+ * This software is available under the MIT license.
+ * Please see the LICENSE.txt file in this project.
+ */
+
+package com.workday.elasticrypt.benchmarks
+
+import java.io.{EOFException, File, RandomAccessFile}
+import java.util.Random
+
+import com.workday.elasticrypt.{HardcodedKeyProvider, KeyProvider}
+import org.apache.lucene.util.{AESReader, AESWriter, HmacFileHeader}
+
+/**
+  * Keys, data and files shared by the benchmarks. All data is generated from a fixed seed, so that runs of different
+  * versions encrypt the same bytes.
+  */
+object BenchmarkData {
+  val INDEX_NAME = "benchmark"
+  val SEED = 42L
+
+  val keyProvider: KeyProvider = new HardcodedKeyProvider()
+
+  /**
+    * Returns incompressible bytes.
+    * @param length number of bytes
+    */
+  def randomBytes(length: Int): Array[Byte] = {
+    val bytes = new Array[Byte](length)
+    new Random(SEED).nextBytes(bytes)
+    bytes
+  }
+
+  /**
+    * Returns a translog-like operation: the JSON source of a document, padded to the given length.
+    * @param length number of bytes
+    */
+  def operationBytes(length: Int): Array[Byte] = {
+    val source = new StringBuilder
+    var i = 0
+    while (source.length < length) {
+      source.append(s"""{"_id":"$i","user":"kimchy","post_date":"2009-11-15T14:12:12","message":"trying out elasticsearch"}""")
+      i += 1
+    }
+    source.toString.getBytes("UTF-8").take(length)
+  }
+
+  /**
+    * Returns positions, in [0, bound), to read at.
+    * @param count number of positions, a power of two
+    * @param bound exclusive upper bound
+    */
+  def randomPositions(count: Int, bound: Long): Array[Long] = {
+    val random = new Random(SEED)
+    Array.fill(count)((random.nextDouble() * bound).toLong)
+  }
+
+  /**
+    * Creates a temporary encrypted file.
+    * @param prefix prefix of the file name
+    * @param pageSize number of 16-byte blocks per page
+    * @param data plaintext of the file
+    */
+  def encryptedFile(prefix: String, pageSize: Int, data: Array[Byte]): File = {
+    val file = File.createTempFile(prefix, ".bench")
+    file.deleteOnExit()
+    val raf = new RandomAccessFile(file, "rw")
+    val writer = new AESWriter(file.getName, raf, pageSize, keyProvider, INDEX_NAME, new HmacFileHeader(raf, keyProvider, INDEX_NAME))
+    writer.write(data, 0, data.length)
+    writer.close()
+    file
+  }
+
+  /**
+    * Opens a reader over an encrypted file.
+    * @param file encrypted file
+    * @param pageSize number of 16-byte blocks per page
+    */
+  def openReader(file: File, pageSize: Int): AESReader = {
+    val raf = new RandomAccessFile(file, "r")
+    new AESReader(file.getName, raf, pageSize, keyProvider, INDEX_NAME, new HmacFileHeader(raf, keyProvider, INDEX_NAME))
+  }
+
+  /**
+    * Reads exactly len bytes from the reader's current position.
+    * @param reader reader to read from
+    * @param b byte array to copy bytes to
+    * @param len number of bytes to read
+    */
+  def readFully(reader: AESReader, b: Array[Byte], len: Int): Unit = {
+    var read = 0
+    while (read < len) {
+      val n = reader.read(b, read, len - read)
+      if (n < 0) throw new EOFException("Unexpected end of file, " + (len - read) + " bytes left")
+      read += n
+    }
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017 Workday, Inc.
+ *
+ * This software is available under the MIT license.
+ * Please see the LICENSE.txt file in this project.
+ */
+
+package com.workday.elasticrypt.benchmarks
+
+import java.io.{File, RandomAccessFile}
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.util.concurrent.TimeUnit
+
+import com.workday.elasticrypt.translog.{EncryptedFileChannel, FrameCompressingFileChannel}
+import org.openjdk.jmh.annotations._
+
+/**
+  * Translog-style use of EncryptedFileChannel: appending operations of operationSize bytes, and appending an
+  * operation then reading it back at its location, as a realtime get does. With compress, the channel is wrapped
+  * in a FrameCompressingFileChannel. Every iteration starts a new translog file.
+  */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+class EncryptedFileChannelBenchmark {
+  import BenchmarkData._
+
+  /* Page size used by EncryptedTranslog */
+  private[this] val pageSize = 64
+
+  @Param(Array("256", "2048"))
+  var operationSize: Int = _
+
+  @Param(Array("false", "true"))
+  var compress: Boolean = _
+
+  private[this] var file: File = _
+  private[this] var channel: FileChannel = _
+  private[this] var writeBuffer: ByteBuffer = _
+  private[this] var readBuffer: ByteBuffer = _
+
+  @Setup(Level.Iteration)
+  def setup(): Unit = {
+    file = File.createTempFile("encrypted_file_channel", ".bench")
+    val raf = new RandomAccessFile(file, "rw")
+    channel = if (compress) {
+      new FrameCompressingFileChannel(file.getName, raf, pageSize, keyProvider, INDEX_NAME)
+    } else {
+      new EncryptedFileChannel(file.getName, raf, pageSize, keyProvider, INDEX_NAME)
+    }
+    writeBuffer = ByteBuffer.wrap(operationBytes(operationSize))
+    readBuffer = ByteBuffer.allocate(operationSize)
+  }
+
+  @TearDown(Level.Iteration)
+  def tearDown(): Unit = {
+    channel.close()
+    file.delete()
+  }
+
+  @Benchmark
+  def append(): Int = {
+    writeBuffer.clear()
+    channel.write(writeBuffer)
+  }
+
+  @Benchmark
+  def appendThenRead(): Byte = {
+    val position = channel.size()
+    writeBuffer.clear()
+    channel.write(writeBuffer)
+    readBuffer.clear()
+    channel.read(readBuffer, position)
+    readBuffer.get(0)
+  }
+}
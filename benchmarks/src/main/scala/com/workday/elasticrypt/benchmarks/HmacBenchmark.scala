@@ -0,0 +1,43 @@
+/*
+ * Copyright 2017 Workday, Inc.
+ *
+ * This software is available under the MIT license.
+ * Please see the LICENSE.txt file in this project.
+ */
+
+package com.workday.elasticrypt.benchmarks
+
+import java.util.concurrent.TimeUnit
+import javax.crypto.spec.SecretKeySpec
+
+import org.apache.lucene.util.HmacUtil
+import org.openjdk.jmh.annotations._
+
+/**
+  * HmacUtil.hmacValue, computed whenever a file header is written or verified. Headers MAC 8 random bytes;
+  * the larger size shows the per-byte cost.
+  */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+class HmacBenchmark {
+  import BenchmarkData._
+
+  @Param(Array("8", "1024"))
+  var plainTextSize: Int = _
+
+  private[this] var key: SecretKeySpec = _
+  private[this] var plainText: Array[Byte] = _
+
+  @Setup(Level.Trial)
+  def setup(): Unit = {
+    key = keyProvider.getKey(INDEX_NAME)
+    plainText = randomBytes(plainTextSize)
+  }
+
+  @Benchmark
+  def hmacValue(): Array[Byte] = HmacUtil.hmacValue(plainText, key)
+}
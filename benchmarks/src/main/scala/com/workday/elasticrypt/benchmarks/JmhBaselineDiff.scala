@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 Workday, Inc.
+ *
+ * This software is available under the MIT license.
+ * Please see the LICENSE.txt file in this project.
+ */
+
+package com.workday.elasticrypt.benchmarks
+
+import java.io.{File, FileInputStream, InputStreamReader, PrintStream, Reader}
+
+import scala.collection.JavaConverters.{asScalaSetConverter, iterableAsScalaIterableConverter}
+
+import com.google.gson.JsonParser
+
+/**
+  * Score of one benchmark and set of parameters in a JMH JSON result file.
+  * @param benchmark benchmark method, including its class
+  * @param params JMH parameters, as name=value pairs
+  * @param mode JMH mode, e.g. thrpt or avgt
+  * @param score primary score
+  * @param unit unit of the primary score
+  * @param allocatedBytesPerOp bytes allocated per operation, if run with -prof gc
+  */
+case class BenchmarkScore(benchmark: String, params: String, mode: String, score: Double, unit: String,
+                          allocatedBytesPerOp: Option[Double]) {
+  /* Identifies the same measurement across result files */
+  def key: String = if (params.isEmpty) benchmark else s"$benchmark($params)"
+}
+
+/**
+  * Compares two JMH JSON result files, e.g. a baseline from the last release and a run of the current branch:
+  * {{{
+  * sbt "benchmarks/runMain com.workday.elasticrypt.benchmarks.JmhBaselineDiff baseline.json jmh-result.json 10"
+  * }}}
+  * Prints the change of every score and of the allocation rate, and exits with 1 if any score regressed by more
+  * than the given percentage (default 10).
+  */
+object JmhBaselineDiff {
+  val DEFAULT_THRESHOLD_PERCENT = 10.0
+  private[benchmarks] val ALLOCATION_METRIC = "\u00b7gc.alloc.rate.norm"
+
+  def main(args: Array[String]): Unit = {
+    if (args.length < 2) {
+      System.err.println("Usage: JmhBaselineDiff <baseline.json> <current.json> [threshold percent]") // scalastyle:ignore regex
+      sys.exit(2)
+    }
+    val threshold = if (args.length > 2) args(2).toDouble else DEFAULT_THRESHOLD_PERCENT
+    val baseline = read(new File(args(0)))
+    val current = read(new File(args(1)))
+    if (diff(baseline, current, threshold, System.out).nonEmpty) sys.exit(1)
+  }
+
+  /**
+    * Reads the scores of a JMH JSON result file.
+    * @param file result file written with -rf json
+    */
+  def read(file: File): Seq[BenchmarkScore] = {
+    val reader = new InputStreamReader(new FileInputStream(file), "UTF-8")
+    try parse(reader) finally reader.close()
+  }
+
+  /**
+    * Parses the scores of a JMH JSON result.
+    * @param reader JSON array of results
+    */
+  def parse(reader: Reader): Seq[BenchmarkScore] = {
+    new JsonParser().parse(reader).getAsJsonArray.asScala.toSeq.map { element =>
+      val result = element.getAsJsonObject
+      val params = Option(result.getAsJsonObject("params")).map { p =>
+        p.entrySet.asScala.toSeq.sortBy(_.getKey).map(e => e.getKey + "=" + e.getValue.getAsString).mkString(",")
+      }.getOrElse("")
+      val primary = result.getAsJsonObject("primaryMetric")
+      val allocation = Option(result.getAsJsonObject("secondaryMetrics"))
+        .flatMap(metrics => Option(metrics.getAsJsonObject(ALLOCATION_METRIC)))
+        .map(_.get("score").getAsDouble)
+      BenchmarkScore(result.get("benchmark").getAsString, params, result.get("mode").getAsString,
+        primary.get("score").getAsDouble, primary.get("scoreUnit").getAsString, allocation)
+    }
+  }
+
+  /**
+    * Prints the change of every score found in both results.
+    * @param baseline scores to compare against
+    * @param current new scores
+    * @param thresholdPercent largest accepted regression
+    * @param out stream to print to
+    * @return the keys of the scores that regressed by more than thresholdPercent
+    */
+  def diff(baseline: Seq[BenchmarkScore], current: Seq[BenchmarkScore], thresholdPercent: Double, out: PrintStream): Seq[String] = {
+    val baselineScores = baseline.map(score => score.key -> score).toMap
+    current.flatMap { score =>
+      baselineScores.get(score.key) match {
+        case None =>
+          out.println(f"${score.key}%-90s new: ${score.score}%.2f ${score.unit}") // scalastyle:ignore regex
+          None
+        case Some(previous) =>
+          val change = improvement(previous, score)
+          val allocation = (previous.allocatedBytesPerOp, score.allocatedBytesPerOp) match {
+            case (Some(before), Some(after)) => f" alloc: $before%.0f -> $after%.0f B/op"
+            case _ => ""
+          }
+          val regressed = change < -thresholdPercent
+          val flag = if (regressed) " REGRESSION" else ""
+          out.println(f"${score.key}%-90s ${previous.score}%.2f -> ${score.score}%.2f ${score.unit} ($change%+.1f%%)$allocation$flag") // scalastyle:ignore regex
+          if (regressed) Some(score.key) else None
+      }
+    }
+  }
+
+  /**
+    * Returns the improvement of a score in percent: positive if faster, whatever the mode.
+    * @param before baseline score
+    * @param after new score
+    */
+  private[benchmarks] def improvement(before: BenchmarkScore, after: BenchmarkScore): Double = {
+    val change = (after.score - before.score) / before.score * 100
+    // Throughput is better when higher, times are better when lower
+    if (before.mode == "thrpt") change else -change
+  }
+}
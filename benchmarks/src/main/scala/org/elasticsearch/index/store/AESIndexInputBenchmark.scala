@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 Workday, Inc.
+ *
+ * This software is available under the MIT license.
+ * Please see the LICENSE.txt file in this project.
+ */
+
+package org.elasticsearch.index.store
+
+import java.io.File
+import java.util.concurrent.TimeUnit
+
+import com.workday.elasticrypt.benchmarks.BenchmarkData
+import org.apache.lucene.store.IOContext
+import org.openjdk.jmh.annotations._
+
+/**
+  * Per-thread state of AESIndexInputBenchmark: the read buffer and the positions to read at.
+  */
+@State(Scope.Thread)
+class AESIndexInputThreadState {
+  val numPositions = 1024
+  var buffer: Array[Byte] = _
+  var positions: Array[Long] = _
+  private[this] var next = 0
+
+  @Setup(Level.Trial)
+  def setup(benchmark: AESIndexInputBenchmark): Unit = {
+    buffer = new Array[Byte](benchmark.readSize)
+    positions = BenchmarkData.randomPositions(numPositions, benchmark.fileSize - benchmark.readSize)
+  }
+
+  def nextPosition(): Long = {
+    next = (next + 1) & (numPositions - 1)
+    positions(next)
+  }
+}
+
+/**
+  * Reads through clones and slices of one AESIndexInput from several threads, the way Lucene searches a segment.
+  * All clones and slices share the AESReader of the original input and synchronize on it, so this measures the
+  * contention on that reader as well as the decryption cost. Lives in org.elasticsearch.index.store to access
+  * AESIndexInput.
+  */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@Threads(4)
+class AESIndexInputBenchmark {
+  import BenchmarkData._
+
+  @Param(Array("64"))
+  var pageSize: Int = _
+
+  @Param(Array("4194304"))
+  var fileSize: Int = _
+
+  @Param(Array("1024"))
+  var readSize: Int = _
+
+  private[this] var file: File = _
+  private[this] var input: AESIndexInput = _
+
+  @Setup(Level.Trial)
+  def setup(): Unit = {
+    file = encryptedFile("aes_index_input", pageSize, randomBytes(fileSize))
+    input = new AESIndexInput(file.getName, openReader(file, pageSize), IOContext.READ)
+  }
+
+  @TearDown(Level.Trial)
+  def tearDown(): Unit = {
+    input.close()
+    file.delete()
+  }
+
+  @Benchmark
+  def cloneRead(state: AESIndexInputThreadState): Byte = {
+    val clone = input.clone
+    clone.seek(state.nextPosition())
+    clone.readBytes(state.buffer, 0, readSize)
+    state.buffer(0)
+  }
+
+  @Benchmark
+  def sliceRead(state: AESIndexInputThreadState): Byte = {
+    val slice = input.slice("benchmark", state.nextPosition(), readSize)
+    slice.readBytes(state.buffer, 0, readSize)
+    state.buffer(0)
+  }
+}
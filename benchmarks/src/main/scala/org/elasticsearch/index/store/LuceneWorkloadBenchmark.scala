@@ -0,0 +1,473 @@
+/*
+ * Copyright 2017 Workday, Inc.
+ *
+ * This software is available under the MIT license.
+ * Please see the LICENSE.txt file in this project.
+ */
+
+package org.elasticsearch.index.store
+
+import java.io.{File, FileOutputStream, OutputStreamWriter}
+import java.nio.file.Files
+import java.util.Random
+import java.util.concurrent.{Callable, Executors, TimeUnit}
+
+import scala.collection.JavaConverters.{asScalaBufferConverter, seqAsJavaListConverter}
+import scala.collection.mutable
+
+import com.google.gson.{GsonBuilder, JsonArray, JsonObject}
+import com.workday.elasticrypt.HardcodedKeyProvider
+import com.workday.elasticrypt.benchmarks.BenchmarkData
+import com.workday.elasticrypt.stats.CryptoMetrics
+import org.apache.lucene.document.{Document, Field, NumericDocValuesField, SortedDocValuesField, StringField, TextField}
+import org.apache.lucene.index._
+import org.apache.lucene.search._
+import org.apache.lucene.store.{Directory, NIOFSDirectory, NoLockFactory}
+import org.apache.lucene.util.BytesRef
+import org.elasticsearch.common.lucene.Lucene
+import org.elasticsearch.common.settings.ImmutableSettings
+import org.elasticsearch.index.shard.ShardId
+
+/**
+  * Options of LuceneWorkloadBenchmark.
+  * @param docs number of documents indexed
+  * @param threads number of threads running queries
+  * @param queries number of queries of each type measured, after as many warm-up queries
+  * @param dataPath directory the indices are written to; a temporary directory, deleted afterwards, otherwise
+  * @param seed seed of the corpus and the queries
+  * @param jsonFile file the results are also written to as JSON
+  */
+case class WorkloadOptions(docs: Int = LuceneWorkloadBenchmark.DEFAULT_DOCS,
+                           threads: Int = LuceneWorkloadBenchmark.DEFAULT_THREADS,
+                           queries: Int = LuceneWorkloadBenchmark.DEFAULT_QUERIES,
+                           dataPath: Option[File] = None,
+                           seed: Long = BenchmarkData.SEED,
+                           jsonFile: Option[File] = None)
+
+/**
+  * Parses the command line of LuceneWorkloadBenchmark.
+  */
+object WorkloadOptions {
+  private[this] val VALUES = Set("--docs", "--threads", "--queries", "--data", "--seed", "--json")
+
+  /**
+    * Parses the given arguments.
+    * @param args command-line arguments, see LuceneWorkloadBenchmark.USAGE
+    * @throws IllegalArgumentException if an argument is unknown, missing or malformed
+    */
+  def parse(args: Seq[String]): WorkloadOptions = {
+    val values = collect(args.toList, Map.empty)
+    def number(name: String): Option[Long] = values.get(name).map { value =>
+      try {
+        value.toLong
+      } catch {
+        case _: NumberFormatException => throw new IllegalArgumentException(s"$name expects a number, got $value")
+      }
+    }
+
+    WorkloadOptions(
+      docs = number("--docs").map(_.toInt).getOrElse(LuceneWorkloadBenchmark.DEFAULT_DOCS),
+      threads = number("--threads").map(_.toInt).getOrElse(LuceneWorkloadBenchmark.DEFAULT_THREADS),
+      queries = number("--queries").map(_.toInt).getOrElse(LuceneWorkloadBenchmark.DEFAULT_QUERIES),
+      dataPath = values.get("--data").map(new File(_)),
+      seed = number("--seed").getOrElse(BenchmarkData.SEED),
+      jsonFile = values.get("--json").map(new File(_)))
+  }
+
+  /**
+    * Collects flags and their values.
+    * @param args remaining arguments
+    * @param values flags collected so far
+    */
+  @annotation.tailrec
+  private[this] def collect(args: List[String], values: Map[String, String]): Map[String, String] = args match {
+    case Nil => values
+    case name :: value :: tail if VALUES.contains(name) => collect(tail, values + (name -> value))
+    case other :: _ => throw new IllegalArgumentException(s"Unexpected argument: $other")
+  }
+}
+
+/**
+  * Latencies of one type of query.
+  * @param name type of query
+  * @param p50Micros median latency
+  * @param p99Micros 99th percentile latency
+  * @param queriesPerSecond throughput of all threads together
+  * @param bytesDecryptedPerQuery plaintext bytes decrypted per query, for an encrypted directory
+  */
+case class QueryResult(name: String, p50Micros: Double, p99Micros: Double, queriesPerSecond: Double, bytesDecryptedPerQuery: Option[Double])
+
+/**
+  * Results of one directory.
+  * @param directory name of the directory implementation
+  * @param docsPerSecond documents indexed per second, including the final commit
+  * @param mergeMillis time taken to force merge the index to one segment
+  * @param sizeBytes size of the merged index on disk
+  * @param queries latencies of every type of query
+  */
+case class WorkloadResult(directory: String, docsPerSecond: Double, mergeMillis: Long, sizeBytes: Long, queries: Seq[QueryResult])
+
+/**
+  * Counts documents and sums the price of the matching documents per category, the way a terms aggregation with a
+  * sum sub-aggregation reads doc values.
+  */
+class CategoryAggregationCollector extends Collector {
+  private[this] val totals = mutable.Map.empty[String, (Long, Long)]
+  private[this] var categories: SortedDocValues = _
+  private[this] var prices: NumericDocValues = _
+  private[this] var counts: Array[Long] = Array.empty
+  private[this] var sums: Array[Long] = Array.empty
+
+  override def setScorer(scorer: Scorer): Unit = {}
+
+  override def acceptsDocsOutOfOrder(): Boolean = true
+
+  override def setNextReader(context: AtomicReaderContext): Unit = {
+    flush()
+    categories = Option(context.reader.getSortedDocValues(LuceneWorkloadBenchmark.CATEGORY))
+      .getOrElse(throw new IllegalStateException("Segment has no category doc values"))
+    prices = Option(context.reader.getNumericDocValues(LuceneWorkloadBenchmark.PRICE))
+      .getOrElse(throw new IllegalStateException("Segment has no price doc values"))
+    counts = new Array[Long](categories.getValueCount)
+    sums = new Array[Long](categories.getValueCount)
+  }
+
+  override def collect(doc: Int): Unit = {
+    val ord = categories.getOrd(doc)
+    if (ord >= 0) {
+      counts(ord) += 1
+      sums(ord) += prices.get(doc)
+    }
+  }
+
+  /**
+    * Returns the number of documents and the sum of their prices per category.
+    */
+  def result: Map[String, (Long, Long)] = {
+    flush()
+    totals.toMap
+  }
+
+  /**
+    * Adds the per-ordinal totals of the current segment to the per-category totals.
+    */
+  private[this] def flush(): Unit = {
+    for (ord <- counts.indices if counts(ord) > 0) {
+      val category = categories.lookupOrd(ord).utf8ToString
+      val (count, sum) = totals.getOrElse(category, (0L, 0L))
+      totals(category) = (count + counts(ord), sum + sums(ord))
+    }
+    counts = Array.empty
+    sums = Array.empty
+  }
+}
+
+/**
+  * End-to-end Lucene workload run against EncryptedDirectory and NIOFSDirectory:
+  * {{{
+  * sbt "benchmarks/runMain org.elasticsearch.index.store.LuceneWorkloadBenchmark --docs 200000 --threads 8"
+  * }}}
+  * Indexes a corpus generated from a fixed seed into each directory with an IndexWriter, then force merges it to
+  * one segment. The merged index is reopened through a new directory, and term, phrase, sorted and doc-values
+  * aggregation queries are run from several threads. Reports the indexing rate, the merge time, the median and 99th
+  * percentile latency of every type of query and, for EncryptedDirectory, the plaintext bytes decrypted per query.
+  * Runs offline, with HardcodedKeyProvider.
+  */
+object LuceneWorkloadBenchmark {
+  val DEFAULT_DOCS = 100000
+  val DEFAULT_THREADS = 4
+  val DEFAULT_QUERIES = 2000
+
+  private[store] val ID = "id"
+  private[store] val BODY = "body"
+  private[store] val CATEGORY = "category"
+  private[store] val PRICE = "price"
+
+  /* Distinct words of the corpus; word n is roughly n times less frequent than the first */
+  private[store] val VOCABULARY_SIZE = 20000
+  private[store] val NUM_CATEGORIES = 100
+  private[store] val MAX_PRICE = 100000
+  private[this] val MIN_WORDS_PER_DOC = 50
+  private[this] val MAX_WORDS_PER_DOC = 150
+  /* Share of words followed by the next word of the vocabulary, which phrase queries search for */
+  private[this] val PHRASE_PROBABILITY = 0.1
+  private[this] val TOP_HITS = 10
+  private[this] val MICROS_PER_NANO = 0.001
+
+  val USAGE: String =
+    """Usage: LuceneWorkloadBenchmark [options]
+      |  --docs <n>       number of documents indexed (default 100000)
+      |  --threads <n>    number of threads running queries (default 4)
+      |  --queries <n>    number of queries of each type measured, after as many warm-up queries (default 2000)
+      |  --data <dir>     directory the indices are written to (default: a temporary directory, deleted afterwards)
+      |  --seed <n>       seed of the corpus and the queries (default 42)
+      |  --json <file>    also write the results to the given file as JSON""".stripMargin
+
+  def main(args: Array[String]): Unit = {
+    val options = try {
+      WorkloadOptions.parse(args)
+    } catch {
+      case e: IllegalArgumentException =>
+        System.err.println(e.getMessage + "\n" + USAGE) // scalastyle:ignore regex
+        sys.exit(2)
+    }
+    val dataPath = options.dataPath.getOrElse(Files.createTempDirectory("lucene_workload").toFile)
+    try {
+      val results = run(options, dataPath)
+      results.foreach(report)
+      options.jsonFile.foreach(writeJson(results, _))
+    } finally {
+      if (options.dataPath.isEmpty) delete(dataPath)
+    }
+  }
+
+  /**
+    * Runs the workload against NIOFSDirectory and EncryptedDirectory.
+    * @param options workload to run
+    * @param dataPath directory the indices are written to
+    */
+  def run(options: WorkloadOptions, dataPath: File): Seq[WorkloadResult] = {
+    val component = new NodeKeyProviderComponent(ImmutableSettings.EMPTY) {
+      override val keyProvider = new HardcodedKeyProvider()
+    }
+    val shardId = new ShardId(BenchmarkData.INDEX_NAME, 0)
+    // scalastyle:off null
+    Seq(
+      run("NIOFSDirectory", new File(dataPath, "plain"), path => new NIOFSDirectory(path, NoLockFactory.getNoLockFactory), options),
+      run("EncryptedDirectory", new File(dataPath, "encrypted"),
+        path => new EncryptedDirectory(path, NoLockFactory.getNoLockFactory, shardId, null, component), options))
+    // scalastyle:on null
+  }
+
+  /**
+    * Indexes the corpus into one directory, merges it and runs the queries against it.
+    * @param name name of the directory implementation
+    * @param path directory of the index
+    * @param open opens the directory
+    * @param options workload to run
+    */
+  private[this] def run(name: String, path: File, open: File => Directory, options: WorkloadOptions): WorkloadResult = {
+    val writeDirectory = open(path)
+    val (docsPerSecond, mergeMillis) = try index(writeDirectory, options) finally writeDirectory.close()
+
+    // A new directory reads every file from disk rather than from the state cached while indexing
+    val readDirectory = open(path)
+    try {
+      val sizeBytes = path.listFiles.map(_.length).sum
+      val reader = DirectoryReader.open(readDirectory)
+      try {
+        val searcher = new IndexSearcher(reader)
+        val results = queryTypes(options).map { case (queryName, queries, execute) =>
+          runQueries(searcher, queries, execute, options.threads)
+          val before = bytesDecrypted(readDirectory)
+          val start = System.nanoTime
+          val latencies = runQueries(searcher, queries, execute, options.threads)
+          val seconds = (System.nanoTime - start) / 1e9
+          val perQuery = for (b <- before; a <- bytesDecrypted(readDirectory)) yield (a - b).toDouble / queries.size
+          QueryResult(queryName, percentile(latencies, 0.5) * MICROS_PER_NANO, percentile(latencies, 0.99) * MICROS_PER_NANO,
+            queries.size / seconds, perQuery)
+        }
+        WorkloadResult(name, docsPerSecond, mergeMillis, sizeBytes, results)
+      } finally {
+        reader.close()
+      }
+    } finally {
+      readDirectory.close()
+    }
+  }
+
+  /**
+    * Indexes the corpus, then force merges it to one segment.
+    * @param directory directory to index into
+    * @param options workload to run
+    * @return the documents indexed per second and the merge time in milliseconds
+    */
+  private[this] def index(directory: Directory, options: WorkloadOptions): (Double, Long) = {
+    val config = new IndexWriterConfig(Lucene.VERSION, Lucene.STANDARD_ANALYZER).setOpenMode(IndexWriterConfig.OpenMode.CREATE)
+    val writer = new IndexWriter(directory, config)
+    try {
+      val random = new Random(options.seed)
+      val start = System.nanoTime
+      for (id <- 0 until options.docs) writer.addDocument(document(id, random))
+      writer.commit()
+      val docsPerSecond = options.docs / ((System.nanoTime - start) / 1e9)
+
+      val mergeStart = System.nanoTime
+      writer.forceMerge(1)
+      writer.commit()
+      (docsPerSecond, TimeUnit.NANOSECONDS.toMillis(System.nanoTime - mergeStart))
+    } finally {
+      writer.close()
+    }
+  }
+
+  /**
+    * Generates a document of the corpus.
+    * @param id number of the document
+    * @param random source of the words, category and price
+    */
+  private[store] def document(id: Int, random: Random): Document = {
+    val numWords = MIN_WORDS_PER_DOC + random.nextInt(MAX_WORDS_PER_DOC - MIN_WORDS_PER_DOC + 1)
+    val body = new StringBuilder
+    for (_ <- 0 until numWords) {
+      val n = randomWord(random)
+      body.append(word(n)).append(' ')
+      if (random.nextDouble < PHRASE_PROBABILITY) body.append(word(n + 1)).append(' ')
+    }
+    val category = "category" + random.nextInt(NUM_CATEGORIES)
+    val doc = new Document
+    doc.add(new StringField(ID, id.toString, Field.Store.YES))
+    doc.add(new TextField(BODY, body.toString, Field.Store.NO))
+    doc.add(new StringField(CATEGORY, category, Field.Store.NO))
+    doc.add(new SortedDocValuesField(CATEGORY, new BytesRef(category)))
+    doc.add(new NumericDocValuesField(PRICE, random.nextInt(MAX_PRICE)))
+    doc
+  }
+
+  /**
+    * Returns the queries of every type, with the function that runs one of them and returns its number of hits.
+    * The same queries are run against every directory.
+    * @param options workload to run
+    */
+  private[this] def queryTypes(options: WorkloadOptions): Seq[(String, IndexedSeq[Query], (IndexSearcher, Query) => Long)] = {
+    val random = new Random(options.seed + 1)
+    def terms: IndexedSeq[Query] = IndexedSeq.fill(options.queries)(new TermQuery(new Term(BODY, word(randomWord(random)))))
+    val phrases: IndexedSeq[Query] = IndexedSeq.fill(options.queries) {
+      val first = randomWord(random)
+      val phrase = new PhraseQuery
+      phrase.add(new Term(BODY, word(first)))
+      phrase.add(new Term(BODY, word(first + 1)))
+      phrase
+    }
+    val topHits = (searcher: IndexSearcher, query: Query) => searcher.search(query, TOP_HITS).totalHits.toLong
+    val sortByPrice = new Sort(new SortField(PRICE, SortField.Type.LONG))
+    Seq(
+      ("term", terms, topHits),
+      ("phrase", phrases, topHits),
+      ("sort", terms, (searcher: IndexSearcher, query: Query) => searcher.search(query, TOP_HITS, sortByPrice).totalHits.toLong),
+      ("aggregation", terms, (searcher: IndexSearcher, query: Query) => {
+        val collector = new CategoryAggregationCollector
+        searcher.search(query, collector)
+        collector.result.values.map(_._1).sum
+      }))
+  }
+
+  /**
+    * Runs the queries, spread over the given number of threads.
+    * @param searcher searcher shared by all threads
+    * @param queries queries to run
+    * @param execute runs one query
+    * @param threads number of threads
+    * @return the latency of every query in nanoseconds
+    */
+  private[this] def runQueries(searcher: IndexSearcher, queries: IndexedSeq[Query], execute: (IndexSearcher, Query) => Long,
+                               threads: Int): Array[Long] = {
+    val latencies = new Array[Long](queries.size)
+    val executor = Executors.newFixedThreadPool(threads)
+    try {
+      val tasks = (0 until threads).map { thread =>
+        new Callable[Long] {
+          override def call(): Long = {
+            var hits = 0L
+            for (i <- thread until queries.size by threads) {
+              val start = System.nanoTime
+              hits += execute(searcher, queries(i))
+              latencies(i) = System.nanoTime - start
+            }
+            hits
+          }
+        }
+      }
+      executor.invokeAll(tasks.asJava).asScala.foreach(_.get)
+    } finally {
+      executor.shutdown()
+    }
+    latencies
+  }
+
+  /**
+    * Returns the plaintext bytes decrypted so far from the files of the index, as accounted by CryptoMetrics, if the
+    * directory is encrypted.
+    * @param directory directory searched
+    */
+  private[this] def bytesDecrypted(directory: Directory): Option[Long] = directory match {
+    case encrypted: EncryptedDirectory =>
+      val index = CryptoMetrics.snapshot.indices.get(encrypted.shardId.getIndex)
+      Some(index.map(_.extensions.values.map(_.bytesDecrypted).sum).getOrElse(0L))
+    case _ => None
+  }
+
+  /**
+    * Returns the given percentile of the values, using the nearest-rank method.
+    * @param values values, in any order
+    * @param quantile percentile between 0 and 1, e.g. 0.99
+    */
+  private[store] def percentile(values: Array[Long], quantile: Double): Long = {
+    require(values.nonEmpty, "No values")
+    val sorted = values.sorted
+    sorted(math.max(0, math.ceil(quantile * sorted.length).toInt - 1))
+  }
+
+  /**
+    * Returns a word of the vocabulary, skewed towards the first words the way natural language is.
+    * @param random source of randomness
+    */
+  private[this] def randomWord(random: Random): Int = {
+    val uniform = random.nextDouble
+    (uniform * uniform * uniform * (VOCABULARY_SIZE - 1)).toInt
+  }
+
+  private[this] def word(n: Int): String = "w" + n
+
+  /**
+    * Prints the results of one directory.
+    * @param result results to print
+    */
+  private[this] def report(result: WorkloadResult): Unit = {
+    println(f"${result.directory}: ${result.docsPerSecond}%.0f docs/s, merge ${result.mergeMillis} ms, ${result.sizeBytes} bytes") // scalastyle:ignore regex
+    println(f"  ${"query"}%-12s ${"p50 (us)"}%10s ${"p99 (us)"}%10s ${"queries/s"}%10s ${"decrypted B/query"}%18s") // scalastyle:ignore regex
+    result.queries.foreach { query =>
+      val decrypted = query.bytesDecryptedPerQuery.map(bytes => f"$bytes%.0f").getOrElse("-")
+      println(f"  ${query.name}%-12s ${query.p50Micros}%10.1f ${query.p99Micros}%10.1f ${query.queriesPerSecond}%10.0f $decrypted%18s") // scalastyle:ignore regex
+    }
+  }
+
+  /**
+    * Writes the results as a JSON array.
+    * @param results results of every directory
+    * @param file file to write
+    */
+  private[this] def writeJson(results: Seq[WorkloadResult], file: File): Unit = {
+    val array = new JsonArray
+    results.foreach { result =>
+      val json = new JsonObject
+      json.addProperty("directory", result.directory)
+      json.addProperty("docsPerSecond", result.docsPerSecond)
+      json.addProperty("mergeMillis", result.mergeMillis)
+      json.addProperty("sizeBytes", result.sizeBytes)
+      val queries = new JsonArray
+      result.queries.foreach { query =>
+        val q = new JsonObject
+        q.addProperty("name", query.name)
+        q.addProperty("p50Micros", query.p50Micros)
+        q.addProperty("p99Micros", query.p99Micros)
+        q.addProperty("queriesPerSecond", query.queriesPerSecond)
+        query.bytesDecryptedPerQuery.foreach(bytes => q.addProperty("bytesDecryptedPerQuery", bytes))
+        queries.add(q)
+      }
+      json.add("queries", queries)
+      array.add(json)
+    }
+    val writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8")
+    try writer.write(new GsonBuilder().setPrettyPrinting().create().toJson(array)) finally writer.close()
+  }
+
+  /**
+    * Deletes a file or a directory and its contents.
+    * @param file file to delete
+    */
+  private[this] def delete(file: File): Unit = {
+    Option(file.listFiles).foreach(_.foreach(delete))
+    file.delete()
+  }
+}
@@ -0,0 +1,45 @@
+package com.workday.elasticrypt.benchmarks
+
+import java.io.{ByteArrayOutputStream, PrintStream, StringReader}
+
+import org.scalatest.{FlatSpec, Matchers}
+
+class JmhBaselineDiffTest extends FlatSpec with Matchers {
+
+  def result(benchmark: String, mode: String, score: Double, allocation: Double): String =
+    s"""{"benchmark":"$benchmark","mode":"$mode","params":{"pageSize":"64","compress":"false"},
+       |"primaryMetric":{"score":$score,"scoreError":1.0,"scoreUnit":"ops/s"},
+       |"secondaryMetrics":{"${JmhBaselineDiff.ALLOCATION_METRIC}":{"score":$allocation,"scoreUnit":"B/op"}}}""".stripMargin
+
+  def scores(results: String*): Seq[BenchmarkScore] = JmhBaselineDiff.parse(new StringReader(results.mkString("[", ",", "]")))
+
+  behavior of "#parse"
+  it should "read the primary score, sorted params and allocation rate" in {
+    val parsed = scores(result("a.B.read", "thrpt", 100.0, 24.0))
+
+    parsed shouldBe Seq(BenchmarkScore("a.B.read", "compress=false,pageSize=64", "thrpt", 100.0, "ops/s", Some(24.0)))
+    parsed.head.key shouldBe "a.B.read(compress=false,pageSize=64)"
+  }
+
+  it should "accept results without params or profilers" in {
+    val parsed = JmhBaselineDiff.parse(new StringReader(
+      """[{"benchmark":"a.B.hmac","mode":"avgt","primaryMetric":{"score":5.0,"scoreUnit":"ns/op"}}]"""))
+
+    parsed shouldBe Seq(BenchmarkScore("a.B.hmac", "", "avgt", 5.0, "ns/op", None))
+  }
+
+  behavior of "#diff"
+  it should "report regressions beyond the threshold in either mode" in {
+    val baseline = scores(result("a.B.read", "thrpt", 100.0, 24.0), result("a.B.time", "avgt", 10.0, 0.0))
+    val current = scores(result("a.B.read", "thrpt", 80.0, 48.0), result("a.B.time", "avgt", 10.5, 0.0),
+      result("a.B.new", "thrpt", 1.0, 0.0))
+    val out = new ByteArrayOutputStream()
+
+    val regressions = JmhBaselineDiff.diff(baseline, current, 10.0, new PrintStream(out))
+
+    regressions shouldBe Seq("a.B.read(compress=false,pageSize=64)")
+    out.toString should include("-20.0%")
+    out.toString should include("alloc: 24 -> 48 B/op")
+    out.toString should include("new: 1.00")
+  }
+}
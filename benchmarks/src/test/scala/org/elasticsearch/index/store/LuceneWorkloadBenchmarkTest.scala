@@ -0,0 +1,76 @@
+package org.elasticsearch.index.store
+
+import java.io.File
+import java.nio.file.Files
+import java.util.Random
+
+import org.apache.lucene.index.{DirectoryReader, IndexWriter, IndexWriterConfig}
+import org.apache.lucene.search.{IndexSearcher, MatchAllDocsQuery}
+import org.apache.lucene.store.RAMDirectory
+import org.elasticsearch.common.lucene.Lucene
+import org.scalatest.{FlatSpec, Matchers}
+
+class LuceneWorkloadBenchmarkTest extends FlatSpec with Matchers {
+
+  def delete(file: File): Unit = {
+    Option(file.listFiles).foreach(_.foreach(delete))
+    file.delete()
+  }
+
+  behavior of "WorkloadOptions#parse"
+  it should "read every option and default the others" in {
+    WorkloadOptions.parse(Seq("--docs", "10", "--threads", "2", "--json", "out.json")) shouldBe
+      WorkloadOptions(docs = 10, threads = 2, jsonFile = Some(new File("out.json")))
+    WorkloadOptions.parse(Seq.empty) shouldBe WorkloadOptions()
+  }
+
+  it should "reject unknown and malformed arguments" in {
+    an[IllegalArgumentException] should be thrownBy WorkloadOptions.parse(Seq("--rewrite"))
+    an[IllegalArgumentException] should be thrownBy WorkloadOptions.parse(Seq("--docs", "many"))
+  }
+
+  behavior of "#percentile"
+  it should "return the nearest rank" in {
+    val values = (1L to 100L).reverse.toArray
+
+    LuceneWorkloadBenchmark.percentile(values, 0.5) shouldBe 50L
+    LuceneWorkloadBenchmark.percentile(values, 0.99) shouldBe 99L
+    LuceneWorkloadBenchmark.percentile(Array(7L), 0.99) shouldBe 7L
+  }
+
+  behavior of "CategoryAggregationCollector"
+  it should "count documents and sum prices per category" in {
+    val directory = new RAMDirectory
+    val writer = new IndexWriter(directory, new IndexWriterConfig(Lucene.VERSION, Lucene.STANDARD_ANALYZER))
+    val random = new Random(1)
+    val docs = (0 until 50).map(LuceneWorkloadBenchmark.document(_, random))
+    docs.foreach(doc => writer.addDocument(doc))
+    writer.close()
+
+    val reader = DirectoryReader.open(directory)
+    val collector = new CategoryAggregationCollector
+    new IndexSearcher(reader).search(new MatchAllDocsQuery, collector)
+    reader.close()
+
+    val expected = docs.groupBy(_.get(LuceneWorkloadBenchmark.CATEGORY)).map { case (category, group) =>
+      category -> (group.size.toLong, group.map(_.getField(LuceneWorkloadBenchmark.PRICE).numericValue.longValue).sum)
+    }
+    collector.result shouldBe expected
+  }
+
+  behavior of "#run"
+  it should "index and query both directories, counting the bytes decrypted by EncryptedDirectory" in {
+    val dataPath = Files.createTempDirectory("lucene_workload_test").toFile
+    try {
+      val results = LuceneWorkloadBenchmark.run(WorkloadOptions(docs = 200, threads = 2, queries = 20), dataPath)
+
+      results.map(_.directory) shouldBe Seq("NIOFSDirectory", "EncryptedDirectory")
+      results.foreach(_.queries.map(_.name) shouldBe Seq("term", "phrase", "sort", "aggregation"))
+      results.head.queries.foreach(_.bytesDecryptedPerQuery shouldBe None)
+      results(1).queries.foreach(_.bytesDecryptedPerQuery.isDefined shouldBe true)
+      results(1).sizeBytes should be > results.head.sizeBytes
+    } finally {
+      delete(dataPath)
+    }
+  }
+}
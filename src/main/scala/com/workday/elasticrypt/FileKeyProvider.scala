@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 Workday, Inc.
+ *
+ * This software is available under the MIT license.
+ * Please see the LICENSE.txt file in this project.
+ */
+
+package com.workday.elasticrypt
+
+import java.io.{File, FileInputStream}
+import java.util.Properties
+import javax.crypto.spec.SecretKeySpec
+
+import scala.collection.JavaConverters.asScalaSetConverter
+
+import org.elasticsearch.common.Base64
+
+/**
+  * Contains the syntax of key files read by FileKeyProvider.
+  */
+object FileKeyProvider {
+  val ALGORITHM_AES = "AES"
+  /* Index name matching every index without a key of its own */
+  val ANY_INDEX = "*"
+  /* Separates the index name from the key version */
+  val VERSION_SEPARATOR = "@"
+}
+
+/**
+  * KeyProvider that reads Base64-encoded keys from a properties file, for tools that run against a local copy of a
+  * shard without access to the key service. Each line is either indexName=key, for an unversioned key, or
+  * indexName@version=key, for one version of a rotated key. The index name * matches any index.
+  * The highest version listed for an index is its current key version.
+  *
+  * @param file properties file to read keys from
+  */
+class FileKeyProvider(file: File) extends KeyProvider {
+  import FileKeyProvider._
+
+  private[this] val keys: Map[(String, Int), SecretKeySpec] = load()
+
+  /**
+    * Returns the unversioned key of the given index.
+    * @param indexName the name of index used to get a specific key
+    * @return the key requested
+    */
+  def getKey(indexName: String): SecretKeySpec = getKey(indexName, KeyVersion.UNVERSIONED)
+
+  /**
+    * Returns the highest key version listed for the given index.
+    * @param indexName name of the index
+    */
+  override def getKeyVersion(indexName: String): Int = {
+    val versions = keys.keys.filter(_._1 == indexName).map(_._2)
+    val candidates = if (versions.isEmpty) keys.keys.filter(_._1 == ANY_INDEX).map(_._2) else versions
+    if (candidates.isEmpty) KeyVersion.UNVERSIONED else candidates.max
+  }
+
+  /**
+    * Returns the given version of the key of the given index.
+    * @param indexName name of the index
+    * @param keyVersion version recorded in the file header
+    */
+  override def getKey(indexName: String, keyVersion: Int): SecretKeySpec = {
+    keys.get((indexName, keyVersion)).orElse(keys.get((ANY_INDEX, keyVersion))).getOrElse {
+      throw new IllegalArgumentException(s"No key for index [$indexName] version $keyVersion in $file")
+    }
+  }
+
+  /**
+    * Reads all keys from the file.
+    */
+  private[this] def load(): Map[(String, Int), SecretKeySpec] = {
+    val properties = new Properties()
+    val in = new FileInputStream(file)
+    try {
+      properties.load(in)
+    } finally {
+      in.close()
+    }
+
+    properties.stringPropertyNames.asScala.map { name =>
+      val separator = name.lastIndexOf(VERSION_SEPARATOR)
+      val (indexName, keyVersion) = if (separator > 0) {
+        (name.substring(0, separator), name.substring(separator + 1).toInt)
+      } else {
+        (name, KeyVersion.UNVERSIONED)
+      }
+      (indexName, keyVersion) -> new SecretKeySpec(Base64.decode(properties.getProperty(name).trim), ALGORITHM_AES)
+    }.toMap
+  }
+}
@@ -1,10 +1,12 @@
 package com.workday.elasticrypt
 
-import java.io.{BufferedReader, InputStreamReader}
+import java.io.{BufferedReader, IOException, InputStreamReader}
 import java.net.URI
 import javax.crypto.spec.SecretKeySpec
 
 import com.google.gson.Gson
+import com.workday.elasticrypt.stats.CryptoMetrics
+import org.apache.http.HttpStatus
 import org.apache.http.client.methods.{CloseableHttpResponse, HttpGet}
 import org.apache.http.client.utils.URIBuilder
 import org.apache.http.impl.client.HttpClients
@@ -18,10 +20,11 @@ class HttpKeyProvider(uri: URI) extends KeyProvider {
   val ALGORITHM_AES = "AES"
 
   /**
-    * Returns the key for the given index name.
+    * Returns the key for the given index name. The fetch is timed in the key fetch metrics of the index.
     * @param indexName name of the index used to retrieve key
+    * @throws IOException if the key service cannot be reached, answers with an error status or without a key
     */
-  def getKey(indexName: String): SecretKeySpec = {
+  def getKey(indexName: String): SecretKeySpec = CryptoMetrics.forKeyFetch(indexName).time {
     val uriWithParam: URI = new URIBuilder(uri).addParameter("indexName", indexName).build()
     val httpGet = new HttpGet(uriWithParam)
     val res: CloseableHttpResponse = httpclient.execute(httpGet)
@@ -29,8 +32,14 @@ class HttpKeyProvider(uri: URI) extends KeyProvider {
       // Retrieve keys from response
       val content = new BufferedReader(new InputStreamReader(res.getEntity().getContent))
       val jsonString = Iterator.continually(content.readLine).takeWhile(_ != null).mkString
-      val jsonMap = new Gson().fromJson(jsonString, classOf[java.util.HashMap[String, String]])
-      val key = jsonMap.get("key").getBytes.slice(0, 32)
+      val status = res.getStatusLine.getStatusCode
+      if (status != HttpStatus.SC_OK) {
+        throw new IOException(s"Key service $uri answered HTTP $status for index [$indexName]: $jsonString")
+      }
+      val jsonMap = Option(new Gson().fromJson(jsonString, classOf[java.util.HashMap[String, String]]))
+      val key = jsonMap.flatMap(map => Option(map.get("key"))).getOrElse {
+        throw new IOException(s"Key service $uri answered without a key for index [$indexName]")
+      }.getBytes.slice(0, 32)
       val keyPadded = key ++ Array.fill[Byte](32 - key.length)(1)
       new SecretKeySpec(keyPadded, ALGORITHM_AES)
     } finally {
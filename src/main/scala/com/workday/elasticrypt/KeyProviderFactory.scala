@@ -5,9 +5,28 @@ import javax.crypto.spec.SecretKeySpec
 
 /**
   * A trait describing the basic key provider.
+  *
+  * Providers that support key rotation also implement getKeyVersion() and getKey(indexName, keyVersion). The version
+  * of the key a file was written with is recorded in its FileHeader, so files written before a rotation can still be
+  * read. Version 0 means unversioned: getKey(indexName) is used, as for providers that do not support rotation.
   */
 trait KeyProvider {
   def getKey(indexName: String): SecretKeySpec
+
+  /**
+    * Returns the version of the key new files of the given index are encrypted with.
+    * @param indexName name of the index
+    * @return the current key version, 0 if the provider does not version its keys
+    */
+  def getKeyVersion(indexName: String): Int = KeyVersion.UNVERSIONED
+
+  /**
+    * Returns the given version of the key of the given index.
+    * @param indexName name of the index
+    * @param keyVersion version recorded in the file header
+    * @return the key requested
+    */
+  def getKey(indexName: String, keyVersion: Int): SecretKeySpec = getKey(indexName)
 }
 
 /**
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2017 Workday, Inc.
+ *
+ * This software is available under the MIT license.
+ * Please see the LICENSE.txt file in this project.
+ */
+
+package com.workday.elasticrypt
+
+import javax.crypto.spec.SecretKeySpec
+
+/**
+  * Resolves versioned keys. Utilized in AESReader, AESWriter and HmacFileHeader.
+  */
+object KeyVersion {
+  /* Version of keys from providers that do not support rotation, and of files written before versioning */
+  val UNVERSIONED = 0
+
+  /**
+    * Returns the key of the given version. Unversioned keys are fetched with getKey(indexName), so providers that
+    * do not support rotation behave exactly as before.
+    * @param keyProvider encryption key information getter
+    * @param indexName name of the index
+    * @param keyVersion version recorded in the file header
+    */
+  def resolveKey(keyProvider: KeyProvider, indexName: String, keyVersion: Int): SecretKeySpec = {
+    if (keyVersion == UNVERSIONED) keyProvider.getKey(indexName) else keyProvider.getKey(indexName, keyVersion)
+  }
+}
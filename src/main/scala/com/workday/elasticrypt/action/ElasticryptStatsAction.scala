@@ -0,0 +1,46 @@
+/*
+ * Copyright 2017 Workday, Inc.
+ *
+ * This software is available under the MIT license.
+ * Please see the LICENSE.txt file in this project.
+ */
+
+package com.workday.elasticrypt.action
+
+import org.elasticsearch.action.ActionListener
+import org.elasticsearch.action.admin.cluster.ClusterAction
+import org.elasticsearch.action.support.nodes.NodesOperationRequestBuilder
+import org.elasticsearch.client.ClusterAdminClient
+
+/**
+  * Cluster action that collects the encryption metrics of every node, the nodes-level counterpart of _nodes/stats
+  * behind _elasticrypt/stats. Executed by TransportElasticryptStatsAction.
+  */
+object ElasticryptStatsAction
+  extends ClusterAction[ElasticryptStatsRequest, ElasticryptStatsResponse, ElasticryptStatsRequestBuilder]("cluster:monitor/elasticrypt/stats") {
+
+  override def newResponse(): ElasticryptStatsResponse = new ElasticryptStatsResponse()
+
+  override def newRequestBuilder(client: ClusterAdminClient): ElasticryptStatsRequestBuilder = new ElasticryptStatsRequestBuilder(client)
+}
+
+/**
+  * Builds and executes an ElasticryptStatsRequest.
+  * @param adminClient client the request is executed by
+  */
+class ElasticryptStatsRequestBuilder(adminClient: ClusterAdminClient)
+  extends NodesOperationRequestBuilder[ElasticryptStatsRequest, ElasticryptStatsResponse, ElasticryptStatsRequestBuilder](
+    adminClient, new ElasticryptStatsRequest()) {
+
+  /**
+    * Restricts the metrics to the given indices.
+    * @param indices names of the indices
+    */
+  def setIndices(indices: String*): ElasticryptStatsRequestBuilder = {
+    request.indices = indices.toArray
+    this
+  }
+
+  override protected def doExecute(listener: ActionListener[ElasticryptStatsResponse]): Unit =
+    adminClient.execute(ElasticryptStatsAction, request, listener)
+}
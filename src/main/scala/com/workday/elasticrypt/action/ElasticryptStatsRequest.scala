@@ -0,0 +1,55 @@
+/*
+ * Copyright 2017 Workday, Inc.
+ *
+ * This software is available under the MIT license.
+ * Please see the LICENSE.txt file in this project.
+ */
+
+package com.workday.elasticrypt.action
+
+import org.elasticsearch.action.support.nodes.{NodeOperationRequest, NodesOperationRequest}
+import org.elasticsearch.common.Strings
+import org.elasticsearch.common.io.stream.{StreamInput, StreamOutput}
+
+/**
+  * Request for the encryption metrics of some nodes, all nodes if none is given.
+  * @param nodesIds ids of the nodes to ask
+  */
+class ElasticryptStatsRequest(nodesIds: String*) extends NodesOperationRequest[ElasticryptStatsRequest](nodesIds: _*) {
+  /* Indices to return the metrics of; all indices if empty */
+  var indices: Array[String] = Strings.EMPTY_ARRAY
+
+  override def readFrom(in: StreamInput): Unit = {
+    super.readFrom(in)
+    indices = in.readStringArray()
+  }
+
+  override def writeTo(out: StreamOutput): Unit = {
+    super.writeTo(out)
+    out.writeStringArray(indices)
+  }
+}
+
+/**
+  * Part of an ElasticryptStatsRequest sent to a single node.
+  * @param request request of the client
+  * @param nodeId id of the node the request is sent to
+  */
+class ElasticryptNodeStatsRequest(request: ElasticryptStatsRequest, nodeId: String) extends NodeOperationRequest(request, nodeId) {
+  var indices: Array[String] = request.indices
+
+  /**
+    * @constructor creates an empty request, read from the transport
+    */
+  def this() = this(new ElasticryptStatsRequest(), null) // scalastyle:ignore null
+
+  override def readFrom(in: StreamInput): Unit = {
+    super.readFrom(in)
+    indices = in.readStringArray()
+  }
+
+  override def writeTo(out: StreamOutput): Unit = {
+    super.writeTo(out)
+    out.writeStringArray(indices)
+  }
+}
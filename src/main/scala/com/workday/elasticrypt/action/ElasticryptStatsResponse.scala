@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 Workday, Inc.
+ *
+ * This software is available under the MIT license.
+ * Please see the LICENSE.txt file in this project.
+ */
+
+package com.workday.elasticrypt.action
+
+import scala.collection.JavaConverters.mapAsScalaMapConverter
+
+import org.elasticsearch.action.support.nodes.{NodeOperationResponse, NodesOperationResponse}
+import org.elasticsearch.cluster.ClusterName
+import org.elasticsearch.cluster.node.DiscoveryNode
+import org.elasticsearch.common.bytes.{BytesArray, BytesReference}
+import org.elasticsearch.common.io.stream.{StreamInput, StreamOutput}
+import org.elasticsearch.common.xcontent.{ToXContent, XContentBuilder, XContentHelper}
+
+/**
+  * Encryption metrics of every node that answered an ElasticryptStatsRequest, rendered per node id like _nodes/stats.
+  * @param clusterName name of the cluster
+  * @param nodeStats metrics of each node
+  */
+class ElasticryptStatsResponse(clusterName: ClusterName, nodeStats: Array[ElasticryptNodeStatsResponse])
+  extends NodesOperationResponse[ElasticryptNodeStatsResponse](clusterName, nodeStats) with ToXContent {
+
+  /**
+    * @constructor creates an empty response, read from the transport
+    */
+  def this() = this(null, Array.empty) // scalastyle:ignore null
+
+  override def readFrom(in: StreamInput): Unit = {
+    super.readFrom(in)
+    nodes = Array.fill(in.readVInt())(ElasticryptNodeStatsResponse.readNodeStats(in))
+  }
+
+  override def writeTo(out: StreamOutput): Unit = {
+    super.writeTo(out)
+    out.writeVInt(nodes.length)
+    nodes.foreach(_.writeTo(out))
+  }
+
+  override def toXContent(builder: XContentBuilder, params: ToXContent.Params): XContentBuilder = {
+    builder.field("cluster_name", getClusterName.value)
+    builder.startObject("nodes")
+    getNodes.foreach { node =>
+      builder.startObject(node.getNode.id)
+      builder.field("name", node.getNode.name)
+      XContentHelper.convertToMap(node.stats, true).v2().asScala.foreach { case (name, value) => builder.field(name, value) }
+      builder.endObject()
+    }
+    builder.endObject()
+  }
+}
+
+/**
+  * Contains the deserializer of ElasticryptNodeStatsResponse.
+  */
+object ElasticryptNodeStatsResponse {
+  /**
+    * Reads the metrics of a node from the transport.
+    * @param in stream to read from
+    */
+  def readNodeStats(in: StreamInput): ElasticryptNodeStatsResponse = {
+    val response = new ElasticryptNodeStatsResponse()
+    response.readFrom(in)
+    response
+  }
+}
+
+/**
+  * Encryption metrics of a single node. The CryptoStats of the node are sent as the JSON they render to, which the
+  * receiving node copies into its response.
+  * @param node node the metrics are taken from
+  * @param stats JSON object holding the CryptoStats of the node
+  */
+class ElasticryptNodeStatsResponse(node: DiscoveryNode, var stats: BytesReference) extends NodeOperationResponse(node) {
+
+  /**
+    * @constructor creates an empty response, read from the transport
+    */
+  def this() = this(null, BytesArray.EMPTY) // scalastyle:ignore null
+
+  override def readFrom(in: StreamInput): Unit = {
+    super.readFrom(in)
+    stats = in.readBytesReference()
+  }
+
+  override def writeTo(out: StreamOutput): Unit = {
+    super.writeTo(out)
+    out.writeBytesReference(stats)
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2017 Workday, Inc.
+ *
+ * This software is available under the MIT license.
+ * Please see the LICENSE.txt file in this project.
+ */
+
+package com.workday.elasticrypt.action
+
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+import com.workday.elasticrypt.stats.{CryptoMetrics, CryptoStats}
+import org.elasticsearch.action.support.ActionFilters
+import org.elasticsearch.action.support.nodes.TransportNodesOperationAction
+import org.elasticsearch.cluster.{ClusterName, ClusterService}
+import org.elasticsearch.common.bytes.BytesReference
+import org.elasticsearch.common.inject.Inject
+import org.elasticsearch.common.settings.Settings
+import org.elasticsearch.common.xcontent.{ToXContent, XContentFactory}
+import org.elasticsearch.threadpool.ThreadPool
+import org.elasticsearch.transport.TransportService
+
+/**
+  * Contains the rendering of the metrics of the local node.
+  */
+object TransportElasticryptStatsAction {
+  /**
+    * Returns the CryptoStats of this node, restricted to the given indices unless none is given, as a JSON object.
+    * @param indices names of the indices to return the metrics of
+    */
+  def localStats(indices: Array[String]): BytesReference = {
+    val snapshot: CryptoStats = CryptoMetrics.snapshot
+    val stats = if (indices.isEmpty) snapshot else snapshot.forIndices(indices.toSet)
+    val builder = XContentFactory.jsonBuilder()
+    builder.startObject()
+    stats.toXContent(builder, ToXContent.EMPTY_PARAMS)
+    builder.endObject()
+    builder.bytes()
+  }
+}
+
+/**
+  * Sends an ElasticryptStatsRequest to the selected nodes, takes a snapshot of CryptoMetrics on each of them on the
+  * management thread pool, and merges the answers into an ElasticryptStatsResponse. Nodes that fail to answer are
+  * left out of the response, as by _nodes/stats. The methods use the clusterName and clusterService fields of
+  * TransportNodesOperationAction, which the constructor parameters are named apart from.
+  */
+class TransportElasticryptStatsAction @Inject()(settings: Settings, localClusterName: ClusterName, threadPool: ThreadPool,
+                                                localClusterService: ClusterService, transportService: TransportService,
+                                                actionFilters: ActionFilters)
+  extends TransportNodesOperationAction[ElasticryptStatsRequest, ElasticryptStatsResponse, ElasticryptNodeStatsRequest,
+    ElasticryptNodeStatsResponse](settings, ElasticryptStatsAction.name(), localClusterName, threadPool, localClusterService,
+    transportService, actionFilters) {
+
+  override protected def executor(): String = ThreadPool.Names.MANAGEMENT
+
+  override protected def newRequest(): ElasticryptStatsRequest = new ElasticryptStatsRequest()
+
+  override protected def newResponse(request: ElasticryptStatsRequest, responses: AtomicReferenceArray[_]): ElasticryptStatsResponse = {
+    val nodeStats = (0 until responses.length).map(responses.get).collect { case stats: ElasticryptNodeStatsResponse => stats }
+    new ElasticryptStatsResponse(clusterName, nodeStats.toArray)
+  }
+
+  override protected def newNodeRequest(): ElasticryptNodeStatsRequest = new ElasticryptNodeStatsRequest()
+
+  override protected def newNodeRequest(nodeId: String, request: ElasticryptStatsRequest): ElasticryptNodeStatsRequest =
+    new ElasticryptNodeStatsRequest(request, nodeId)
+
+  override protected def newNodeResponse(): ElasticryptNodeStatsResponse = new ElasticryptNodeStatsResponse()
+
+  override protected def nodeOperation(request: ElasticryptNodeStatsRequest): ElasticryptNodeStatsResponse =
+    new ElasticryptNodeStatsResponse(clusterService.localNode, TransportElasticryptStatsAction.localStats(request.indices))
+
+  override protected def accumulateExceptions(): Boolean = false
+}
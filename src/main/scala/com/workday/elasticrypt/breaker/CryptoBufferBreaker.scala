@@ -0,0 +1,228 @@
+/*
+ * Copyright 2017 Workday, Inc.
+ *
+ * This software is available under the MIT license.
+ * Please see the LICENSE.txt file in this project.
+ */
+
+package com.workday.elasticrypt.breaker
+
+import java.util.Collections
+import java.util.concurrent.{ConcurrentHashMap, TimeUnit}
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicLong}
+
+import scala.collection.JavaConverters.asScalaSetConverter
+
+import org.elasticsearch.common.breaker.CircuitBreakingException
+import org.elasticsearch.common.unit.ByteSizeValue
+import org.elasticsearch.common.util.concurrent.jsr166e.LongAdder
+import org.elasticsearch.common.xcontent.{ToXContent, XContentBuilder}
+
+/**
+  * Holder of crypto buffers that can give them up while it is not in use, and allocate them again on its next use.
+  */
+trait ReleasableBuffers {
+  /**
+    * Releases the buffers of this holder, unless it is in use by another thread or by the calling thread.
+    * @param minIdleNanos only release buffers not used for at least this long; 0 to release them unless they are
+    *                     in use right now
+    * @return number of bytes released
+    */
+  def releaseBuffers(minIdleNanos: Long): Long
+}
+
+/**
+  * Contains the settings and the node-wide instance of CryptoBufferBreaker.
+  */
+object CryptoBufferBreaker {
+  /* Node setting: maximum heap held by crypto buffers, as a size or a percentage of the heap */
+  val LIMIT_SETTING = "elasticrypt.breaker.crypto_buffers.limit"
+  val DEFAULT_LIMIT = "5%"
+  /* Node setting: share of the limit above which buffers of idle readers are released */
+  val TRIM_RATIO_SETTING = "elasticrypt.breaker.crypto_buffers.trim_ratio"
+  val DEFAULT_TRIM_RATIO = 0.8
+  /* Above the trim threshold, buffers of readers not used for this long are released */
+  val DEFAULT_IDLE_NANOS = TimeUnit.SECONDS.toNanos(1)
+  /* Allocations above the trim threshold sweep the readers at most this often */
+  val DEFAULT_TRIM_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100)
+  val NAME = "crypto_buffers"
+  /* Size of an AES block, see AESReader */
+  private[this] val BLOCK_SIZE = 16
+
+  /* Breaker of this node, configured by CryptoBufferBreakerComponent */
+  val node = new CryptoBufferBreaker((Runtime.getRuntime.maxMemory * 0.05).toLong, DEFAULT_TRIM_RATIO)
+
+  /**
+    * Returns the size of the page buffer and the cipher text buffer of an AESReader or AESWriter.
+    * @param pageSize number of 16-byte blocks per page
+    */
+  def pageBufferBytes(pageSize: Int): Long = 2L * pageSize * BLOCK_SIZE
+}
+
+/**
+  * Accounts the heap held by the crypto buffers of this node: the page and cipher text buffers of every AESReader and
+  * AESWriter, their direct page buffers, the BufferedIndexInput buffers of AESIndexInputs, and the transfer,
+  * compression and read-ahead buffers of the encrypted translog, which are held until their channel or stream is
+  * closed. Elasticsearch's own breakers do not see this memory, and Elasticsearch 1.x does not let plugins add a
+  * breaker to its hierarchy, so this one stands on its own.
+  *
+  * Allocations are always accounted. Once the buffers held exceed the trim threshold, allocations sweep the readers,
+  * at most once per trim interval, and release the buffers of those not used for the idle time; they are allocated
+  * again on the next read. Only opening an input read once, as by a recovery or a snapshot, checks the limit, through
+  * checkBreaker(), so searches, refreshes, merges and writes never fail here.
+  *
+  * @param initialLimitBytes maximum number of bytes held before checkBreaker() trips
+  * @param initialTrimRatio share of the limit above which idle buffers are released
+  * @param idleNanos time after which the buffers of an unused reader count as idle
+  * @param trimIntervalNanos minimum time between two sweeps started by allocations
+  */
+class CryptoBufferBreaker(initialLimitBytes: Long, initialTrimRatio: Double, idleNanos: Long = CryptoBufferBreaker.DEFAULT_IDLE_NANOS,
+                          trimIntervalNanos: Long = CryptoBufferBreaker.DEFAULT_TRIM_INTERVAL_NANOS) {
+  import CryptoBufferBreaker._
+
+  @volatile private[this] var limitBytes = initialLimitBytes
+  @volatile private[this] var trimRatio = checkTrimRatio(initialTrimRatio)
+  private[this] val used = new AtomicLong()
+  private[this] val peak = new AtomicLong()
+  private[this] val trips = new LongAdder
+  private[this] val trims = new LongAdder
+  private[this] val releasedBytes = new LongAdder
+  private[this] val trimming = new AtomicBoolean()
+  private[this] val lastTrimNanos = new AtomicLong(System.nanoTime - trimIntervalNanos)
+  private[this] val holders = Collections.newSetFromMap(new ConcurrentHashMap[ReleasableBuffers, java.lang.Boolean]())
+
+  /**
+    * Changes the limit, e.g. once the node settings are known.
+    * @param bytes maximum number of bytes held
+    */
+  def setLimit(bytes: Long): Unit = limitBytes = bytes
+
+  /**
+    * Changes the share of the limit above which idle buffers are released.
+    * @param ratio share between 0, exclusive, and 1
+    */
+  def setTrimRatio(ratio: Double): Unit = trimRatio = checkTrimRatio(ratio)
+
+  def limit: Long = limitBytes
+
+  def usedBytes: Long = used.get
+
+  /**
+    * Makes the buffers of a holder releasable under pressure, until it is unregistered.
+    * @param holder reader whose buffers can be released
+    */
+  def register(holder: ReleasableBuffers): Unit = holders.add(holder)
+
+  def unregister(holder: ReleasableBuffers): Unit = holders.remove(holder)
+
+  /**
+    * Accounts buffers about to be allocated, releasing idle buffers if this crosses the trim threshold and no sweep
+    * ran within the trim interval. Never trips.
+    * @param bytes size of the buffers
+    */
+  def allocate(bytes: Long): Unit = {
+    val now = used.addAndGet(bytes)
+    var max = peak.get
+    while (now > max && !peak.compareAndSet(max, now)) max = peak.get
+    val threshold = trimThreshold
+    if (now > threshold) {
+      val nanos = System.nanoTime
+      val last = lastTrimNanos.get
+      if (nanos - last >= trimIntervalNanos && lastTrimNanos.compareAndSet(last, nanos)) trim(now - threshold)
+    }
+  }
+
+  /**
+    * Accounts buffers that were dropped.
+    * @param bytes size of the buffers
+    */
+  def release(bytes: Long): Unit = used.addAndGet(-bytes)
+
+  /**
+    * Checks that buffers of the given size can be allocated without exceeding the limit, releasing the buffers of
+    * readers that are not in use if needed.
+    * @param bytes size of the buffers about to be allocated
+    * @param label what the buffers are for, e.g. the name of the file opened
+    * @throws CircuitBreakingException if the buffers would still exceed the limit
+    */
+  def checkBreaker(bytes: Long, label: String): Unit = {
+    val limit = limitBytes
+    if (used.get + bytes > limit) {
+      trim(used.get + bytes - limit, idleOnly = false)
+      val wanted = used.get + bytes
+      if (wanted > limit) {
+        trips.increment()
+        throw new CircuitBreakingException(s"[$NAME] Data too large, data for [$label] would be larger than limit of " +
+          s"[$limit/${new ByteSizeValue(limit)}], currently using [${new ByteSizeValue(wanted - bytes)}]")
+      }
+    }
+  }
+
+  /**
+    * Releases the buffers of registered readers until the given number of bytes was released. Readers not used for
+    * the idle time go first; unless idleOnly, readers not in use right now follow. Only one thread sweeps at a time;
+    * the others return at once.
+    * @param bytesWanted number of bytes to release
+    * @param idleOnly whether to stop after the readers not used for the idle time
+    * @return number of bytes released
+    */
+  def trim(bytesWanted: Long, idleOnly: Boolean = true): Long = {
+    if (trimming.compareAndSet(false, true)) {
+      try {
+        trims.increment()
+        val passes = if (idleOnly) Seq(idleNanos) else Seq(idleNanos, 0L)
+        val released = passes.foldLeft(0L) { (released, minIdleNanos) =>
+          holders.asScala.foldLeft(released) { (sum, holder) =>
+            if (sum >= bytesWanted) sum else sum + holder.releaseBuffers(minIdleNanos)
+          }
+        }
+        releasedBytes.add(released)
+        released
+      } finally {
+        trimming.set(false)
+      }
+    } else {
+      0L
+    }
+  }
+
+  /**
+    * Returns a snapshot of the counters.
+    */
+  def stats: CryptoBufferStats = CryptoBufferStats(limitBytes, trimThreshold, used.get, peak.get, holders.size,
+    trips.sum, trims.sum, releasedBytes.sum)
+
+  private[this] def trimThreshold: Long = (limitBytes * trimRatio).toLong
+
+  private[this] def checkTrimRatio(ratio: Double): Double = {
+    require(ratio > 0 && ratio <= 1, s"Trim ratio must be in (0, 1], got $ratio")
+    ratio
+  }
+}
+
+/**
+  * Snapshot of a CryptoBufferBreaker.
+  * @param limitBytes maximum number of bytes held before the breaker trips
+  * @param trimThresholdBytes number of bytes held above which idle buffers are released
+  * @param usedBytes number of bytes held
+  * @param peakBytes largest number of bytes held so far
+  * @param releasableHolders number of open readers whose buffers can be released
+  * @param trips number of inputs refused because of the limit
+  * @param trims number of sweeps releasing buffers
+  * @param releasedBytes number of bytes released by the sweeps
+  */
+case class CryptoBufferStats(limitBytes: Long, trimThresholdBytes: Long, usedBytes: Long, peakBytes: Long,
+                             releasableHolders: Int, trips: Long, trims: Long, releasedBytes: Long) extends ToXContent {
+  override def toXContent(builder: XContentBuilder, params: ToXContent.Params): XContentBuilder = {
+    builder.startObject()
+    builder.field("limit_size_in_bytes", limitBytes)
+    builder.field("trim_threshold_in_bytes", trimThresholdBytes)
+    builder.field("estimated_size_in_bytes", usedBytes)
+    builder.field("peak_size_in_bytes", peakBytes)
+    builder.field("releasable_readers", releasableHolders)
+    builder.field("tripped", trips)
+    builder.field("trims", trims)
+    builder.field("released_in_bytes", releasedBytes)
+    builder.endObject()
+  }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2017 Workday, Inc.
+ *
+ * This software is available under the MIT license.
+ * Please see the LICENSE.txt file in this project.
+ */
+
+package com.workday.elasticrypt.breaker
+
+import org.elasticsearch.common.component.AbstractComponent
+import org.elasticsearch.common.inject.Inject
+import org.elasticsearch.common.settings.Settings
+
+/**
+  * Configures the node-wide CryptoBufferBreaker from the node settings, e.g. in elasticsearch.yml:
+  * {{{
+  * elasticrypt.breaker.crypto_buffers.limit: 512mb
+  * elasticrypt.breaker.crypto_buffers.trim_ratio: 0.75
+  * }}}
+  */
+class CryptoBufferBreakerComponent @Inject()(settings: Settings) extends AbstractComponent(settings) {
+  val breaker: CryptoBufferBreaker = {
+    val trimRatio = settings.getAsDouble(CryptoBufferBreaker.TRIM_RATIO_SETTING, CryptoBufferBreaker.DEFAULT_TRIM_RATIO)
+    val limit = settings.getAsMemory(CryptoBufferBreaker.LIMIT_SETTING, CryptoBufferBreaker.DEFAULT_LIMIT).bytes
+    CryptoBufferBreaker.node.setLimit(limit)
+    CryptoBufferBreaker.node.setTrimRatio(trimRatio)
+    logger.debug("crypto buffer breaker limit [{}], trim ratio [{}]", Long.box(limit), Double.box(trimRatio))
+    CryptoBufferBreaker.node
+  }
+}
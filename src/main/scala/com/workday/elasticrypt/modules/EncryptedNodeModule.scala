@@ -7,11 +7,16 @@
 
 package com.workday.elasticrypt.modules
 
+import com.workday.elasticrypt.breaker.CryptoBufferBreakerComponent
+import com.workday.elasticrypt.scheduler.CryptoSchedulerComponent
+import com.workday.elasticrypt.stats.CryptoMetricsComponent
 import org.elasticsearch.common.inject.{AbstractModule, Singleton}
-import org.elasticsearch.index.store.NodeKeyProviderComponent
+import org.elasticsearch.index.store.{EncryptedShardWarmerComponent, NodeKeyProviderComponent}
 
 /**
-  * An org.elasticsearch.common.inject.AbstractModule that enables injection of NodeKeyProviderComponent.
+  * An org.elasticsearch.common.inject.AbstractModule that enables injection of NodeKeyProviderComponent. When the
+  * node starts, it configures the CryptoBufferBreaker and the CryptoScheduler of the node and registers the
+  * EncryptedShardWarmer, and forgets the metrics of indices it no longer holds.
   */
 class EncryptedNodeModule extends AbstractModule {
 
@@ -21,6 +26,10 @@ class EncryptedNodeModule extends AbstractModule {
   //$COVERAGE-OFF$
   override protected def configure(): Unit = {
     bind(classOf[NodeKeyProviderComponent]).in(classOf[Singleton])
+    bind(classOf[CryptoBufferBreakerComponent]).asEagerSingleton()
+    bind(classOf[CryptoSchedulerComponent]).asEagerSingleton()
+    bind(classOf[EncryptedShardWarmerComponent]).asEagerSingleton()
+    bind(classOf[CryptoMetricsComponent]).asEagerSingleton()
   }
   //$COVERAGE-ON$
 
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017 Workday, Inc.
+ *
+ * This software is available under the MIT license.
+ * Please see the LICENSE.txt file in this project.
+ */
+
+package com.workday.elasticrypt.rest
+
+import scala.util.Try
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException
+import org.elasticsearch.client.Client
+import org.elasticsearch.common.inject.Inject
+import org.elasticsearch.common.settings.Settings
+import org.elasticsearch.index.store.{EncryptedDirectory, KeyRotationService}
+import org.elasticsearch.rest._
+
+/**
+  * Starts, or reports the progress of, the re-encryption of the shards of an index held by the node that receives
+  * the request:
+  * {{{
+  * POST /my-index/_elasticrypt/rotate?mb_per_sec=20
+  * GET /my-index/_elasticrypt/rotate
+  * }}}
+  * POST starts a KeyRotationService on every shard directory of the index that has no rotation running, and GET
+  * returns the progress of the last rotation of every shard directory, or null if none was started. The request
+  * only covers the shards of the receiving node.
+  */
+class RestElasticryptRotateAction @Inject()(settings: Settings, controller: RestController, client: Client)
+  extends BaseRestHandler(settings, controller, client) {
+
+  controller.registerHandler(RestRequest.Method.POST, "/{index}/_elasticrypt/rotate", this)
+  controller.registerHandler(RestRequest.Method.GET, "/{index}/_elasticrypt/rotate", this)
+
+  /**
+    * Starts the rotations on a POST, and sends the progress of the rotation of every shard directory of the index.
+    * @param request REST request, whose index parameter names the index and mb_per_sec parameter limits the rate
+    * @param channel channel the response is sent to
+    * @param client unused
+    */
+  override def handleRequest(request: RestRequest, channel: RestChannel, client: Client): Unit = {
+    val indexName = request.param("index")
+    val directories = EncryptedDirectory.openDirectories(indexName)
+    if (request.method == RestRequest.Method.POST) {
+      val mbPerSec = Option(request.param("mb_per_sec")).map { value =>
+        Try(value.toDouble).filter(_ > 0).getOrElse {
+          throw new ElasticsearchIllegalArgumentException(s"mb_per_sec must be a positive number, got [$value]")
+        }
+      }.getOrElse(KeyRotationService.DEFAULT_MB_PER_SEC)
+      directories.foreach(_.startKeyRotation(mbPerSec))
+    }
+
+    val builder = channel.newBuilder()
+    builder.startObject()
+    builder.field("node", settings.get("name", ""))
+    builder.field("index", indexName)
+    builder.startArray("shards")
+    directories.foreach { directory =>
+      builder.startObject()
+      builder.field("shard", directory.shardId.id)
+      builder.field("directory", directory.getDirectory.getPath)
+      builder.field("rotation")
+      directory.keyRotationProgress.map(_.toXContent(builder, request)).getOrElse(builder.nullValue())
+      builder.endObject()
+    }
+    builder.endArray()
+    builder.endObject()
+    channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder))
+  }
+}
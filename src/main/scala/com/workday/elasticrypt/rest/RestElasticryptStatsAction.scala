@@ -0,0 +1,47 @@
+/*
+ * Copyright 2017 Workday, Inc.
+ *
+ * This software is available under the MIT license.
+ * Please see the LICENSE.txt file in this project.
+ */
+
+package com.workday.elasticrypt.rest
+
+import com.workday.elasticrypt.action.{ElasticryptStatsAction, ElasticryptStatsRequest, ElasticryptStatsResponse}
+import org.elasticsearch.client.Client
+import org.elasticsearch.common.Strings
+import org.elasticsearch.common.inject.Inject
+import org.elasticsearch.common.settings.Settings
+import org.elasticsearch.rest._
+import org.elasticsearch.rest.action.support.RestToXContentListener
+
+/**
+  * Returns the encryption metrics of every node of the cluster, optionally restricted to some indices:
+  * {{{
+  * GET /_elasticrypt/stats
+  * GET /_elasticrypt/stats/index1,index2
+  * }}}
+  * Like _nodes/stats, the request is fanned out to all nodes by ElasticryptStatsAction, and the response holds the
+  * metrics of each node under its id. For every node, they hold the header verification statistics and, per index
+  * and per file extension, the bytes and pages encrypted and decrypted, refills, seeks, file cache hits, open
+  * readers and latency histograms, along with the key fetches of the index, and the foreground and background work
+  * of every index, i.e. tenant, of the CryptoScheduler.
+  */
+class RestElasticryptStatsAction @Inject()(settings: Settings, controller: RestController, client: Client)
+  extends BaseRestHandler(settings, controller, client) {
+
+  controller.registerHandler(RestRequest.Method.GET, "/_elasticrypt/stats", this)
+  controller.registerHandler(RestRequest.Method.GET, "/_elasticrypt/stats/{index}", this)
+
+  /**
+    * Executes an ElasticryptStatsRequest on all nodes and sends the merged response.
+    * @param request REST request, whose index parameter lists the indices to return
+    * @param channel channel the response is sent to
+    * @param client client the request is executed by
+    */
+  override def handleRequest(request: RestRequest, channel: RestChannel, client: Client): Unit = {
+    val statsRequest = new ElasticryptStatsRequest()
+    Option(request.param("index")).foreach(names => statsRequest.indices = Strings.splitStringByCommaToArray(names))
+    client.admin().cluster().execute(ElasticryptStatsAction, statsRequest, new RestToXContentListener[ElasticryptStatsResponse](channel))
+  }
+}
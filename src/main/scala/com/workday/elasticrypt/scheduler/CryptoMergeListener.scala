@@ -0,0 +1,23 @@
+/*
+ * Copyright 2017 Workday, Inc.
+ *
+ * This software is available under the MIT license.
+ * Please see the LICENSE.txt file in this project.
+ */
+
+package com.workday.elasticrypt.scheduler
+
+import org.elasticsearch.index.merge.OnGoingMerge
+import org.elasticsearch.index.merge.scheduler.MergeSchedulerProvider
+
+/**
+  * Listener of the merge scheduler of a shard that marks the thread running a merge as doing background work, so
+  * the CryptoScheduler paces the decryption and encryption of the merge whatever the readers it goes through.
+  * The merge scheduler calls it on the merge thread, before and after every merge.
+  */
+class CryptoMergeListener extends MergeSchedulerProvider.Listener {
+
+  override def beforeMerge(merge: OnGoingMerge): Unit = CryptoScheduler.startBackground()
+
+  override def afterMerge(merge: OnGoingMerge): Unit = CryptoScheduler.endBackground()
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2017 Workday, Inc.
+ *
+ * This software is available under the MIT license.
+ * Please see the LICENSE.txt file in this project.
+ */
+
+package com.workday.elasticrypt.scheduler
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.{ConcurrentHashMap, TimeUnit}
+
+import scala.collection.JavaConverters.mapAsScalaConcurrentMapConverter
+
+import org.apache.lucene.store.RateLimiter
+import org.elasticsearch.common.util.concurrent.jsr166e.LongAdder
+import org.elasticsearch.common.xcontent.{ToXContent, XContentBuilder}
+
+/**
+  * Contains the settings and the node-wide instance of CryptoScheduler.
+  */
+object CryptoScheduler {
+  /* Node setting: rate at which background work of all tenants may encrypt and decrypt; 0 only meters it */
+  val BACKGROUND_MB_PER_SEC_SETTING = "elasticrypt.scheduler.background_mb_per_sec"
+  val DEFAULT_BACKGROUND_MB_PER_SEC = 0.0
+  /* Node setting: share of that rate left to background work while searches are decrypting */
+  val SEARCH_SHARE_SETTING = "elasticrypt.scheduler.background_share_during_search"
+  val DEFAULT_SEARCH_SHARE = 0.5
+  /* Index setting: weight of the index in the split of the background rate between tenants */
+  val WEIGHT_SETTING = "index.store.encrypted.scheduler.weight"
+  val DEFAULT_WEIGHT = 1.0
+
+  /* A tenant, or the search load, is active if it did work within this window */
+  private[scheduler] val WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1)
+  /* Shares are recomputed at most this often */
+  private[scheduler] val REBALANCE_NANOS = TimeUnit.MILLISECONDS.toNanos(100)
+  /* Background work is paused once this many bytes have accumulated, as Lucene's rate limited outputs do */
+  private[scheduler] val PAUSE_CHECK_BYTES = 64 * 1024
+
+  /* Scheduler of this node, configured by CryptoSchedulerComponent */
+  val node = new CryptoScheduler(DEFAULT_BACKGROUND_MB_PER_SEC, DEFAULT_SEARCH_SHARE)
+
+  /* Number of background tasks, e.g. merges, running on the current thread */
+  private[this] val backgroundDepth = new ThreadLocal[Int] {
+    override def initialValue(): Int = 0
+  }
+
+  /**
+    * Marks the current thread as doing background work until endBackground() is called, e.g. around a merge.
+    */
+  def startBackground(): Unit = backgroundDepth.set(backgroundDepth.get + 1)
+
+  /**
+    * Ends the background work started on the current thread by startBackground().
+    */
+  def endBackground(): Unit = backgroundDepth.set(Math.max(0, backgroundDepth.get - 1))
+
+  /**
+    * Whether the current thread is doing background work, whatever the files it reads and writes were opened for.
+    */
+  def isBackgroundThread: Boolean = backgroundDepth.get > 0
+}
+
+/**
+  * Encryption and decryption done on behalf of one tenant, for one reader or writer. AESReader and AESWriter record
+  * the bytes they process while holding their lock, and pause once they have released it, since the clones of an
+  * AESIndexInput share the reader and its lock: a merge pausing inside it would stall every search of the segment.
+  *
+  * Work is background if the reader or writer was opened for it, e.g. by a recovery or a re-encryption, or if the
+  * calling thread is marked by CryptoScheduler.startBackground(), as merge threads are by CryptoMergeListener. Merges
+  * read segments that are open in a searcher through the readers of the searcher, so the file alone cannot tell.
+  * @param tenant tenant the work is accounted to
+  * @param background whether the reader or writer is used by a recovery or a re-encryption only
+  */
+class CryptoWork private[scheduler](tenant: TenantCryptoState, val background: Boolean) {
+  /* Background bytes not yet accounted to the tenant */
+  private[this] val pending = new AtomicLong
+
+  /**
+    * Records bytes encrypted or decrypted. Foreground work is accounted right away, background work once pause()
+    * is called.
+    * @param bytes number of plaintext bytes
+    */
+  def processed(bytes: Int): Unit = {
+    if (isBackground) pending.addAndGet(bytes) else tenant.foreground(bytes)
+  }
+
+  /**
+    * Pauses background work, once enough bytes have accumulated, for as long as needed to keep the tenant within its
+    * share of the background rate. Must be called without holding the lock of the reader or writer.
+    */
+  def pause(): Unit = {
+    if (pending.get >= CryptoScheduler.PAUSE_CHECK_BYTES && isBackground) {
+      val bytes = pending.getAndSet(0L)
+      if (bytes > 0) tenant.background(bytes)
+    }
+  }
+
+  private[this] def isBackground: Boolean = background || CryptoScheduler.isBackgroundThread
+}
+
+/**
+  * Counters and share of one tenant.
+  * @param scheduler scheduler the tenant belongs to
+  */
+private[scheduler] class TenantCryptoState(scheduler: CryptoScheduler) {
+  @volatile var weight: Double = CryptoScheduler.DEFAULT_WEIGHT
+  /* Rate this tenant's background work is held to; 0 while unthrottled */
+  @volatile var shareMbPerSec: Double = 0.0
+  @volatile var lastBackgroundNanos: Long = System.nanoTime - CryptoScheduler.WINDOW_NANOS
+  val foregroundBytes = new LongAdder
+  val backgroundBytes = new LongAdder
+  val throttledNanos = new LongAdder
+  private[this] val rateLimiter = new RateLimiter.SimpleRateLimiter(1.0)
+
+  def foreground(bytes: Long): Unit = {
+    foregroundBytes.add(bytes)
+    scheduler.searchActivity()
+  }
+
+  def background(bytes: Long): Unit = {
+    backgroundBytes.add(bytes)
+    val now = System.nanoTime
+    val wasActive = isActive(now)
+    lastBackgroundNanos = now
+    scheduler.rebalance(now, force = !wasActive)
+    val share = shareMbPerSec
+    if (share > 0) {
+      if (rateLimiter.getMbPerSec != share) rateLimiter.setMbPerSec(share)
+      throttledNanos.add(rateLimiter.pause(bytes))
+    }
+  }
+
+  def isActive(now: Long): Boolean = now - lastBackgroundNanos < CryptoScheduler.WINDOW_NANOS
+}
+
+/**
+  * Weighted-fair scheduler of the encryption and decryption done for each tenant, i.e. index, of this node. Searches
+  * and indexing are only metered, never delayed. Background work, i.e. merges, recoveries and re-encryption by
+  * KeyRotationService, shares a node-wide rate: every tenant with background work in the last second gets a share
+  * proportional to its weight, so one tenant's large merge cannot take the CPU of the others. Shares of idle tenants
+  * go to the active ones. While searches are decrypting, background work only gets part of the rate.
+  *
+  * Merges are classified by the thread they run on, see CryptoMergeListener, since Elasticsearch merges segments that
+  * a searcher has open through the readers of the searcher, which were opened with IOContext.READ. Recoveries and
+  * re-encryption are classified when their files are opened.
+  *
+  * @param initialBackgroundMbPerSec rate of all background work; 0 to only meter it
+  * @param initialSearchShare share of that rate left to background work while searches are decrypting
+  */
+class CryptoScheduler(initialBackgroundMbPerSec: Double, initialSearchShare: Double) {
+  import CryptoScheduler._
+
+  @volatile private[this] var backgroundMbPerSec = initialBackgroundMbPerSec
+  @volatile private[this] var searchShare = checkShare(initialSearchShare)
+  @volatile private[this] var lastSearchNanos = System.nanoTime - WINDOW_NANOS
+  private[this] val lastRebalanceNanos = new AtomicLong(System.nanoTime - REBALANCE_NANOS)
+  private[this] val tenants = new ConcurrentHashMap[String, TenantCryptoState]()
+
+  /**
+    * Changes the rate of all background work.
+    * @param mbPerSec rate in MB per second; 0 to only meter background work
+    */
+  def setBackgroundMbPerSec(mbPerSec: Double): Unit = {
+    require(mbPerSec >= 0, s"Background rate must not be negative, got $mbPerSec")
+    backgroundMbPerSec = mbPerSec
+    rebalance(System.nanoTime, force = true)
+  }
+
+  /**
+    * Changes the share of the background rate left while searches are decrypting.
+    * @param share share between 0, exclusive, and 1
+    */
+  def setSearchShare(share: Double): Unit = {
+    searchShare = checkShare(share)
+    rebalance(System.nanoTime, force = true)
+  }
+
+  /**
+    * Changes the weight of a tenant.
+    * @param indexName name of the index
+    * @param weight weight, relative to the weights of the other tenants
+    */
+  def setWeight(indexName: String, weight: Double): Unit = {
+    require(weight > 0, s"Weight of $indexName must be positive, got $weight")
+    tenant(indexName).weight = weight
+  }
+
+  /**
+    * Returns the work of a new reader or writer of an index.
+    * @param indexName name of the index, the same the key is fetched for
+    * @param background whether the reader or writer is only used by a recovery or a re-encryption; merges are
+    *                   classified by their thread
+    */
+  def work(indexName: String, background: Boolean): CryptoWork = new CryptoWork(tenant(indexName), background)
+
+  /**
+    * Forgets a tenant, once the node no longer holds any shard of the index, and gives its share to the others.
+    * @param indexName name of the index
+    */
+  def removeTenant(indexName: String): Unit = {
+    tenants.remove(indexName)
+    rebalance(System.nanoTime, force = true)
+  }
+
+  /**
+    * Records that a search decrypted pages.
+    */
+  private[scheduler] def searchActivity(): Unit = {
+    val now = System.nanoTime
+    // Only written once per rebalance period, to keep the cache line of the field shared
+    if (now - lastSearchNanos > REBALANCE_NANOS) lastSearchNanos = now
+  }
+
+  /**
+    * Splits the background rate between the tenants with background work in the last second, in proportion to their
+    * weights. Runs at most once per period unless forced.
+    * @param now current time
+    * @param force whether to run even if the shares were recomputed recently, e.g. when a tenant becomes active
+    */
+  private[scheduler] def rebalance(now: Long, force: Boolean = false): Unit = {
+    val last = lastRebalanceNanos.get
+    if (force || (now - last >= REBALANCE_NANOS && lastRebalanceNanos.compareAndSet(last, now))) {
+      val active = tenants.asScala.values.filter(_.isActive(now))
+      val total = if (searchActive(now)) backgroundMbPerSec * searchShare else backgroundMbPerSec
+      val weights = active.map(_.weight).sum
+      active.foreach(tenant => tenant.shareMbPerSec = if (total > 0) total * tenant.weight / weights else 0.0)
+    }
+  }
+
+  /**
+    * Returns a snapshot of the usage and share of every tenant.
+    */
+  def stats: CryptoSchedulerStats = {
+    val now = System.nanoTime
+    CryptoSchedulerStats(backgroundMbPerSec, searchActive(now), tenants.asScala.map { case (name, tenant) =>
+      val active = tenant.isActive(now)
+      name -> TenantCryptoStats(tenant.weight, active, if (active) tenant.shareMbPerSec else 0.0,
+        tenant.foregroundBytes.sum, tenant.backgroundBytes.sum, tenant.throttledNanos.sum)
+    }.toMap)
+  }
+
+  private[this] def searchActive(now: Long): Boolean = now - lastSearchNanos < WINDOW_NANOS
+
+  /**
+    * Returns the state of a tenant, creating it on first use.
+    * @param indexName name of the index
+    */
+  private[this] def tenant(indexName: String): TenantCryptoState = {
+    Option(tenants.get(indexName)).getOrElse {
+      val state = new TenantCryptoState(this)
+      Option(tenants.putIfAbsent(indexName, state)).getOrElse(state)
+    }
+  }
+
+  private[this] def checkShare(share: Double): Double = {
+    require(share > 0 && share <= 1, s"Background share during search must be in (0, 1], got $share")
+    share
+  }
+}
+
+/**
+  * Snapshot of the usage of one tenant.
+  * @param weight weight of the tenant
+  * @param active whether the tenant did background work in the last second
+  * @param shareMbPerSec rate its background work is held to; 0 if unthrottled or inactive
+  * @param foregroundBytes bytes encrypted and decrypted by searches and indexing
+  * @param backgroundBytes bytes encrypted and decrypted by merges, recoveries and re-encryption
+  * @param throttledNanos time background work was paused for
+  */
+case class TenantCryptoStats(weight: Double, active: Boolean, shareMbPerSec: Double, foregroundBytes: Long,
+                             backgroundBytes: Long, throttledNanos: Long) extends ToXContent {
+  override def toXContent(builder: XContentBuilder, params: ToXContent.Params): XContentBuilder = {
+    builder.startObject()
+    builder.field("weight", weight)
+    builder.field("active", active)
+    builder.field("share_in_mb_per_sec", shareMbPerSec)
+    builder.field("foreground_in_bytes", foregroundBytes)
+    builder.field("background_in_bytes", backgroundBytes)
+    builder.field("throttled_time_in_millis", TimeUnit.NANOSECONDS.toMillis(throttledNanos))
+    builder.endObject()
+  }
+}
+
+/**
+  * Snapshot of a CryptoScheduler.
+  * @param backgroundMbPerSec rate of all background work; 0 if only metered
+  * @param searchActive whether searches decrypted pages in the last second
+  * @param tenants usage of every tenant
+  */
+case class CryptoSchedulerStats(backgroundMbPerSec: Double, searchActive: Boolean,
+                                tenants: Map[String, TenantCryptoStats]) extends ToXContent {
+  override def toXContent(builder: XContentBuilder, params: ToXContent.Params): XContentBuilder = {
+    builder.startObject()
+    builder.field("background_limit_in_mb_per_sec", backgroundMbPerSec)
+    builder.field("search_active", searchActive)
+    builder.startObject("tenants")
+    tenants.toSeq.sortBy(_._1).foreach { case (indexName, stats) =>
+      builder.field(indexName)
+      stats.toXContent(builder, params)
+    }
+    builder.endObject()
+    builder.endObject()
+  }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2017 Workday, Inc.
+ *
+ * This software is available under the MIT license.
+ * Please see the LICENSE.txt file in this project.
+ */
+
+package com.workday.elasticrypt.scheduler
+
+import org.elasticsearch.common.component.AbstractComponent
+import org.elasticsearch.common.inject.Inject
+import org.elasticsearch.common.settings.Settings
+
+/**
+  * Configures the node-wide CryptoScheduler from the node settings, e.g. in elasticsearch.yml:
+  * {{{
+  * elasticrypt.scheduler.background_mb_per_sec: 200
+  * elasticrypt.scheduler.background_share_during_search: 0.25
+  * }}}
+  */
+class CryptoSchedulerComponent @Inject()(settings: Settings) extends AbstractComponent(settings) {
+  val scheduler: CryptoScheduler = {
+    val mbPerSec = settings.getAsDouble(CryptoScheduler.BACKGROUND_MB_PER_SEC_SETTING, CryptoScheduler.DEFAULT_BACKGROUND_MB_PER_SEC)
+    val searchShare = settings.getAsDouble(CryptoScheduler.SEARCH_SHARE_SETTING, CryptoScheduler.DEFAULT_SEARCH_SHARE)
+    CryptoScheduler.node.setBackgroundMbPerSec(mbPerSec)
+    CryptoScheduler.node.setSearchShare(searchShare)
+    logger.debug("crypto scheduler background rate [{}mb/s], share during search [{}]", Double.box(mbPerSec), Double.box(searchShare))
+    CryptoScheduler.node
+  }
+}
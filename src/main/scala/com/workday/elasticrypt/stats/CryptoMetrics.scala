@@ -0,0 +1,297 @@
+/*
+ * Copyright 2017 Workday, Inc.
+ *
+ * This software is available under the MIT license.
+ * Please see the LICENSE.txt file in this project.
+ */
+
+package com.workday.elasticrypt.stats
+
+import java.util.concurrent.ConcurrentHashMap
+
+import scala.collection.JavaConverters.mapAsScalaConcurrentMapConverter
+
+import com.workday.elasticrypt.breaker.{CryptoBufferBreaker, CryptoBufferStats}
+import com.workday.elasticrypt.scheduler.{CryptoScheduler, CryptoSchedulerStats}
+import org.apache.lucene.util.{HmacHeaderVerifier, HmacVerificationStats}
+import org.elasticsearch.common.util.concurrent.jsr166e.LongAdder
+import org.elasticsearch.common.xcontent.{ToXContent, XContentBuilder}
+
+/**
+  * Counters of the encryption work done on the files of one index with one extension. Updated from AESReader,
+  * AESWriter and EncryptedDirectory; every counter is a striped LongAdder.
+  */
+class FileCryptoMetrics {
+  private[this] val bytesEncrypted = new LongAdder
+  private[this] val pagesEncrypted = new LongAdder
+  private[this] val bytesDecrypted = new LongAdder
+  private[this] val pagesDecrypted = new LongAdder
+  private[this] val refills = new LongAdder
+  private[this] val seeks = new LongAdder
+  private[this] val cacheHits = new LongAdder
+  private[this] val cacheMisses = new LongAdder
+  private[this] val openReaders = new LongAdder
+  private[this] val encryptLatency = new LatencyHistogram
+  private[this] val decryptLatency = new LatencyHistogram
+
+  /**
+    * Records a page encrypted and written.
+    * @param bytes number of plaintext bytes encrypted
+    * @param nanos time taken to encrypt and write the page
+    */
+  def pageEncrypted(bytes: Int, nanos: Long): Unit = {
+    pagesEncrypted.increment()
+    bytesEncrypted.add(bytes)
+    encryptLatency.record(nanos)
+  }
+
+  /**
+    * Records a page read and decrypted.
+    * @param bytes number of plaintext bytes decrypted
+    * @param nanos time taken to read and decrypt the page
+    */
+  def pageDecrypted(bytes: Int, nanos: Long): Unit = {
+    pagesDecrypted.increment()
+    bytesDecrypted.add(bytes)
+    decryptLatency.record(nanos)
+  }
+
+  /* Records a page loaded into the buffer cache of an AESReader */
+  def refill(): Unit = refills.increment()
+
+  def seek(): Unit = seeks.increment()
+
+  /* Records a file opened with the header offset and length cached by EncryptedDirectory */
+  def cacheHit(): Unit = cacheHits.increment()
+
+  /* Records a file whose header had to be read and verified when it was opened */
+  def cacheMiss(): Unit = cacheMisses.increment()
+
+  def readerOpened(): Unit = openReaders.increment()
+
+  def readerClosed(): Unit = openReaders.decrement()
+
+  /**
+    * Returns a snapshot of the counters.
+    */
+  def snapshot: FileCryptoStats = FileCryptoStats(bytesEncrypted.sum, pagesEncrypted.sum, bytesDecrypted.sum,
+    pagesDecrypted.sum, refills.sum, seeks.sum, cacheHits.sum, cacheMisses.sum, openReaders.sum, encryptLatency.snapshot,
+    decryptLatency.snapshot)
+}
+
+/**
+  * Counters of the keys fetched for one index.
+  */
+class KeyFetchMetrics {
+  private[this] val fetches = new LongAdder
+  private[this] val failures = new LongAdder
+  private[this] val latency = new LatencyHistogram
+
+  /**
+    * Fetches a key, recording the time taken and whether it failed.
+    * @param fetch fetches the key
+    */
+  def time[T](fetch: => T): T = {
+    val start = System.nanoTime
+    try {
+      fetch
+    } catch {
+      case e: Exception =>
+        failures.increment()
+        throw e
+    } finally {
+      fetches.increment()
+      latency.record(System.nanoTime - start)
+    }
+  }
+
+  /**
+    * Returns a snapshot of the counters.
+    */
+  def snapshot: KeyFetchStats = KeyFetchStats(fetches.sum, failures.sum, latency.snapshot)
+}
+
+/**
+  * Registry of the encryption metrics of this node, per index and per file extension. Metrics are created on first
+  * use and kept until the index is removed with removeIndex().
+  */
+object CryptoMetrics {
+  /* Index of readers created with a key instead of an index name, e.g. by EncryptedShardScanner */
+  val UNKNOWN_INDEX = "_unknown"
+  /* Extension of files whose name has neither an extension nor a generation */
+  val NO_EXTENSION = "_none"
+
+  private[this] val files = new ConcurrentHashMap[String, ConcurrentHashMap[String, FileCryptoMetrics]]()
+  private[this] val keyFetches = new ConcurrentHashMap[String, KeyFetchMetrics]()
+
+  /**
+    * Returns the metrics of the files of an index with the extension of the given file.
+    * @param indexName name of the index
+    * @param fileName name of the file
+    */
+  def forFile(indexName: String, fileName: String): FileCryptoMetrics = {
+    val extensions = getOrCreate(files, indexName, new ConcurrentHashMap[String, FileCryptoMetrics]())
+    getOrCreate(extensions, extensionOf(fileName), new FileCryptoMetrics)
+  }
+
+  /**
+    * Returns the key fetch metrics of an index.
+    * @param indexName name of the index
+    */
+  def forKeyFetch(indexName: String): KeyFetchMetrics = getOrCreate(keyFetches, indexName, new KeyFetchMetrics)
+
+  /**
+    * Forgets the metrics of a deleted index.
+    * @param indexName name of the index
+    */
+  def removeIndex(indexName: String): Unit = {
+    files.remove(indexName)
+    keyFetches.remove(indexName)
+  }
+
+  /**
+    * Forgets all metrics.
+    */
+  def clear(): Unit = {
+    files.clear()
+    keyFetches.clear()
+  }
+
+  /**
+    * Returns a snapshot of all metrics, along with the HmacHeaderVerifier, CryptoBufferBreaker and CryptoScheduler
+    * statistics.
+    */
+  def snapshot: CryptoStats = {
+    val indices = (files.asScala.keySet ++ keyFetches.asScala.keySet).map { indexName =>
+      val extensions = Option(files.get(indexName)).map(_.asScala.map { case (ext, metrics) => ext -> metrics.snapshot }.toMap)
+      indexName -> IndexCryptoStats(extensions.getOrElse(Map.empty), Option(keyFetches.get(indexName)).map(_.snapshot))
+    }
+    CryptoStats(indices.toMap, HmacHeaderVerifier.stats, CryptoBufferBreaker.node.stats, CryptoScheduler.node.stats)
+  }
+
+  /**
+    * Returns the extension a file is accounted under: the part after the last dot or, for names without a dot such
+    * as translog-12, the part before the generation.
+    * @param fileName name of the file
+    */
+  private[stats] def extensionOf(fileName: String): String = {
+    val dot = fileName.lastIndexOf('.')
+    if (dot >= 0 && dot < fileName.length - 1) {
+      fileName.substring(dot + 1)
+    } else {
+      val generation = fileName.indexOf('-')
+      if (generation > 0) fileName.substring(0, generation) else NO_EXTENSION
+    }
+  }
+
+  /**
+    * Returns the value of a key, inserting the given value if there is none.
+    * @param map concurrent map
+    * @param key key to look up
+    * @param create creates the value, only evaluated if the key is missing
+    */
+  private[this] def getOrCreate[V](map: ConcurrentHashMap[String, V], key: String, create: => V): V = {
+    Option(map.get(key)).getOrElse {
+      val value = create
+      Option(map.putIfAbsent(key, value)).getOrElse(value)
+    }
+  }
+}
+
+/**
+  * Snapshot of a FileCryptoMetrics.
+  */
+case class FileCryptoStats(bytesEncrypted: Long, pagesEncrypted: Long, bytesDecrypted: Long, pagesDecrypted: Long,
+                           refills: Long, seeks: Long, cacheHits: Long, cacheMisses: Long, openReaders: Long,
+                           encryptLatency: HistogramSnapshot, decryptLatency: HistogramSnapshot) extends ToXContent {
+  override def toXContent(builder: XContentBuilder, params: ToXContent.Params): XContentBuilder = {
+    builder.startObject()
+    builder.field("bytes_encrypted", bytesEncrypted)
+    builder.field("pages_encrypted", pagesEncrypted)
+    builder.field("bytes_decrypted", bytesDecrypted)
+    builder.field("pages_decrypted", pagesDecrypted)
+    builder.field("refills", refills)
+    builder.field("seeks", seeks)
+    builder.field("cache_hits", cacheHits)
+    builder.field("cache_misses", cacheMisses)
+    builder.field("open_readers", openReaders)
+    builder.field("encrypt_latency")
+    encryptLatency.toXContent(builder, params)
+    builder.field("decrypt_latency")
+    decryptLatency.toXContent(builder, params)
+    builder.endObject()
+  }
+}
+
+/**
+  * Snapshot of a KeyFetchMetrics.
+  */
+case class KeyFetchStats(fetches: Long, failures: Long, latency: HistogramSnapshot) extends ToXContent {
+  override def toXContent(builder: XContentBuilder, params: ToXContent.Params): XContentBuilder = {
+    builder.startObject()
+    builder.field("count", fetches)
+    builder.field("failures", failures)
+    builder.field("latency")
+    latency.toXContent(builder, params)
+    builder.endObject()
+  }
+}
+
+/**
+  * Snapshot of the metrics of one index.
+  * @param extensions metrics of the files of every extension
+  * @param keyFetches metrics of the keys fetched for the index, if any were fetched over HTTP
+  */
+case class IndexCryptoStats(extensions: Map[String, FileCryptoStats], keyFetches: Option[KeyFetchStats]) extends ToXContent {
+  override def toXContent(builder: XContentBuilder, params: ToXContent.Params): XContentBuilder = {
+    builder.startObject()
+    builder.startObject("extensions")
+    extensions.toSeq.sortBy(_._1).foreach { case (ext, stats) =>
+      builder.field(ext)
+      stats.toXContent(builder, params)
+    }
+    builder.endObject()
+    keyFetches.foreach { stats =>
+      builder.field("key_fetches")
+      stats.toXContent(builder, params)
+    }
+    builder.endObject()
+  }
+}
+
+/**
+  * Snapshot of all encryption metrics of this node. Written as fields of the object the caller has started.
+  * @param indices metrics of every index
+  * @param headerVerification statistics of HmacHeaderVerifier
+  * @param buffers heap held by the crypto buffers of the node, see CryptoBufferBreaker
+  * @param scheduler foreground and background work of every tenant, see CryptoScheduler
+  */
+case class CryptoStats(indices: Map[String, IndexCryptoStats], headerVerification: HmacVerificationStats,
+                       buffers: CryptoBufferStats, scheduler: CryptoSchedulerStats) extends ToXContent {
+  /**
+    * Returns these statistics restricted to the given indices, i.e. tenants.
+    * @param names names of the indices to keep
+    */
+  def forIndices(names: Set[String]): CryptoStats =
+    copy(indices = indices.filterKeys(names.contains), scheduler = scheduler.copy(tenants = scheduler.tenants.filterKeys(names.contains)))
+
+  override def toXContent(builder: XContentBuilder, params: ToXContent.Params): XContentBuilder = {
+    builder.startObject("header_verification")
+    builder.field("verifications", headerVerification.verifications)
+    builder.field("cache_hits", headerVerification.cacheHits)
+    builder.field("failures", headerVerification.failures)
+    builder.field("total_time_in_micros", headerVerification.verificationNanos / 1000)
+    builder.field("cached_entries", headerVerification.cachedEntries)
+    builder.endObject()
+    builder.field(CryptoBufferBreaker.NAME)
+    buffers.toXContent(builder, params)
+    builder.field("scheduler")
+    scheduler.toXContent(builder, params)
+    builder.startObject("indices")
+    indices.toSeq.sortBy(_._1).foreach { case (indexName, stats) =>
+      builder.field(indexName)
+      stats.toXContent(builder, params)
+    }
+    builder.endObject()
+  }
+}
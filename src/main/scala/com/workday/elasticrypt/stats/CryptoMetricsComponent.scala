@@ -0,0 +1,31 @@
+/*
+ * Copyright 2017 Workday, Inc.
+ *
+ * This software is available under the MIT license.
+ * Please see the LICENSE.txt file in this project.
+ */
+
+package com.workday.elasticrypt.stats
+
+import com.workday.elasticrypt.scheduler.CryptoScheduler
+import org.elasticsearch.common.component.AbstractComponent
+import org.elasticsearch.common.inject.Inject
+import org.elasticsearch.common.settings.Settings
+import org.elasticsearch.index.Index
+import org.elasticsearch.indices.IndicesLifecycle
+
+/**
+  * Forgets the CryptoMetrics and the CryptoScheduler tenant of an index once this node no longer holds any of its
+  * shards, i.e. when the index is deleted, closed or relocated away, so that neither grows with every index the node
+  * ever held.
+  */
+class CryptoMetricsComponent @Inject()(settings: Settings, indicesLifecycle: IndicesLifecycle) extends AbstractComponent(settings) {
+  val listener = new IndicesLifecycle.Listener {
+    override def afterIndexClosed(index: Index, indexSettings: Settings): Unit = {
+      CryptoMetrics.removeIndex(index.name)
+      CryptoScheduler.node.removeTenant(index.name)
+      logger.debug("removed crypto metrics and scheduler tenant of [{}]", index.name)
+    }
+  }
+  indicesLifecycle.addListener(listener)
+}
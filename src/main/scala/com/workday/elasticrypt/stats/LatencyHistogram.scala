@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 Workday, Inc.
+ *
+ * This software is available under the MIT license.
+ * Please see the LICENSE.txt file in this project.
+ */
+
+package com.workday.elasticrypt.stats
+
+import java.util.concurrent.TimeUnit
+
+import org.elasticsearch.common.util.concurrent.jsr166e.LongAdder
+import org.elasticsearch.common.xcontent.{ToXContent, XContentBuilder}
+
+/**
+  * Contains the bucket layout of LatencyHistogram.
+  */
+object LatencyHistogram {
+  /* Bucket 0 counts latencies below 1 microsecond, bucket n those in [2^(n-1), 2^n) microseconds */
+  val NUM_BUCKETS = 32
+
+  /**
+    * Returns the bucket a latency falls in; the last bucket also counts every longer latency.
+    * @param nanos latency in nanoseconds
+    */
+  private[stats] def bucketOf(nanos: Long): Int = {
+    val micros = TimeUnit.NANOSECONDS.toMicros(nanos)
+    if (micros <= 0) 0 else math.min(java.lang.Long.SIZE - java.lang.Long.numberOfLeadingZeros(micros), NUM_BUCKETS - 1)
+  }
+
+  /**
+    * Returns the exclusive upper bound of a bucket in microseconds.
+    * @param bucket bucket number
+    */
+  private[stats] def upperBoundMicros(bucket: Int): Long = 1L << bucket
+}
+
+/**
+  * Histogram of latencies with power-of-two microsecond buckets. Every bucket is a striped LongAdder, so recording
+  * from many threads does not contend on a single cache line.
+  */
+class LatencyHistogram {
+  import LatencyHistogram._
+
+  private[this] val buckets = Array.fill(NUM_BUCKETS)(new LongAdder)
+  private[this] val totalNanos = new LongAdder
+
+  /**
+    * Records one latency.
+    * @param nanos latency in nanoseconds
+    */
+  def record(nanos: Long): Unit = {
+    buckets(bucketOf(nanos)).increment()
+    totalNanos.add(nanos)
+  }
+
+  /**
+    * Returns a snapshot of the histogram. Latencies recorded while it is taken may be partially included.
+    */
+  def snapshot: HistogramSnapshot = HistogramSnapshot(buckets.map(_.sum).toIndexedSeq, totalNanos.sum)
+}
+
+/**
+  * Snapshot of a LatencyHistogram.
+  * @param counts number of latencies in every bucket
+  * @param totalNanos sum of all latencies
+  */
+case class HistogramSnapshot(counts: IndexedSeq[Long], totalNanos: Long) extends ToXContent {
+  def count: Long = counts.sum
+
+  def meanMicros: Double = if (count == 0) 0.0 else totalNanos / 1000.0 / count
+
+  /**
+    * Returns the upper bound, in microseconds, of the bucket holding the given percentile; 0 if empty.
+    * @param quantile percentile between 0 and 1, e.g. 0.99
+    */
+  def percentileMicros(quantile: Double): Long = {
+    val rank = math.ceil(quantile * count).toLong
+    val cumulative = counts.scanLeft(0L)(_ + _).tail
+    cumulative.indexWhere(_ >= math.max(rank, 1)) match {
+      case -1 => 0L
+      case bucket => LatencyHistogram.upperBoundMicros(bucket)
+    }
+  }
+
+  override def toXContent(builder: XContentBuilder, params: ToXContent.Params): XContentBuilder = {
+    builder.startObject()
+    builder.field("count", count)
+    builder.field("total_time_in_micros", TimeUnit.NANOSECONDS.toMicros(totalNanos))
+    builder.field("mean_in_micros", meanMicros)
+    builder.field("p50_in_micros", percentileMicros(0.5))
+    builder.field("p99_in_micros", percentileMicros(0.99))
+    builder.endObject()
+  }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2017 Workday, Inc.
+ *
+ * This software is available under the MIT license.
+ * Please see the LICENSE.txt file in this project.
+ */
+
+package com.workday.elasticrypt.tools
+
+import java.io.{File, FileInputStream}
+import java.net.{InetAddress, InetSocketAddress, URI, URLDecoder}
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.{CountDownLatch, ExecutorService, Executors, TimeUnit}
+import java.util.{Collections, Properties, Random}
+
+import scala.collection.JavaConverters.asScalaSetConverter
+
+import com.google.gson.Gson
+import com.sun.net.httpserver.{HttpExchange, HttpHandler, HttpServer}
+import org.elasticsearch.common.util.concurrent.EsExecutors
+
+/**
+  * Distribution of the latency the EmbeddedKeyServer adds to every request.
+  */
+sealed trait LatencyDistribution {
+  /**
+    * Returns the latency of one request in milliseconds.
+    * @param random source of randomness
+    */
+  def sampleMillis(random: Random): Long
+}
+
+/**
+  * Parses latency distributions: none, constant:ms, uniform:minMs:maxMs or lognormal:medianMs:sigma.
+  */
+object LatencyDistribution {
+  case object NoLatency extends LatencyDistribution {
+    override def sampleMillis(random: Random): Long = 0L
+  }
+
+  case class Constant(millis: Long) extends LatencyDistribution {
+    override def sampleMillis(random: Random): Long = millis
+  }
+
+  case class Uniform(minMillis: Long, maxMillis: Long) extends LatencyDistribution {
+    require(minMillis <= maxMillis, s"Minimum latency $minMillis is above maximum $maxMillis")
+
+    override def sampleMillis(random: Random): Long = minMillis + (random.nextDouble * (maxMillis - minMillis + 1)).toLong
+  }
+
+  /* Long-tailed: the median is medianMillis and the 99th percentile about medianMillis * e^(2.33 * sigma) */
+  case class LogNormal(medianMillis: Double, sigma: Double) extends LatencyDistribution {
+    override def sampleMillis(random: Random): Long = math.round(medianMillis * math.exp(sigma * random.nextGaussian))
+  }
+
+  /**
+    * Parses a distribution.
+    * @param spec e.g. constant:200, uniform:5:50 or lognormal:20:1.0
+    * @throws IllegalArgumentException if the distribution is unknown or malformed
+    */
+  def parse(spec: String): LatencyDistribution = {
+    try {
+      spec.split(":").toList match {
+        case "none" :: Nil => NoLatency
+        case "constant" :: millis :: Nil => Constant(millis.toLong)
+        case "uniform" :: min :: max :: Nil => Uniform(min.toLong, max.toLong)
+        case "lognormal" :: median :: sigma :: Nil => LogNormal(median.toDouble, sigma.toDouble)
+        case _ => throw new IllegalArgumentException(s"Unknown latency distribution: $spec")
+      }
+    } catch {
+      case _: NumberFormatException => throw new IllegalArgumentException(s"Malformed latency distribution: $spec")
+    }
+  }
+}
+
+/**
+  * Behavior of an EmbeddedKeyServer.
+  * @param keys keys of specific indices
+  * @param latency latency added to every request, before any fault is injected
+  * @param errorRate share of requests answered with HTTP 500
+  * @param dropRate share of requests whose connection is closed without a response
+  */
+case class KeyServerConfig(keys: Map[String, String] = Map.empty,
+                           latency: LatencyDistribution = LatencyDistribution.NoLatency,
+                           errorRate: Double = 0.0,
+                           dropRate: Double = 0.0) {
+  require(errorRate >= 0 && dropRate >= 0 && errorRate + dropRate <= 1, "Error and drop rates must add up to at most 1")
+
+  /**
+    * Returns the key of an index: the configured one, or one derived from the index name.
+    * @param indexName name of the index
+    */
+  def keyFor(indexName: String): String = keys.getOrElse(indexName, EmbeddedKeyServer.DEFAULT_KEY_PREFIX + indexName)
+}
+
+/**
+  * Number of requests an EmbeddedKeyServer received, and of faults it injected.
+  */
+case class KeyServerStats(requests: Long, errors: Long, drops: Long)
+
+/**
+  * Command-line entry point and constants of EmbeddedKeyServer.
+  */
+object EmbeddedKeyServer {
+  val PATH = "/key"
+  val DEFAULT_THREADS = 16
+  /* Keys of indices without a configured key are this prefix followed by the index name */
+  val DEFAULT_KEY_PREFIX = "key-"
+  private[this] val BACKLOG = 128
+
+  val SERVER_USAGE: String =
+    """  --port <n>               port to listen on, on localhost (default: any free port)
+      |  --server-threads <n>     threads serving requests; each one sleeps through the injected latency (default 16)
+      |  --latency <spec>         none, constant:ms, uniform:minMs:maxMs or lognormal:medianMs:sigma (default none)
+      |  --error-rate <r>         share of requests answered with HTTP 500 (default 0)
+      |  --drop-rate <r>          share of requests whose connection is closed without a response (default 0)
+      |  --keys <file>            properties file of indexName=key; other indices get key-<indexName>
+      |  --seed <n>               seed of the injected latencies and faults (default 42)""".stripMargin
+
+  val USAGE: String = "Usage: EmbeddedKeyServer [options]\n" + SERVER_USAGE
+
+  private[tools] val SERVER_VALUES = Set("--port", "--server-threads", "--latency", "--error-rate", "--drop-rate", "--keys", "--seed")
+
+  /**
+    * Serves keys on localhost until the process is killed.
+    * @param args command-line arguments, see USAGE
+    */
+  def main(args: Array[String]): Unit = {
+    val server = try {
+      fromOptions(collect(args.toList, SERVER_VALUES, Map.empty))
+    } catch {
+      case e: IllegalArgumentException =>
+        System.err.println(e.getMessage + "\n" + USAGE) // scalastyle:ignore regex
+        sys.exit(2)
+    }
+    server.start()
+    println(s"Serving keys at ${server.uri}") // scalastyle:ignore regex
+    new CountDownLatch(1).await()
+  }
+
+  /**
+    * Creates a server from parsed command-line options.
+    * @param values options and their values, see SERVER_USAGE
+    * @throws IllegalArgumentException if a value is malformed
+    */
+  private[tools] def fromOptions(values: Map[String, String]): EmbeddedKeyServer = {
+    def number[T](name: String, parse: String => T, default: T): T = values.get(name).map { value =>
+      try {
+        parse(value)
+      } catch {
+        case _: NumberFormatException => throw new IllegalArgumentException(s"$name expects a number, got $value")
+      }
+    }.getOrElse(default)
+
+    val config = KeyServerConfig(
+      keys = values.get("--keys").map(file => loadKeys(new File(file))).getOrElse(Map.empty),
+      latency = values.get("--latency").map(LatencyDistribution.parse).getOrElse(LatencyDistribution.NoLatency),
+      errorRate = number("--error-rate", _.toDouble, 0.0),
+      dropRate = number("--drop-rate", _.toDouble, 0.0))
+    new EmbeddedKeyServer(config, number("--port", _.toInt, 0), number("--server-threads", _.toInt, DEFAULT_THREADS),
+      number("--seed", _.toLong, 42L))
+  }
+
+  /**
+    * Collects options and their values.
+    * @param args remaining arguments
+    * @param names options that take a value
+    * @param values options collected so far
+    */
+  @annotation.tailrec
+  private[tools] def collect(args: List[String], names: Set[String], values: Map[String, String]): Map[String, String] = args match {
+    case Nil => values
+    case name :: value :: tail if names.contains(name) => collect(tail, names, values + (name -> value))
+    case other :: _ => throw new IllegalArgumentException(s"Unexpected argument: $other")
+  }
+
+  /**
+    * Reads the keys of specific indices.
+    * @param file properties file of indexName=key
+    */
+  private[this] def loadKeys(file: File): Map[String, String] = {
+    val properties = new Properties()
+    val in = new FileInputStream(file)
+    try {
+      properties.load(in)
+    } finally {
+      in.close()
+    }
+    properties.stringPropertyNames.asScala.map(name => name -> properties.getProperty(name)).toMap
+  }
+}
+
+/**
+  * Stand-in for the key service, speaking the protocol HttpKeyProvider expects: GET /key?indexName=name is answered
+  * with {"key": "..."}. Latency, HTTP 500 errors and dropped connections can be injected, and changed while the
+  * server runs, to see how a node or a load test behaves when key lookups are slow or fail. Listens on localhost only.
+  *
+  * @param initialConfig keys and faults to start with
+  * @param port port to listen on; 0 picks a free port
+  * @param threads number of threads serving requests
+  * @param seed seed of the injected latencies and faults
+  */
+class EmbeddedKeyServer(initialConfig: KeyServerConfig, port: Int = 0, threads: Int = EmbeddedKeyServer.DEFAULT_THREADS,
+                        seed: Long = 42L) {
+  import EmbeddedKeyServer._
+
+  @volatile private[this] var config = initialConfig
+  private[this] val random = new Random(seed)
+  private[this] val requests = new AtomicLong()
+  private[this] val errors = new AtomicLong()
+  private[this] val drops = new AtomicLong()
+  private[this] val gson = new Gson()
+
+  private[this] val server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress, port), BACKLOG)
+  private[this] val executor: ExecutorService = Executors.newFixedThreadPool(threads,
+    EsExecutors.daemonThreadFactory("elasticrypt_key_server"))
+  server.setExecutor(executor)
+  server.createContext(PATH, new HttpHandler {
+    override def handle(exchange: HttpExchange): Unit = try serve(exchange) finally exchange.close()
+  })
+
+  def start(): EmbeddedKeyServer = {
+    server.start()
+    this
+  }
+
+  /**
+    * Stops accepting requests and stops the serving threads, interrupting any injected latency.
+    */
+  def stop(): Unit = {
+    server.stop(0)
+    executor.shutdownNow()
+    executor.awaitTermination(1, TimeUnit.SECONDS)
+  }
+
+  /**
+    * Returns the URI to construct an HttpKeyProvider with.
+    */
+  def uri: URI = new URI("http", null, server.getAddress.getHostString, server.getAddress.getPort, PATH, null, null) // scalastyle:ignore null
+
+  /**
+    * Changes the keys and faults of the following requests.
+    * @param newConfig keys and faults to use
+    */
+  def setConfig(newConfig: KeyServerConfig): Unit = config = newConfig
+
+  def stats: KeyServerStats = KeyServerStats(requests.get, errors.get, drops.get)
+
+  /**
+    * Answers one request, after the injected latency.
+    * @param exchange request and response
+    */
+  private[this] def serve(exchange: HttpExchange): Unit = {
+    requests.incrementAndGet()
+    val current = config
+    val delay = current.latency.sampleMillis(random)
+    if (delay > 0) Thread.sleep(delay)
+
+    val fault = random.nextDouble
+    if (fault < current.dropRate) {
+      // Closing the exchange before sending headers closes the connection
+      drops.incrementAndGet()
+    } else if (fault < current.dropRate + current.errorRate) {
+      errors.incrementAndGet()
+      respond(exchange, 500, "error" -> "injected failure")
+    } else {
+      indexName(exchange) match {
+        case Some(name) => respond(exchange, 200, "key" -> current.keyFor(name))
+        case None => respond(exchange, 400, "error" -> "indexName is required")
+      }
+    }
+  }
+
+  /**
+    * Returns the indexName query parameter of a request.
+    * @param exchange request
+    */
+  private[this] def indexName(exchange: HttpExchange): Option[String] = {
+    Option(exchange.getRequestURI.getRawQuery).toSeq.flatMap(_.split("&")).map(_.split("=", 2)).collectFirst {
+      case Array("indexName", value) if value.nonEmpty => URLDecoder.decode(value, "UTF-8")
+    }
+  }
+
+  /**
+    * Sends a JSON object with a single field.
+    * @param exchange request and response
+    * @param status HTTP status code
+    * @param field name and value of the field
+    */
+  private[this] def respond(exchange: HttpExchange, status: Int, field: (String, String)): Unit = {
+    val (name, value) = field
+    val body = gson.toJson(Collections.singletonMap(name, value)).getBytes("UTF-8")
+    exchange.getResponseHeaders.set("Content-Type", "application/json; charset=UTF-8")
+    exchange.sendResponseHeaders(status, body.length)
+    exchange.getResponseBody.write(body)
+  }
+}
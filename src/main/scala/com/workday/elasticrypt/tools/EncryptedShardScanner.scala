@@ -0,0 +1,602 @@
+/*
+ * Copyright 2017 Workday, Inc.
+ *
+ * This software is available under the MIT license.
+ * Please see the LICENSE.txt file in this project.
+ */
+
+package com.workday.elasticrypt.tools
+
+import java.io.{File, FileWriter, IOException, PrintStream, RandomAccessFile}
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.{Files, StandardCopyOption}
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
+import java.util.concurrent.{Executors, ForkJoinPool, RecursiveTask, TimeUnit}
+import java.util.zip.CRC32
+import javax.crypto.Cipher
+import javax.crypto.spec.SecretKeySpec
+
+import scala.io.Source
+
+import com.workday.elasticrypt.{FileKeyProvider, HardcodedKeyProvider, KeyProvider}
+import org.apache.lucene.codecs.CodecUtil
+import org.apache.lucene.util.{AESReader, AESWriter, HmacFileHeader, MutableIvParameterSpec}
+import org.elasticsearch.common.util.concurrent.EsExecutors
+
+/**
+  * Command-line entry point and constants of EncryptedShardScanner.
+  */
+object EncryptedShardScanner {
+  /* AES using 16 byte block sizes */
+  private[tools] val BLOCKSIZE = 16
+  /* Page size used by EncryptedDirectory and EncryptedTranslog */
+  val DEFAULT_PAGE_SIZE = 64
+  /* Number of pages decrypted by a single fork-join task */
+  val DEFAULT_PAGES_PER_TASK = 1024
+  val DEFAULT_REPORT_INTERVAL_SECONDS = 5
+  /* Size of the plaintext copy buffer used when rewriting a file */
+  private[tools] val COPY_BUFFER_SIZE = 64 * 1024
+  /* Longest index name accepted when probing a file for an encrypted header */
+  private[tools] val MAX_INDEX_NAME_BYTES = 255
+  /* Number of random bytes HmacFileHeader stores after the index name */
+  private[tools] val HEADER_RANDOM_BYTES = 8
+  private[tools] val INT_BYTES = java.lang.Integer.SIZE / java.lang.Byte.SIZE
+  private[tools] val LONG_BYTES = java.lang.Long.SIZE / java.lang.Byte.SIZE
+  /* Suffix of the temporary file a rewritten file is written to before it replaces the original */
+  val REWRITE_SUFFIX = ".migrating"
+
+  val OK = "ok"
+  val REWRITTEN = "rewritten"
+  val SKIPPED = "skipped"
+  val FAILED = "failed"
+
+  val USAGE: String =
+    """Usage: EncryptedShardScanner --data <dir> [options]
+      |  --data <dir>             data, index or shard directory to scan (required)
+      |  --key-file <file>        properties file read by FileKeyProvider; HardcodedKeyProvider is used otherwise
+      |  --page-size <n>          number of 16-byte blocks per page the files were written with (default 64)
+      |  --threads <n>            fork-join parallelism (default: number of processors)
+      |  --pages-per-task <n>     pages decrypted by a single task (default 1024)
+      |  --rewrite                rewrite every valid file with the current key version and a page size of 64
+      |  --progress-file <file>   records finished files, which are skipped when the scan is resumed
+      |  --report-interval <s>    seconds between throughput reports (default 5)""".stripMargin
+
+  /**
+    * Scans the given data directory and exits with status 1 if any file failed validation.
+    * @param args command-line arguments, see USAGE
+    */
+  def main(args: Array[String]): Unit = {
+    val options = try {
+      ScannerOptions.parse(args)
+    } catch {
+      case e: IllegalArgumentException =>
+        System.err.println(e.getMessage) // scalastyle:ignore regex
+        System.err.println(USAGE) // scalastyle:ignore regex
+        sys.exit(2)
+    }
+    val keyProvider = options.keyFile.map(new FileKeyProvider(_)).getOrElse(new HardcodedKeyProvider())
+    val results = new EncryptedShardScanner(options, keyProvider, System.out).run()
+    if (results.exists(_.status == FAILED)) sys.exit(1)
+  }
+}
+
+/**
+  * Options of EncryptedShardScanner.
+  * @param dataPath data, index or shard directory to scan
+  * @param pageSize number of 16-byte blocks per page the files were written with
+  * @param keyFile properties file read by FileKeyProvider, if any
+  * @param parallelism fork-join parallelism
+  * @param pagesPerTask pages decrypted by a single task
+  * @param rewrite whether valid files are rewritten, with DEFAULT_PAGE_SIZE, the only page size the plugin reads
+  * @param progressFile file recording finished files, if any
+  * @param reportIntervalSeconds seconds between throughput reports
+  */
+case class ScannerOptions(dataPath: File,
+                          pageSize: Int = EncryptedShardScanner.DEFAULT_PAGE_SIZE,
+                          keyFile: Option[File] = None,
+                          parallelism: Int = Runtime.getRuntime.availableProcessors,
+                          pagesPerTask: Int = EncryptedShardScanner.DEFAULT_PAGES_PER_TASK,
+                          rewrite: Boolean = false,
+                          progressFile: Option[File] = None,
+                          reportIntervalSeconds: Int = EncryptedShardScanner.DEFAULT_REPORT_INTERVAL_SECONDS)
+
+/**
+  * Parses the command line of EncryptedShardScanner.
+  */
+object ScannerOptions {
+  private[this] val FLAGS = Set("--rewrite")
+  private[this] val VALUES = Set("--data", "--key-file", "--page-size", "--threads", "--pages-per-task",
+    "--progress-file", "--report-interval")
+
+  /**
+    * Parses the given arguments.
+    * @param args command-line arguments, see EncryptedShardScanner.USAGE
+    * @throws IllegalArgumentException if an argument is unknown, missing or malformed
+    */
+  def parse(args: Seq[String]): ScannerOptions = {
+    val values = collect(args.toList, Map.empty)
+    val dataPath = values.getOrElse("--data", throw new IllegalArgumentException("--data is required"))
+    def int(name: String): Option[Int] = values.get(name).map { value =>
+      try {
+        value.toInt
+      } catch {
+        case _: NumberFormatException => throw new IllegalArgumentException(s"$name expects a number, got $value")
+      }
+    }
+
+    ScannerOptions(
+      dataPath = new File(dataPath),
+      pageSize = int("--page-size").getOrElse(EncryptedShardScanner.DEFAULT_PAGE_SIZE),
+      keyFile = values.get("--key-file").map(new File(_)),
+      parallelism = int("--threads").getOrElse(Runtime.getRuntime.availableProcessors),
+      pagesPerTask = int("--pages-per-task").getOrElse(EncryptedShardScanner.DEFAULT_PAGES_PER_TASK),
+      rewrite = values.contains("--rewrite"),
+      progressFile = values.get("--progress-file").map(new File(_)),
+      reportIntervalSeconds = int("--report-interval").getOrElse(EncryptedShardScanner.DEFAULT_REPORT_INTERVAL_SECONDS))
+  }
+
+  /**
+    * Collects flags and their values.
+    * @param args remaining arguments
+    * @param values flags collected so far
+    */
+  @annotation.tailrec
+  private[this] def collect(args: List[String], values: Map[String, String]): Map[String, String] = args match {
+    case Nil => values
+    case flag :: tail if FLAGS.contains(flag) => collect(tail, values + (flag -> "true"))
+    case name :: value :: tail if VALUES.contains(name) => collect(tail, values + (name -> value))
+    case other :: _ => throw new IllegalArgumentException(s"Unexpected argument: $other")
+  }
+}
+
+/**
+  * Outcome of scanning one file.
+  * @param path path of the file
+  * @param status one of the statuses defined in EncryptedShardScanner
+  * @param message details, e.g. why the file failed validation
+  * @param plaintextBytes number of plaintext bytes decrypted
+  */
+case class FileScanResult(path: String, status: String, message: String, plaintextBytes: Long)
+
+/**
+  * Offline validator and format-migration tool for encrypted shards, meant to run against a local copy of a data
+  * directory while no node has it open.
+  *
+  * Every encrypted file found under the data path is checked on a fork-join pool: one task per file verifies the
+  * HmacFileHeader MAC against the key and the padding of the last page, then forks one task per range of pages.
+  * Since every page has its own IV the ranges decrypt independently; each computes the CRC32 of its plaintext, and
+  * the partial CRCs are combined to check the Lucene footer checksum without decrypting the file twice.
+  *
+  * With rewrite enabled, valid files are re-encrypted with the current key version and the page size of the plugin into
+  * a temporary file that then atomically replaces the original. Finished files are appended to the progress file, so
+  * an interrupted run can be resumed.
+  *
+  * @param options scan options
+  * @param keyProvider provider of the keys the files were written with
+  * @param out stream that progress reports and results are printed to
+  */
+class EncryptedShardScanner(options: ScannerOptions, keyProvider: KeyProvider, out: PrintStream) {
+  import EncryptedShardScanner._
+
+  private[this] val pageBytes = options.pageSize * BLOCKSIZE
+  private[this] val physicalPageBytes = pageBytes + BLOCKSIZE
+
+  private[this] val totalFiles = new AtomicInteger()
+  private[this] val finishedFiles = new AtomicInteger()
+  private[this] val decryptedBytes = new AtomicLong()
+  @volatile private[this] var startNanos = 0L
+
+  /**
+    * Scans all files not already recorded in the progress file.
+    * @return the result of every file scanned
+    */
+  def run(): Seq[FileScanResult] = {
+    val finished = loadProgress()
+    val files = listFiles(options.dataPath).filterNot(file => finished.contains(file.getPath)).sortBy(-_.length)
+    totalFiles.set(files.size)
+    report(s"Scanning ${files.size} files under ${options.dataPath} (${finished.size} already done)")
+
+    val pool = new ForkJoinPool(options.parallelism)
+    val reporter = Executors.newSingleThreadScheduledExecutor(EsExecutors.daemonThreadFactory("elasticrypt_scanner_report"))
+    reporter.scheduleAtFixedRate(new Runnable {
+      override def run(): Unit = report(throughput)
+    }, options.reportIntervalSeconds, options.reportIntervalSeconds, TimeUnit.SECONDS)
+
+    startNanos = System.nanoTime()
+    val results = try {
+      files.map(file => pool.submit(new FileTask(file))).map(_.join())
+    } finally {
+      reporter.shutdownNow()
+      pool.shutdown()
+    }
+
+    results.filter(_.status == FAILED).foreach(result => report(s"FAILED ${result.path}: ${result.message}"))
+    val counts = results.groupBy(_.status).map { case (status, group) => s"$status=${group.size}" }.mkString(", ")
+    report(s"Done: $counts. $throughput")
+    results
+  }
+
+  /**
+    * Validates, and optionally rewrites, one file.
+    * @param file file to scan
+    */
+  private[this] class FileTask(file: File) extends RecursiveTask[FileScanResult] {
+    override def compute(): FileScanResult = {
+      val result = try {
+        scan(file)
+      } catch {
+        case e: Exception => FileScanResult(file.getPath, FAILED, e.getClass.getSimpleName + ": " + e.getMessage, 0)
+      }
+      finishedFiles.incrementAndGet()
+      recordProgress(result)
+      result
+    }
+  }
+
+  /**
+    * Decrypts a range of pages and computes the CRC32 of the plaintext that precedes the checksum.
+    * @param channel channel of the file
+    * @param key key of the file
+    * @param headerOffset number of header bytes preceding the first page
+    * @param physicalLength number of bytes following the header
+    * @param firstPage first page of the range
+    * @param endPage page following the range
+    * @param checksumLength number of leading plaintext bytes covered by the checksum
+    */
+  private[this] class PageRangeTask(channel: FileChannel, key: SecretKeySpec, headerOffset: Long, physicalLength: Long,
+                                    firstPage: Long, endPage: Long, checksumLength: Long) extends RecursiveTask[(Long, Long)] {
+    override def compute(): (Long, Long) = {
+      val cipher = Cipher.getInstance("AES/CBC/NoPadding")
+      val iv = new MutableIvParameterSpec(new Array[Byte](BLOCKSIZE))
+      val cipherText = new Array[Byte](physicalPageBytes)
+      val plainText = new Array[Byte](pageBytes)
+      val crc = new CRC32()
+      var covered = 0L
+
+      (firstPage until endPage).foreach { page =>
+        val length = decryptPage(channel, cipher, iv, key, headerOffset, physicalLength, page, cipherText, plainText)
+        val valid = Math.max(0L, Math.min(length.toLong, checksumLength - page * pageBytes)).toInt
+        crc.update(plainText, 0, valid)
+        covered += valid
+        decryptedBytes.addAndGet(length)
+      }
+      (crc.getValue, covered)
+    }
+  }
+
+  /**
+    * Validates the header, padding and checksum of a file and rewrites it if requested.
+    * @param file file to scan
+    */
+  private[this] def scan(file: File): FileScanResult = {
+    val raf = new RandomAccessFile(file, "r")
+    try {
+      readIndexName(raf) match {
+        case None => FileScanResult(file.getPath, SKIPPED, "not encrypted", 0)
+        case Some(indexName) =>
+          // Verifies the MAC, so a wrong key fails here
+          val header = new HmacFileHeader(raf, keyProvider, indexName)
+          header.readHeader()
+          val headerOffset = raf.getFilePointer
+          val key = header.key
+
+          val (plainLength, crc) = validatePages(raf, key, headerOffset)
+          val checksumError = validateChecksum(file, key, headerOffset, plainLength, crc)
+          checksumError match {
+            case Some(error) => FileScanResult(file.getPath, FAILED, error, plainLength)
+            case None if options.rewrite && plainLength > 0 =>
+              rewrite(file, indexName, header.compression, key, headerOffset, plainLength)
+              FileScanResult(file.getPath, REWRITTEN, s"key version ${keyProvider.getKeyVersion(indexName)}", plainLength)
+            case None => FileScanResult(file.getPath, OK, "", plainLength)
+          }
+      }
+    } finally {
+      raf.close()
+    }
+  }
+
+  /**
+    * Checks the page layout and the padding of the last page, then decrypts all pages on the pool.
+    * @param raf file to scan
+    * @param key key of the file
+    * @param headerOffset number of header bytes preceding the first page
+    * @return the number of plaintext bytes in the file, and the CRC32 of all but its last 8 bytes
+    */
+  private[this] def validatePages(raf: RandomAccessFile, key: SecretKeySpec, headerOffset: Long): (Long, Long) = {
+    val physicalLength = raf.length - headerOffset
+    val numPages = (physicalLength + physicalPageBytes - 1) / physicalPageBytes
+    val lastPhysicalLength = physicalLength - (numPages - 1) * physicalPageBytes
+    if (numPages == 0 || lastPhysicalLength < 2 * BLOCKSIZE || lastPhysicalLength % BLOCKSIZE != 0) {
+      throw new IOException(s"Truncated last page: $lastPhysicalLength bytes")
+    }
+
+    val channel = raf.getChannel
+    val plainText = new Array[Byte](pageBytes)
+    val lastLength = decryptPage(channel, Cipher.getInstance("AES/CBC/NoPadding"), new MutableIvParameterSpec(new Array[Byte](BLOCKSIZE)),
+      key, headerOffset, physicalLength, numPages - 1, new Array[Byte](physicalPageBytes), plainText)
+    val padding = plainText(lastLength - 1)
+    if (padding <= 0 || padding > BLOCKSIZE || (lastLength - padding until lastLength).exists(plainText(_) != padding)) {
+      throw new IOException(s"Bad padding: $padding")
+    }
+    val plainLength = (numPages - 1) * pageBytes + lastLength - padding
+    val checksumLength = plainLength - LONG_BYTES
+
+    val tasks = (0L until numPages by options.pagesPerTask.toLong).map { first =>
+      new PageRangeTask(channel, key, headerOffset, physicalLength, first, Math.min(first + options.pagesPerTask, numPages), checksumLength)
+    }
+    tasks.foreach(_.fork())
+    val crc = tasks.map(_.join()).foldLeft(0L) { case (combined, (rangeCrc, rangeLength)) =>
+      Crc32.combine(combined, rangeCrc, rangeLength)
+    }
+    (plainLength, crc)
+  }
+
+  /**
+    * Compares the Lucene footer checksum, if the file has one, with the combined CRC of all page ranges.
+    * @param file file to scan
+    * @param key key of the file
+    * @param headerOffset number of header bytes preceding the first page
+    * @param plainLength number of plaintext bytes in the file
+    * @param crc CRC32 of all plaintext bytes but the last 8
+    * @return an error message if the checksum does not match
+    */
+  private[this] def validateChecksum(file: File, key: SecretKeySpec, headerOffset: Long, plainLength: Long,
+                                     crc: Long): Option[String] = {
+    val footerLength = CodecUtil.footerLength()
+    if (plainLength < footerLength) {
+      None
+    } else {
+      val footer = new Array[Byte](footerLength)
+      // The reader closes its own handle, and with it releases its buffers and breaker accounting
+      val reader = new AESReader(file.getName, new RandomAccessFile(file, "r"), options.pageSize, key, headerOffset, plainLength)
+      try {
+        reader.seek(plainLength - footerLength)
+        var read = 0
+        while (read < footerLength) {
+          read += reader.read(footer, read, footerLength - read)
+        }
+      } finally {
+        reader.close()
+      }
+
+      val buffer = ByteBuffer.wrap(footer)
+      // The footer is the magic, the checksum algorithm (0 for CRC32) and the checksum
+      if (buffer.getInt(0) != CodecUtil.FOOTER_MAGIC || buffer.getInt(INT_BYTES) != 0) {
+        // Not a Lucene file with a checksum footer, e.g. a translog
+        None
+      } else {
+        val expected = buffer.getLong(footerLength - LONG_BYTES)
+        if (expected == crc) None else Some(s"Checksum mismatch: footer=$expected actual=$crc")
+      }
+    }
+  }
+
+  /**
+    * Re-encrypts a valid file with the current key version and the page size of the plugin, then atomically replaces it.
+    * @param file file to rewrite
+    * @param indexName index the file belongs to
+    * @param compression compression layout of the plaintext, kept as is
+    * @param key key of the file
+    * @param headerOffset number of header bytes preceding the first page
+    * @param plainLength number of plaintext bytes in the file
+    */
+  private[this] def rewrite(file: File, indexName: String, compression: Int, key: SecretKeySpec, headerOffset: Long,
+                            plainLength: Long): Unit = {
+    val target = new File(file.getPath + REWRITE_SUFFIX)
+    Files.deleteIfExists(target.toPath)
+    try {
+      val reader = new AESReader(file.getName, new RandomAccessFile(file, "r"), options.pageSize, key, headerOffset, plainLength)
+      try {
+        val writerRaf = new RandomAccessFile(target, "rw")
+        val header = new HmacFileHeader(writerRaf, keyProvider, indexName)
+        header.compression = compression
+        val writer = new AESWriter(file.getName, writerRaf, DEFAULT_PAGE_SIZE, keyProvider, indexName, header)
+        try {
+          val buffer = new Array[Byte](COPY_BUFFER_SIZE)
+          var remaining = plainLength
+          while (remaining > 0) {
+            val n = reader.read(buffer, 0, Math.min(buffer.length.toLong, remaining).toInt)
+            if (n <= 0) throw new IOException(s"Unexpected end of file, $remaining bytes left")
+            writer.write(buffer, 0, n)
+            remaining -= n
+          }
+        } finally {
+          writer.close()
+        }
+      } finally {
+        reader.close()
+      }
+
+      val syncRaf = new RandomAccessFile(target, "rw")
+      try syncRaf.getFD.sync() finally syncRaf.close()
+      Files.move(target.toPath, file.toPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+    } finally {
+      Files.deleteIfExists(target.toPath)
+    }
+  }
+
+  /**
+    * Decrypts one page with a positional read.
+    * @return the number of decrypted bytes, including padding on the last page
+    */
+  private[this] def decryptPage(channel: FileChannel, cipher: Cipher, iv: MutableIvParameterSpec, key: SecretKeySpec,
+                                headerOffset: Long, physicalLength: Long, page: Long,
+                                cipherText: Array[Byte], plainText: Array[Byte]): Int = {
+    val start = page * physicalPageBytes
+    val length = Math.min(physicalPageBytes.toLong, physicalLength - start).toInt
+    val buffer = ByteBuffer.wrap(cipherText, 0, length)
+    while (buffer.hasRemaining) {
+      if (channel.read(buffer, headerOffset + start + buffer.position) < 0) {
+        throw new IOException(s"Unexpected end of file in page $page")
+      }
+    }
+    System.arraycopy(cipherText, 0, iv.getIV, 0, BLOCKSIZE)
+    cipher.init(Cipher.DECRYPT_MODE, key, iv)
+    cipher.doFinal(cipherText, BLOCKSIZE, length - BLOCKSIZE, plainText, 0)
+  }
+
+  /**
+    * Probes the start of a file for an HmacFileHeader and returns the index name recorded in it.
+    * @param raf file to probe
+    * @return the index name, or None if the file does not start with an encrypted header
+    */
+  private[this] def readIndexName(raf: RandomAccessFile): Option[String] = {
+    val headerLength = 3 * INT_BYTES
+    if (raf.length < headerLength) {
+      None
+    } else {
+      raf.seek(0)
+      val first = raf.readInt
+      val nameLength = if (first == HmacFileHeader.VERSIONED_HEADER_MARKER) {
+        raf.readInt
+        raf.readInt
+      } else if (first == HmacFileHeader.COMPRESSED_HEADER_MARKER && raf.length >= headerLength + INT_BYTES) {
+        raf.readInt
+        raf.readInt
+        raf.readInt
+      } else {
+        first
+      }
+
+      if (nameLength <= 0 || nameLength > MAX_INDEX_NAME_BYTES || raf.getFilePointer + nameLength + headerLength > raf.length) {
+        None
+      } else {
+        val nameBytes = new Array[Byte](nameLength)
+        raf.readFully(nameBytes)
+        if (raf.readInt == HEADER_RANDOM_BYTES) Some(new String(nameBytes)) else None
+      }
+    }
+  }
+
+  /**
+    * Lists the files that may be encrypted, skipping the files Elasticsearch and Lucene always write unencrypted.
+    * @param path data, index or shard directory, or a single file
+    */
+  private[this] def listFiles(path: File): Seq[File] = {
+    if (path.isDirectory) {
+      Option(path.listFiles).map(_.toSeq).getOrElse(Seq.empty)
+        .filterNot(file => file.getName.startsWith(".") || file.getName == "_state")
+        .flatMap(listFiles)
+    } else {
+      val name = path.getName
+      val unencrypted = name.startsWith("segments") || name.endsWith(".si") || name.endsWith(".st") ||
+        name == "write.lock" || name.endsWith(REWRITE_SUFFIX)
+      if (unencrypted) Seq.empty else Seq(path)
+    }
+  }
+
+  /**
+    * Reads the paths already validated or rewritten by an earlier run.
+    */
+  private[this] def loadProgress(): Set[String] = {
+    options.progressFile.filter(_.exists).map { file =>
+      val source = Source.fromFile(file)
+      try {
+        source.getLines().map(_.split("\t", 2)).collect {
+          case Array(status, path) if status != FAILED => path
+        }.toSet
+      } finally {
+        source.close()
+      }
+    }.getOrElse(Set.empty)
+  }
+
+  /**
+    * Appends the result of a file to the progress file.
+    * @param result result to record
+    */
+  private[this] def recordProgress(result: FileScanResult): Unit = options.progressFile.foreach { file =>
+    synchronized {
+      val writer = new FileWriter(file, true)
+      try {
+        writer.write(result.status + "\t" + result.path + "\n")
+      } finally {
+        writer.close()
+      }
+    }
+  }
+
+  /**
+    * Describes the progress and throughput so far.
+    */
+  private[this] def throughput: String = {
+    val elapsedSeconds = Math.max(1L, System.nanoTime() - startNanos) / 1e9
+    val megabytes = decryptedBytes.get / (1024.0 * 1024.0)
+    f"${finishedFiles.get}/${totalFiles.get} files, $megabytes%.1f MB decrypted in $elapsedSeconds%.1f s (${megabytes / elapsedSeconds}%.1f MB/s)"
+  }
+
+  /**
+    * Prints a line to the output.
+    * @param line line to print
+    */
+  private[this] def report(line: String): Unit = out.println(line) // scalastyle:ignore regex
+}
+
+/**
+  * CRC32 combination, ported from zlib's crc32_combine(). Lets the CRCs of consecutive page ranges, computed in
+  * parallel, be merged into the CRC of the whole file.
+  */
+private[tools] object Crc32 {
+  private[this] val DIMENSION = 32
+  /* Reversed CRC-32 polynomial, as used by java.util.zip.CRC32 */
+  private[this] val POLYNOMIAL = 0xedb88320L
+
+  /**
+    * Returns the CRC32 of the concatenation of two byte sequences.
+    * @param crc1 CRC32 of the first sequence
+    * @param crc2 CRC32 of the second sequence
+    * @param length2 length of the second sequence
+    */
+  def combine(crc1: Long, crc2: Long, length2: Long): Long = {
+    if (length2 <= 0) {
+      crc1
+    } else {
+      val even = new Array[Long](DIMENSION)
+      val odd = new Array[Long](DIMENSION)
+
+      // Operator for one zero bit in odd, then two and four zero bits
+      odd(0) = POLYNOMIAL
+      (1 until DIMENSION).foreach(n => odd(n) = 1L << (n - 1))
+      square(even, odd)
+      square(odd, even)
+
+      // Apply length2 zero bytes to crc1, squaring the operator for every bit of length2
+      var crc = crc1
+      var length = length2
+      while (length != 0) {
+        square(even, odd)
+        if ((length & 1) != 0) crc = times(even, crc)
+        length >>= 1
+        if (length != 0) {
+          square(odd, even)
+          if ((length & 1) != 0) crc = times(odd, crc)
+          length >>= 1
+        }
+      }
+      crc ^ crc2
+    }
+  }
+
+  /**
+    * Multiplies a GF(2) matrix by a vector.
+    */
+  private[this] def times(matrix: Array[Long], vector: Long): Long = {
+    var sum = 0L
+    var v = vector
+    var i = 0
+    while (v != 0) {
+      if ((v & 1) != 0) sum ^= matrix(i)
+      v >>>= 1
+      i += 1
+    }
+    sum
+  }
+
+  /**
+    * Squares a GF(2) matrix.
+    */
+  private[this] def square(result: Array[Long], matrix: Array[Long]): Unit = {
+    (0 until DIMENSION).foreach(n => result(n) = times(matrix, matrix(n)))
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2017 Workday, Inc.
+ *
+ * This software is available under the MIT license.
+ * Please see the LICENSE.txt file in this project.
+ */
+
+package com.workday.elasticrypt.tools
+
+import java.net.URI
+import java.util.Random
+import java.util.concurrent.{Callable, Executors, TimeUnit}
+
+import scala.collection.JavaConverters.{asScalaBufferConverter, seqAsJavaListConverter}
+import scala.collection.mutable
+
+import com.workday.elasticrypt.{HttpKeyProvider, KeyProvider}
+import org.elasticsearch.common.util.concurrent.EsExecutors
+
+/**
+  * Outcome of a KeyLoadDriver run.
+  * @param requests number of getKey calls made
+  * @param failures number of calls that threw, per exception class
+  * @param elapsedMillis duration of the run
+  * @param latenciesNanos latency of every call, successful or not, sorted
+  */
+case class KeyLoadResult(requests: Long, failures: Map[String, Long], elapsedMillis: Long, latenciesNanos: IndexedSeq[Long]) {
+  def requestsPerSecond: Double = if (elapsedMillis == 0) 0.0 else requests * 1000.0 / elapsedMillis
+
+  /**
+    * Returns the given percentile of the latencies in milliseconds, using the nearest-rank method; 0 if empty.
+    * @param quantile percentile between 0 and 1, e.g. 0.99
+    */
+  def percentileMillis(quantile: Double): Double = {
+    if (latenciesNanos.isEmpty) {
+      0.0
+    } else {
+      val rank = math.max(0, math.ceil(quantile * latenciesNanos.size).toInt - 1)
+      latenciesNanos(rank) / 1e6
+    }
+  }
+}
+
+/**
+  * Calls KeyProvider.getKey from many threads for a fixed time and reports the throughput, the tail latency and the
+  * failures. Runs against a key service:
+  * {{{
+  * java -cp elasticsearch-encryption-plug-in.jar:$ES_HOME/lib/* com.workday.elasticrypt.tools.KeyLoadDriver \
+  *   --url http://keys.example.com/key --clients 64 --duration 60
+  * }}}
+  * or, without --url, against an EmbeddedKeyServer started on localhost with the given latency and faults:
+  * {{{
+  * ... com.workday.elasticrypt.tools.KeyLoadDriver --latency lognormal:20:0.8 --error-rate 0.01 --clients 64
+  * }}}
+  * Every client shares one HttpKeyProvider, the way all shards of a node share the provider of
+  * NodeKeyProviderComponent, so the results include the connection limits of its HTTP client.
+  */
+object KeyLoadDriver {
+  val DEFAULT_CLIENTS = 16
+  val DEFAULT_DURATION_SECONDS = 30
+  val DEFAULT_TENANTS = 10
+  /* Indices requested are this prefix followed by a number below the number of tenants */
+  val TENANT_PREFIX = "tenant-"
+
+  val USAGE: String =
+    """Usage: KeyLoadDriver [options]
+      |  --url <url>              key service to call; an EmbeddedKeyServer is started otherwise
+      |  --clients <n>            threads calling getKey (default 16)
+      |  --duration <s>           seconds to run for (default 30)
+      |  --tenants <n>            number of distinct indices requested (default 10)
+      |Options of the EmbeddedKeyServer, without --url:
+      |""".stripMargin + EmbeddedKeyServer.SERVER_USAGE
+
+  private[this] val VALUES = Set("--url", "--clients", "--duration", "--tenants") ++ EmbeddedKeyServer.SERVER_VALUES
+
+  def main(args: Array[String]): Unit = {
+    val (values, clients, durationSeconds, tenants) = try {
+      val values = EmbeddedKeyServer.collect(args.toList, VALUES, Map.empty)
+      def int(name: String, default: Int): Int = values.get(name).map { value =>
+        try {
+          value.toInt
+        } catch {
+          case _: NumberFormatException => throw new IllegalArgumentException(s"$name expects a number, got $value")
+        }
+      }.getOrElse(default)
+      (values, int("--clients", DEFAULT_CLIENTS), int("--duration", DEFAULT_DURATION_SECONDS), int("--tenants", DEFAULT_TENANTS))
+    } catch {
+      case e: IllegalArgumentException =>
+        System.err.println(e.getMessage + "\n" + USAGE) // scalastyle:ignore regex
+        sys.exit(2)
+    }
+
+    val server = if (values.contains("--url")) None else Some(EmbeddedKeyServer.fromOptions(values).start())
+    try {
+      val uri = server.map(_.uri).getOrElse(new URI(values("--url")))
+      println(s"Calling $uri from $clients clients for $durationSeconds s") // scalastyle:ignore regex
+      val result = run(new HttpKeyProvider(uri), (0 until tenants).map(TENANT_PREFIX + _), clients,
+        TimeUnit.SECONDS.toMillis(durationSeconds))
+      report(result)
+      server.foreach { s =>
+        val stats = s.stats
+        println(s"Server: ${stats.requests} requests, ${stats.errors} errors and ${stats.drops} drops injected") // scalastyle:ignore regex
+      }
+    } finally {
+      server.foreach(_.stop())
+    }
+  }
+
+  /**
+    * Calls getKey from the given number of threads until the duration has passed.
+    * @param keyProvider provider shared by all clients
+    * @param indexNames indices to request, picked at random by every call
+    * @param clients number of threads
+    * @param durationMillis time to run for
+    */
+  def run(keyProvider: KeyProvider, indexNames: IndexedSeq[String], clients: Int, durationMillis: Long): KeyLoadResult = {
+    require(indexNames.nonEmpty, "No indices to request")
+    val executor = Executors.newFixedThreadPool(clients, EsExecutors.daemonThreadFactory("elasticrypt_key_load"))
+    val start = System.nanoTime
+    val deadline = start + TimeUnit.MILLISECONDS.toNanos(durationMillis)
+    try {
+      val tasks = (0 until clients).map { client =>
+        new Callable[(mutable.ArrayBuffer[Long], Map[String, Long])] {
+          override def call(): (mutable.ArrayBuffer[Long], Map[String, Long]) = {
+            val random = new Random(client)
+            val latencies = new mutable.ArrayBuffer[Long]
+            val failures = mutable.Map.empty[String, Long].withDefaultValue(0L)
+            while (System.nanoTime < deadline) {
+              val indexName = indexNames(random.nextInt(indexNames.size))
+              val callStart = System.nanoTime
+              try {
+                keyProvider.getKey(indexName)
+              } catch {
+                case e: Exception => failures(e.getClass.getName) += 1
+              }
+              latencies += System.nanoTime - callStart
+            }
+            (latencies, failures.toMap)
+          }
+        }
+      }
+      val results = executor.invokeAll(tasks.asJava).asScala.map(_.get)
+      val elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime - start)
+      val latencies = results.flatMap(_._1).toArray.sorted
+      val failures = results.flatMap(_._2).groupBy(_._1).map { case (name, counts) => name -> counts.map(_._2).sum }
+      KeyLoadResult(latencies.length, failures, elapsedMillis, latencies.toIndexedSeq)
+    } finally {
+      executor.shutdownNow()
+    }
+  }
+
+  /**
+    * Prints the throughput, latency percentiles and failures of a run.
+    * @param result outcome of the run
+    */
+  private[this] def report(result: KeyLoadResult): Unit = {
+    val failed = result.failures.values.sum
+    println(f"${result.requests} requests in ${result.elapsedMillis} ms: ${result.requestsPerSecond}%.0f requests/s, $failed failed") // scalastyle:ignore regex
+    println(f"Latency (ms): p50 ${result.percentileMillis(0.5)}%.2f, p90 ${result.percentileMillis(0.9)}%.2f, " + // scalastyle:ignore regex
+      f"p99 ${result.percentileMillis(0.99)}%.2f, p99.9 ${result.percentileMillis(0.999)}%.2f, max ${result.percentileMillis(1.0)}%.2f")
+    result.failures.toSeq.sortBy(-_._2).foreach { case (name, count) =>
+      println(s"  $count x $name") // scalastyle:ignore regex
+    }
+  }
+}
@@ -9,11 +9,22 @@ package com.workday.elasticrypt.translog
 
 import java.io.{File, RandomAccessFile}
 import java.nio.channels.FileChannel.MapMode
-import java.nio.channels.{FileChannel, FileLock, ReadableByteChannel, WritableByteChannel}
+import java.nio.channels.{FileChannel, FileLock, NonWritableChannelException, ReadableByteChannel, WritableByteChannel}
 import java.nio.{ByteBuffer, MappedByteBuffer}
 
 import com.workday.elasticrypt.KeyProvider
-import org.apache.lucene.util.{AESReader, AESWriter, HmacFileHeader}
+import com.workday.elasticrypt.breaker.CryptoBufferBreaker
+import org.apache.lucene.util.{AESReader, AESWriter, FileHeader, HmacFileHeader}
+
+/**
+  * Contains constants used by EncryptedFileChannel.
+  */
+object EncryptedFileChannel {
+  /* AES using 16 byte block sizes */
+  private[translog] val BLOCKSIZE = 16
+  /* Number of pages moved per iteration of transferTo and transferFrom */
+  private[translog] val TRANSFER_PAGES = 64
+}
 
 /**
   * Two issues here:
@@ -32,14 +43,42 @@ import org.apache.lucene.util.{AESReader, AESWriter, HmacFileHeader}
   * @param pageSize number of 16-byte blocks per page
   * @param keyProvider encryption key information getter
   * @param indexName name of index used to retrieve key
+  * @param compression compression layout recorded in the header of a new file, see FrameCompressingFileChannel
+  * @param breaker breaker the transfer buffer is accounted in
   */
-class EncryptedFileChannel(name: String, raf: RandomAccessFile, pageSize: Int, keyProvider: KeyProvider, indexName: String)
+class EncryptedFileChannel(name: String, raf: RandomAccessFile, pageSize: Int, keyProvider: KeyProvider, indexName: String,
+                           compression: Int = FileHeader.UNCOMPRESSED, breaker: CryptoBufferBreaker = CryptoBufferBreaker.node)
   extends FileChannel {
 
-  private[translog] lazy val fileHeader = new HmacFileHeader(raf, keyProvider, indexName)
-  private[translog] lazy val reader = new AESReader(name, raf, pageSize, keyProvider, indexName, fileHeader)
+  private[translog] lazy val fileHeader = {
+    val header = new HmacFileHeader(raf, keyProvider, indexName)
+    header.compression = compression
+    header
+  }
+  private[translog] lazy val reader = {
+    val aesReader = new AESReader(name, raf, pageSize, keyProvider, indexName, fileHeader)
+    readerOpened = true
+    aesReader
+  }
   private[translog] lazy val writer = new AESWriter(name, raf, pageSize, keyProvider, indexName, fileHeader)
 
+  @volatile private[this] var readerOpened = false
+
+  /**
+    * Whether this channel is used to write the file, decided once when it is opened: an empty file can only be
+    * written, since AESReader requires a header and at least one padded page, and an existing file is only read.
+    */
+  private[translog] val isWritable: Boolean = raf.length() == 0
+
+  /* Reusable direct buffer used by transferTo and transferFrom, accounted in the breaker until the channel is closed */
+  private[this] lazy val transferBuffer = {
+    val bytes = pageSize * EncryptedFileChannel.BLOCKSIZE * EncryptedFileChannel.TRANSFER_PAGES
+    breaker.allocate(bytes)
+    transferBufferBytes = bytes
+    ByteBuffer.allocateDirect(bytes)
+  }
+  @volatile private[this] var transferBufferBytes = 0L
+
   /**
     * @constructor creates an EncryptedFileChannel by creating a new RandomAccessFile
     * @param file File used
@@ -60,48 +99,111 @@ class EncryptedFileChannel(name: String, raf: RandomAccessFile, pageSize: Int, k
     throw new UnsupportedOperationException
 
   /**
-    * Overrides transferFrom to throw an UnsupportedOperationException.
+    * Reads bytes from the given channel and encrypts them into this file, starting at the given position.
+    * The position of this channel is not modified.
     * @param src the source channel
     * @param position the position within the file at which the transfer is to begin; must be non-negative
     * @param count the maximum number of bytes to be transferred; must be non-negative
+    * @return the number of bytes transferred, possibly zero
     */
-  override def transferFrom(src: ReadableByteChannel, position: Long, count: Long): Long =
-    throw new UnsupportedOperationException
+  override def transferFrom(src: ReadableByteChannel, position: Long, count: Long): Long = transferBuffer synchronized {
+    if (position < 0 || count < 0) throw new IllegalArgumentException("position: " + position + " count: " + count)
+    if (!isWritable) throw new NonWritableChannelException
+
+    if (position > size()) {
+      0L
+    } else {
+      val savedPosition = writer.getFilePointer
+      if (position != savedPosition) writer.seek(position)
+
+      var transferred = 0L
+      var eof = false
+      while (!eof && transferred < count) {
+        transferBuffer.clear()
+        transferBuffer.limit(Math.min(count - transferred, transferBuffer.capacity.toLong).toInt)
+        val n = src.read(transferBuffer)
+        if (n <= 0) {
+          eof = true
+        } else {
+          transferBuffer.flip()
+          transferred += writer.write(transferBuffer)
+        }
+      }
+
+      if (position + transferred != savedPosition) writer.seek(savedPosition)
+      transferred
+    }
+  }
 
   /**
-    * Overrides position to throw an UnsupportedOperationException.
+    * Returns the position of the writer if this channel is writing the file, the position of the reader otherwise.
     */
-  override def position(): Long =
-    throw new UnsupportedOperationException
+  override def position(): Long = if (isWritable) writer.getFilePointer else reader.getFilePointer
 
   /**
-    * Overrides position to throw an UnsupportedOperationException.
+    * Sets the position of the writer if this channel is writing the file, the position of the reader otherwise.
+    * A read-only channel cannot be positioned at or past the end of the file.
     * @param newPosition the new position, a non-negative integer counting the number of bytes from the start of the entity
     */
-  override def position(newPosition: Long): FileChannel =
-    throw new UnsupportedOperationException
+  override def position(newPosition: Long): FileChannel = {
+    if (newPosition < 0) throw new IllegalArgumentException("Negative position: " + newPosition)
+
+    if (isWritable) {
+      if (newPosition != writer.getFilePointer) writer.seek(newPosition)
+    } else if (newPosition < reader.length()) {
+      reader.seek(newPosition)
+    } else {
+      throw new IllegalArgumentException("Position " + newPosition + " is past the end of " + name)
+    }
+    this
+  }
 
   /**
-    * Overrides transferTo to throw an UnsupportedOperationException.
+    * Decrypts bytes of this file straight into the given channel, moving up to TRANSFER_PAGES pages per iteration
+    * through a reusable direct buffer. The position of this channel is not modified.
     * @param position the position within the file at which the transfer is to begin; must be non-negative
     * @param count  the maximum number of bytes to be transferred; must be non-negative
     * @param target the target channel
+    * @return the number of bytes transferred, possibly zero
     */
-  override def transferTo(position: Long, count: Long, target: WritableByteChannel): Long =
-    throw new UnsupportedOperationException
+  override def transferTo(position: Long, count: Long, target: WritableByteChannel): Long = transferBuffer synchronized {
+    if (position < 0 || count < 0) throw new IllegalArgumentException("position: " + position + " count: " + count)
+
+    val end = Math.min(size(), position + count)
+    var transferred = 0L
+    var blocked = false
+    while (!blocked && position + transferred < end) {
+      transferBuffer.clear()
+      transferBuffer.limit(Math.min(end - position - transferred, transferBuffer.capacity.toLong).toInt)
+      read(transferBuffer, position + transferred)
+      transferBuffer.flip()
+
+      // A non-blocking target may accept fewer bytes than we decrypted, in which case we stop there
+      while (target.write(transferBuffer) > 0 && transferBuffer.hasRemaining) {}
+      transferred += transferBuffer.position()
+      blocked = transferBuffer.hasRemaining
+    }
+    transferred
+  }
 
   /**
-    * Overrides size to throw an UnsupportedOperationException.
+    * Returns the number of bytes in the file without the file header, IV/page and padding.
+    * Tracked by the writer if this channel is writing the file, by the reader otherwise.
     */
-  override def size(): Long =
-    throw new UnsupportedOperationException
+  override def size(): Long = if (isWritable) writer.length() else reader.length()
 
   /**
-    * Overrides truncate to throw an UnsupportedOperationException.
+    * Truncates the file to the given size. Whole pages past the new end are dropped and the page containing the
+    * new end is re-encrypted with fresh padding. Does nothing if the file is not larger than the given size.
     * @param size the new size, a non-negative byte count
     */
-  override def truncate(size: Long): FileChannel =
-    throw new UnsupportedOperationException
+  override def truncate(size: Long): FileChannel = {
+    if (size < 0) throw new IllegalArgumentException("Negative size: " + size)
+    if (!isWritable) throw new NonWritableChannelException
+
+    writer.truncate(size)
+    this
+  }
 
   /**
     * Overrides lock to throw an UnsupportedOperationException.
@@ -119,6 +221,7 @@ class EncryptedFileChannel(name: String, raf: RandomAccessFile, pageSize: Int, k
     * @return the number of bytes copied into the buffer cache
     */
   override def write(src: ByteBuffer): Int = {
+    if (!isWritable) throw new NonWritableChannelException
     writer.write(src)
   }
 
@@ -130,7 +233,14 @@ class EncryptedFileChannel(name: String, raf: RandomAccessFile, pageSize: Int, k
     * @return the number of bytes written into disk
     */
   override def write(srcs: Array[ByteBuffer], offset: Int, length: Int): Long = {
-    srcs.slice(offset, offset + length).map(write(_)).sum
+    val end = Math.min(offset + length, srcs.length)
+    var written = 0L
+    var i = offset
+    while (i < end) {
+      written += write(srcs(i))
+      i += 1
+    }
+    written
   }
 
   /**
@@ -140,6 +250,7 @@ class EncryptedFileChannel(name: String, raf: RandomAccessFile, pageSize: Int, k
     * @return the number of bytes copied into the buffer cache
     */
   override def write(src: ByteBuffer, position: Long): Int = {
+    if (!isWritable) throw new NonWritableChannelException
     writer.seek(position)
     write(src)
   }
@@ -161,38 +272,57 @@ class EncryptedFileChannel(name: String, raf: RandomAccessFile, pageSize: Int, k
     * @return -1 if eof has been reached, the number of bytes copied into b otherwise.
     */
   override def read(dsts: Array[ByteBuffer], offset: Int, length: Int): Long = {
-    dsts.slice(offset, offset + length).map(read(_)).sum
+    val end = Math.min(offset + length, dsts.length)
+    var total = 0L
+    var eof = false
+    var i = offset
+    while (!eof && i < end) {
+      val n = read(dsts(i))
+      if (n < 0) eof = true else total += n
+      i += 1
+    }
+    if (eof && total == 0) -1L else total
   }
 
   /**
-    * Read bytes from the file into the given byte array.
+    * Read bytes from the file into the given byte array. The position of this channel is not modified.
     * @param dst byte array to copy bytes to
     * @param position the file position at which the transfer is to begin; must be non-negative
     * @return -1 if eof has been reached, the number of bytes copied into b otherwise.
     */
   override def read(dst: ByteBuffer, position: Long): Int = {
-    // Locking happens in the caller in FsTranslog so we don't need to worry about concurrent read/writes
-    writer.flush()
-
-    // Reader assumes an immutable file, but the code breaks that assumption.
-    // The simplest fix here is to fix up the known length.
-    reader.setLength(writer.length())
-
     /**
       * Note that writer and reader are sharing the same RandomAccessFile instance, so there's a risk of file positions
       * getting mixed up here. Today this code works because reader and writer keep track of their own positions
       * and always re-seek before doing any ops.
       */
-    reader.seek(position)
-    read(dst)
+    if (isWritable) {
+      // Locking happens in the caller in FsTranslog so we don't need to worry about concurrent read/writes
+      writer.flush()
+
+      // Reader assumes an immutable file, but the code breaks that assumption.
+      // The simplest fix here is to fix up the known length.
+      reader.setLength(writer.length())
+      reader.seek(position)
+      read(dst)
+    } else {
+      // The reader position is the position of a read-only channel, so it is restored afterwards
+      val savedPosition = reader.getFilePointer
+      reader.seek(position)
+      try {
+        read(dst)
+      } finally {
+        reader.seek(savedPosition)
+      }
+    }
   }
 
   /**
-    * Flushes out the data from the writer buffer to the disk.
+    * Flushes out the data from the writer buffer to the disk. Does nothing on a read-only channel.
     * @param metaData true if need to force changes to both the file's content and the metadata written to storage;
     *                 otherwise, only need to force content changes to be written
     */
-  override def force(metaData: Boolean): Unit = writer.flush()
+  override def force(metaData: Boolean): Unit = if (isWritable) writer.flush()
 
   /**
     * Overrides map to throw an UnsupportedOperationException.
@@ -204,11 +334,19 @@ class EncryptedFileChannel(name: String, raf: RandomAccessFile, pageSize: Int, k
     throw new UnsupportedOperationException
 
   /**
-    * Closes the reader and the writer.
+    * Closes the writer if this channel is writing the file, then the reader if one was opened, then the file, and
+    * releases the transfer buffer.
     */
   override def implCloseChannel(): Unit = {
-    writer.close()
-    reader.close() // Shouldn't be necessary since writer.close() invokes raf.close() but shouldn't hurt either
+    try {
+      if (isWritable) writer.close()
+      // Shouldn't be necessary since writer.close() invokes raf.close() but shouldn't hurt either
+      if (readerOpened) reader.close()
+      raf.close()
+    } finally {
+      breaker.release(transferBufferBytes)
+      transferBufferBytes = 0L
+    }
   }
 
 }
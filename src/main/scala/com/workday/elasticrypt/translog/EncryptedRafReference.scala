@@ -18,17 +18,24 @@ import org.elasticsearch.index.translog.{EncryptedTranslogStream, TranslogStream
 
 /**
   * We extend ES's RafReference (org.elasticsearch.index.translog.fs.RafReference) so that we do not need to copy
-  * even more of ES's code into our own codebase. Overrides the channel() method to return an EncryptedFileChannel.
+  * even more of ES's code into our own codebase. Overrides the channel() method to return an EncryptedFileChannel,
+  * or a FrameCompressingFileChannel over one if the translog is compressed.
   *
   * @param file File instance to be used
   * @param logger ESLogger
   * @param pageSize number of 16-byte blocks per page
   * @param keyProvider encryption key information getter
   * @param indexName name of index used to retrieve key
+  * @param compress whether to compress the translog before encrypting it
   */
-class EncryptedRafReference(file: File, logger: ESLogger, pageSize: Int, keyProvider: KeyProvider, indexName: String)
+class EncryptedRafReference(file: File, logger: ESLogger, pageSize: Int, keyProvider: KeyProvider, indexName: String,
+                            compress: Boolean = false)
   extends RafReference(file, logger) {
-  private[this] val encryptedFileChannel = new EncryptedFileChannel(file.getName, raf(), pageSize, keyProvider, indexName)
+  private[this] val encryptedFileChannel: FileChannel = if (compress) {
+    new FrameCompressingFileChannel(file.getName, raf(), pageSize, keyProvider, indexName)
+  } else {
+    new EncryptedFileChannel(file.getName, raf(), pageSize, keyProvider, indexName)
+  }
 
   // Shadow the RafReference refCount because we need to override decreaseRefCount()
   private[translog] val refCount: AtomicInteger = new AtomicInteger
@@ -36,7 +43,7 @@ class EncryptedRafReference(file: File, logger: ESLogger, pageSize: Int, keyProv
   refCount.incrementAndGet()
 
   /**
-    * Return EncryptedFileChannel.
+    * Return EncryptedFileChannel or FrameCompressingFileChannel.
     */
   override def channel(): FileChannel = {
     this.encryptedFileChannel
@@ -58,7 +65,7 @@ class EncryptedRafReference(file: File, logger: ESLogger, pageSize: Int, keyProv
       logger.trace("closing RAF reference delete: {} length: {} file: {}",
         deleteFile.toString, raf.length.toString, file.getAbsolutePath)
       // below will call EncryptedFileChannel.implCloseChannel(), which will call AESWriter.close(), which will
-      // flush and call raf.close()
+      // flush and call raf.close(). FrameCompressingFileChannel first writes out its last frame.
       channel().close()
       if (deleteFile) {
         file.delete()
@@ -18,23 +18,35 @@ import org.elasticsearch.index.shard.ShardId
 import org.elasticsearch.index.store.{IndexStore, NodeKeyProviderComponent}
 import org.elasticsearch.index.translog.fs.FsTranslog
 import org.elasticsearch.index.translog.{EncryptedTranslogStream, Translog, TranslogStream}
+import org.elasticsearch.threadpool.ThreadPool
+
+/**
+  * Contains the index settings read by EncryptedTranslog.
+  */
+object EncryptedTranslog {
+  /* Whether new translog files are compressed with LZ4 before they are encrypted */
+  val COMPRESS_SETTING = "index.translog.encrypted.compress"
+}
 
 /**
   * Extends org.elasticsearch.index.translog.fs.FsTranslog and overrides createRafReference() and translogStreamFor()
   * to return an EncryptedRafReference and EncryptedTranslogStream respectively.
   * Both createRafReference() and translogStreamFor() are small methods that we added to FsTranslog
-  * so that they could be overriden here.
+  * so that they could be overriden here. Translog pages are decrypted on the generic thread pool of the node during
+  * replay.
   */
 class EncryptedTranslog @Inject()(shardId: ShardId,
                                   @IndexSettings indexSettings: Settings,
                                   indexSettingsService: IndexSettingsService,
                                   bigArrays: BigArrays,
                                   indexStore: IndexStore,
-                                  component: NodeKeyProviderComponent)
+                                  component: NodeKeyProviderComponent,
+                                  threadPool: ThreadPool)
   extends FsTranslog(shardId, indexSettings, indexSettingsService, bigArrays, indexStore) {
 
   private[this] val pageSize = 64
   private[translog] val indexName = shardId.getIndex
+  private[this] val compress: Boolean = indexSettings.getAsBoolean(EncryptedTranslog.COMPRESS_SETTING, false)
 
   /**
     * Getter for the key provider, as provided by the NodeKeyProviderComponent parameter.
@@ -58,7 +70,7 @@ class EncryptedTranslog @Inject()(shardId: ShardId,
     * @param logger ESLogger
     */
   override protected[translog] def createRafReference(file: File, logger: ESLogger) = {
-    new EncryptedRafReference(file, logger, pageSize, getKeyProvider, indexName)
+    new EncryptedRafReference(file, logger, pageSize, getKeyProvider, indexName, compress)
   }
 
   /**
@@ -66,7 +78,7 @@ class EncryptedTranslog @Inject()(shardId: ShardId,
     * @param translogFile File used to create TranslogStream
     */
   override def translogStreamFor(translogFile: File): TranslogStream = {
-    new EncryptedTranslogStream(pageSize, getKeyProvider, indexName)
+    new EncryptedTranslogStream(pageSize, getKeyProvider, indexName, threadPool.executor(ThreadPool.Names.GENERIC))
   }
 
 }
@@ -0,0 +1,531 @@
+/*
+ * Copyright 2017 Workday, Inc.
+ *
+ * This software is available under the MIT license.
+ * Please see the LICENSE.txt file in this project.
+ */
+
+package com.workday.elasticrypt.translog
+
+import java.io.{EOFException, IOException, RandomAccessFile}
+import java.nio.channels.FileChannel.MapMode
+import java.nio.channels.{FileChannel, FileLock, NonWritableChannelException, ReadableByteChannel, WritableByteChannel}
+import java.nio.{ByteBuffer, MappedByteBuffer}
+import java.util.Arrays
+
+import com.workday.elasticrypt.KeyProvider
+import com.workday.elasticrypt.breaker.CryptoBufferBreaker
+import org.apache.lucene.codecs.compressing.CompressionMode
+import org.apache.lucene.store.{ByteArrayDataInput, DataOutput}
+import org.apache.lucene.util.{ArrayUtil, BytesRef, FileHeader}
+
+/**
+  * Contains the frame layout used by FrameCompressingFileChannel and FrameDecompressingInputStream.
+  */
+object FrameCompressingFileChannel {
+  /* Number of uncompressed bytes collected into a single frame */
+  val DEFAULT_FRAME_SIZE = 64 * 1024
+  /* Each frame starts with its uncompressed length and its compressed length */
+  private[translog] val FRAME_HEADER_BYTES = 8
+  /* LZ4, as used by Lucene for stored fields */
+  private[translog] def compressionMode: CompressionMode = CompressionMode.FAST
+}
+
+/**
+  * FileChannel that compresses the translog before EncryptedFileChannel encrypts it. Translog operations carry the
+  * _source of every document, which compresses well, so fewer bytes go through AES and to disk.
+  *
+  * Appended bytes are collected until frameSize bytes are buffered, or until force() or close() is called, then
+  * compressed with LZ4 and appended to the encrypted file as a single frame:
+  * [int uncompressed length][int compressed length][compressed bytes]. The file header records the LZ4_FRAMES
+  * layout, so EncryptedTranslogStream decompresses the frames transparently when the translog is replayed.
+  *
+  * Positions and sizes are counted in uncompressed bytes, as FsTranslog expects. A positional read looks up the frame
+  * holding its position in an in-memory index of frame offsets, which is rebuilt from the frame headers when an
+  * existing file is read, and decompresses it. The last decompressed frame is kept, since FsTranslog reads
+  * snapshots sequentially. Like FsTranslog itself, this channel only appends. The frame being collected and the
+  * buffers frames are compressed and decompressed in are accounted in the CryptoBufferBreaker until the channel is
+  * closed.
+  *
+  * @param name file name
+  * @param encrypted channel the frames are encrypted by
+  * @param frameSize number of uncompressed bytes per frame
+  * @param breaker breaker the buffers are accounted in
+  */
+class FrameCompressingFileChannel(name: String, encrypted: EncryptedFileChannel,
+                                  frameSize: Int = FrameCompressingFileChannel.DEFAULT_FRAME_SIZE,
+                                  breaker: CryptoBufferBreaker = CryptoBufferBreaker.node)
+  extends FileChannel {
+
+  import FrameCompressingFileChannel._
+
+  /* Number of buffer bytes accounted in the breaker */
+  private[this] var bufferBytes = 0L
+
+  private[this] val compressor = compressionMode.newCompressor()
+  private[this] val decompressor = compressionMode.newDecompressor()
+
+  /* Uncompressed and encrypted offsets at which each complete frame starts */
+  private[this] var frameStarts = new Array[Long](16)
+  private[this] var frameOffsets = new Array[Long](16)
+  private[this] var numFrames = 0
+  private[this] var indexed = false
+  /* Uncompressed and encrypted length of all complete frames */
+  private[this] var framedLength = 0L
+  private[this] var encodedLength = 0L
+
+  /* Uncompressed bytes of the frame being collected */
+  private[this] val pending = new Array[Byte](frameSize)
+  private[this] var pendingLength = 0
+
+  /* Buffers used to compress and decompress frames */
+  private[this] val frameOutput = new FrameOutput(FRAME_HEADER_BYTES + frameSize + frameSize / 255 + 16)
+  private[this] val frameInput = new ByteArrayDataInput()
+  private[this] var compressed = new Array[Byte](0)
+  private[this] val decoded = new BytesRef()
+  private[this] var decodedFrame = -1
+  account(pending.length + frameOutput.bytes.length)
+
+  /* Position of relative reads */
+  private[this] var readPosition = 0L
+
+  /* Reusable buffer used by transferTo and transferFrom */
+  private[this] lazy val transferBuffer = {
+    account(frameSize)
+    ByteBuffer.allocate(frameSize)
+  }
+
+  /**
+    * @constructor creates a FrameCompressingFileChannel over a new EncryptedFileChannel that records the LZ4_FRAMES
+    *              layout in the header
+    * @param name file name
+    * @param raf file pointer
+    * @param pageSize number of 16-byte blocks per page
+    * @param keyProvider encryption key information getter
+    * @param indexName name of index used to retrieve key
+    */
+  def this(name: String, raf: RandomAccessFile, pageSize: Int, keyProvider: KeyProvider, indexName: String) =
+    this(name, new EncryptedFileChannel(name, raf, pageSize, keyProvider, indexName, FileHeader.LZ4_FRAMES))
+
+  /**
+    * DataOutput over a growable byte array, used to collect a compressed frame after its header.
+    * @param initialSize initial capacity, enough for a frame that does not compress
+    */
+  private[this] class FrameOutput(initialSize: Int) extends DataOutput {
+    var bytes = new Array[Byte](initialSize)
+    var length = 0
+
+    override def writeByte(b: Byte): Unit = {
+      if (length == bytes.length) grow(length + 1)
+      bytes(length) = b
+      length += 1
+    }
+
+    override def writeBytes(b: Array[Byte], offset: Int, len: Int): Unit = {
+      if (length + len > bytes.length) grow(length + len)
+      System.arraycopy(b, offset, bytes, length, len)
+      length += len
+    }
+
+    private[this] def grow(minSize: Int): Unit = {
+      val oldSize = bytes.length
+      bytes = ArrayUtil.grow(bytes, minSize)
+      account(bytes.length - oldSize)
+    }
+  }
+
+  /**
+    * Overrides tryLock to throw an UnsupportedOperationException.
+    * @param position the position at which the locked region is to start; must be non-negative
+    * @param size the size of the locked region; must be non-negative, and the sum position size must be non-negative
+    * @param shared true to request a shared lock; false to request an exclusive lock
+    */
+  override def tryLock(position: Long, size: Long, shared: Boolean): FileLock =
+    throw new UnsupportedOperationException
+
+  /**
+    * Overrides lock to throw an UnsupportedOperationException.
+    * @param position the position at which the locked region is to start; must be non-negative
+    * @param size the size of the locked region; must be non-negative, and the sum position size must be non-negative
+    * @param shared true to request a shared lock; false to request an exclusive lock
+    */
+  override def lock(position: Long, size: Long, shared: Boolean): FileLock =
+    throw new UnsupportedOperationException
+
+  /**
+    * Overrides map to throw an UnsupportedOperationException.
+    * @param mode file is to be mapped read-only, read/write, or privately (copy-on-write), respectively
+    * @param position the position within the file at which the mapped region is to start; must be non-negative
+    * @param size the size of the region to be mapped; must be non-negative and no greater than MAX_VALUE
+    */
+  override def map(mode: MapMode, position: Long, size: Long): MappedByteBuffer =
+    throw new UnsupportedOperationException
+
+  /**
+    * Returns the number of uncompressed bytes in the file, including the frame being collected.
+    */
+  override def size(): Long = synchronized {
+    ensureIndexed()
+    framedLength + pendingLength
+  }
+
+  /**
+    * Returns the end of the file if this channel is writing the file, the position of relative reads otherwise.
+    */
+  override def position(): Long = synchronized {
+    if (encrypted.isWritable) size() else readPosition
+  }
+
+  /**
+    * Sets the position of relative reads. A channel writing the file can only be positioned at its end.
+    * @param newPosition the new position, a non-negative number of uncompressed bytes from the start of the file
+    */
+  override def position(newPosition: Long): FileChannel = synchronized {
+    if (newPosition < 0) throw new IllegalArgumentException("Negative position: " + newPosition)
+    if (encrypted.isWritable && newPosition != size()) {
+      throw new UnsupportedOperationException("Compressed translog " + name + " can only be written at its end")
+    }
+    readPosition = newPosition
+    this
+  }
+
+  /**
+    * Drops the end of the frame being collected. Complete frames cannot be truncated.
+    * @param size the new size, a non-negative number of uncompressed bytes
+    */
+  override def truncate(size: Long): FileChannel = synchronized {
+    if (size < 0) throw new IllegalArgumentException("Negative size: " + size)
+    if (!encrypted.isWritable) throw new NonWritableChannelException
+
+    if (size < framedLength) {
+      throw new UnsupportedOperationException("Cannot truncate " + name + " before the end of its last frame at " + framedLength)
+    } else if (size < framedLength + pendingLength) {
+      pendingLength = (size - framedLength).toInt
+    }
+    this
+  }
+
+  /**
+    * Appends the given bytes, compressing and encrypting every frame as soon as it is complete.
+    * @param src the buffer from which bytes are to be retrieved
+    * @return the number of bytes written
+    */
+  override def write(src: ByteBuffer): Int = synchronized {
+    if (!encrypted.isWritable) throw new NonWritableChannelException
+    ensureIndexed()
+
+    val written = src.remaining
+    while (src.hasRemaining) {
+      val n = Math.min(src.remaining, frameSize - pendingLength)
+      src.get(pending, pendingLength, n)
+      pendingLength += n
+      if (pendingLength == frameSize) writeFrame()
+    }
+    written
+  }
+
+  /**
+    * Writes a section of data.
+    * @param srcs data to be written
+    * @param offset offset in the data
+    * @param length number of buffers to be written
+    * @return the number of bytes written
+    */
+  override def write(srcs: Array[ByteBuffer], offset: Int, length: Int): Long = {
+    val end = Math.min(offset + length, srcs.length)
+    var written = 0L
+    var i = offset
+    while (i < end) {
+      written += write(srcs(i))
+      i += 1
+    }
+    written
+  }
+
+  /**
+    * Appends the given bytes, which must start at the end of the file.
+    * @param src the buffer from which bytes are to be transferred
+    * @param position the end of the file
+    * @return the number of bytes written
+    */
+  override def write(src: ByteBuffer, position: Long): Int = synchronized {
+    if (position != size()) {
+      throw new UnsupportedOperationException("Compressed translog " + name + " can only be written at its end, " +
+        "position: " + position + " size: " + size())
+    }
+    write(src)
+  }
+
+  /**
+    * Reads bytes from the position of relative reads.
+    * @param dst buffer to copy bytes to
+    * @return -1 if eof has been reached, the number of bytes copied otherwise
+    */
+  override def read(dst: ByteBuffer): Int = synchronized {
+    val n = read(dst, readPosition)
+    if (n > 0) readPosition += n
+    n
+  }
+
+  /**
+    * Reads bytes from the position of relative reads into the given buffers.
+    * @param dsts buffers to copy bytes to
+    * @param offset first buffer to copy bytes to
+    * @param length number of buffers to copy bytes to
+    * @return -1 if eof has been reached, the number of bytes copied otherwise
+    */
+  override def read(dsts: Array[ByteBuffer], offset: Int, length: Int): Long = {
+    val end = Math.min(offset + length, dsts.length)
+    var total = 0L
+    var eof = false
+    var i = offset
+    while (!eof && i < end) {
+      val n = read(dsts(i))
+      if (n < 0) eof = true else total += n
+      i += 1
+    }
+    if (eof && total == 0) -1L else total
+  }
+
+  /**
+    * Reads bytes starting at the given uncompressed position, from the frame being collected or by decompressing
+    * the complete frames that hold them. The position of this channel is not modified.
+    * @param dst buffer to copy bytes to
+    * @param position the uncompressed position at which the transfer is to begin; must be non-negative
+    * @return -1 if eof has been reached, the number of bytes copied otherwise
+    */
+  override def read(dst: ByteBuffer, position: Long): Int = synchronized {
+    if (position < 0) throw new IllegalArgumentException("Negative position: " + position)
+
+    val end = size()
+    if (position >= end) {
+      -1
+    } else {
+      val start = dst.position
+      var pos = position
+      while (dst.hasRemaining && pos < end) {
+        val n = if (pos >= framedLength) {
+          val offset = (pos - framedLength).toInt
+          val count = Math.min(dst.remaining, pendingLength - offset)
+          dst.put(pending, offset, count)
+          count
+        } else {
+          val frame = frameOf(pos)
+          decode(frame)
+          val offset = (pos - frameStarts(frame)).toInt
+          val count = Math.min(dst.remaining, decoded.length - offset)
+          dst.put(decoded.bytes, decoded.offset + offset, count)
+          count
+        }
+        pos += n
+      }
+      dst.position - start
+    }
+  }
+
+  /**
+    * Appends bytes read from the given channel, which must start at the end of the file.
+    * @param src the source channel
+    * @param position the end of the file
+    * @param count the maximum number of bytes to be transferred; must be non-negative
+    * @return the number of bytes transferred, possibly zero
+    */
+  override def transferFrom(src: ReadableByteChannel, position: Long, count: Long): Long = synchronized {
+    if (position < 0 || count < 0) throw new IllegalArgumentException("position: " + position + " count: " + count)
+
+    if (position > size()) {
+      0L
+    } else {
+      var transferred = 0L
+      var eof = false
+      while (!eof && transferred < count) {
+        transferBuffer.clear()
+        transferBuffer.limit(Math.min(count - transferred, transferBuffer.capacity.toLong).toInt)
+        val n = src.read(transferBuffer)
+        if (n <= 0) {
+          eof = true
+        } else {
+          transferBuffer.flip()
+          transferred += write(transferBuffer, position + transferred)
+        }
+      }
+      transferred
+    }
+  }
+
+  /**
+    * Decompresses bytes of this file into the given channel, one frame at a time.
+    * The position of this channel is not modified.
+    * @param position the uncompressed position at which the transfer is to begin; must be non-negative
+    * @param count the maximum number of bytes to be transferred; must be non-negative
+    * @param target the target channel
+    * @return the number of bytes transferred, possibly zero
+    */
+  override def transferTo(position: Long, count: Long, target: WritableByteChannel): Long = synchronized {
+    if (position < 0 || count < 0) throw new IllegalArgumentException("position: " + position + " count: " + count)
+
+    val end = Math.min(size(), position + count)
+    var transferred = 0L
+    var blocked = false
+    while (!blocked && position + transferred < end) {
+      transferBuffer.clear()
+      transferBuffer.limit(Math.min(end - position - transferred, transferBuffer.capacity.toLong).toInt)
+      read(transferBuffer, position + transferred)
+      transferBuffer.flip()
+
+      // A non-blocking target may accept fewer bytes than we decompressed, in which case we stop there
+      while (target.write(transferBuffer) > 0 && transferBuffer.hasRemaining) {}
+      transferred += transferBuffer.position()
+      blocked = transferBuffer.hasRemaining
+    }
+    transferred
+  }
+
+  /**
+    * Compresses the frame being collected, even if it is not full, and flushes the encrypted file.
+    * @param metaData true if need to force changes to both the file's content and the metadata written to storage;
+    *                 otherwise, only need to force content changes to be written
+    */
+  override def force(metaData: Boolean): Unit = synchronized {
+    if (encrypted.isWritable) {
+      writeFrame()
+      encrypted.force(metaData)
+    }
+  }
+
+  /**
+    * Compresses the frame being collected if this channel is writing the file, then closes the encrypted channel and
+    * releases the buffers.
+    */
+  override def implCloseChannel(): Unit = synchronized {
+    try {
+      if (encrypted.isWritable) writeFrame()
+    } finally {
+      try {
+        encrypted.close()
+      } finally {
+        breaker.release(bufferBytes)
+        bufferBytes = 0L
+      }
+    }
+  }
+
+  /**
+    * Accounts buffers that were just allocated, or grown by the given number of bytes.
+    * @param bytes number of bytes allocated
+    */
+  private[this] def account(bytes: Long): Unit = {
+    breaker.allocate(bytes)
+    bufferBytes += bytes
+  }
+
+  /**
+    * Compresses the frame being collected and appends it to the encrypted file.
+    */
+  private[this] def writeFrame(): Unit = {
+    if (pendingLength > 0) {
+      frameOutput.length = FRAME_HEADER_BYTES
+      compressor.compress(pending, 0, pendingLength, frameOutput)
+
+      val frame = ByteBuffer.wrap(frameOutput.bytes, 0, frameOutput.length)
+      frame.putInt(0, pendingLength).putInt(4, frameOutput.length - FRAME_HEADER_BYTES)
+      while (frame.hasRemaining) encrypted.write(frame)
+
+      addFrame(pendingLength, frameOutput.length)
+      pendingLength = 0
+    }
+  }
+
+  /**
+    * Adds a complete frame to the index.
+    * @param uncompressedLength number of uncompressed bytes in the frame
+    * @param encodedFrameLength number of encrypted bytes in the frame, including its header
+    */
+  private[this] def addFrame(uncompressedLength: Int, encodedFrameLength: Int): Unit = {
+    if (numFrames == frameStarts.length) {
+      frameStarts = Arrays.copyOf(frameStarts, numFrames * 2)
+      frameOffsets = Arrays.copyOf(frameOffsets, numFrames * 2)
+    }
+    frameStarts(numFrames) = framedLength
+    frameOffsets(numFrames) = encodedLength
+    numFrames += 1
+    framedLength += uncompressedLength
+    encodedLength += encodedFrameLength
+  }
+
+  /**
+    * Builds the frame index of an existing file by walking the frame headers.
+    */
+  private[this] def ensureIndexed(): Unit = {
+    if (!indexed) {
+      if (!encrypted.isWritable) {
+        val length = encrypted.size()
+        if (encrypted.fileHeader.compression != FileHeader.LZ4_FRAMES) {
+          throw new IOException("Translog " + name + " is not compressed, layout: " + encrypted.fileHeader.compression)
+        }
+
+        val header = ByteBuffer.allocate(FRAME_HEADER_BYTES)
+        while (encodedLength < length) {
+          header.clear()
+          readFully(header, encodedLength)
+          val uncompressedLength = header.getInt(0)
+          val compressedLength = header.getInt(4)
+          if (uncompressedLength <= 0 || compressedLength <= 0 ||
+            encodedLength + FRAME_HEADER_BYTES + compressedLength > length) {
+            throw new IOException("Corrupted frame at " + encodedLength + " in " + name)
+          }
+          addFrame(uncompressedLength, FRAME_HEADER_BYTES + compressedLength)
+        }
+      }
+      indexed = true
+    }
+  }
+
+  /**
+    * Returns the index of the complete frame holding the given uncompressed position.
+    * @param position uncompressed position before framedLength
+    */
+  private[this] def frameOf(position: Long): Int = {
+    val found = Arrays.binarySearch(frameStarts, 0, numFrames, position)
+    if (found >= 0) found else -found - 2
+  }
+
+  /**
+    * Decompresses the given frame into decoded, unless it is already there.
+    * @param frame index of the frame
+    */
+  private[this] def decode(frame: Int): Unit = {
+    if (frame != decodedFrame) {
+      val last = frame == numFrames - 1
+      val uncompressedLength = ((if (last) framedLength else frameStarts(frame + 1)) - frameStarts(frame)).toInt
+      val compressedLength = ((if (last) encodedLength else frameOffsets(frame + 1)) - frameOffsets(frame)).toInt -
+        FRAME_HEADER_BYTES
+
+      if (compressed.length < compressedLength) {
+        val oldSize = compressed.length
+        compressed = ArrayUtil.grow(compressed, compressedLength)
+        account(compressed.length - oldSize)
+      }
+      readFully(ByteBuffer.wrap(compressed, 0, compressedLength), frameOffsets(frame) + FRAME_HEADER_BYTES)
+      frameInput.reset(compressed, 0, compressedLength)
+      val decodedSize = decoded.bytes.length
+      decompressor.decompress(frameInput, uncompressedLength, 0, uncompressedLength, decoded)
+      account(decoded.bytes.length - decodedSize)
+      decodedFrame = frame
+    }
+  }
+
+  /**
+    * Fills the given buffer from the encrypted channel starting at the given position.
+    * @param dst buffer to fill
+    * @param position position in the encrypted channel
+    */
+  private[this] def readFully(dst: ByteBuffer, position: Long): Unit = {
+    var pos = position
+    while (dst.hasRemaining) {
+      val n = encrypted.read(dst, pos)
+      if (n <= 0) throw new EOFException("Unexpected end of frame at " + pos + " in " + name)
+      pos += n
+    }
+  }
+}
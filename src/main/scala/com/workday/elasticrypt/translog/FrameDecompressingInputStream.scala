@@ -0,0 +1,157 @@
+/*
+ * Copyright 2017 Workday, Inc.
+ *
+ * This software is available under the MIT license.
+ * Please see the LICENSE.txt file in this project.
+ */
+
+package com.workday.elasticrypt.translog
+
+import java.io.{EOFException, IOException, InputStream}
+import java.nio.ByteBuffer
+
+import com.workday.elasticrypt.breaker.CryptoBufferBreaker
+import org.apache.lucene.store.ByteArrayDataInput
+import org.apache.lucene.util.{ArrayUtil, BytesRef, FileHeader}
+
+/**
+  * Read-only java.io.InputStream that decompresses the frames written by FrameCompressingFileChannel while an encrypted
+  * translog is replayed. Whether the file is compressed is only known once ParallelDecryptingInputStream has read
+  * the file header, on the first read; the bytes of uncompressed files are passed through as is.
+  * The buffers frames are decompressed in are accounted in the CryptoBufferBreaker until the stream is closed.
+  * Utilized in EncryptedTranslogStream.
+  *
+  * @param in decrypted translog
+  * @param breaker breaker the buffers are accounted in
+  */
+class FrameDecompressingInputStream(in: ParallelDecryptingInputStream, breaker: CryptoBufferBreaker = CryptoBufferBreaker.node)
+  extends InputStream {
+
+  import FrameCompressingFileChannel.{FRAME_HEADER_BYTES, compressionMode}
+
+  private[this] val decompressor = compressionMode.newDecompressor()
+  private[this] val frameHeader = new Array[Byte](FRAME_HEADER_BYTES)
+  private[this] val frameInput = new ByteArrayDataInput()
+  private[this] var compressed = new Array[Byte](0)
+  private[this] val decoded = new BytesRef()
+
+  /* Compression layout of the file, -1 until the header has been read */
+  private[this] var layout = -1
+  /* Position and number of valid bytes in decoded */
+  private[this] var position = 0
+  private[this] var limit = 0
+  /* Number of buffer bytes accounted in the breaker */
+  private[this] var bufferBytes = 0L
+
+  /**
+    * Reads a single byte.
+    * @return -1 if eof has been reached, the next byte otherwise
+    */
+  override def read(): Int = {
+    if (!isCompressed) {
+      in.read()
+    } else if (fill()) {
+      val b = decoded.bytes(decoded.offset + position) & 0xFF
+      position += 1
+      b
+    } else {
+      -1
+    }
+  }
+
+  /**
+    * Read bytes from the file into the given byte array.
+    * @param b byte array to copy bytes to
+    * @param off position in b to start copying data
+    * @param len maximum number of bytes to be copied
+    * @return -1 if eof has been reached, the number of bytes copied into b otherwise
+    */
+  override def read(b: Array[Byte], off: Int, len: Int): Int = {
+    if (len == 0) {
+      0
+    } else if (!isCompressed) {
+      in.read(b, off, len)
+    } else if (fill()) {
+      val n = Math.min(len, limit - position)
+      System.arraycopy(decoded.bytes, decoded.offset + position, b, off, n)
+      position += n
+      n
+    } else {
+      -1
+    }
+  }
+
+  /**
+    * Returns the number of decompressed bytes that can be read without decompressing another frame.
+    */
+  override def available(): Int = if (layout == FileHeader.LZ4_FRAMES) limit - position else in.available()
+
+  /**
+    * Closes the decrypted translog and releases the buffers.
+    */
+  override def close(): Unit = {
+    try {
+      in.close()
+    } finally {
+      breaker.release(bufferBytes)
+      bufferBytes = 0L
+    }
+  }
+
+  /**
+    * Whether the file header records compressed frames.
+    */
+  private[this] def isCompressed: Boolean = {
+    if (layout < 0) layout = in.compressionLayout
+    layout == FileHeader.LZ4_FRAMES
+  }
+
+  /**
+    * Makes sure decoded has unread bytes, decompressing the next frame if necessary.
+    * @return false if eof has been reached
+    */
+  private[this] def fill(): Boolean = {
+    if (position >= limit && readFully(frameHeader, FRAME_HEADER_BYTES, eofAllowed = true)) {
+      val header = ByteBuffer.wrap(frameHeader)
+      val uncompressedLength = header.getInt(0)
+      val compressedLength = header.getInt(4)
+      if (uncompressedLength <= 0 || compressedLength <= 0) {
+        throw new IOException("Corrupted frame header: " + uncompressedLength + "/" + compressedLength)
+      }
+
+      val bufferSize = compressed.length + decoded.bytes.length
+      if (compressed.length < compressedLength) compressed = ArrayUtil.grow(compressed, compressedLength)
+      readFully(compressed, compressedLength, eofAllowed = false)
+      frameInput.reset(compressed, 0, compressedLength)
+      decompressor.decompress(frameInput, uncompressedLength, 0, uncompressedLength, decoded)
+      val grownBytes = compressed.length + decoded.bytes.length - bufferSize
+      if (grownBytes > 0) {
+        breaker.allocate(grownBytes)
+        bufferBytes += grownBytes
+      }
+      position = 0
+      limit = uncompressedLength
+    }
+    position < limit
+  }
+
+  /**
+    * Reads exactly len bytes from the decrypted translog.
+    * @param b byte array to copy bytes to
+    * @param len number of bytes to read
+    * @param eofAllowed whether the translog may end before the first byte
+    * @return false if the translog ended before the first byte
+    */
+  private[this] def readFully(b: Array[Byte], len: Int, eofAllowed: Boolean): Boolean = {
+    var read = 0
+    var eof = false
+    while (!eof && read < len) {
+      val n = in.read(b, read, len - read)
+      if (n < 0) eof = true else read += n
+    }
+    if (eof && !(eofAllowed && read == 0)) {
+      throw new EOFException("Translog ends in the middle of a frame, " + read + " of " + len + " bytes read")
+    }
+    !eof
+  }
+}
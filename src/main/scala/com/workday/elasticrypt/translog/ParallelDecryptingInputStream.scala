@@ -0,0 +1,311 @@
+/*
+ * Copyright 2017 Workday, Inc.
+ *
+ * This software is available under the MIT license.
+ * Please see the LICENSE.txt file in this project.
+ */
+
+package com.workday.elasticrypt.translog
+
+import java.io.{File, IOException, InputStream, RandomAccessFile}
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.util.concurrent.{Callable, ExecutionException, Executor, Future, FutureTask}
+import javax.crypto.Cipher
+import javax.crypto.spec.SecretKeySpec
+
+import com.workday.elasticrypt.KeyProvider
+import com.workday.elasticrypt.breaker.CryptoBufferBreaker
+import org.apache.lucene.util.{FileHeader, HmacFileHeader, MutableIvParameterSpec}
+
+/**
+  * Contains the defaults used when replaying encrypted translog files.
+  */
+object ParallelDecryptingInputStream {
+  /* AES using 16 byte block sizes */
+  private[translog] val BLOCKSIZE = 16
+  /* Number of pages read from disk and decrypted by a single worker task */
+  val DEFAULT_PAGES_PER_CHUNK = 256
+  /* Number of chunks that may be decrypted ahead of the consumer. With 64-block pages a chunk holds 256KB of cipher
+   * text and 256KB of plaintext, so a stream holds at most 2MB whatever the number of cores, and every recovering
+   * shard adds one stream. */
+  val DEFAULT_READ_AHEAD = 4
+}
+
+/**
+  * Read-only java.io.InputStream over an encrypted translog file that decrypts pages ahead of the consumer.
+  *
+  * Every page is encrypted with its own IV, so pages can be decrypted independently of each other. The file is split
+  * into chunks of pagesPerChunk pages; each chunk is read from disk with a single positional read and decrypted on the
+  * executor, e.g. the generic thread pool of the node, into one slot of a bounded ring of readAhead buffers. The
+  * consumer drains the slots in file order and hands a slot back to the executor for the next chunk as soon as it has
+  * been fully read, so at most readAhead chunks are held in memory at any time. The ring is accounted in the
+  * CryptoBufferBreaker from the first read until the stream is closed.
+  *
+  * The file header, the key and the file length are only read on the first read, matching the lazy behaviour of
+  * EncryptedFileChannel. Utilized in EncryptedTranslogStream.
+  *
+  * @param file translog file to read
+  * @param pageSize number of 16-byte blocks per page. Must be the same number used when writing the file.
+  * @param keyProvider encryption key information getter
+  * @param indexName name of index used to retrieve key
+  * @param executor pool used to read and decrypt chunks
+  * @param pagesPerChunk number of pages read and decrypted by a single task
+  * @param readAhead number of chunks that may be in flight ahead of the consumer
+  * @param breaker breaker the ring is accounted in
+  */
+class ParallelDecryptingInputStream(file: File,
+                                    pageSize: Int,
+                                    keyProvider: KeyProvider,
+                                    indexName: String,
+                                    executor: Executor,
+                                    pagesPerChunk: Int = ParallelDecryptingInputStream.DEFAULT_PAGES_PER_CHUNK,
+                                    readAhead: Int = ParallelDecryptingInputStream.DEFAULT_READ_AHEAD,
+                                    breaker: CryptoBufferBreaker = CryptoBufferBreaker.node)
+  extends InputStream {
+
+  import ParallelDecryptingInputStream.BLOCKSIZE
+
+  private[this] val pageBytes = pageSize * BLOCKSIZE
+  private[this] val physicalPageBytes = pageBytes + BLOCKSIZE
+  private[this] val physicalChunkBytes = physicalPageBytes.toLong * pagesPerChunk
+
+  private[this] val raf = new RandomAccessFile(file, "r")
+  private[this] val channel: FileChannel = raf.getChannel
+
+  private[this] var started = false
+  private[this] var closed = false
+  private[this] var key: SecretKeySpec = _
+  private[this] var compression = FileHeader.UNCOMPRESSED
+  private[this] var headerOffset = 0L
+  private[this] var physicalLength = 0L
+  private[this] var numChunks = 0L
+
+  /* Ring of buffers and the in-flight decryption of each, sized on the first read */
+  private[this] var ringSize = 0
+  private[this] var slots: Array[Slot] = _
+  private[this] var pending: Array[Future[Slot]] = _
+  /* Number of bytes of the ring accounted in the breaker */
+  private[this] var bufferBytes = 0L
+  /* Index of the next chunk handed to the consumer */
+  private[this] var nextChunk = 0L
+  private[this] var current: Slot = _
+  /* Position and number of valid bytes in the current slot */
+  private[this] var position = 0
+  private[this] var limit = 0
+
+  /**
+    * One entry of the ring: holds the ciphertext read from disk and the plaintext of a whole chunk.
+    */
+  private[this] class Slot {
+    val cipherText = new Array[Byte](physicalChunkBytes.toInt)
+    val plainText = new Array[Byte](pagesPerChunk * pageBytes)
+    val cipher: Cipher = Cipher.getInstance("AES/CBC/NoPadding")
+    val iv = new MutableIvParameterSpec(new Array[Byte](BLOCKSIZE))
+    var length = 0
+  }
+
+  /**
+    * Reads a single byte.
+    * @return -1 if eof has been reached, the next byte otherwise
+    */
+  override def read(): Int = {
+    if (fill()) {
+      val b = current.plainText(position) & 0xFF
+      position += 1
+      b
+    } else {
+      -1
+    }
+  }
+
+  /**
+    * Read bytes from the file into the given byte array.
+    * @param b byte array to copy bytes to
+    * @param off position in b to start copying data
+    * @param len maximum number of bytes to be copied
+    * @return -1 if eof has been reached, the number of bytes copied into b otherwise
+    */
+  override def read(b: Array[Byte], off: Int, len: Int): Int = {
+    if (len == 0) {
+      0
+    } else if (fill()) {
+      val n = Math.min(len, limit - position)
+      System.arraycopy(current.plainText, position, b, off, n)
+      position += n
+      n
+    } else {
+      -1
+    }
+  }
+
+  /**
+    * Returns the number of decrypted bytes that can be read without waiting on a worker.
+    */
+  override def available(): Int = limit - position
+
+  /**
+    * Cancels any outstanding decryption, releases the ring and closes the underlying file.
+    */
+  override def close(): Unit = {
+    if (!closed) {
+      closed = true
+      Option(pending).foreach(_.foreach(f => Option(f).foreach(_.cancel(false))))
+      breaker.release(bufferBytes)
+      bufferBytes = 0L
+      raf.close()
+    }
+  }
+
+  /**
+    * Returns the compression layout recorded in the file header, reading the header if no byte has been read yet.
+    */
+  def compressionLayout: Int = {
+    if (closed) throw new IOException("Stream closed: " + file)
+    if (!started) start()
+    compression
+  }
+
+  /**
+    * Makes sure the current slot has unread bytes, waiting for the next chunk if necessary.
+    * @return false if eof has been reached
+    */
+  private[this] def fill(): Boolean = {
+    if (closed) throw new IOException("Stream closed: " + file)
+    if (!started) start()
+
+    while (position >= limit && nextChunk < numChunks) {
+      if (nextChunk > 0) {
+        // The slot of the chunk we just finished is free again, so start on the chunk ringSize places further
+        submit(nextChunk - 1 + ringSize)
+      }
+      current = await(nextChunk)
+      position = 0
+      limit = current.length
+      nextChunk += 1
+    }
+    position < limit
+  }
+
+  /**
+    * Reads the file header and the key, then schedules the first readAhead chunks.
+    */
+  private[this] def start(): Unit = {
+    started = true
+    val fileHeader = new HmacFileHeader(raf, keyProvider, indexName)
+    fileHeader.readHeader()
+    headerOffset = raf.getFilePointer
+    key = fileHeader.key
+    compression = fileHeader.compression
+
+    physicalLength = raf.length - headerOffset
+    numChunks = (physicalLength + physicalChunkBytes - 1) / physicalChunkBytes
+    ringSize = Math.max(1L, Math.min(readAhead.toLong, numChunks)).toInt
+    bufferBytes = ringSize * (physicalChunkBytes + pagesPerChunk.toLong * pageBytes)
+    breaker.allocate(bufferBytes)
+    slots = Array.fill(ringSize)(new Slot)
+    pending = new Array[Future[Slot]](ringSize)
+    (0L until numChunks.min(ringSize)).foreach(submit)
+  }
+
+  /**
+    * Schedules the given chunk for decryption into its slot of the ring.
+    * @param chunk index of the chunk in the file
+    */
+  private[this] def submit(chunk: Long): Unit = {
+    if (chunk < numChunks) {
+      val index = (chunk % ringSize).toInt
+      val slot = slots(index)
+      val task = new FutureTask[Slot](new Callable[Slot] {
+        override def call(): Slot = decryptChunk(chunk, slot)
+      })
+      pending(index) = task
+      executor.execute(task)
+    }
+  }
+
+  /**
+    * Waits for the given chunk to be decrypted.
+    * @param chunk index of the chunk in the file
+    * @return the slot holding the decrypted chunk
+    */
+  private[this] def await(chunk: Long): Slot = {
+    val index = (chunk % ringSize).toInt
+    try {
+      pending(index).get()
+    } catch {
+      case e: ExecutionException => e.getCause match {
+        case io: IOException => throw io
+        case other => throw new IOException("Failed to decrypt " + file + " at chunk " + chunk, other)
+      }
+      case e: InterruptedException =>
+        Thread.currentThread().interrupt()
+        throw new IOException("Interrupted while decrypting " + file, e)
+    } finally {
+      // scalastyle:off null
+      pending(index) = null
+      // scalastyle:on null
+    }
+  }
+
+  /**
+    * Reads one chunk with a single positional read and decrypts every page in it. Runs on the executor.
+    * @param chunk index of the chunk in the file
+    * @param slot buffers to use
+    * @return the slot holding the decrypted chunk
+    */
+  private[this] def decryptChunk(chunk: Long, slot: Slot): Slot = {
+    val start = chunk * physicalChunkBytes
+    val length = Math.min(physicalChunkBytes, physicalLength - start).toInt
+    readFully(ByteBuffer.wrap(slot.cipherText, 0, length), headerOffset + start)
+
+    var pageStart = 0
+    var plainLength = 0
+    while (pageStart < length) {
+      val cipherLength = Math.min(pageBytes, length - pageStart - BLOCKSIZE)
+      if (cipherLength <= 0 || cipherLength % BLOCKSIZE != 0) {
+        throw new IOException("Truncated page at " + (headerOffset + start + pageStart) + " in " + file)
+      }
+      System.arraycopy(slot.cipherText, pageStart, slot.iv.getIV, 0, BLOCKSIZE)
+      slot.cipher.init(Cipher.DECRYPT_MODE, key, slot.iv)
+      plainLength += slot.cipher.doFinal(slot.cipherText, pageStart + BLOCKSIZE, cipherLength, slot.plainText, plainLength)
+      pageStart += physicalPageBytes
+    }
+
+    slot.length = if (chunk == numChunks - 1) plainLength - checkPadding(slot.plainText, plainLength) else plainLength
+    slot
+  }
+
+  /**
+    * Validates the padding at the end of the last page, in the same way AESReader does.
+    * @param buffer decrypted bytes
+    * @param length number of valid bytes in buffer
+    * @return number of padding bytes
+    */
+  private[this] def checkPadding(buffer: Array[Byte], length: Int): Int = {
+    val noPadding = buffer(length - 1)
+    if (noPadding <= 0 || noPadding > BLOCKSIZE) {
+      throw new IOException("Bad padding: " + noPadding + " in " + file)
+    }
+    (length - noPadding until length).foreach { i =>
+      if (buffer(i) != noPadding) {
+        throw new IOException("Bad padding @ byte " + (length - i) + ". Expected: " + noPadding + ". Value: " + buffer(i))
+      }
+    }
+    noPadding
+  }
+
+  /**
+    * Fills the given buffer from the channel starting at the given physical position.
+    * @param dst buffer to fill
+    * @param position physical position in the file
+    */
+  private[this] def readFully(dst: ByteBuffer, position: Long): Unit = {
+    var pos = position
+    while (dst.hasRemaining) {
+      val n = channel.read(dst, pos)
+      if (n < 0) throw new IOException("Unexpected end of file at " + pos + " in " + file)
+      pos += n
+    }
+  }
+}
@@ -1,16 +1,24 @@
 package org.apache.lucene.util;
 
 import com.workday.elasticrypt.KeyProvider;
+import com.workday.elasticrypt.KeyVersion;
+import com.workday.elasticrypt.breaker.CryptoBufferBreaker;
+import com.workday.elasticrypt.breaker.ReleasableBuffers;
+import com.workday.elasticrypt.scheduler.CryptoScheduler;
+import com.workday.elasticrypt.scheduler.CryptoWork;
+import com.workday.elasticrypt.stats.CryptoMetrics;
+import com.workday.elasticrypt.stats.FileCryptoMetrics;
 
 import javax.crypto.*;
-import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
   * AESReader provides the ability to read an AES encrypted random access file.
@@ -40,7 +48,7 @@ import java.security.NoSuchAlgorithmException;
   * @author Jay Mundrawala
   * @author Jordan Wilberding
   */
-public class AESReader
+public class AESReader implements ReleasableBuffers
 {
     /* AES using 16 byte block sizes */
     private static final int BLOCKSIZE = 16;
@@ -50,13 +58,20 @@ public class AESReader
     private final Cipher dcipher;
     /* Current Initialization Vector for the page. */
     private final byte[] cur_iv;
+    /* Reusable cipher parameters backed by cur_iv. */
+    private final MutableIvParameterSpec iv_spec;
 
     /* header_offset for the file header */
     private long header_offset = 0;
     private FileHeader fileHeader;
 
-    /* Encryption/Decryption buffer cache. */
-    private final byte[] buffer;
+    /* Encryption/Decryption buffer cache. Released by releaseBuffers() and allocated again by the next refill. */
+    private byte[] buffer;
+    /* Cipher text of the page being loaded. Decrypting into a separate array avoids the copy the cipher makes
+     * of overlapping input and output. */
+    private byte[] ciphertext;
+    /* Direct buffer holding the IV and cipher text of a whole page, used to decrypt straight into the caller's buffer. */
+    private ByteBuffer pageBuffer;
     /* Internal filePos. We cannot use raf's because that one will always be aligned a 16 byte boundary */
     private long filePos;
     /* Start position of buffer in reference to byte in the Virtual File without encryption meta-data(IV).
@@ -70,14 +85,29 @@ public class AESReader
     private long end;
     /* Blocks per page */
     private final int page_size;
+    /* Bytes per page */
+    private final int page_size_in_bytes;
     /* Key used to decrypt data */
     private final SecretKeySpec key;
-    /* Object to sync on */
-    private final Object lock = new Object();
+    /* Lock guarding the buffers and the file position. A lock rather than a monitor, so that
+     * releaseBuffers() can skip a reader that is in use instead of waiting for it. */
+    private final ReentrantLock lock = new ReentrantLock();
     /* Name of file */
     private final String name;
     /* Key ID used to retrieve key */
     private String indexName;
+    /* Counters of the index and file extension this file is accounted under */
+    private final FileCryptoMetrics metrics;
+    /* Tenant and kind of the decryption work, which paces background reads, see CryptoScheduler */
+    private CryptoWork work;
+    /* Whether close() has been recorded in the metrics */
+    private boolean closed = false;
+    /* Breaker the buffers are accounted in */
+    private final CryptoBufferBreaker breaker = CryptoBufferBreaker.node();
+    /* Number of buffer bytes accounted in the breaker */
+    private long bufferBytes = 0;
+    /* System.nanoTime() of the last read or seek, from which releaseBuffers() tells whether the reader is idle */
+    private long lastAccessNanos = System.nanoTime();
 
    /**
      * @constructor
@@ -98,7 +128,6 @@ public class AESReader
           IllegalBlockSizeException,
           BadPaddingException
    {
-       long page_size_in_bytes;
        int nread;
        int buf_size;
        int no_padding;
@@ -109,19 +138,24 @@ public class AESReader
            this.raf = raf;
            this.indexName = indexName;
            this.fileHeader = fileHeader;
+           this.metrics = CryptoMetrics.forFile(indexName, name);
+           this.work = CryptoScheduler.node().work(indexName, false);
            /* Read the file header. */
            this.readFileHeader();
 
-           /* Retrieve the key based on the index obtained via the shard. */
-           this.key = keyProvider.getKey(indexName);
+           /* Reuse the key the header was verified with; headers that do not resolve keys leave it to us, in which
+            * case it is retrieved for the index and the key version recorded in the header. */
+           this.key = fileHeader.key() != null ? fileHeader.key() : KeyVersion.resolveKey(keyProvider, indexName, fileHeader.keyVersion());
 
-           page_size_in_bytes = page_size * BLOCKSIZE;
+           this.page_size_in_bytes = page_size * BLOCKSIZE;
            this.dcipher = Cipher.getInstance("AES/CBC/NoPadding");
-           this.buffer = new byte[page_size * BLOCKSIZE];
            this.cur_iv = new byte[BLOCKSIZE];
+           this.iv_spec = new MutableIvParameterSpec(this.cur_iv);
            this.page_size = page_size;
+           this.allocateBuffers();
 
            /* Check padding and determine end (file length). Read the last page. */
+           long start = System.nanoTime();
            this.raf.seek(Math.max(this.raf.length() - page_size_in_bytes, this.header_offset));
 
            /* Initialize the Initialization Vector for the last page by reading it from the file. */
@@ -129,12 +163,14 @@ public class AESReader
 
            /* Read encrypted text from the file into the buffer cache and decrypt it. */
            nread = this.raf.read(buffer);
-           dcipher.init(Cipher.DECRYPT_MODE, this.key, new IvParameterSpec(this.cur_iv));
+           dcipher.init(Cipher.DECRYPT_MODE, this.key, this.iv_spec);
            buf_size = dcipher.doFinal(buffer, 0, nread, buffer, 0);
 
            /* Ensure that the padding is correct. */
            if (buf_size != nread)
                throw new IOException("Not enough bytes decrypted");
+           metrics.pageDecrypted(buf_size, System.nanoTime() - start);
+           work.processed(buf_size);
 
            no_padding = buffer[buf_size - 1];
            no_data = BLOCKSIZE - no_padding;
@@ -159,6 +195,73 @@ public class AESReader
             * Seek already accounts for header offset, so seeking to pos 0 will point us at the
             * beginning of the payload after the header. */
            seek(0);
+           metrics.readerOpened();
+           breaker.register(this);
+       } catch(Exception ex) {
+           // On error, make sure we close the file
+           this.freeBuffers();
+           this.raf.close();
+           throw ex;
+       }
+   }
+
+   /**
+     * @constructor
+     * Creates an encrypted random access file reader for a file whose header offset and length are already known,
+     * e.g. from an earlier open of the same immutable file. Neither the header nor the last page is read; the first
+     * page is only decrypted on the first read.
+     * @param name File name.
+     * @param raf file to read.
+     * @param page_size number of 16-byte blocks per page. Must be the same number used when writing the file.
+     * @param key key used to initialize the ciphers.
+     * @param header_offset number of header bytes preceding the first page.
+     * @param length number of bytes in the file without header, IV/page and padding.
+     */
+   public AESReader(String name, RandomAccessFile raf, int page_size, SecretKeySpec key, long header_offset, long length) throws IOException,
+          NoSuchAlgorithmException,
+          NoSuchPaddingException
+   {
+       this(name, raf, page_size, key, header_offset, length, CryptoMetrics.forFile(CryptoMetrics.UNKNOWN_INDEX(), name));
+   }
+
+   /**
+     * @constructor
+     * Creates an encrypted random access file reader for a file whose header offset and length are already known,
+     * accounting its work in the given metrics.
+     * @param name File name.
+     * @param raf file to read.
+     * @param page_size number of 16-byte blocks per page. Must be the same number used when writing the file.
+     * @param key key used to initialize the ciphers.
+     * @param header_offset number of header bytes preceding the first page.
+     * @param length number of bytes in the file without header, IV/page and padding.
+     * @param metrics counters of the index and file extension of the file, see CryptoMetrics.forFile.
+     */
+   public AESReader(String name, RandomAccessFile raf, int page_size, SecretKeySpec key, long header_offset, long length,
+          FileCryptoMetrics metrics) throws IOException,
+          NoSuchAlgorithmException,
+          NoSuchPaddingException
+   {
+       try {
+           this.name = name;
+           this.raf = raf;
+           this.key = key;
+           this.metrics = metrics;
+           this.work = CryptoScheduler.node().work(CryptoMetrics.UNKNOWN_INDEX(), false);
+           this.header_offset = header_offset;
+           this.end = length;
+
+           this.dcipher = Cipher.getInstance("AES/CBC/NoPadding");
+           this.cur_iv = new byte[BLOCKSIZE];
+           this.iv_spec = new MutableIvParameterSpec(this.cur_iv);
+           this.page_size = page_size;
+           this.page_size_in_bytes = page_size * BLOCKSIZE;
+
+           /* The buffer cache is empty, so the first read refills it from position 0 and allocates the buffers. */
+           this.filePos = 0;
+           this.bufferPosition = 0;
+           this.bufferLength = 0;
+           metrics.readerOpened();
+           breaker.register(this);
        } catch(Exception ex) {
            // On error, make sure we close the file
            this.raf.close();
@@ -176,14 +279,148 @@ public class AESReader
        this.header_offset = this.raf.getFilePointer();
    }
 
+   /**
+     * Get the number of header bytes preceding the first page.
+     * @return the header offset
+     */
+   public long getHeaderOffset()
+   {
+      return this.header_offset;
+   }
+
+   /**
+     * Get the offset in the file of the page holding the given plaintext position, i.e. of the IV preceding the
+     * cipher text of the page.
+     * @param pos position in the plaintext
+     * @return offset of the page, including the header
+     */
+   public long getPageOffset(long pos)
+   {
+      return this.header_offset + (pos / page_size_in_bytes) * getPhysicalPageSize();
+   }
+
+   /**
+     * Get the number of bytes a full page takes in the file: its IV and its cipher text.
+     * @return size of a page in the file
+     */
+   public int getPhysicalPageSize()
+   {
+      return page_size_in_bytes + BLOCKSIZE;
+   }
+
+   /**
+     * Reads raw bytes of the file, without decrypting them, e.g. to pull pages into the page cache of the OS.
+     * Uses a positional read, so the position of this reader is kept.
+     * @param dst buffer the bytes are read into
+     * @param offset offset in the file, including the header
+     * @return number of bytes read, -1 at the end of the file
+     * @throws IOException
+     */
+   public int readCipherText(ByteBuffer dst, long offset) throws IOException
+   {
+      return this.raf.getChannel().read(dst, offset);
+   }
+
+   /**
+     * Get the key this file is decrypted with, so that reopening the file does not fetch it again.
+     * @return the key
+     */
+   public SecretKeySpec getKey()
+   {
+      return this.key;
+   }
+
+   /**
+     * Sets the tenant and kind of the pages decrypted from now on, e.g. to pace a merge reading this file.
+     * @param work work obtained from CryptoScheduler.work
+     */
+   public void setCryptoWork(CryptoWork work)
+   {
+      lock.lock();
+      try {
+         this.work = work;
+      } finally {
+         lock.unlock();
+      }
+   }
+
    /**
      * Close the underlying RandomAccessFile.
      */
    public void close() throws IOException
    {
+      recordClose();
       this.raf.close();
    }
 
+   /**
+     * Records in the metrics that this reader is closed and releases its buffers; later calls do nothing.
+     * Subclasses that override close() without calling it must call this instead.
+     */
+   protected final void recordClose()
+   {
+      lock.lock();
+      try {
+         if(!this.closed){
+            this.closed = true;
+            metrics.readerClosed();
+            breaker.unregister(this);
+            freeBuffers();
+         }
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+     * Releases the page buffers, unless this reader is in use. They are allocated again by the next read.
+     * @param minIdleNanos only release them if the reader was not read or sought for at least this long
+     * @return number of bytes released
+     */
+   public long releaseBuffers(long minIdleNanos)
+   {
+      if(lock.isHeldByCurrentThread() || !lock.tryLock())
+         return 0;
+      try {
+         if(System.nanoTime() - this.lastAccessNanos < minIdleNanos)
+            return 0;
+         return freeBuffers();
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+     * Allocates the page and cipher text buffers, accounting them in the breaker. Must hold the lock, or be
+     * constructing.
+     */
+   private void allocateBuffers()
+   {
+      long bytes = 2L * page_size_in_bytes;
+      breaker.allocate(bytes);
+      this.bufferBytes += bytes;
+      this.buffer = new byte[page_size_in_bytes];
+      this.ciphertext = new byte[page_size_in_bytes];
+   }
+
+   /**
+     * Drops all buffers and empties the buffer cache, so that the next read refills it. Must hold the lock, or be
+     * constructing.
+     * @return number of bytes released
+     */
+   private long freeBuffers()
+   {
+      long freed = this.bufferBytes;
+      this.buffer = null;
+      this.ciphertext = null;
+      this.pageBuffer = null;
+      this.bufferLength = 0;
+      this.bufferPosition = 0;
+      this.bufferBytes = 0;
+      breaker.release(freed);
+      return freed;
+   }
+
    /**
      * Get the current virtual position in the file.
      * @return current position in the file
@@ -220,12 +457,23 @@ public class AESReader
            java.security.InvalidAlgorithmParameterException,
            java.security.InvalidKeyException
    {
-      byte[] b = new byte[1];
-      int numRead = read(b);
-      if(numRead == -1)
-         return -1;
+      lock.lock();
+      try {
+         this.lastAccessNanos = System.nanoTime();
+         if(this.filePos >= this.end)
+            return -1;
+
+         /* Time to get next page when position in the buffer is geq its length. */
+         if(bufferPosition >= bufferLength)
+            refill();
 
-      return (int) b[0] & 0xFF;
+         filePos++;
+         return (int) buffer[bufferPosition++] & 0xFF;
+      } finally {
+         lock.unlock();
+         /* Pace background work outside the lock, which the clones of an AESIndexInput share. */
+         work.pause();
+      }
    }
 
    /**
@@ -256,8 +504,39 @@ public class AESReader
           javax.crypto.BadPaddingException,
           java.security.InvalidKeyException,
           java.security.InvalidAlgorithmParameterException {
-       ByteBuffer dst = ByteBuffer.wrap(b, offset, len);
-       return read(dst);
+      if(this.filePos >= this.end){
+         return -1;
+      }
+      if(len <= 0)
+         return 0;
+
+      lock.lock();
+      try {
+         this.lastAccessNanos = System.nanoTime();
+         int remaining = len;
+         while(remaining > 0 && filePos < end){
+            int available = bufferLength - bufferPosition;
+            /* If bytes are available in the buffer cache then, copy them to the request buffer.
+             * Never hand out the padding bytes of the last page. */
+            if(available > 0){
+               int to_read = (int)Math.min(Math.min(available, remaining), end - filePos);
+               System.arraycopy(buffer, bufferPosition, b, offset, to_read);
+               offset += to_read;
+               remaining -= to_read;
+               bufferPosition += to_read;
+               filePos += to_read;
+            }else{
+               /* If all the bytes in the buffer cache have been read then, read and decrypt
+                * next page from disk into the buffer cache. */
+               refill();
+            }
+         }
+         return len - remaining;
+      } finally {
+         lock.unlock();
+         /* Pace background work outside the lock, which the clones of an AESIndexInput share. */
+         work.pause();
+      }
    }
 
     /**
@@ -278,43 +557,82 @@ public class AESReader
       if(len <= 0)
          return 0;
 
-      synchronized(lock){
+      lock.lock();
+      try {
+         this.lastAccessNanos = System.nanoTime();
          int remaining = len;
-         /* Time to get next page when position in the buffer is geq its length. */
-         if(bufferPosition >= bufferLength)
-            refill();
-
-         if(len <= bufferLength - bufferPosition){
-             /* Enough bytes in the buffer cache to fill the request buffer...just copy them to b. */
-             dst.put(buffer, bufferPosition, len);
-            bufferPosition += len;
-            filePos += len;
-            remaining = 0;
-         }else{
-             /* Will need to start loading next pages to read len bytes. */
-            while(remaining > 0 && filePos < end){
-               int available = bufferLength - bufferPosition;
-               /* If bytes are available in the buffer cache then, copy them to the request buffer. */
-               if(available > 0){
-                  int to_read = Math.min(available,remaining);
-                   dst.put(buffer, bufferPosition, to_read);
-                  remaining -= to_read;
-                  bufferPosition += to_read;
-                  filePos += to_read;
-               }else{
-                  /* If all the bytes in the buffer cache have been read then, read and decrypt
-                   * next page from disk into the buffer cache. */
-                  refill();
-               }
+         while(remaining > 0 && filePos < end){
+            int available = bufferLength - bufferPosition;
+            /* If bytes are available in the buffer cache then, copy them to the request buffer.
+             * Never hand out the padding bytes of the last page. */
+            if(available > 0){
+               int to_read = (int)Math.min(Math.min(available, remaining), end - filePos);
+               dst.put(buffer, bufferPosition, to_read);
+               remaining -= to_read;
+               bufferPosition += to_read;
+               filePos += to_read;
+            }else if(remaining >= page_size_in_bytes && filePos % page_size_in_bytes == 0 && filePos + page_size_in_bytes <= end){
+               /* The request covers a whole page of data: decrypt it straight into the request buffer. */
+               readPageDirect(dst);
+               remaining -= page_size_in_bytes;
+               filePos += page_size_in_bytes;
+            }else{
+               /* If all the bytes in the buffer cache have been read then, read and decrypt
+                * next page from disk into the buffer cache. */
+               refill();
             }
          }
          return len - remaining;
+      } finally {
+         lock.unlock();
+         /* Pace background work outside the lock, which the clones of an AESIndexInput share. */
+         work.pause();
       }
    }
 
+   /**
+     * Reads the page starting at this.filePos through the file channel into a direct buffer and decrypts it
+     * into dst, bypassing the buffer cache. The page must be full of data, i.e. not the padded last page.
+     * @param dst The buffer into which the page is decrypted. Must have at least one page remaining.
+     */
+   private void readPageDirect(ByteBuffer dst) throws IOException,
+           javax.crypto.ShortBufferException,
+           javax.crypto.IllegalBlockSizeException,
+           javax.crypto.BadPaddingException,
+           java.security.InvalidKeyException,
+           java.security.InvalidAlgorithmParameterException
+   {
+      if(this.pageBuffer == null){
+         breaker.allocate(BLOCKSIZE + page_size_in_bytes);
+         this.bufferBytes += BLOCKSIZE + page_size_in_bytes;
+         this.pageBuffer = ByteBuffer.allocateDirect(BLOCKSIZE + page_size_in_bytes);
+      }
+
+      long start = System.nanoTime();
+      /* Physical address of the IV of the page, including the header offset. */
+      long pos = encryptedAddrToPhysicalAddr(this.filePos) - BLOCKSIZE + this.header_offset;
+
+      FileChannel channel = this.raf.getChannel();
+      this.pageBuffer.clear();
+      while(this.pageBuffer.hasRemaining()){
+         int nread = channel.read(this.pageBuffer, pos);
+         if(nread == -1)
+            throw new IOException("Unexpected end of file at " + pos + " file: " + name);
+         pos += nread;
+      }
+      this.pageBuffer.flip();
+      this.pageBuffer.get(this.cur_iv);
+
+      this.dcipher.init(Cipher.DECRYPT_MODE, this.key, this.iv_spec);
+      if(dcipher.doFinal(this.pageBuffer, dst) != page_size_in_bytes)
+         throw new IOException("Not enough bytes decrypted");
+      metrics.pageDecrypted(page_size_in_bytes, System.nanoTime() - start);
+      work.processed(page_size_in_bytes);
+   }
+
    /**
      * Sets the virtual file pointer so that the next byte read will be at pos.
-     * Seeking past the end of the file is not allowed.
+     * Seeking to the end of the file is allowed; seeking past it is not.
      * @param pos position to seek to
      */
    public void seek(long pos) throws IOException,
@@ -325,12 +643,25 @@ public class AESReader
            java.security.InvalidAlgorithmParameterException
    {
       // flush buffer
-      if(pos >= end || pos < 0){
+      if(pos > end || pos < 0){
          throw new RuntimeException("Pos: " + pos + " end: " + end + " file: " + name);
       }
-      synchronized(lock){
+      metrics.seek();
+      lock.lock();
+      try {
+         this.lastAccessNanos = System.nanoTime();
          this.filePos = pos;
-         refill();
+         /* At the end of the file there is no page to load; the next read returns -1. */
+         if(pos < end){
+            refill();
+         }else{
+            this.bufferPosition = 0;
+            this.bufferLength = 0;
+         }
+      } finally {
+         lock.unlock();
+         /* Pace background work outside the lock, which the clones of an AESIndexInput share. */
+         work.pause();
       }
    }
 
@@ -348,6 +679,11 @@ public class AESReader
    {
       int buf_size;
       int nread;
+      long start = System.nanoTime();
+
+      /* The buffers were released while this reader was idle. */
+      if(this.buffer == null)
+         allocateBuffers();
 
       /* Get the address which accounts for encryption IV/page. */
       long strt_addr = encryptedAddrToPhysicalAddr(this.filePos);
@@ -365,17 +701,20 @@ public class AESReader
       this.raf.readFully(this.cur_iv);
 
       /* Initialize the cipher with the IV that was read. */
-      this.dcipher.init(Cipher.DECRYPT_MODE,this.key,new IvParameterSpec(this.cur_iv));
+      this.dcipher.init(Cipher.DECRYPT_MODE,this.key,this.iv_spec);
 
       /* Read and decrypt the cipher text into the buffer cache. */
-      nread = this.raf.read(buffer);
-      buf_size = dcipher.doFinal(buffer,0,nread,buffer,0);
+      nread = this.raf.read(ciphertext);
+      buf_size = dcipher.doFinal(ciphertext,0,nread,buffer,0);
 
       if(buf_size != nread)
           throw new IOException("Not enough bytes decrypted");
+      metrics.pageDecrypted(buf_size, System.nanoTime() - start);
+      work.processed(buf_size);
+      metrics.refill();
 
       this.bufferLength = buf_size;
-      this.bufferPosition = (int)(this.filePos % buffer.length);
+      this.bufferPosition = (int)(this.filePos % page_size_in_bytes);
    }
 
    /**
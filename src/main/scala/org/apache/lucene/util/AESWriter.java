@@ -1,19 +1,25 @@
 package org.apache.lucene.util;
 
 import com.workday.elasticrypt.KeyProvider;
+import com.workday.elasticrypt.KeyVersion;
+import com.workday.elasticrypt.breaker.CryptoBufferBreaker;
+import com.workday.elasticrypt.scheduler.CryptoScheduler;
+import com.workday.elasticrypt.scheduler.CryptoWork;
+import com.workday.elasticrypt.stats.CryptoMetrics;
+import com.workday.elasticrypt.stats.FileCryptoMetrics;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
 
 import javax.crypto.Cipher;
-import javax.crypto.KeyGenerator;
-import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 
 /**
   * AESWriter is responsible for writing AES encrypted files to disk.
@@ -58,10 +64,16 @@ public class AESWriter
     /* Encryption pending buffer cache. If there is a block that is not entirely filled, this buffer will be used. */
     private final byte[] buffer;
     private byte[] ciphertext;
+    /* Direct buffer holding the IV and cipher text of a whole page, used to encrypt straight from the caller's buffer. */
+    private ByteBuffer pageBuffer;
+    /* Number of pages encrypted straight from the caller's buffer or array, bypassing the buffer cache. */
+    long directPages = 0;
     /* Initialization vector(16 bytes) to be used to encrypt the buffer.
      * IV vectors are unique per page buffer in a file. So, a 4 page(1024 bytes/page) file will have an
      * encrypted page of size (1024(DATA) + 16(IV)) and total file size of (1024 + 16) * 4 bytes. */
-    private byte[] cur_iv;
+    private final byte[] cur_iv;
+    /* Reusable cipher parameters backed by cur_iv. */
+    private final MutableIvParameterSpec iv_spec;
     /* header_offset for the file header. */
     private long header_offset = 0;
     /* Current byte in the buffer which is caching the data for write. */
@@ -79,8 +91,16 @@ public class AESWriter
     private SecretKeySpec key;
     /* Encryption Key ID */
     private String indexName;
+    /* Counters of the index and file extension this file is accounted under */
+    private final FileCryptoMetrics metrics;
+    /* Tenant and kind of the encryption work, which paces background writes, see CryptoScheduler */
+    private CryptoWork work;
+    /* Breaker the buffers are accounted in, until the writer is closed */
+    private final CryptoBufferBreaker breaker = CryptoBufferBreaker.node();
+    /* Number of buffer bytes accounted in the breaker */
+    private long bufferBytes = 0;
     /* Used to generate initialization vectors */
-    private KeyGenerator ivgen;
+    private final SecureRandom ivgen;
     /* Number of blocks(based on BLOCKSIZE = 16 bytes) per page */
     private final int page_size;
     /* Total number of bytes per page(page_size * BLOCKSIZE). */
@@ -125,6 +145,8 @@ public class AESWriter
             this.keyProvider = keyProvider;
             this.indexName = indexName;
             this.fileHeader = fileHeader;
+            this.metrics = CryptoMetrics.forFile(indexName, name);
+            this.work = CryptoScheduler.node().work(indexName, false);
 
             // Only allow writing on new files. Lucene specifies that a new writer will be created only for new files.
             if(raf.length() != 0)
@@ -140,14 +162,22 @@ public class AESWriter
             this.page_size_in_bytes = BLOCKSIZE*this.page_size;
 
            /* Initialize the internal buffer cache. Decrypted blocks are stored here. */
+            this.bufferBytes = 2L * this.page_size_in_bytes;
+            this.breaker.allocate(this.bufferBytes);
             this.buffer = new byte[BLOCKSIZE*page_size];
 
            /* Buffer containing the encrypted data. */
             this.ciphertext = new byte[buffer.length];
 
+           /* IV of the current page, overwritten in place for every page. */
+            this.cur_iv = new byte[BLOCKSIZE];
+            this.iv_spec = new MutableIvParameterSpec(this.cur_iv);
+            this.ivgen = new SecureRandom();
+
             this.isPadded = false;
         } catch(Exception ex) {
             // On error, make sure we close the file.
+            this.releaseBuffers();
             this.raf.close();
             throw ex;
         }
@@ -167,11 +197,14 @@ public class AESWriter
                 /* Set the header offset to be the size of bytes written for the header. */
                 this.header_offset = this.fileHeader.writeHeader();
 
-                this.key = keyProvider.getKey(this.indexName);
+                /* Use the key the header was written with, or the key of the version it records. */
+                this.key = this.fileHeader.key() != null
+                        ? this.fileHeader.key()
+                        : KeyVersion.resolveKey(keyProvider, this.indexName, this.fileHeader.keyVersion());
 
                 /* Initialize the ciphers. We should clean this up depending on the mode. */
-                this.ivgen = KeyGenerator.getInstance("AES");
-                this.initCiphers(generateIV());
+                this.generateIV();
+                this.initCiphers();
 
                 headerWritten = true;
             }
@@ -183,29 +216,21 @@ public class AESWriter
     }
 
     /**
-      * Generates a random initialization vector.
-      * @return a randomly generated IV
+      * Generates a random initialization vector into cur_iv.
       */
-    private IvParameterSpec generateIV(){
-        return new IvParameterSpec(ivgen.generateKey().getEncoded());
+    private void generateIV(){
+        ivgen.nextBytes(this.cur_iv);
     }
 
     /**
-      * Initialize the encryption and decryption ciphers.
-      * @param ivps The initialization vector to use or null. If null, an IV will be randomly generated.
+      * Initialize the encryption cipher with the IV currently held in cur_iv. The decryption cipher is only
+      * initialized in fillBuffer, when there is an existing page to decrypt.
       */
-    private void initCiphers(IvParameterSpec ivps) throws InvalidKeyException,
+    private void initCiphers() throws InvalidKeyException,
             InvalidAlgorithmParameterException
     {
-        if(ivps == null)
-            ivps = generateIV();
-
-       /* Store the IV bytes. */
-        this.cur_iv = ivps.getIV();
-
-       /* Init the ciphers with ivps. */
-        this.ecipher.init(Cipher.ENCRYPT_MODE, this.key, ivps);
-        this.dcipher.init(Cipher.DECRYPT_MODE, this.key, ivps);
+       /* Init the cipher with the reusable spec backed by cur_iv. */
+        this.ecipher.init(Cipher.ENCRYPT_MODE, this.key, this.iv_spec);
     }
 
     /**
@@ -219,16 +244,30 @@ public class AESWriter
             InvalidKeyException,
             InvalidAlgorithmParameterException, NoSuchAlgorithmException {
         synchronized(lock){
-            if(!isPadded || modified)
-                writePage(true, true);
-            if(!this.isPadded){
-                throw new RuntimeException("NO PADDING: this.end=" + this.end + ";this.cur_fp=" + this.cur_fp + ";this.buffer_size="+this.buffer_size +
-                        ";this.buffer_pos=" + this.buffer_pos + ";this.buffer_start=" + this.buffer_start + ";this.force=" + this.force);
+            try {
+                if(!isPadded || modified)
+                    writePage(true, true);
+                if(!this.isPadded){
+                    throw new RuntimeException("NO PADDING: this.end=" + this.end + ";this.cur_fp=" + this.cur_fp + ";this.buffer_size="+this.buffer_size +
+                            ";this.buffer_pos=" + this.buffer_pos + ";this.buffer_start=" + this.buffer_start + ";this.force=" + this.force);
+                }
+                this.raf.close();
+            } finally {
+                this.releaseBuffers();
             }
-            this.raf.close();
         }
     }
 
+    /**
+      * Removes the buffers from the breaker. They stay allocated until the writer is garbage collected, but a closed
+      * writer no longer writes through them. Later calls do nothing.
+      */
+    private void releaseBuffers()
+    {
+        this.breaker.release(this.bufferBytes);
+        this.bufferBytes = 0;
+    }
+
     /**
       * Writes any data in the buffer to disk with any additional padding needed.
       */
@@ -252,6 +291,17 @@ public class AESWriter
         return this.cur_fp;
     }
 
+    /**
+      * Sets the tenant and kind of the pages encrypted from now on, e.g. to pace a merge writing this file.
+      * @param work work obtained from CryptoScheduler.work
+      */
+    public void setCryptoWork(CryptoWork work)
+    {
+        synchronized(lock){
+            this.work = work;
+        }
+    }
+
     /**
       * The number of bytes in the file without (IV/page and File Header).
       * @return the size off the file
@@ -330,8 +380,9 @@ public class AESWriter
 
    /**
      * Writes the given array of bytes to the file.
-     * 1. Fills the cache buffer with unencrypted data from the input buffer.
-     * 2. Once the cache buffer is full, the data in the cache buffer is encrypted and written to disk.
+     * 1. Whole pages aligned on a page boundary are encrypted straight from the input array.
+     * 2. Otherwise fills the cache buffer with unencrypted data from the input array.
+     * 3. Once the cache buffer is full, the data in the cache buffer is encrypted and written to disk.
      * @param b array of bytes to write
      * @param off offset in b to start
      * @param len number of bytes to write
@@ -342,8 +393,29 @@ public class AESWriter
            InvalidKeyException,
            InvalidAlgorithmParameterException,
            javax.crypto.BadPaddingException, NoSuchAlgorithmException {
-        ByteBuffer bb = ByteBuffer.wrap(b, off, len);
-        write(bb);
+        synchronized(lock){
+            while(len > 0) {
+                if(this.buffer_pos == 0 && len >= this.page_size_in_bytes) {
+                 /* The source covers a whole page: encrypt it straight from the source array. */
+                    int written = this.writePageDirect(b, off);
+                    off += written;
+                    len -= written;
+                    continue;
+                }
+
+                this.modified = true;
+
+                // Minimum of len and available is the number of bytes to write
+                int _len = (int)Math.min(len, this.page_size_in_bytes - this.buffer_pos);
+                System.arraycopy(b, off, this.buffer, this.buffer_pos, _len);
+                off += _len;
+                len -= _len;
+
+                this.bufferWritten(_len);
+            }
+        }
+        /* Pace background work once the lock is released. */
+        work.pause();
     }
 
     /**
@@ -361,37 +433,169 @@ public class AESWriter
         int _len;
         synchronized(lock){
             while(b.hasRemaining()) {
+                if(this.buffer_pos == 0 && b.remaining() >= this.page_size_in_bytes) {
+                 /* The source covers a whole page: encrypt it straight from the source buffer. */
+                    bytesCopied += this.writePageDirect(b);
+                    continue;
+                }
+
                 this.modified = true;
 
                 int bufferLength = b.limit() - b.position();
                 // Minimum of len and available is the number of bytes to write
                 _len = (int)Math.min(bufferLength, this.page_size_in_bytes - this.buffer_pos);
-                // System.arraycopy(b, off, this.buffer, this.buffer_pos, _len);
                 b.get(this.buffer, this.buffer_pos, _len);
 
-                if(this.cur_fp + _len > this.end){
-                    this.isPadded = false;
-                }
-
-             /* Update the length of bytes left to be written and current offset by using number of bytes already
-              * copied into the buffer cache. */
                 bytesCopied += _len;
-                this.buffer_pos += _len;
-                this.cur_fp += _len;
-                this.buffer_size = Math.max(this.buffer_size, this.buffer_pos);
-                this.end = Math.max(this.cur_fp, this.end);
-
-                if(this.buffer_pos == this.page_size_in_bytes){
-                 /* Encrypt and write current page from the buffer cache to disk along with IV. */
-                    this.writePage();
-                 /* Load next page from disk: initialize the IV vector and load and decrypt the data from disk into buffer cache. */
-                    this.fillBuffer();
-                }
+                this.bufferWritten(_len);
             }
         }
+        /* Pace background work once the lock is released. */
+        work.pause();
         return bytesCopied;
     }
 
+    /**
+      * Accounts for _len bytes that were just copied into the buffer cache at buffer_pos, and writes the page
+      * out once it is full.
+      * @param _len number of bytes copied into the buffer cache
+      */
+    private void bufferWritten(int _len) throws IOException,
+            javax.crypto.ShortBufferException,
+            javax.crypto.IllegalBlockSizeException,
+            InvalidKeyException,
+            InvalidAlgorithmParameterException,
+            javax.crypto.BadPaddingException, NoSuchAlgorithmException {
+        if(this.cur_fp + _len > this.end){
+            this.isPadded = false;
+        }
+
+     /* Update the length of bytes left to be written and current offset by using number of bytes already
+      * copied into the buffer cache. */
+        this.buffer_pos += _len;
+        this.cur_fp += _len;
+        this.buffer_size = Math.max(this.buffer_size, this.buffer_pos);
+        this.end = Math.max(this.cur_fp, this.end);
+
+        if(this.buffer_pos == this.page_size_in_bytes){
+         /* Encrypt and write current page from the buffer cache to disk along with IV. */
+            this.writePage();
+         /* Load next page from disk: initialize the IV vector and load and decrypt the data from disk into buffer cache. */
+            this.fillBuffer();
+        }
+    }
+
+    /**
+      * Encrypts the next page worth of bytes of src into a direct buffer and writes it, along with the IV, through
+      * the file channel, bypassing the buffer cache. The buffer cache must be empty and aligned on the page at cur_fp.
+      * Afterwards the next page is loaded, like write() does after filling a page.
+      * @param src buffer with at least one page remaining
+      * @return number of bytes copied to disk
+      */
+    private int writePageDirect(ByteBuffer src) throws IOException,
+            javax.crypto.ShortBufferException,
+            javax.crypto.IllegalBlockSizeException,
+            InvalidKeyException,
+            InvalidAlgorithmParameterException,
+            javax.crypto.BadPaddingException, NoSuchAlgorithmException {
+        int len = (int)this.page_size_in_bytes;
+        this.startPageDirect(len);
+
+        if(this.pageBuffer == null){
+            this.breaker.allocate(BLOCKSIZE + len);
+            this.bufferBytes += BLOCKSIZE + len;
+            this.pageBuffer = ByteBuffer.allocateDirect(BLOCKSIZE + len);
+        }
+
+       /* Encrypt the page behind its IV. */
+        long start = System.nanoTime();
+        this.pageBuffer.clear();
+        this.pageBuffer.put(this.cur_iv);
+        int limit = src.limit();
+        src.limit(src.position() + len);
+        try {
+            this.ecipher.doFinal(src, this.pageBuffer);
+        } finally {
+            src.limit(limit);
+        }
+        this.pageBuffer.flip();
+
+       /* Write the IV and the encrypted page at the physical start of the page. */
+        long pos = encryptedAddrToPhysicalAddr(this.buffer_start) - BLOCKSIZE + this.header_offset;
+        FileChannel channel = this.raf.getChannel();
+        while(this.pageBuffer.hasRemaining()){
+            pos += channel.write(this.pageBuffer, pos);
+        }
+        this.finishPageDirect(len, start);
+        return len;
+    }
+
+    /**
+      * Encrypts the page worth of bytes of src starting at off and writes it, along with the IV, bypassing the buffer
+      * cache. The buffer cache must be empty and aligned on the page at cur_fp.
+      * Afterwards the next page is loaded, like write() does after filling a page.
+      * @param src array with at least one page from off
+      * @param off offset in src of the page
+      * @return number of bytes copied to disk
+      */
+    private int writePageDirect(byte[] src, int off) throws IOException,
+            javax.crypto.ShortBufferException,
+            javax.crypto.IllegalBlockSizeException,
+            InvalidKeyException,
+            InvalidAlgorithmParameterException,
+            javax.crypto.BadPaddingException, NoSuchAlgorithmException {
+        int len = (int)this.page_size_in_bytes;
+        this.startPageDirect(len);
+
+       /* Write the IV, then the page encrypted from the caller's array, at the physical start of the page. */
+        long start = System.nanoTime();
+        offset_seek(encryptedAddrToPhysicalAddr(this.buffer_start) - BLOCKSIZE);
+        this.raf.write(this.cur_iv);
+        this.ecipher.doFinal(src, off, len, this.ciphertext, 0);
+        this.raf.write(this.ciphertext, 0, len);
+        this.finishPageDirect(len, start);
+        return len;
+    }
+
+    /**
+      * Writes the file header if needed before a page is written bypassing the buffer cache.
+      * @param len number of bytes of the page
+      */
+    private void startPageDirect(int len) throws IOException,
+            InvalidAlgorithmParameterException,
+            NoSuchAlgorithmException,
+            InvalidKeyException {
+        /* Write the file header */
+        this.writeFileHeaderLazy();
+        this.modified = false;
+
+        if(this.cur_fp + len > this.end){
+            this.isPadded = false;
+        }
+    }
+
+    /**
+      * Accounts for a page written bypassing the buffer cache, and loads the next page.
+      * @param len number of bytes of the page
+      * @param start System.nanoTime() when the encryption of the page started
+      */
+    private void finishPageDirect(int len, long start) throws IOException,
+            javax.crypto.ShortBufferException,
+            javax.crypto.IllegalBlockSizeException,
+            InvalidKeyException,
+            InvalidAlgorithmParameterException,
+            javax.crypto.BadPaddingException {
+        metrics.pageEncrypted(len, System.nanoTime() - start);
+        work.processed(len);
+        this.directPages++;
+
+        this.cur_fp += len;
+        this.end = Math.max(this.cur_fp, this.end);
+
+       /* Load next page from disk: initialize the IV vector and load and decrypt the data from disk into buffer cache. */
+        this.fillBuffer();
+    }
+
     /**
       * Writes the internal buffer cache to disk.
       */
@@ -434,6 +638,7 @@ public class AESWriter
         /* Write the file header */
         this.writeFileHeaderLazy();
         this.modified = false;
+        long start = System.nanoTime();
 
        /* Set underlying file position to the start of the file page without initialization vector. */
         offset_seek(encryptedAddrToPhysicalAddr(this.buffer_start) - BLOCKSIZE);
@@ -473,6 +678,8 @@ public class AESWriter
         this.ecipher.doFinal(this.buffer,0,len,this.ciphertext,0);
        /* Write encrypted data to disk. */
         this.raf.write(this.ciphertext,0,len);
+        metrics.pageEncrypted(len, System.nanoTime() - start);
+        work.processed(len);
     }
 
     /**
@@ -488,9 +695,6 @@ public class AESWriter
     {
         int       _end;
         long      _cur_fp;
-        byte[]    _iv;
-
-        _iv       = new byte[BLOCKSIZE];
 
        /* Buffer start byte position at beginning of the page in the file where cur_fp is located.
         * The buffer_start does not contain metadata offset(IVs + file header). */
@@ -505,10 +709,10 @@ public class AESWriter
         this.raf.seek(_cur_fp);
         if(_cur_fp  >= this.raf.length()){
            /* Generate a random IV and write it to disk */
-            _iv = generateIV().getIV();
-            this.raf.write(_iv);
+            this.generateIV();
+            this.raf.write(this.cur_iv);
         }else{
-            this.raf.readFully(_iv);
+            this.raf.readFully(this.cur_iv);
         }
 
        /* Move physical file fp to account for the iv */
@@ -517,23 +721,24 @@ public class AESWriter
        /* Read page */
        /* Read encrypted data into buffer cache.
         * Update buffer size to number of data bytes read. */
-        this.buffer_size = _end = this.raf.read(this.buffer,0, (int)this.page_size_in_bytes);
+        this.buffer_size = _end = this.raf.read(this.ciphertext,0, (int)this.page_size_in_bytes);
 
        /* If not bytes are read then,
         * Initialize the cyphers and set buffer_size = buffer_pos = 0 */
         if(_end == -1){
             this.buffer_size = 0;
-            this.initCiphers(new IvParameterSpec(_iv));
+            this.initCiphers();
             this.buffer_pos = 0;
             return;
         }
 
        /* Re-initialize ciphers and decrypt page */
-        this.initCiphers(new IvParameterSpec(_iv));
+        this.initCiphers();
         this.buffer_pos = 0;
 
-       /* Decrypt the encrypted data and write it back to the buffer cache. */
-        this.dcipher.doFinal(this.buffer,0,_end,this.buffer,0);
+       /* Decrypt the encrypted data into the buffer cache. */
+        this.dcipher.init(Cipher.DECRYPT_MODE, this.key, this.iv_spec);
+        this.dcipher.doFinal(this.ciphertext,0,_end,this.buffer,0);
     }
 
     /**
@@ -564,7 +769,6 @@ public class AESWriter
             this.raf.setLength(_len + num_pages*BLOCKSIZE + this.header_offset);
             this.end = newLen;
 
-            byte[] _iv;
             offset_seek(0);
             this.buffer_start = 0;
 
@@ -576,8 +780,8 @@ public class AESWriter
 
                 if(i == num_pages - 1){
                   /* Last page needs padding */
-                    _iv = generateIV().getIV();
-                    this.raf.write(_iv);
+                    this.generateIV();
+                    this.raf.write(this.cur_iv);
                   /* Number of bytes in the last page. */
                     int _num = (int)(_len - _cur);
                     byte[] data = new byte[_num];
@@ -585,7 +789,7 @@ public class AESWriter
                     {
                         data[j] = (byte)no_padding;
                     }
-                    this.initCiphers(new IvParameterSpec(_iv));
+                    this.initCiphers();
                     this.ecipher.doFinal(data,0,_num,data,0);
                     this.raf.write(data);
 
@@ -593,8 +797,8 @@ public class AESWriter
                     _cur += _num;
                 }else{
                   /* Generate and write random IV to file */
-                    _iv = generateIV().getIV();
-                    this.raf.write(_iv);
+                    this.generateIV();
+                    this.raf.write(this.cur_iv);
                     this.raf.seek(this.raf.getFilePointer() + page_size_in_bytes);
 
                     _cur+= page_size_in_bytes;
@@ -612,6 +816,49 @@ public class AESWriter
         }
     }
 
+    /**
+      * Shrinks the file to the given size. Pages past the one containing newLen are dropped from disk and the page
+      * containing newLen becomes the last page: it is decrypted, cut at newLen and encrypted again with padding.
+      * Does nothing if newLen is not smaller than the current length. The write position is moved to newLen if it
+      * was past it.
+      * @param newLen the new size of the file
+      */
+    public void truncate(long newLen) throws IOException,
+            javax.crypto.ShortBufferException,
+            javax.crypto.IllegalBlockSizeException,
+            javax.crypto.BadPaddingException,
+            InvalidKeyException,
+            InvalidAlgorithmParameterException, NoSuchAlgorithmException {
+        if(newLen < 0)
+            throw new IllegalArgumentException("Negative size: " + newLen);
+
+        synchronized(lock){
+            if(newLen >= this.end)
+                return;
+
+            long pos = Math.min(this.cur_fp, newLen);
+
+          /* Make sure every page up to end is on disk, then load the page that will become the last page. */
+            writePage(true, false);
+            this.cur_fp = newLen;
+            this.fillBuffer();
+
+          /* Drop the new last page and everything after it; it is written again below. */
+            this.raf.setLength(encryptedAddrToPhysicalAddr(this.buffer_start) - BLOCKSIZE + this.header_offset);
+
+            this.buffer_size = (int)(newLen - this.buffer_start);
+            this.buffer_pos = this.buffer_size;
+            this.end = newLen;
+            this.isPadded = false;
+
+          /* Encrypt the cut page with padding. */
+            writePage(true, false);
+
+            if(pos != newLen)
+                this._seek(pos);
+        }
+    }
+
     /**
       * Calculates the number of init vectors preceding a given block. The block of virtual address m
       * is determined by m/BLOCKSIZE.
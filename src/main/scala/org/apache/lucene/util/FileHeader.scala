@@ -8,6 +8,19 @@
 package org.apache.lucene.util
 
 import java.io.RandomAccessFile
+import javax.crypto.spec.SecretKeySpec
+
+import com.workday.elasticrypt.KeyVersion
+
+/**
+  * Contains the plaintext layouts a FileHeader can record.
+  */
+object FileHeader {
+  /* Pages hold the plaintext as written */
+  val UNCOMPRESSED: Int = 0
+  /* Pages hold a sequence of LZ4-compressed frames, see FrameCompressingFileChannel */
+  val LZ4_FRAMES: Int = 1
+}
 
 /**
   * Interface for writing unencrypted metadata at the beginning of an encrypted file.
@@ -15,7 +28,13 @@ import java.io.RandomAccessFile
 abstract class FileHeader(raf: RandomAccessFile) {
   // scalastyle:off null
   var indexNameBytes: Array[Byte] = null
+  /* Key of keyVersion, if writeHeader() or readHeader() resolved it; readers and writers reuse it */
+  var key: SecretKeySpec = null
   // scalastyle:on null
+  /* Version of the key the file is encrypted with, set by writeHeader() and readHeader() */
+  var keyVersion: Int = KeyVersion.UNVERSIONED
+  /* Layout of the plaintext, set before writeHeader() and by readHeader() */
+  var compression: Int = FileHeader.UNCOMPRESSED
 
   /**
     * Writes the file header.
@@ -7,13 +7,28 @@
 
 package org.apache.lucene.util
 
-import java.io.RandomAccessFile
+import java.io.{IOException, RandomAccessFile}
 
-import com.workday.elasticrypt.KeyProvider
+import com.workday.elasticrypt.{KeyProvider, KeyVersion}
+
+/**
+  * Contains the layout constants of HmacFileHeader.
+  */
+object HmacFileHeader {
+  /* Written in place of the index name length when the header starts with a key version */
+  val VERSIONED_HEADER_MARKER: Int = -1
+  /* Written in place of the index name length when the header starts with a key version and a compression layout */
+  val COMPRESSED_HEADER_MARKER: Int = -2
+}
 
 /**
   * Implementation of the FileHeader interface that adds a MAC hash that is
   * used to verify that the correct key is being used to decrypt a file.
+  * The MAC is checked by HmacHeaderVerifier whenever the header is read.
+  *
+  * Files encrypted with a versioned key start with VERSIONED_HEADER_MARKER and the key version; files encrypted
+  * with an unversioned key keep the original layout, which starts with the (positive) length of the index name.
+  * Files whose plaintext is compressed start with COMPRESSED_HEADER_MARKER, the key version and the compression layout.
   */
 class HmacFileHeader(raf: RandomAccessFile, keyProvider: KeyProvider, indexName: String) extends FileHeader(raf) {
 
@@ -27,6 +42,17 @@ class HmacFileHeader(raf: RandomAccessFile, keyProvider: KeyProvider, indexName:
     * @return the resulting file pointer
     */
   def writeHeader(): Long = {
+    // Write key version and compression layout, if any
+    keyVersion = keyProvider.getKeyVersion(indexName)
+    if (compression != FileHeader.UNCOMPRESSED) {
+      raf.writeInt(HmacFileHeader.COMPRESSED_HEADER_MARKER)
+      raf.writeInt(keyVersion)
+      raf.writeInt(compression)
+    } else if (keyVersion != KeyVersion.UNVERSIONED) {
+      raf.writeInt(HmacFileHeader.VERSIONED_HEADER_MARKER)
+      raf.writeInt(keyVersion)
+    }
+
     // Write index name
     indexNameBytes = indexName.getBytes
     writeByteArray(indexNameBytes)
@@ -37,7 +63,8 @@ class HmacFileHeader(raf: RandomAccessFile, keyProvider: KeyProvider, indexName:
     writeByteArray(plainTextBytes)
 
     // Write HMAC bytes
-    hmacBytes = HmacUtil.hmacValue(plainTextBytes, keyProvider.getKey(indexName))
+    key = KeyVersion.resolveKey(keyProvider, indexName, keyVersion)
+    hmacBytes = HmacUtil.hmacValue(plainTextBytes, key)
     writeByteArray(hmacBytes)
 
     // Return the current file pointer (i.e. header offset)
@@ -54,14 +81,34 @@ class HmacFileHeader(raf: RandomAccessFile, keyProvider: KeyProvider, indexName:
   }
 
   /**
-    * Reads the file header.
+    * Reads the file header and verifies its MAC against the key provided for the index. The key is fetched once and
+    * kept in key for the reader of the file.
+    * @throws KeyMismatchException if the file was written with a different key
     */
   def readHeader(): Unit = {
     raf.seek(0)
 
-    indexNameBytes = readBytesFromCurrentFilePointer
+    raf.readInt match {
+      case HmacFileHeader.VERSIONED_HEADER_MARKER =>
+        keyVersion = raf.readInt
+        compression = FileHeader.UNCOMPRESSED
+        indexNameBytes = readBytesFromCurrentFilePointer
+      case HmacFileHeader.COMPRESSED_HEADER_MARKER =>
+        keyVersion = raf.readInt
+        compression = raf.readInt
+        indexNameBytes = readBytesFromCurrentFilePointer
+      case marker if marker < 0 =>
+        throw new IOException("Unknown file header marker: " + marker)
+      case indexNameLength =>
+        keyVersion = KeyVersion.UNVERSIONED
+        compression = FileHeader.UNCOMPRESSED
+        indexNameBytes = readBytes(indexNameLength)
+    }
     plainTextBytes = readBytesFromCurrentFilePointer
     hmacBytes = readBytesFromCurrentFilePointer
+
+    key = KeyVersion.resolveKey(keyProvider, indexName, keyVersion)
+    HmacHeaderVerifier.verify(indexName, key, plainTextBytes, hmacBytes)
   }
 
   /**
@@ -71,7 +118,16 @@ class HmacFileHeader(raf: RandomAccessFile, keyProvider: KeyProvider, indexName:
   @throws[java.io.IOException]
   private def readBytesFromCurrentFilePointer: Array[Byte] = {
     /* Read the length of the following byte array in the file. */
-    val num_bytes: Int = raf.readInt
+    readBytes(raf.readInt)
+  }
+
+  /**
+    * Reads the given number of bytes.
+    * @param num_bytes length of the byte array
+    * @return the data read
+    */
+  @throws[java.io.IOException]
+  private def readBytes(num_bytes: Int): Array[Byte] = {
     val byteArray: Array[Byte] = new Array[Byte](num_bytes)
     raf.readFully(byteArray)
     byteArray
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017 Workday, Inc.
+ *
+ * This software is available under the MIT license.
+ * Please see the LICENSE.txt file in this project.
+ */
+
+package org.apache.lucene.util
+
+import java.nio.ByteBuffer
+import java.security.{MessageDigest, SecureRandom}
+import java.util.{Collections, WeakHashMap}
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import javax.crypto.SecretKey
+
+/**
+  * Exception thrown when the key provided for an index does not match the key a file was written with.
+  * @param message the message attached to the exception
+  */
+class KeyMismatchException(message: String) extends CryptoException(message)
+
+/**
+  * Snapshot of the work done by HmacHeaderVerifier.
+  * @param verifications number of headers whose MAC was computed
+  * @param cacheHits number of headers accepted from the cache without computing a MAC
+  * @param failures number of headers whose MAC did not match
+  * @param verificationNanos total time spent computing MACs, in nanoseconds
+  * @param cachedEntries number of (key, header) pairs currently cached
+  */
+case class HmacVerificationStats(verifications: Long, cacheHits: Long, failures: Long, verificationNanos: Long, cachedEntries: Int)
+
+/**
+  * Verifies the MAC stored in an HmacFileHeader against the key provided for the index, so that opening a file with
+  * the wrong key fails before any page is decrypted.
+  *
+  * Successful verifications are cached per (key fingerprint, header bytes). Every file carries its own random header
+  * bytes, so the MAC is computed once per key and file rather than on every reopen. The fingerprint is a salted
+  * SHA-256 of the key bytes, which keeps raw key material out of the cache; it is computed once per key and kept
+  * for as long as the key is in use. Utilized in HmacFileHeader on readHeader().
+  */
+object HmacHeaderVerifier {
+  /* Upper bound on the number of cached (key, header) pairs; the cache is emptied when it is exceeded */
+  val MAX_CACHED_ENTRIES = 100000
+
+  private[this] val FINGERPRINT_ALGORITHM = "SHA-256"
+  /* Per-process salt so fingerprints cannot be compared across nodes or precomputed */
+  private[this] val salt: Array[Byte] = {
+    val bytes = new Array[Byte](16)
+    new SecureRandom().nextBytes(bytes)
+    bytes
+  }
+
+  private[this] val verified = Collections.newSetFromMap(new ConcurrentHashMap[ByteBuffer, java.lang.Boolean]())
+  /* Fingerprints of the keys in use. Weakly keyed, so an entry goes away with the last reference to its key */
+  private[this] val fingerprints = Collections.synchronizedMap(new WeakHashMap[SecretKey, Array[Byte]]())
+  private[this] val verifications = new AtomicLong()
+  private[this] val cacheHits = new AtomicLong()
+  private[this] val failures = new AtomicLong()
+  private[this] val verificationNanos = new AtomicLong()
+
+  /**
+    * Checks that hmacBytes is the MAC of plainTextBytes under key, consulting the cache first.
+    * @param indexName name of the index, used in the error message
+    * @param key key provided for the index
+    * @param plainTextBytes random bytes stored in the header
+    * @param hmacBytes MAC stored in the header
+    * @throws KeyMismatchException if the MAC does not match
+    */
+  def verify(indexName: String, key: SecretKey, plainTextBytes: Array[Byte], hmacBytes: Array[Byte]): Unit = {
+    if (Option(key).isEmpty) {
+      throw new CryptoException(s"No key provided for index [$indexName]")
+    }
+    val cacheKey = cacheKeyFor(key, plainTextBytes, hmacBytes)
+    if (verified.contains(cacheKey)) {
+      cacheHits.incrementAndGet()
+    } else {
+      val start = System.nanoTime()
+      val matches = try {
+        MessageDigest.isEqual(HmacUtil.hmacValue(plainTextBytes, key), hmacBytes)
+      } finally {
+        verifications.incrementAndGet()
+        verificationNanos.addAndGet(System.nanoTime() - start)
+      }
+
+      if (!matches) {
+        failures.incrementAndGet()
+        throw new KeyMismatchException(s"Header MAC mismatch: the key provided for index [$indexName] " +
+          "is not the key this file was written with")
+      }
+      if (verified.size >= MAX_CACHED_ENTRIES) {
+        verified.clear()
+      }
+      verified.add(cacheKey)
+    }
+  }
+
+  /**
+    * Returns a snapshot of the verification counters.
+    */
+  def stats: HmacVerificationStats = HmacVerificationStats(verifications.get, cacheHits.get, failures.get,
+    verificationNanos.get, verified.size)
+
+  /**
+    * Forgets all cached verifications, e.g. after a key has been revoked.
+    */
+  def clearCache(): Unit = {
+    verified.clear()
+    fingerprints.clear()
+  }
+
+  /**
+    * Builds the cache entry of a (key, header) pair: the key fingerprint followed by the header bytes.
+    * @param key key provided for the index
+    * @param plainTextBytes random bytes stored in the header
+    * @param hmacBytes MAC stored in the header
+    */
+  private[this] def cacheKeyFor(key: SecretKey, plainTextBytes: Array[Byte], hmacBytes: Array[Byte]): ByteBuffer = {
+    val fingerprint = fingerprintOf(key)
+    val entry = ByteBuffer.allocate(fingerprint.length + 4 + plainTextBytes.length + hmacBytes.length)
+    entry.put(fingerprint).putInt(plainTextBytes.length).put(plainTextBytes).put(hmacBytes)
+    entry.flip()
+    entry
+  }
+
+  /**
+    * Returns the salted fingerprint of a key, computing it on first use.
+    * @param key key provided for the index
+    */
+  private[this] def fingerprintOf(key: SecretKey): Array[Byte] = {
+    Option(fingerprints.get(key)).getOrElse {
+      val digest = MessageDigest.getInstance(FINGERPRINT_ALGORITHM)
+      digest.update(salt)
+      digest.update(key.getEncoded)
+      val fingerprint = digest.digest()
+      fingerprints.put(key, fingerprint)
+      fingerprint
+    }
+  }
+}
@@ -0,0 +1,40 @@
+package org.apache.lucene.util;
+
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+  * IvParameterSpec whose IV bytes can be overwritten in place. AESReader and AESWriter re-initialize their ciphers
+  * with a new IV for every page; keeping one spec per cipher avoids allocating a new IvParameterSpec (and a copy of
+  * the IV) each time.
+  *
+  * getIV() returns the backing array rather than a copy, so a cipher may keep a reference to it: SunJCE does, and
+  * reloads the IV from it when it resets itself after doFinal(). Changing the bytes is therefore only safe if the
+  * cipher is initialized again before every use. AESReader and AESWriter call init() before each page they
+  * encrypt or decrypt; any new caller must do the same.
+  */
+public class MutableIvParameterSpec extends IvParameterSpec
+{
+    /* Backing IV bytes, exposed to the owner through getIV() */
+    private final byte[] iv;
+
+    /**
+      * @constructor
+      * Creates a spec backed by the given array. The array is not copied.
+      * @param iv the IV bytes
+      */
+    public MutableIvParameterSpec(byte[] iv)
+    {
+        super(iv);
+        this.iv = iv;
+    }
+
+    /**
+      * Returns the backing IV array. Writing to it changes the IV used by the next cipher init.
+      * @return the IV bytes
+      */
+    @Override
+    public byte[] getIV()
+    {
+        return this.iv;
+    }
+}
@@ -8,7 +8,9 @@
 package org.elasticsearch.index.store
 
 import java.io.IOException
+import java.nio.ByteBuffer
 
+import com.workday.elasticrypt.breaker.CryptoBufferBreaker
 import org.apache.lucene.store.{BufferedIndexInput, IOContext, IndexInput}
 import org.apache.lucene.util.AESReader
 
@@ -27,6 +29,9 @@ final private[store] class AESIndexInput(resourceDesc: String, bufferSize: Int)
   final protected var off: Long = 0L
   /** End offset: start + length */
   final protected var end: Long = 0L
+  /** Size of the buffer accounted in the CryptoBufferBreaker; clones and slices are never closed, so only the
+    * buffer of the original is accounted */
+  private[this] var accountedBytes: Long = 0L
 
   def this(resourceDesc: String, reader: AESReader, context: IOContext) {
     this(resourceDesc, BufferedIndexInput.bufferSize(context))
@@ -45,7 +50,23 @@ final private[store] class AESIndexInput(resourceDesc: String, bufferSize: Int)
 
   @throws[IOException]
   def close() {
-    if (!isClone) reader.close()
+    if (!isClone) {
+      CryptoBufferBreaker.node.release(accountedBytes)
+      accountedBytes = 0L
+      reader.close()
+    }
+  }
+
+  /**
+    * Accounts the buffer BufferedIndexInput allocates on the first read, or when the buffer size changes.
+    * @param newBuffer buffer allocated
+    */
+  override protected def newBuffer(newBuffer: Array[Byte]): Unit = {
+    if (!isClone) {
+      CryptoBufferBreaker.node.allocate(newBuffer.length - accountedBytes)
+      accountedBytes = newBuffer.length
+    }
+    super.newBuffer(newBuffer)
   }
 
   override def clone: AESIndexInput = {
@@ -64,6 +85,24 @@ final private[store] class AESIndexInput(resourceDesc: String, bufferSize: Int)
 
   override final def length(): Long = end - off
 
+  /**
+    * Returns the offsets in the file of the first page holding this input or slice, and of the end of the last one.
+    * The end may lie past the end of the file, since the last page of a file is shorter.
+    */
+  private[store] def cipherTextRange: (Long, Long) = {
+    val start = reader.getPageOffset(off)
+    (start, if (end == off) start else reader.getPageOffset(end - 1) + reader.getPhysicalPageSize)
+  }
+
+  /**
+    * Reads raw bytes of the file without decrypting them, keeping the position of this input.
+    * @param dst buffer the bytes are read into
+    * @param offset offset in the file, including the header
+    * @return number of bytes read, -1 at the end of the file
+    */
+  @throws[IOException]
+  private[store] def readCipherText(dst: ByteBuffer, offset: Long): Int = reader.readCipherText(dst, offset)
+
   // This is taken from the AESDirectory patch
   @throws[IOException]
   protected def readInternal(b: Array[Byte], offset: Int, len: Int) {
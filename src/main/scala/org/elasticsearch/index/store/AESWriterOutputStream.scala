@@ -18,12 +18,18 @@ import org.apache.lucene.util.AESWriter
   */
 class AESWriterOutputStream(writer: AESWriter) extends OutputStream {
 
+  /* Reused for single byte writes */
+  private[this] val singleByte = new Array[Byte](1)
+
   /**
     * Writes data to file beginning from the start.
     * Javadoc explains that a byte is always passed here and the Int is just some kind of convenience.
     * @param b array of bytes to write
     */
-  override def write(b: Int): Unit = write(Array[Byte](b.toByte), 0, 1)
+  override def write(b: Int): Unit = {
+    singleByte(0) = b.toByte
+    write(singleByte, 0, 1)
+  }
 
   /**
     * Writes the given data to file.
@@ -9,17 +9,49 @@ package org.elasticsearch.index.store
 
 // scalastyle:off underscore.import
 import java.io._
+import java.nio.file.{Files, StandardCopyOption}
+import java.util.Collections
+import java.util.concurrent.ConcurrentHashMap
+
+import scala.collection.JavaConverters.asScalaSetConverter
+
 import com.workday.elasticrypt.KeyProvider
+import com.workday.elasticrypt.breaker.CryptoBufferBreaker
+import com.workday.elasticrypt.scheduler.CryptoScheduler
+import com.workday.elasticrypt.stats.CryptoMetrics
 import org.apache.lucene.store._
 import org.apache.lucene.util.{AESReader, AESWriter, FileHeader, HmacFileHeader}
 // scalastyle:on underscore.import
 
 import org.apache.lucene.codecs.lucene46.Lucene46SegmentInfoFormat
-import org.apache.lucene.index.IndexFileNames
+import org.apache.lucene.index.{IndexFileNames, IndexWriter}
 import org.elasticsearch.client.Client
 import org.elasticsearch.common.logging.{ESLogger, ESLoggerFactory}
 import org.elasticsearch.index.shard.ShardId
 
+/**
+  * Contains the defaults used by EncryptedDirectory.
+  */
+object EncryptedDirectory {
+  /* Number of idle read-only handles kept open per directory; 0 disables handle pooling */
+  val DEFAULT_HANDLE_POOL_SIZE = 0
+
+  /* Directories of this node that are not closed yet */
+  private[this] val open = Collections.newSetFromMap(new ConcurrentHashMap[EncryptedDirectory, java.lang.Boolean]())
+
+  /**
+    * Returns the open directories of the shards of an index held by this node, ordered by shard.
+    * @param indexName name of the index
+    */
+  def openDirectories(indexName: String): Seq[EncryptedDirectory] = {
+    open.asScala.toSeq.filter(_.shardId.getIndex == indexName).sortBy(_.shardId.id)
+  }
+
+  private[store] def opened(directory: EncryptedDirectory): Unit = open.add(directory)
+
+  private[store] def closed(directory: EncryptedDirectory): Unit = open.remove(directory)
+}
+
 /**
   * This class extends org.apache.lucene.store.NIOFSDirectory and overrides createOutput() and openInput()
   * to include encryption and decryption via AESIndexOutput and AESIndexInput respectively. Code is based on the existing implementation in NIOFSDirectory:
@@ -33,8 +65,10 @@ import org.elasticsearch.index.shard.ShardId
   * @param shardId the ID of the shard used to get the index name
   * @param esClient Elasticsearch client
   * @param component NodeKeyProviderComponent to provide the key provider
+  * @param handlePoolSize number of idle read-only handles kept open for reuse by openInput(); 0 disables pooling
   */
-class EncryptedDirectory(path: File, lockFactory: LockFactory, shardId: ShardId, esClient: Client, component: NodeKeyProviderComponent)
+class EncryptedDirectory(path: File, lockFactory: LockFactory, val shardId: ShardId, esClient: Client, component: NodeKeyProviderComponent,
+                         handlePoolSize: Int = EncryptedDirectory.DEFAULT_HANDLE_POOL_SIZE)
   extends NIOFSDirectory(path, lockFactory) {
   private[this] val logger: ESLogger = ESLoggerFactory.getRootLogger
 
@@ -42,6 +76,24 @@ class EncryptedDirectory(path: File, lockFactory: LockFactory, shardId: ShardId,
 
   private[this] val indexName = shardId.getIndex
 
+  /* Header offsets and lengths of files opened before, and pooled read-only handles */
+  private[store] val fileCache = new EncryptedFileCache(handlePoolSize)
+
+  /* Serializes createOutput() and deleteFile() with KeyRotationService swapping rotated files in */
+  private[this] val rotationLock = new Object
+  private[this] val openOutputs = Collections.newSetFromMap(new ConcurrentHashMap[String, java.lang.Boolean]())
+  private[this] val rotating = Collections.newSetFromMap(new ConcurrentHashMap[String, java.lang.Boolean]())
+
+  /* Key rotation started through startKeyRotation(), if any */
+  @volatile private[this] var keyRotation: Option[KeyRotationService] = None
+
+  EncryptedDirectory.opened(this)
+
+  /**
+    * Returns the breaker read-once inputs are checked against.
+    */
+  protected[store] def breaker: CryptoBufferBreaker = CryptoBufferBreaker.node
+
   /**
     * Returns a FileHeader. This method is currently hardcoded to return a HmacFileHeader.
     * The user can rewrite or override this method to customize the FileHeader.
@@ -61,21 +113,33 @@ class EncryptedDirectory(path: File, lockFactory: LockFactory, shardId: ShardId,
       super.createOutput(name, context)
     } else {
       ensureOpen()
-      ensureCanWrite(name)
+      rotationLock.synchronized {
+        ensureCanWrite(name)
+        fileCache.invalidate(name)
+        rotating.remove(name)
+        openOutputs.add(name)
+      }
 
       new AESIndexOutput(directory, name, pageSize,
-        (name) => { onIndexOutputClosed(name) },
+        (name) => {
+          openOutputs.remove(name)
+          onIndexOutputClosed(name)
+        },
         (directory: File, name: String, pageSize: Int) => {
           val path = new File(directory, name)
           val writerRaf = new RandomAccessFile(path, "rw")
           val writerFileHeader = buildFileHeader(writerRaf)
-          createAESWriter(path, writerRaf, pageSize, component.keyProvider, writerFileHeader)
+          val writer = createAESWriter(path, writerRaf, pageSize, component.keyProvider, writerFileHeader)
+          // Merges are paced by the CryptoScheduler through their thread, see CryptoMergeListener; flushes are not
+          writer.setCryptoWork(CryptoScheduler.node.work(indexName, isBackground(context)))
+          writer
         })
     }
   }
 
   /**
-    * Creates and returns an IndexInput for the file.
+    * Creates and returns an IndexInput for the file. Inputs read once, e.g. by a recovery or a snapshot, are refused
+    * if their buffers would exceed the limit of the CryptoBufferBreaker.
     * @param name file name
     * @param context object whose information is used to create a new IndexInput
     */
@@ -86,14 +150,206 @@ class EncryptedDirectory(path: File, lockFactory: LockFactory, shardId: ShardId,
       super.openInput(name, context)
     } else {
       val path = new File(getDirectory, name) // getDirectory calls ensureOpen()
-      val readerRaf = new RandomAccessFile(path, "r")
-      val readerFileHeader = buildFileHeader(readerRaf)
+      if (context.readOnce) {
+        // Refreshes open new segments with IOContext.READ, and a failed refresh fails the engine, as does a failed
+        // merge or flush. Recoveries and snapshots, which read files once, are retried, so only they are refused.
+        breaker.checkBreaker(CryptoBufferBreaker.pageBufferBytes(pageSize) + BufferedIndexInput.bufferSize(context),
+          s"[$indexName] $name")
+      }
+      val metrics = CryptoMetrics.forFile(indexName, name)
+      val sequence = fileCache.replacementSequence
+      // The key a cached file was verified with is reused, so a reopen fetches no key
+      val cached = fileCache.getMetadata(name).filter(_.matches(pageSize))
 
-      val reader = createAESReader(path, readerRaf, pageSize, component.keyProvider, readerFileHeader)
+      // Lucene files are write-once, so the header offset and length read on the first open are still valid,
+      // unless KeyRotationService swapped the file while we were looking it up
+      val cachedReader = cached.flatMap { metadata =>
+        val raf = fileCache.acquireHandle(name, path)
+        if (fileCache.isStable(sequence)) {
+          metrics.cacheHit()
+          Some(new CachedAESReader(name, raf, metadata, fileCache, metrics))
+        } else {
+          raf.close()
+          None
+        }
+      }
+
+      val reader = cachedReader.getOrElse {
+        metrics.cacheMiss()
+        val readerRaf = new RandomAccessFile(path, "r")
+        val readerFileHeader = buildFileHeader(readerRaf)
+        val newReader = createAESReader(path, readerRaf, pageSize, component.keyProvider, readerFileHeader)
+        fileCache.putMetadata(name, EncryptedFileMetadata(newReader.getHeaderOffset, newReader.length, pageSize,
+          readerFileHeader.keyVersion, newReader.getKey), sequence)
+        newReader
+      }
+      reader.setCryptoWork(CryptoScheduler.node.work(indexName, isBackground(context)))
       new AESIndexInput("AESIndexInput(path=\"" + path + "\")", reader, context)
     }
   }
 
+  /**
+    * Lists the files of the directory, leaving out the staging directory of a key rotation in progress.
+    */
+  @throws[IOException]
+  override def listAll(): Array[String] = super.listAll().filterNot(_ == KeyRotationService.STAGING_DIRECTORY)
+
+  /**
+    * Deletes the file and forgets its cached metadata and handles.
+    * @param name file name
+    */
+  @throws[IOException]
+  override def deleteFile(name: String): Unit = rotationLock.synchronized {
+    fileCache.invalidate(name)
+    rotating.remove(name)
+    super.deleteFile(name)
+  }
+
+  /**
+    * Closes the directory along with all pooled handles, cancelling any key rotation in progress.
+    */
+  @throws[IOException]
+  override def close(): Unit = {
+    keyRotation.foreach(_.cancel())
+    fileCache.clear()
+    EncryptedDirectory.closed(this)
+    super.close()
+  }
+
+  /**
+    * Starts re-encrypting, in the background, every file that is not encrypted with the current key version.
+    * A rotation that is still running is returned instead of starting a new one.
+    * @param mbPerSec maximum rate at which files are re-encrypted
+    * @return the rotation, whose progress() can be polled
+    */
+  def startKeyRotation(mbPerSec: Double = KeyRotationService.DEFAULT_MB_PER_SEC): KeyRotationService = synchronized {
+    ensureOpen()
+    keyRotation.filter(_.isRunning).getOrElse {
+      val rotation = new KeyRotationService(this, mbPerSec)
+      keyRotation = Some(rotation)
+      rotation.start()
+      rotation
+    }
+  }
+
+  /**
+    * Returns the progress of the last key rotation started on this directory, if any.
+    */
+  def keyRotationProgress: Option[KeyRotationProgress] = keyRotation.map(_.progress)
+
+  /**
+    * Returns the names of all encrypted files in the directory.
+    */
+  private[store] def encryptedFileNames: Seq[String] = {
+    listAll().toSeq.filterNot(name => isSegmentMetadataFile(name) || name == IndexWriter.WRITE_LOCK_NAME)
+  }
+
+  /**
+    * Returns the version of the key new files are encrypted with.
+    */
+  private[store] def currentKeyVersion: Int = component.keyProvider.getKeyVersion(indexName)
+
+  /**
+    * Reads the key version recorded in the header of the given file.
+    * @param name file name
+    */
+  @throws[IOException]
+  private[store] def keyVersionOf(name: String): Int = {
+    val raf = new RandomAccessFile(new File(getDirectory, name), "r")
+    try {
+      val fileHeader = buildFileHeader(raf)
+      fileHeader.readHeader()
+      fileHeader.keyVersion
+    } finally {
+      raf.close()
+    }
+  }
+
+  /**
+    * Removes the staging directory of key rotations, along with any file a failed rotation left in it.
+    */
+  private[store] def removeStagingDirectory(): Unit = {
+    val staging = new File(getDirectory, KeyRotationService.STAGING_DIRECTORY)
+    Option(staging.listFiles).foreach(_.foreach(file => Files.deleteIfExists(file.toPath)))
+    Files.deleteIfExists(staging.toPath)
+  }
+
+  /**
+    * Re-encrypts the given file with the current key version. The new file is written to the staging directory,
+    * synced, and then atomically renamed over the original. Readers that already have the original open keep
+    * reading it, since the key version it was written with remains available from the key provider.
+    *
+    * The first rotation of a file written with an unversioned key also changes its header, which then records the
+    * key version, and so its physical length. Like any rotated file, it no longer matches the copies held by
+    * replicas and snapshots, which copy it in full.
+    *
+    * The swap is abandoned if the file is deleted or recreated while it is being copied, and files that are still
+    * being written are not rotated at all.
+    * @param name file name
+    * @param copy copies the plaintext from the reader of the original to the writer of the new file
+    * @return true if the file was replaced, false if it was skipped
+    */
+  @throws[IOException]
+  private[store] def rotateFile(name: String, copy: (AESReader, AESWriter) => Unit): Boolean = {
+    val path = new File(getDirectory, name)
+    val stagedPath = new File(new File(getDirectory, KeyRotationService.STAGING_DIRECTORY), name)
+    val started = rotationLock.synchronized {
+      !openOutputs.contains(name) && path.exists && rotating.add(name)
+    }
+
+    started && {
+      try {
+        stagedPath.getParentFile.mkdirs()
+        Files.deleteIfExists(stagedPath.toPath)
+        val readerRaf = new RandomAccessFile(path, "r")
+        val reader = createAESReader(path, readerRaf, pageSize, component.keyProvider, buildFileHeader(readerRaf))
+        reader.setCryptoWork(CryptoScheduler.node.work(indexName, true))
+        try {
+          val writerRaf = new RandomAccessFile(stagedPath, "rw")
+          val writer = createAESWriter(stagedPath, writerRaf, pageSize, component.keyProvider, buildFileHeader(writerRaf))
+          writer.setCryptoWork(CryptoScheduler.node.work(indexName, true))
+          try {
+            copy(reader, writer)
+          } finally {
+            writer.close()
+          }
+        } finally {
+          reader.close()
+        }
+        syncFile(stagedPath)
+
+        rotationLock.synchronized {
+          val replace = rotating.contains(name) && path.exists
+          if (replace) {
+            fileCache.beginReplace()
+            try {
+              Files.move(stagedPath.toPath, path.toPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+            } finally {
+              fileCache.endReplace(name)
+            }
+          }
+          replace
+        }
+      } finally {
+        rotating.remove(name)
+        Files.deleteIfExists(stagedPath.toPath)
+      }
+    }
+  }
+
+  /**
+    * Forces the contents of the given file to disk.
+    * @param file file to sync
+    */
+  private[this] def syncFile(file: File): Unit = {
+    val raf = new RandomAccessFile(file, "rw")
+    try {
+      raf.getFD.sync()
+    } finally {
+      raf.close()
+    }
+  }
+
   /**
     * Checks for the metadata file.
     * @param fileName name of the file
@@ -106,6 +362,15 @@ class EncryptedDirectory(path: File, lockFactory: LockFactory, shardId: ShardId,
       fileName.endsWith("." + Lucene46SegmentInfoFormat.SI_EXTENSION)
   }
 
+  /**
+    * Checks whether a file is opened for background work only, which the CryptoScheduler paces: files read once from
+    * start to end, as by recoveries, snapshots and checksum verification. Merges are classified by the thread they
+    * run on instead, since they also read through the pooled readers of the searcher, see CryptoMergeListener.
+    * @param context context the file is opened with
+    * @return true for background work; false for searches, indexing and merges
+    */
+  private[store] def isBackground(context: IOContext): Boolean = context.readOnce
+
   /**
     * Creates and returns an AESWriter.
     * @param path File to use
@@ -9,37 +9,56 @@ package org.elasticsearch.index.store
 
 import java.io.File
 
+import com.workday.elasticrypt.scheduler.{CryptoMergeListener, CryptoScheduler}
 import org.apache.lucene.store.{Directory, LockFactory}
 import org.elasticsearch.common.inject.Inject
 import org.elasticsearch.common.settings.Settings
 import org.elasticsearch.client.Client
+import org.elasticsearch.index.merge.scheduler.MergeSchedulerProvider
 import org.elasticsearch.index.settings.IndexSettings
 import org.elasticsearch.index.shard.ShardId
 import org.elasticsearch.index.store.fs.FsDirectoryService
 
+/**
+  * Contains the index settings read by EncryptedDirectoryService.
+  */
+object EncryptedDirectoryService {
+  /* Number of idle read-only handles each EncryptedDirectory keeps open for reuse */
+  val HANDLE_POOL_SIZE_SETTING = "index.store.encrypted.handle_pool_size"
+}
+
 /**
   * Extends org.elasticsearch.index.store.fs.FsDirectoryService and overrides newFSDirectory().
-  * Returns an EncryptedDirectory.
+  * Returns an EncryptedDirectory. Registers a CryptoMergeListener with the merge scheduler of the shard, so the
+  * CryptoScheduler paces its merges.
   *
   * @param shardId the ID of the shard
   * @param indexSettings Settings
   * @param indexStore EncryptedIndexStore
   * @param client Elasticsearch client
   * @param component NodeKeyProviderComponent used
+  * @param mergeScheduler merge scheduler of the shard
   */
 class EncryptedDirectoryService @Inject() (shardId: ShardId,
                                            @IndexSettings indexSettings: Settings,
                                            indexStore: EncryptedIndexStore,
                                            client: Client,
-                                           component: NodeKeyProviderComponent)
+                                           component: NodeKeyProviderComponent,
+                                           mergeScheduler: MergeSchedulerProvider)
   extends FsDirectoryService(shardId, indexSettings, indexStore) {
 
+  mergeScheduler.addListener(new CryptoMergeListener)
+
   /**
     * Returns an EncryptedDirectory.
     * @param location path of the directory
     * @param lockFactory the lock factory to use, or null for the default
     */
   override def newFSDirectory(location: File, lockFactory: LockFactory): Directory = {
-    new EncryptedDirectory(location, lockFactory, shardId, client, component)
+    val handlePoolSize = indexSettings.getAsInt(EncryptedDirectoryService.HANDLE_POOL_SIZE_SETTING,
+      EncryptedDirectory.DEFAULT_HANDLE_POOL_SIZE)
+    CryptoScheduler.node.setWeight(shardId.getIndex,
+      indexSettings.getAsDouble(CryptoScheduler.WEIGHT_SETTING, CryptoScheduler.DEFAULT_WEIGHT))
+    new EncryptedDirectory(location, lockFactory, shardId, client, component, handlePoolSize)
   }
 }
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2017 Workday, Inc.
+ *
+ * This software is available under the MIT license.
+ * Please see the LICENSE.txt file in this project.
+ */
+
+package org.elasticsearch.index.store
+
+import java.io.{File, IOException, RandomAccessFile}
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
+import java.util.concurrent.{ConcurrentHashMap, ConcurrentLinkedQueue}
+import javax.crypto.spec.SecretKeySpec
+
+import com.workday.elasticrypt.stats.FileCryptoMetrics
+import org.apache.lucene.util.{AESReader, IOUtils}
+
+/**
+  * Immutable metadata of an encrypted file, recorded the first time the file is opened.
+  *
+  * @param headerOffset number of header bytes preceding the first page
+  * @param length number of bytes in the file without header, IV/page and padding
+  * @param pageSize number of 16-byte blocks per page
+  * @param keyVersion version of the key recorded in the file header
+  * @param key key the file was successfully opened with; the file can only be decrypted with this key, so reopening
+  *            it does not fetch the key again
+  */
+private[store] case class EncryptedFileMetadata(headerOffset: Long, length: Long, pageSize: Int, keyVersion: Int,
+                                                key: SecretKeySpec) {
+
+  /**
+    * Whether this metadata can be used to open the file with the given page size. The key version and the key are
+    * those of the header of this write-once file, so they cannot change while the entry is cached.
+    * @param pageSize number of 16-byte blocks per page
+    */
+  def matches(pageSize: Int): Boolean = this.pageSize == pageSize
+}
+
+/**
+  * Per-directory cache of the immutable metadata of encrypted files, plus an optional bounded pool of open
+  * read-only handles. Lucene files are write-once, so once a file has been opened its header offset and length
+  * never change; reopening it after a refresh or merge can then skip reading the header and decrypting the last
+  * page. Entries must be invalidated when a file is deleted. Utilized in EncryptedDirectory on openInput().
+  *
+  * Files replaced in place by KeyRotationService are bracketed by beginReplace() and endReplace(), which bump a
+  * replacement sequence that is odd while a swap is in progress. openInput() samples the sequence before looking a
+  * file up and only trusts what it found, or caches what it read, if the sequence is still the same even number.
+  *
+  * @param maxPooledHandles maximum number of idle read-only handles kept open across all files; 0 disables pooling
+  */
+private[store] class EncryptedFileCache(maxPooledHandles: Int) {
+
+  private[this] val metadata = new ConcurrentHashMap[String, EncryptedFileMetadata]()
+  private[this] val handles = new ConcurrentHashMap[String, ConcurrentLinkedQueue[RandomAccessFile]]()
+  private[this] val pooledHandles = new AtomicInteger()
+  private[this] val replacements = new AtomicLong()
+
+  /**
+    * Returns the cached metadata of the given file, if any.
+    * @param name file name
+    */
+  def getMetadata(name: String): Option[EncryptedFileMetadata] = Option(metadata.get(name))
+
+  /**
+    * Records the metadata of the given file, unless a file was replaced since the sequence was observed.
+    * @param name file name
+    * @param fileMetadata metadata read while opening the file
+    * @param observedSequence replacement sequence observed before the file was opened
+    */
+  def putMetadata(name: String, fileMetadata: EncryptedFileMetadata,
+                  observedSequence: Long = replacementSequence): Unit = synchronized {
+    if (isStable(observedSequence)) {
+      metadata.put(name, fileMetadata)
+    }
+  }
+
+  /**
+    * Returns the current replacement sequence.
+    */
+  def replacementSequence: Long = replacements.get
+
+  /**
+    * Whether no file was replaced, and no replacement was in progress, since the given sequence was observed.
+    * @param observedSequence replacement sequence observed earlier
+    */
+  def isStable(observedSequence: Long): Boolean = observedSequence % 2 == 0 && replacements.get == observedSequence
+
+  /**
+    * Marks the start of an in-place replacement of a file.
+    */
+  def beginReplace(): Unit = synchronized {
+    replacements.incrementAndGet()
+  }
+
+  /**
+    * Marks the end of an in-place replacement of the given file and forgets its metadata and handles.
+    * @param name file name
+    */
+  def endReplace(name: String): Unit = synchronized {
+    replacements.incrementAndGet()
+    invalidate(name)
+  }
+
+  /**
+    * Returns an idle read-only handle on the given file from the pool, or opens a new one.
+    * @param name file name
+    * @param path file to open
+    */
+  def acquireHandle(name: String, path: File): RandomAccessFile = {
+    Option(handles.get(name)).flatMap(queue => Option(queue.poll())) match {
+      case Some(raf) =>
+        pooledHandles.decrementAndGet()
+        raf
+      case None => new RandomAccessFile(path, "r")
+    }
+  }
+
+  /**
+    * Returns a handle to the pool if there is room and the file was not invalidated in the meantime,
+    * closes it otherwise.
+    * @param name file name
+    * @param fileMetadata metadata the handle was opened with
+    * @param raf handle to release
+    */
+  def releaseHandle(name: String, fileMetadata: EncryptedFileMetadata, raf: RandomAccessFile): Unit = {
+    if (metadata.get(name) eq fileMetadata) {
+      if (pooledHandles.incrementAndGet() <= maxPooledHandles) {
+        val queue = Option(handles.get(name)).getOrElse {
+          val newQueue = new ConcurrentLinkedQueue[RandomAccessFile]()
+          Option(handles.putIfAbsent(name, newQueue)).getOrElse(newQueue)
+        }
+        queue.offer(raf)
+      } else {
+        pooledHandles.decrementAndGet()
+        raf.close()
+      }
+    } else {
+      raf.close()
+    }
+  }
+
+  /**
+    * Forgets the metadata of the given file and closes its pooled handles.
+    * @param name file name
+    */
+  def invalidate(name: String): Unit = {
+    metadata.remove(name)
+    Option(handles.remove(name)).foreach(closeAll)
+  }
+
+  /**
+    * Forgets all metadata and closes all pooled handles.
+    */
+  def clear(): Unit = {
+    metadata.clear()
+    val it = handles.keySet().iterator()
+    while (it.hasNext) {
+      Option(handles.remove(it.next())).foreach(closeAll)
+    }
+  }
+
+  /**
+    * Closes every handle in the given queue.
+    * @param queue pooled handles of one file
+    */
+  private[this] def closeAll(queue: ConcurrentLinkedQueue[RandomAccessFile]): Unit = {
+    Iterator.continually(queue.poll()).takeWhile(_ != null).foreach { raf => // scalastyle:ignore null
+      pooledHandles.decrementAndGet()
+      IOUtils.closeWhileHandlingException(raf)
+    }
+  }
+}
+
+/**
+  * AESReader opened from cached metadata. Closing it hands its handle back to the EncryptedFileCache
+  * instead of closing the file.
+  *
+  * @param name file name
+  * @param raf file to read
+  * @param fileMetadata cached metadata of the file
+  * @param cache cache the handle is released to
+  * @param metrics counters of the index and extension of the file
+  */
+private[store] class CachedAESReader(name: String, raf: RandomAccessFile, fileMetadata: EncryptedFileMetadata,
+                                     cache: EncryptedFileCache, metrics: FileCryptoMetrics)
+  extends AESReader(name, raf, fileMetadata.pageSize, fileMetadata.key, fileMetadata.headerOffset, fileMetadata.length, metrics) {
+
+  /**
+    * Releases the handle to the cache.
+    */
+  @throws[IOException]
+  override def close(): Unit = {
+    recordClose()
+    cache.releaseHandle(name, fileMetadata, raf)
+  }
+}
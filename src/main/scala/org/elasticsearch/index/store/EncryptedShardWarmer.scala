@@ -0,0 +1,274 @@
+/*
+ * Copyright 2017 Workday, Inc.
+ *
+ * This software is available under the MIT license.
+ * Please see the LICENSE.txt file in this project.
+ */
+
+package org.elasticsearch.index.store
+
+import java.nio.ByteBuffer
+import java.util.concurrent.{CountDownLatch, Executor, TimeUnit}
+import java.util.concurrent.atomic.AtomicLong
+
+import scala.collection.JavaConverters.{collectionAsScalaIterableConverter, iterableAsScalaIterableConverter}
+
+import org.apache.lucene.index.{IndexFileNames, SegmentReader}
+import org.apache.lucene.store.{CompoundFileDirectory, Directory, IOContext, IndexInput}
+import org.elasticsearch.cluster.metadata.IndexMetaData
+import org.elasticsearch.common.component.AbstractComponent
+import org.elasticsearch.common.inject.Inject
+import org.elasticsearch.common.logging.{ESLogger, ESLoggerFactory}
+import org.elasticsearch.common.lucene.SegmentReaderUtils
+import org.elasticsearch.common.settings.Settings
+import org.elasticsearch.common.unit.{ByteSizeUnit, ByteSizeValue, TimeValue}
+import org.elasticsearch.index.shard.{IndexShard, ShardId}
+import org.elasticsearch.indices.warmer.IndicesWarmer
+import org.elasticsearch.threadpool.ThreadPool
+
+/**
+  * Contains the index settings read by EncryptedShardWarmer, and the warming itself.
+  */
+object EncryptedShardWarmer {
+  /* Off by default: every refresh waits for the warming of the shard, up to the timeout */
+  val ENABLED_SETTING = "index.store.encrypted.warmer.enabled"
+  val DEFAULT_ENABLED = false
+  /* Extensions of the files read ahead, inside compound files too */
+  val EXTENSIONS_SETTING = "index.store.encrypted.warmer.extensions"
+  val DEFAULT_EXTENSIONS = Array("tip", "tim", "nvd", "dvd")
+  /* Maximum number of bytes read per refresh or open of a shard */
+  val MAX_BYTES_SETTING = "index.store.encrypted.warmer.max_bytes"
+  val DEFAULT_MAX_BYTES = new ByteSizeValue(64, ByteSizeUnit.MB)
+  /* Maximum time spent per refresh or open of a shard; the new searcher is not published before */
+  val TIMEOUT_SETTING = "index.store.encrypted.warmer.timeout"
+  val DEFAULT_TIMEOUT = TimeValue.timeValueSeconds(2)
+  /* Only indices whose store type is encrypted, see EncryptedIndexStoreModule, are warmed */
+  val STORE_TYPE_SETTING = "index.store.type"
+  val STORE_TYPE = "encrypted"
+  private[store] val READ_CHUNK_SIZE = 64 * 1024
+
+  /**
+    * Whether the index is encrypted and the warmer was enabled for it.
+    * @param settings settings of the index
+    */
+  def isEnabled(settings: Settings): Boolean = {
+    settings.get(STORE_TYPE_SETTING) == STORE_TYPE && settings.getAsBoolean(ENABLED_SETTING, DEFAULT_ENABLED)
+  }
+
+  /**
+    * Number of bytes and time left to warm one refresh or open of a shard, shared by the tasks warming its segments.
+    * @param maxBytes maximum number of bytes read
+    * @param timeoutNanos maximum time spent
+    */
+  private[store] class WarmBudget(maxBytes: Long, timeoutNanos: Long) {
+    private[this] val remaining = new AtomicLong(maxBytes)
+    private[this] val deadline = System.nanoTime + timeoutNanos
+
+    /**
+      * Takes up to the given number of bytes from the budget.
+      * @param wanted number of bytes about to be read
+      * @return number of bytes that may be read; 0 once the budget or the time is used up
+      */
+    @annotation.tailrec
+    final def take(wanted: Int): Int = {
+      if (System.nanoTime - deadline >= 0) {
+        0
+      } else {
+        val left = remaining.get
+        val granted = math.min(wanted.toLong, left).toInt
+        if (granted <= 0) 0 else if (remaining.compareAndSet(left, left - granted)) granted else take(wanted)
+      }
+    }
+
+    def used: Long = maxBytes - remaining.get
+  }
+
+  /**
+    * Reads the files of a segment with the given extensions, and the files with these extensions inside its compound
+    * file, through the directory. Opening an encrypted file verifies its header and caches its metadata in the
+    * EncryptedFileCache; reading its cipher text, which is not decrypted, pulls its pages into the page cache of the OS.
+    * @param directory directory of the shard
+    * @param fileNames names of the files of the segment
+    * @param extensions extensions of the files to read
+    * @param budget bytes and time left
+    * @return number of files read, and of bytes read
+    */
+  private[store] def warmSegment(directory: Directory, fileNames: Iterable[String], extensions: Set[String],
+                                 budget: WarmBudget): (Int, Long) = {
+    fileNames.toSeq.sorted.foldLeft((0, 0L)) { case ((files, bytes), name) =>
+      if (IndexFileNames.matchesExtension(name, IndexFileNames.COMPOUND_FILE_EXTENSION)) {
+        val compound = new CompoundFileDirectory(directory, name, IOContext.READ, false)
+        try {
+          compound.listAll.toSeq.sorted.filter(inner => extensions.contains(IndexFileNames.getExtension(inner)))
+            .foldLeft((files, bytes)) { case ((innerFiles, innerBytes), inner) =>
+              (innerFiles + 1, innerBytes + warmFile(compound, inner, budget))
+            }
+        } finally {
+          compound.close()
+        }
+      } else if (extensions.contains(IndexFileNames.getExtension(name))) {
+        (files + 1, bytes + warmFile(directory, name, budget))
+      } else {
+        (files, bytes)
+      }
+    }
+  }
+
+  /**
+    * Opens a file and reads it from the start until its end or the end of the budget. The pages of an encrypted file,
+    * or of a slice of a compound file, are read as cipher text, so that warming decrypts nothing.
+    * @param directory directory holding the file
+    * @param name file name
+    * @param budget bytes and time left
+    * @return number of bytes read
+    */
+  private[store] def warmFile(directory: Directory, name: String, budget: WarmBudget): Long = {
+    val input = directory.openInput(name, IOContext.READ)
+    try {
+      input match {
+        case encrypted: AESIndexInput => warmCipherText(encrypted, budget)
+        case _ => warmPlainText(input, budget)
+      }
+    } finally {
+      input.close()
+    }
+  }
+
+  /**
+    * Reads the cipher text of the pages holding an encrypted input, with positional reads that leave it in place.
+    * @param input input opened on an encrypted file
+    * @param budget bytes and time left
+    * @return number of bytes read
+    */
+  private[this] def warmCipherText(input: AESIndexInput, budget: WarmBudget): Long = {
+    val (start, end) = input.cipherTextRange
+    val buffer = ByteBuffer.allocate(READ_CHUNK_SIZE)
+    var position = start
+    var chunk = budget.take(math.min(READ_CHUNK_SIZE.toLong, end - position).toInt)
+    while (chunk > 0) {
+      buffer.clear()
+      buffer.limit(chunk)
+      val read = input.readCipherText(buffer, position)
+      // The last page of a file is shorter than the range assumes
+      chunk = if (read <= 0) 0 else budget.take(math.min(READ_CHUNK_SIZE.toLong, end - position - read).toInt)
+      position += math.max(read, 0)
+    }
+    position - start
+  }
+
+  /**
+    * Reads an unencrypted input through its buffer.
+    * @param input input opened on a file that is not encrypted
+    * @param budget bytes and time left
+    * @return number of bytes read
+    */
+  private[this] def warmPlainText(input: IndexInput, budget: WarmBudget): Long = {
+    val buffer = new Array[Byte](READ_CHUNK_SIZE)
+    var position = 0L
+    var chunk = budget.take(math.min(READ_CHUNK_SIZE.toLong, input.length).toInt)
+    while (chunk > 0) {
+      input.readBytes(buffer, 0, chunk)
+      position += chunk
+      chunk = budget.take(math.min(READ_CHUNK_SIZE.toLong, input.length - position).toInt)
+    }
+    position
+  }
+}
+
+/**
+  * Warms the new segments of encrypted shards before Elasticsearch publishes the searcher that sees them, i.e. after
+  * a refresh or a merge and when a shard is opened, so that the first queries do not pay for opening the files,
+  * verifying their headers and reading cold pages from disk. Every segment is warmed by one task of the warmer thread
+  * pool; all tasks of a shard share a byte and a time budget. Disabled by default, and configured per index:
+  * {{{
+  * index.store.encrypted.warmer.enabled: true
+  * index.store.encrypted.warmer.extensions: tip,tim,nvd,dvd
+  * index.store.encrypted.warmer.max_bytes: 64mb
+  * index.store.encrypted.warmer.timeout: 2s
+  * }}}
+  * Pages are read as cipher text and only decrypted by the first query that needs them; decrypting a page costs
+  * microseconds, whereas reading it from disk costs milliseconds. Waiting for the warming is bounded by the timeout,
+  * even if the warmer thread pool is too busy to start it.
+  */
+class EncryptedShardWarmer extends IndicesWarmer.Listener {
+  import EncryptedShardWarmer._
+
+  private[this] val logger: ESLogger = ESLoggerFactory.getLogger(getClass.getName)
+
+  /**
+    * Queues the warming of the given segments of an encrypted shard on the warmer thread pool.
+    * @param indexShard shard refreshed or opened
+    * @param indexMetaData metadata of the index, whose settings configure the warmer
+    * @param context searcher over the new segments only
+    * @param threadPool thread pool of the node
+    * @return handle waiting for every segment to be warmed
+    */
+  override def warmNewReaders(indexShard: IndexShard, indexMetaData: IndexMetaData, context: IndicesWarmer.WarmerContext,
+                              threadPool: ThreadPool): IndicesWarmer.TerminationHandle = {
+    if (isEnabled(indexMetaData.settings)) {
+      val segments = context.reader.leaves.asScala.flatMap(leaf => Option(SegmentReaderUtils.segmentReaderOrNull(leaf.reader)))
+      warm(indexShard.shardId, indexShard.store.directory, segments.toSeq, indexMetaData.settings, threadPool.executor(executor))
+    } else {
+      IndicesWarmer.TerminationHandle.NO_WAIT
+    }
+  }
+
+  /**
+    * Queues the warming of every segment on the given executor.
+    * @param shardId shard of the segments
+    * @param directory directory of the shard
+    * @param segments segments to warm
+    * @param settings settings of the index
+    * @param executor executor running one task per segment
+    * @return handle waiting for every segment to be warmed
+    */
+  private[store] def warm(shardId: ShardId, directory: Directory, segments: Seq[SegmentReader], settings: Settings,
+                          executor: Executor): IndicesWarmer.TerminationHandle = {
+    val extensions = settings.getAsArray(EXTENSIONS_SETTING, DEFAULT_EXTENSIONS).map(_.stripPrefix(".")).toSet
+    val timeoutNanos = settings.getAsTime(TIMEOUT_SETTING, DEFAULT_TIMEOUT).nanos
+    val budget = new WarmBudget(settings.getAsBytesSize(MAX_BYTES_SETTING, DEFAULT_MAX_BYTES).bytes, timeoutNanos)
+    val files = new AtomicLong()
+    val start = System.nanoTime
+    val latch = new CountDownLatch(segments.size)
+
+    segments.foreach { segment =>
+      executor.execute(new Runnable {
+        override def run(): Unit = {
+          try {
+            val (warmed, _) = warmSegment(directory, segment.getSegmentInfo.files.asScala, extensions, budget)
+            files.addAndGet(warmed)
+          } catch {
+            case e: Exception => logger.warn("{} failed to warm segment [{}]", e, shardId, segment.getSegmentName)
+          } finally {
+            latch.countDown()
+          }
+        }
+      })
+    }
+
+    new IndicesWarmer.TerminationHandle {
+      override def awaitTermination(): Unit = {
+        if (!latch.await(math.max(0L, start + timeoutNanos - System.nanoTime), TimeUnit.NANOSECONDS)) {
+          logger.debug("{} stopped waiting for [{}] segments to be warmed after [{}]", shardId, Long.box(latch.getCount),
+            TimeValue.timeValueNanos(timeoutNanos))
+        }
+        logger.debug("{} warmed [{}] files of [{}] segments, [{}] in [{}]", shardId, Long.box(files.get),
+          Int.box(segments.size), new ByteSizeValue(budget.used), TimeValue.timeValueNanos(System.nanoTime - start))
+      }
+    }
+  }
+
+  /**
+    * Does nothing: warmNewReaders() already covers every segment of the top reader.
+    */
+  override def warmTopReader(indexShard: IndexShard, indexMetaData: IndexMetaData, context: IndicesWarmer.WarmerContext,
+                             threadPool: ThreadPool): IndicesWarmer.TerminationHandle = IndicesWarmer.TerminationHandle.NO_WAIT
+}
+
+/**
+  * Registers the EncryptedShardWarmer with the warmer of the node.
+  */
+class EncryptedShardWarmerComponent @Inject()(settings: Settings, indicesWarmer: IndicesWarmer) extends AbstractComponent(settings) {
+  val warmer = new EncryptedShardWarmer
+  indicesWarmer.addListener(warmer)
+}
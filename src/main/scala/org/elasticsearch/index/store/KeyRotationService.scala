@@ -0,0 +1,244 @@
+/*
+ * Copyright 2017 Workday, Inc.
+ *
+ * This software is available under the MIT license.
+ * Please see the LICENSE.txt file in this project.
+ */
+
+package org.elasticsearch.index.store
+
+import java.io.{EOFException, FileNotFoundException, IOException}
+import java.nio.file.NoSuchFileException
+import java.util.concurrent.CancellationException
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
+
+import org.apache.lucene.store.RateLimiter
+import org.apache.lucene.util.{AESReader, AESWriter}
+import org.elasticsearch.common.logging.{ESLogger, ESLoggerFactory}
+import org.elasticsearch.common.util.concurrent.EsExecutors
+import org.elasticsearch.common.xcontent.{ToXContent, XContentBuilder}
+
+/**
+  * Contains the defaults and states of KeyRotationService.
+  */
+object KeyRotationService {
+  /* Directory, inside the shard directory, that rotated files are written to before they are swapped in */
+  val STAGING_DIRECTORY = ".elasticrypt_rotation"
+  /* Default maximum rate at which files are re-encrypted */
+  val DEFAULT_MB_PER_SEC = 10.0
+  /* Number of plaintext bytes copied, and accounted against the rate limit, at a time */
+  private[store] val COPY_BUFFER_SIZE = 64 * 1024
+
+  val PENDING = "pending"
+  val RUNNING = "running"
+  val COMPLETED = "completed"
+  val CANCELLED = "cancelled"
+  val FAILED = "failed"
+}
+
+/**
+  * Snapshot of the progress of a KeyRotationService.
+  * @param state one of the states defined in KeyRotationService
+  * @param targetKeyVersion key version files are re-encrypted with
+  * @param totalFiles number of files found encrypted with another key version
+  * @param rotatedFiles number of files re-encrypted so far
+  * @param skippedFiles number of files deleted, recreated or still being written when their turn came
+  * @param totalBytes size on disk of all files to rotate
+  * @param processedBytes bytes of those files processed so far
+  * @param elapsedMillis time since the rotation started
+  * @param bytesPerSecond average throughput so far
+  * @param etaMillis estimated time until the rotation completes, -1 if unknown
+  */
+case class KeyRotationProgress(state: String,
+                               targetKeyVersion: Int,
+                               totalFiles: Int,
+                               rotatedFiles: Int,
+                               skippedFiles: Int,
+                               totalBytes: Long,
+                               processedBytes: Long,
+                               elapsedMillis: Long,
+                               bytesPerSecond: Double,
+                               etaMillis: Long) extends ToXContent {
+  override def toXContent(builder: XContentBuilder, params: ToXContent.Params): XContentBuilder = {
+    builder.startObject()
+    builder.field("state", state)
+    builder.field("target_key_version", targetKeyVersion)
+    builder.field("total_files", totalFiles)
+    builder.field("rotated_files", rotatedFiles)
+    builder.field("skipped_files", skippedFiles)
+    builder.field("total_in_bytes", totalBytes)
+    builder.field("processed_in_bytes", processedBytes)
+    builder.field("elapsed_time_in_millis", elapsedMillis)
+    builder.field("bytes_per_sec", bytesPerSecond)
+    builder.field("eta_in_millis", etaMillis)
+    builder.endObject()
+  }
+}
+
+/**
+  * Re-encrypts the files of an EncryptedDirectory with the current key version of the index, while the shard stays
+  * online. Every file whose header records another key version is copied, page by page, into a new file encrypted
+  * with the current key, which is then atomically swapped in by EncryptedDirectory.rotateFile().
+  *
+  * The copy runs on a single minimum-priority daemon thread and is throttled by a Lucene RateLimiter. Since
+  * decryption and encryption cost is proportional to the bytes copied, the rate limit bounds both the I/O and the
+  * CPU taken away from search and indexing. The limit can be changed while the rotation runs. The staging directory
+  * is left out of EncryptedDirectory.listAll() and removed when the rotation finishes.
+  *
+  * @param directory directory whose files are rotated
+  * @param mbPerSec maximum rate at which files are re-encrypted
+  */
+class KeyRotationService(directory: EncryptedDirectory, mbPerSec: Double = KeyRotationService.DEFAULT_MB_PER_SEC) {
+  import KeyRotationService._
+
+  private[this] val logger: ESLogger = ESLoggerFactory.getRootLogger
+  private[this] val rateLimiter = new RateLimiter.SimpleRateLimiter(mbPerSec)
+
+  @volatile private[this] var state = PENDING
+  @volatile private[this] var cancelled = false
+  @volatile private[this] var targetKeyVersion = 0
+  @volatile private[this] var startNanos = 0L
+  @volatile private[this] var endNanos = 0L
+
+  private[this] val totalFiles = new AtomicInteger()
+  private[this] val rotatedFiles = new AtomicInteger()
+  private[this] val skippedFiles = new AtomicInteger()
+  private[this] val totalBytes = new AtomicLong()
+  /* Size on disk of the files finished so far, plus the plaintext bytes copied from the current file */
+  private[this] val finishedBytes = new AtomicLong()
+  private[this] val currentFileBytes = new AtomicLong()
+
+  /**
+    * Runs the rotation on a new background thread.
+    */
+  def start(): Unit = {
+    val thread = EsExecutors.daemonThreadFactory("elasticrypt_key_rotation").newThread(new Runnable {
+      override def run(): Unit = KeyRotationService.this.run()
+    })
+    thread.setPriority(Thread.MIN_PRIORITY)
+    state = RUNNING
+    thread.start()
+  }
+
+  /**
+    * Runs the rotation on the calling thread.
+    * @return the final progress
+    */
+  def run(): KeyRotationProgress = {
+    state = RUNNING
+    startNanos = System.nanoTime()
+    try {
+      targetKeyVersion = directory.currentKeyVersion
+      val files = plan()
+      logger.info(s"Rotating ${files.size} files (${totalBytes.get} bytes) to key version $targetKeyVersion")
+
+      files.takeWhile(_ => !cancelled).foreach { case (name, size) =>
+        currentFileBytes.set(0)
+        val replaced = try {
+          directory.rotateFile(name, copy)
+        } catch {
+          // Lucene deleted the file while we were copying it
+          case _: NoSuchFileException | _: FileNotFoundException => false
+        }
+        if (replaced) rotatedFiles.incrementAndGet() else skippedFiles.incrementAndGet()
+        currentFileBytes.set(0)
+        finishedBytes.addAndGet(size)
+      }
+      state = if (cancelled) CANCELLED else COMPLETED
+    } catch {
+      case _: CancellationException =>
+        state = CANCELLED
+      case e: Exception =>
+        state = FAILED
+        logger.warn("Key rotation failed", e)
+    } finally {
+      currentFileBytes.set(0)
+      removeStagingDirectory()
+      endNanos = System.nanoTime()
+    }
+    logger.info(s"Key rotation $state: ${rotatedFiles.get} files rotated, ${skippedFiles.get} skipped")
+    progress
+  }
+
+  /**
+    * Stops the rotation. The file being copied is abandoned and the original kept.
+    */
+  def cancel(): Unit = cancelled = true
+
+  /**
+    * Whether the rotation has been started and has not finished yet.
+    */
+  def isRunning: Boolean = state == RUNNING
+
+  /**
+    * Changes the maximum rate at which files are re-encrypted.
+    * @param mbPerSec new rate limit
+    */
+  def setMbPerSec(mbPerSec: Double): Unit = rateLimiter.setMbPerSec(mbPerSec)
+
+  /**
+    * Returns a snapshot of the progress, throughput and estimated time to completion.
+    */
+  def progress: KeyRotationProgress = {
+    val processed = finishedBytes.get + currentFileBytes.get
+    val elapsedNanos = if (startNanos == 0) 0L else (if (endNanos == 0) System.nanoTime() else endNanos) - startNanos
+    val bytesPerSecond = if (elapsedNanos > 0) processed * 1e9 / elapsedNanos else 0.0
+    val remaining = Math.max(0L, totalBytes.get - processed)
+    val etaMillis = if (state == COMPLETED) {
+      0L
+    } else if (state == RUNNING && bytesPerSecond > 0) {
+      (remaining * 1000 / bytesPerSecond).toLong
+    } else {
+      -1L
+    }
+    KeyRotationProgress(state, targetKeyVersion, totalFiles.get, rotatedFiles.get, skippedFiles.get, totalBytes.get,
+      processed, elapsedNanos / 1000000, bytesPerSecond, etaMillis)
+  }
+
+  /**
+    * Removes the staging directory, logging rather than failing the rotation if it cannot be removed.
+    */
+  private[this] def removeStagingDirectory(): Unit = {
+    try {
+      directory.removeStagingDirectory()
+    } catch {
+      case e: IOException => logger.warn("Failed to remove the key rotation staging directory", e)
+    }
+  }
+
+  /**
+    * Lists the files not encrypted with the target key version, with their size on disk.
+    */
+  private[this] def plan(): Seq[(String, Long)] = {
+    val files = directory.encryptedFileNames.flatMap { name =>
+      try {
+        if (directory.keyVersionOf(name) != targetKeyVersion) Some((name, directory.fileLength(name))) else None
+      } catch {
+        // Deleted, or still being written and without a complete header
+        case _: IOException => None
+      }
+    }
+    totalFiles.set(files.size)
+    totalBytes.set(files.map(_._2).sum)
+    files
+  }
+
+  /**
+    * Copies the whole plaintext of a file, pausing as needed to stay under the rate limit.
+    * @param reader reader of the original file
+    * @param writer writer of the new file
+    */
+  private[this] def copy(reader: AESReader, writer: AESWriter): Unit = {
+    val buffer = new Array[Byte](COPY_BUFFER_SIZE)
+    var remaining = reader.length
+    while (remaining > 0) {
+      if (cancelled) throw new CancellationException("Key rotation cancelled")
+      val n = reader.read(buffer, 0, Math.min(buffer.length.toLong, remaining).toInt)
+      if (n <= 0) throw new EOFException("Unexpected end of file, " + remaining + " bytes left")
+      writer.write(buffer, 0, n)
+      remaining -= n
+      currentFileBytes.addAndGet(n)
+      rateLimiter.pause(n)
+    }
+  }
+}
@@ -7,28 +7,30 @@
 
 package org.elasticsearch.index.translog
 
-import java.io.{EOFException, File, IOException}
+import java.io.{EOFException, File, IOException, InputStream}
 import java.nio.channels.FileChannel
+import java.util.concurrent.Executor
 
 import com.workday.elasticrypt.KeyProvider
-import com.workday.elasticrypt.translog.EncryptedFileChannel
+import com.workday.elasticrypt.translog.{FrameDecompressingInputStream, ParallelDecryptingInputStream}
 import org.apache.lucene.util.IOUtils
 import org.elasticsearch.common.io.stream.{InputStreamStreamInput, StreamInput}
 import org.elasticsearch.common.logging.{ESLogger, ESLoggerFactory}
-//scalastyle:off
-import sun.nio.ch.ChannelInputStream
-//scalastyle:on
 
 /**
   * Extension of org.elasticsearch.index.translog.ChecksummedTranslogStream that overrides openInput()
-  * to use a ChannelInputStream that wraps an EncryptedFileChannel. This class must be located in
+  * to use a ParallelDecryptingInputStream, which decrypts translog pages ahead of the replaying thread on the given
+  * executor, and a FrameDecompressingInputStream, which decompresses translogs written with compression.
+  * This class must be located in
   * org.elasticsearch.index.translog in order to access the no-arg constructor of ChecksummedTranslogStream.
   *
   * @param pageSize number of 16-byte blocks per page
   * @param keyProvider encryption key information getter
   * @param indexName name of index used to retrieve the key
+  * @param executor pool translog pages are decrypted on during replay
   */
-class EncryptedTranslogStream(pageSize: Int, keyProvider: KeyProvider, indexName: String) extends ChecksummedTranslogStream {
+class EncryptedTranslogStream(pageSize: Int, keyProvider: KeyProvider, indexName: String, executor: Executor)
+  extends ChecksummedTranslogStream {
 
   private[this] val logger: ESLogger = ESLoggerFactory.getRootLogger
 
@@ -47,20 +49,21 @@ class EncryptedTranslogStream(pageSize: Int, keyProvider: KeyProvider, indexName
     */
   @throws[EOFException]
   @throws[IOException]
-  private[translog] def createInputStreamStreamInput(encryptedFileInputStream: ChannelInputStream) = {
+  private[translog] def createInputStreamStreamInput(encryptedFileInputStream: InputStream) = {
     new InputStreamStreamInput(encryptedFileInputStream)
   }
 
   /**
-    * Copied from ChecksummedTranslogStream but modified to use EncryptedFileChannel (and removed CodecUtil.checkHeader).
-    * @param translogFile File used to create a ChannelInputStream
+    * Copied from ChecksummedTranslogStream but modified to use ParallelDecryptingInputStream and
+    * FrameDecompressingInputStream (and removed CodecUtil.checkHeader).
+    * @param translogFile File used to create a ParallelDecryptingInputStream
     * @return new InputStreamStreamInput
     */
   override def openInput(translogFile: File): StreamInput = {
-    val encryptedFileInputStream = new ChannelInputStream(new EncryptedFileChannel(translogFile, pageSize, keyProvider, indexName))
+    val encryptedFileInputStream = new ParallelDecryptingInputStream(translogFile, pageSize, keyProvider, indexName, executor)
     var success = false
     try {
-      val in = createInputStreamStreamInput(encryptedFileInputStream)
+      val in = createInputStreamStreamInput(new FrameDecompressingInputStream(encryptedFileInputStream))
       success = true
       in
     } catch {
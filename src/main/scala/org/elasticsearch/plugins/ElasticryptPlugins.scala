@@ -10,8 +10,12 @@ package org.elasticsearch.plugins
 import java.util
 import java.util.Collections
 
+import com.workday.elasticrypt.action.{ElasticryptStatsAction, TransportElasticryptStatsAction}
 import com.workday.elasticrypt.modules.EncryptedNodeModule
+import com.workday.elasticrypt.rest.{RestElasticryptRotateAction, RestElasticryptStatsAction}
+import org.elasticsearch.action.ActionModule
 import org.elasticsearch.common.inject.Module
+import org.elasticsearch.rest.RestModule
 
 /**
   * Entry point for the plugin. Defines plugin name (Elasticrypt) and description.
@@ -32,4 +36,21 @@ class ElasticryptPlugins extends AbstractPlugin {
     * Returns EncryptedNodeModule.
     */
   override def modules(): util.Collection[Class[_ <: Module]] = Collections.singletonList(classOf[EncryptedNodeModule])
+
+  /**
+    * Registers the _elasticrypt/stats and _elasticrypt/rotate endpoints.
+    * @param module module of the REST actions of the node
+    */
+  def onModule(module: RestModule): Unit = {
+    module.addRestAction(classOf[RestElasticryptStatsAction])
+    module.addRestAction(classOf[RestElasticryptRotateAction])
+  }
+
+  /**
+    * Registers the nodes-level action that collects the encryption metrics of every node for _elasticrypt/stats.
+    * @param module module of the transport actions of the node
+    */
+  def onModule(module: ActionModule): Unit = {
+    module.registerAction(ElasticryptStatsAction, classOf[TransportElasticryptStatsAction])
+  }
 }
@@ -0,0 +1,50 @@
+package com.workday.elasticrypt
+
+import java.io.{File, PrintWriter}
+
+import org.elasticsearch.common.Base64
+import org.scalatest.{FlatSpec, Matchers}
+
+class FileKeyProviderTest extends FlatSpec with Matchers {
+
+  val keyBytes1 = Array.fill[Byte](32)(1)
+  val keyBytes2 = Array.fill[Byte](32)(2)
+
+  def withKeyFile(lines: String*)(test: FileKeyProvider => Unit): Unit = {
+    val file = File.createTempFile("fkp_test", ".properties")
+    new PrintWriter(file) {
+      lines.foreach(line => write(line + "\n")); close()
+    }
+    try {
+      test(new FileKeyProvider(file))
+    } finally {
+      file.delete()
+    }
+  }
+
+  behavior of "#getKey"
+  it should "return the key of the index, falling back to *" in {
+    withKeyFile("test=" + Base64.encodeBytes(keyBytes1), "*=" + Base64.encodeBytes(keyBytes2)) { provider =>
+      provider.getKey("test").getEncoded shouldBe keyBytes1
+      provider.getKey("other").getEncoded shouldBe keyBytes2
+    }
+  }
+
+  it should "fail for unknown indices" in {
+    withKeyFile("test=" + Base64.encodeBytes(keyBytes1)) { provider =>
+      an[IllegalArgumentException] shouldBe thrownBy {
+        provider.getKey("other")
+      }
+    }
+  }
+
+  behavior of "#getKeyVersion"
+  it should "return the highest version listed" in {
+    withKeyFile("test@1=" + Base64.encodeBytes(keyBytes1), "test@2=" + Base64.encodeBytes(keyBytes2)) { provider =>
+      provider.getKeyVersion("test") shouldBe 2
+      provider.getKey("test", 1).getEncoded shouldBe keyBytes1
+      provider.getKeyVersion("other") shouldBe KeyVersion.UNVERSIONED
+    }
+  }
+
+}
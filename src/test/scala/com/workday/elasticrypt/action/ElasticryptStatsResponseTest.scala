@@ -0,0 +1,59 @@
+package com.workday.elasticrypt.action
+
+import java.util.Collections
+
+import com.workday.elasticrypt.scheduler.CryptoScheduler
+import com.workday.elasticrypt.stats.CryptoMetrics
+import org.elasticsearch.Version
+import org.elasticsearch.cluster.ClusterName
+import org.elasticsearch.cluster.node.DiscoveryNode
+import org.elasticsearch.common.io.stream.{BytesStreamInput, BytesStreamOutput}
+import org.elasticsearch.common.transport.DummyTransportAddress
+import org.scalatest.{FlatSpec, Matchers}
+
+class ElasticryptStatsResponseTest extends FlatSpec with Matchers {
+
+  val index1 = "action_stats_test1"
+  val index2 = "action_stats_test2"
+
+  def node(name: String): DiscoveryNode =
+    new DiscoveryNode(name, name + "_id", DummyTransportAddress.INSTANCE, Collections.emptyMap[String, String](), Version.CURRENT)
+
+  behavior of "TransportElasticryptStatsAction#localStats"
+  it should "render the metrics of the requested indices only" in {
+    CryptoMetrics.forFile(index1, "_0.tim").seek()
+    CryptoMetrics.forFile(index2, "_0.tim").seek()
+    CryptoScheduler.node.work(index1, background = true)
+    CryptoScheduler.node.work(index2, background = true)
+
+    val json = TransportElasticryptStatsAction.localStats(Array(index2)).toUtf8
+
+    json should startWith("{\"header_verification\":")
+    json should not include s"\"$index1\":"
+    json should include(s"\"tenants\":{\"$index2\":{\"weight\":1.0")
+    json should include(s"\"indices\":{\"$index2\":")
+    TransportElasticryptStatsAction.localStats(Array.empty).toUtf8 should include(s"\"$index1\":")
+  }
+
+  behavior of "#writeTo"
+  it should "send requests and responses between nodes" in {
+    val request = new ElasticryptStatsRequest("node1_id")
+    request.indices = Array(index1)
+    val out = new BytesStreamOutput()
+    new ElasticryptNodeStatsRequest(request, "node1_id").writeTo(out)
+    val nodeRequest = new ElasticryptNodeStatsRequest()
+    nodeRequest.readFrom(new BytesStreamInput(out.bytes()))
+    nodeRequest.indices shouldBe Array(index1)
+
+    val stats = TransportElasticryptStatsAction.localStats(Array(index1))
+    val response = new ElasticryptStatsResponse(new ClusterName("test"), Array(new ElasticryptNodeStatsResponse(node("node1"), stats)))
+    val responseOut = new BytesStreamOutput()
+    response.writeTo(responseOut)
+    val read = new ElasticryptStatsResponse()
+    read.readFrom(new BytesStreamInput(responseOut.bytes()))
+
+    read.getClusterName.value shouldBe "test"
+    read.getNodes.map(_.getNode.id) shouldBe Array("node1_id")
+    read.getNodes.head.stats.toUtf8 shouldBe stats.toUtf8
+  }
+}
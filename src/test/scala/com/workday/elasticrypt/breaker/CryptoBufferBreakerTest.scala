@@ -0,0 +1,144 @@
+package com.workday.elasticrypt.breaker
+
+import java.util.concurrent.TimeUnit
+
+import org.elasticsearch.common.breaker.CircuitBreakingException
+import org.elasticsearch.common.settings.ImmutableSettings
+import org.elasticsearch.common.xcontent.{ToXContent, XContentFactory}
+import org.scalatest.{FlatSpec, Matchers}
+
+class CryptoBufferBreakerTest extends FlatSpec with Matchers {
+
+  /* Holder that is idle once the given time has elapsed since its last use, or in use if busy */
+  class Holder(breaker: CryptoBufferBreaker, bytes: Long, busy: Boolean = false) extends ReleasableBuffers {
+    var held: Long = bytes
+    var lastUseNanos: Long = System.nanoTime
+    breaker.allocate(bytes)
+    breaker.register(this)
+
+    def use(): Unit = lastUseNanos = System.nanoTime
+
+    override def releaseBuffers(minIdleNanos: Long): Long = {
+      if (busy || System.nanoTime - lastUseNanos < minIdleNanos) {
+        0L
+      } else {
+        val freed = held
+        held = 0L
+        breaker.release(freed)
+        freed
+      }
+    }
+  }
+
+  behavior of "#allocate"
+  it should "account allocations and releases, and the peak" in {
+    val breaker = new CryptoBufferBreaker(1000, 1.0)
+    breaker.allocate(300)
+    breaker.allocate(200)
+    breaker.release(400)
+
+    breaker.usedBytes shouldBe 100L
+    breaker.stats.peakBytes shouldBe 500L
+  }
+
+  it should "release the buffers of holders idle for the idle time above the trim threshold" in {
+    val breaker = new CryptoBufferBreaker(1000, 0.5, idleNanos = TimeUnit.MILLISECONDS.toNanos(50), trimIntervalNanos = 0L)
+    val first = new Holder(breaker, 300)
+    val second = new Holder(breaker, 300)
+
+    // Both holders were just used, so the sweep started by the second one releases nothing
+    breaker.usedBytes shouldBe 600L
+    breaker.stats.trims shouldBe 1L
+    Thread.sleep(100)
+    second.use()
+    breaker.allocate(100)
+
+    breaker.usedBytes shouldBe 400L
+    first.held shouldBe 0L
+    second.held shouldBe 300L
+    breaker.stats.releasedBytes shouldBe 300L
+  }
+
+  it should "sweep at most once per trim interval" in {
+    val breaker = new CryptoBufferBreaker(1000, 0.5, idleNanos = 0L, trimIntervalNanos = TimeUnit.HOURS.toNanos(1))
+    val holder = new Holder(breaker, 600)
+    holder.held shouldBe 600L
+    breaker.stats.trims shouldBe 1L
+
+    // The holder is idle, but the previous sweep is too recent
+    (1 to 10).foreach(_ => breaker.allocate(10))
+    holder.held shouldBe 600L
+    breaker.stats.trims shouldBe 1L
+  }
+
+  behavior of "#checkBreaker"
+  it should "pass below the limit" in {
+    val breaker = new CryptoBufferBreaker(1000, 1.0)
+    breaker.allocate(500)
+
+    breaker.checkBreaker(500, "file")
+    breaker.stats.trips shouldBe 0L
+  }
+
+  it should "release the buffers of holders not in use before tripping" in {
+    val breaker = new CryptoBufferBreaker(1000, 1.0)
+    val holder = new Holder(breaker, 800)
+
+    breaker.checkBreaker(500, "file")
+    holder.held shouldBe 0L
+    breaker.stats.trips shouldBe 0L
+  }
+
+  it should "trip if the buffers in use exceed the limit" in {
+    val breaker = new CryptoBufferBreaker(1000, 1.0)
+    new Holder(breaker, 800, busy = true)
+
+    val e = the[CircuitBreakingException] thrownBy breaker.checkBreaker(500, "[index] _0.tim")
+    e.getMessage should include("[crypto_buffers] Data too large, data for [[index] _0.tim]")
+    breaker.stats.trips shouldBe 1L
+    breaker.usedBytes shouldBe 800L
+  }
+
+  behavior of "#unregister"
+  it should "stop releasing the buffers of a holder" in {
+    val breaker = new CryptoBufferBreaker(1000, 1.0)
+    val holder = new Holder(breaker, 800)
+    breaker.unregister(holder)
+
+    a[CircuitBreakingException] should be thrownBy breaker.checkBreaker(500, "file")
+    holder.held shouldBe 800L
+    breaker.stats.releasableHolders shouldBe 0
+  }
+
+  behavior of "#setTrimRatio"
+  it should "reject ratios outside (0, 1]" in {
+    val breaker = new CryptoBufferBreaker(1000, 1.0)
+    an[IllegalArgumentException] should be thrownBy breaker.setTrimRatio(0.0)
+    an[IllegalArgumentException] should be thrownBy breaker.setTrimRatio(1.5)
+    an[IllegalArgumentException] should be thrownBy new CryptoBufferBreaker(1000, -1)
+  }
+
+  behavior of "CryptoBufferStats#toXContent"
+  it should "write the sizes and counters" in {
+    val breaker = new CryptoBufferBreaker(1000, 0.5)
+    breaker.allocate(100)
+    val builder = XContentFactory.jsonBuilder()
+    breaker.stats.toXContent(builder, ToXContent.EMPTY_PARAMS)
+
+    builder.string() shouldBe "{\"limit_size_in_bytes\":1000,\"trim_threshold_in_bytes\":500,\"estimated_size_in_bytes\":100," +
+      "\"peak_size_in_bytes\":100,\"releasable_readers\":0,\"tripped\":0,\"trims\":0,\"released_in_bytes\":0}"
+  }
+
+  behavior of "CryptoBufferBreakerComponent"
+  it should "configure the breaker of the node from the node settings" in {
+    val settings = ImmutableSettings.settingsBuilder
+      .put(CryptoBufferBreaker.LIMIT_SETTING, "64mb")
+      .put(CryptoBufferBreaker.TRIM_RATIO_SETTING, 0.9)
+      .build
+    val component = new CryptoBufferBreakerComponent(settings)
+
+    component.breaker should be theSameInstanceAs CryptoBufferBreaker.node
+    component.breaker.limit shouldBe 64L * 1024 * 1024
+    component.breaker.stats.trimThresholdBytes shouldBe (64L * 1024 * 1024 * 0.9).toLong
+  }
+}
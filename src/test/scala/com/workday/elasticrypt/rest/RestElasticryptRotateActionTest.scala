@@ -0,0 +1,107 @@
+package com.workday.elasticrypt.rest
+
+import java.io.File
+import java.nio.file.Files
+
+import com.workday.elasticrypt.HardcodedKeyProvider
+import org.apache.lucene.store.LockFactory
+import org.elasticsearch.ElasticsearchIllegalArgumentException
+import org.elasticsearch.client.Client
+import org.elasticsearch.common.settings.ImmutableSettings
+import org.elasticsearch.common.xcontent.XContentFactory
+import org.elasticsearch.index.Index
+import org.elasticsearch.index.shard.ShardId
+import org.elasticsearch.index.store.{EncryptedDirectory, NodeKeyProviderComponent}
+import org.elasticsearch.rest._
+import org.mockito.ArgumentCaptor
+import org.mockito.Mockito._
+import org.scalatest.mockito.MockitoSugar
+import org.scalatest.{BeforeAndAfterEach, FlatSpec, Matchers}
+
+class RestElasticryptRotateActionTest extends FlatSpec with Matchers with MockitoSugar with BeforeAndAfterEach {
+
+  val indexName = "rest_rotate_test"
+  var path: File = _
+  var directory: EncryptedDirectory = _
+
+  override def beforeEach = {
+    path = Files.createTempDirectory("rest_rotate_test").toFile
+    val shardId = mock[ShardId]
+    val index = mock[Index]
+    when(index.getName).thenReturn(indexName)
+    when(shardId.getIndex).thenReturn(indexName)
+    when(shardId.index).thenReturn(index)
+    when(shardId.id).thenReturn(3)
+    val component = mock[NodeKeyProviderComponent]
+    doReturn(new HardcodedKeyProvider()).when(component).keyProvider
+    directory = new EncryptedDirectory(path, mock[LockFactory], shardId, mock[Client], component)
+    super.beforeEach()
+  }
+
+  override def afterEach = {
+    directory.close()
+    Option(path.listFiles).foreach(_.foreach { file =>
+      Option(file.listFiles).foreach(_.foreach(_.delete()))
+      file.delete()
+    })
+    path.delete()
+    super.afterEach()
+  }
+
+  def handle(method: RestRequest.Method, mbPerSec: Option[String] = None): String = {
+    val action = new RestElasticryptRotateAction(ImmutableSettings.settingsBuilder.put("name", "node1").build, mock[RestController],
+      mock[Client])
+    val request = mock[RestRequest]
+    when(request.method).thenReturn(method)
+    when(request.param("index")).thenReturn(indexName)
+    when(request.param("mb_per_sec")).thenReturn(mbPerSec.orNull)
+    val channel = mock[RestChannel]
+    when(channel.newBuilder()).thenReturn(XContentFactory.jsonBuilder())
+
+    action.handleRequest(request, channel, mock[Client])
+
+    val response = ArgumentCaptor.forClass(classOf[RestResponse])
+    verify(channel).sendResponse(response.capture())
+    response.getValue.status shouldBe RestStatus.OK
+    response.getValue.content.toUtf8
+  }
+
+  behavior of "#RestElasticryptRotateAction"
+  it should "register the rotate endpoints" in {
+    val controller = mock[RestController]
+    val action = new RestElasticryptRotateAction(ImmutableSettings.EMPTY, controller, mock[Client])
+
+    verify(controller).registerHandler(RestRequest.Method.POST, "/{index}/_elasticrypt/rotate", action)
+    verify(controller).registerHandler(RestRequest.Method.GET, "/{index}/_elasticrypt/rotate", action)
+  }
+
+  behavior of "#handleRequest"
+  it should "return no progress for shards that were never rotated" in {
+    handle(RestRequest.Method.GET) shouldBe "{\"node\":\"node1\",\"index\":\"" + indexName + "\",\"shards\":[{\"shard\":3," +
+      "\"directory\":\"" + path.getPath + "\",\"rotation\":null}]}"
+    directory.keyRotationProgress shouldBe None
+  }
+
+  it should "start a rotation of every shard of the index on a POST and return its progress on a GET" in {
+    handle(RestRequest.Method.POST, Some("20")) should include("\"shard\":3,\"directory\":\"" + path.getPath + "\",\"rotation\":{\"state\":")
+    directory.keyRotationProgress should not be None
+
+    val deadline = System.currentTimeMillis + 10000
+    while (directory.keyRotationProgress.exists(_.state == "running") && System.currentTimeMillis < deadline) {
+      Thread.sleep(10)
+    }
+    handle(RestRequest.Method.GET) should include("\"rotation\":{\"state\":\"completed\",\"target_key_version\":0,\"total_files\":0")
+  }
+
+  it should "reject a rate that is not a positive number" in {
+    an[ElasticsearchIllegalArgumentException] should be thrownBy handle(RestRequest.Method.POST, Some("0"))
+    an[ElasticsearchIllegalArgumentException] should be thrownBy handle(RestRequest.Method.POST, Some("fast"))
+    directory.keyRotationProgress shouldBe None
+  }
+
+  it should "leave out the shards of closed directories" in {
+    directory.close()
+
+    handle(RestRequest.Method.GET) should include("\"shards\":[]")
+  }
+}
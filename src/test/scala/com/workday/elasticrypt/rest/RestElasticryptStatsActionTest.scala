@@ -0,0 +1,93 @@
+package com.workday.elasticrypt.rest
+
+import java.util.Collections
+
+import com.workday.elasticrypt.action.{ElasticryptNodeStatsResponse, ElasticryptStatsAction, ElasticryptStatsRequest, ElasticryptStatsResponse,
+  TransportElasticryptStatsAction}
+import com.workday.elasticrypt.stats.CryptoMetrics
+import org.elasticsearch.Version
+import org.elasticsearch.action.ActionListener
+import org.elasticsearch.client.{AdminClient, Client, ClusterAdminClient}
+import org.elasticsearch.cluster.ClusterName
+import org.elasticsearch.cluster.node.DiscoveryNode
+import org.elasticsearch.common.settings.ImmutableSettings
+import org.elasticsearch.common.transport.DummyTransportAddress
+import org.elasticsearch.common.xcontent.XContentFactory
+import org.elasticsearch.rest._
+import org.mockito.ArgumentCaptor
+import org.mockito.Matchers.{eq => same}
+import org.mockito.Mockito._
+import org.scalatest.mockito.MockitoSugar
+import org.scalatest.{FlatSpec, Matchers}
+
+class RestElasticryptStatsActionTest extends FlatSpec with Matchers with MockitoSugar {
+
+  val index1 = "rest_stats_test1"
+  val index2 = "rest_stats_test2"
+
+  def node(name: String): DiscoveryNode =
+    new DiscoveryNode(name, name + "_id", DummyTransportAddress.INSTANCE, Collections.emptyMap[String, String](), Version.CURRENT)
+
+  /* Handles a request and returns the request executed on the cluster and the listener of its response */
+  def handle(index: Option[String], channel: RestChannel): (ElasticryptStatsRequest, ActionListener[ElasticryptStatsResponse]) = {
+    val client = mock[Client]
+    val admin = mock[AdminClient]
+    val cluster = mock[ClusterAdminClient]
+    when(client.admin()).thenReturn(admin)
+    when(admin.cluster()).thenReturn(cluster)
+    val action = new RestElasticryptStatsAction(ImmutableSettings.EMPTY, mock[RestController], client)
+    val request = mock[RestRequest]
+    when(request.param("index")).thenReturn(index.orNull)
+
+    action.handleRequest(request, channel, client)
+
+    val statsRequest = ArgumentCaptor.forClass(classOf[ElasticryptStatsRequest])
+    val listener = ArgumentCaptor.forClass(classOf[ActionListener[ElasticryptStatsResponse]])
+    verify(cluster).execute(same(ElasticryptStatsAction), statsRequest.capture(), listener.capture())
+    (statsRequest.getValue, listener.getValue)
+  }
+
+  behavior of "#RestElasticryptStatsAction"
+  it should "register the stats endpoints" in {
+    val controller = mock[RestController]
+    val action = new RestElasticryptStatsAction(ImmutableSettings.EMPTY, controller, mock[Client])
+
+    verify(controller).registerHandler(RestRequest.Method.GET, "/_elasticrypt/stats", action)
+    verify(controller).registerHandler(RestRequest.Method.GET, "/_elasticrypt/stats/{index}", action)
+  }
+
+  behavior of "#handleRequest"
+  it should "ask every node for the metrics of every index" in {
+    val (request, _) = handle(None, mock[RestChannel])
+
+    request.nodesIds shouldBe empty
+    request.indices shouldBe empty
+  }
+
+  it should "ask every node for the requested indices only" in {
+    val (request, _) = handle(Some(s"$index2,missing"), mock[RestChannel])
+
+    request.nodesIds shouldBe empty
+    request.indices shouldBe Array(index2, "missing")
+  }
+
+  it should "send the metrics of every node under its id" in {
+    CryptoMetrics.forFile(index1, "_0.tim").seek()
+    val channel = mock[RestChannel]
+    when(channel.newBuilder()).thenReturn(XContentFactory.jsonBuilder())
+    when(channel.request()).thenReturn(mock[RestRequest])
+    val (_, listener) = handle(None, channel)
+
+    val stats = TransportElasticryptStatsAction.localStats(Array(index1))
+    listener.onResponse(new ElasticryptStatsResponse(new ClusterName("test"),
+      Array(new ElasticryptNodeStatsResponse(node("node1"), stats), new ElasticryptNodeStatsResponse(node("node2"), stats))))
+
+    val response = ArgumentCaptor.forClass(classOf[RestResponse])
+    verify(channel).sendResponse(response.capture())
+    response.getValue.status shouldBe RestStatus.OK
+    val json = response.getValue.content.toUtf8
+    json should startWith("{\"cluster_name\":\"test\",\"nodes\":{\"node1_id\":{\"name\":\"node1\",\"header_verification\":")
+    json should include("\"node2_id\":{\"name\":\"node2\",\"header_verification\":")
+    json should include(s"\"indices\":{\"$index1\":")
+  }
+}
@@ -0,0 +1,174 @@
+package com.workday.elasticrypt.scheduler
+
+import java.util.concurrent.TimeUnit
+
+import org.elasticsearch.common.settings.ImmutableSettings
+import org.elasticsearch.common.xcontent.{ToXContent, XContentFactory}
+import org.elasticsearch.index.merge.OnGoingMerge
+import org.scalatest.mockito.MockitoSugar
+import org.scalatest.{FlatSpec, Matchers}
+
+class CryptoSchedulerTest extends FlatSpec with Matchers with MockitoSugar {
+  import CryptoScheduler.PAUSE_CHECK_BYTES
+
+  /* Records bytes as AESReader does under its lock, then pauses as it does once the lock is released */
+  def process(work: CryptoWork, bytes: Int): Unit = {
+    work.processed(bytes)
+    work.pause()
+  }
+
+  behavior of "CryptoWork#processed"
+  it should "meter foreground work without pausing it, and mark searches as active" in {
+    val scheduler = new CryptoScheduler(0.001, 1.0)
+    val work = scheduler.work("index", background = false)
+    (1 to 10).foreach(_ => process(work, PAUSE_CHECK_BYTES))
+
+    val stats = scheduler.stats
+    stats.searchActive shouldBe true
+    stats.tenants("index").foregroundBytes shouldBe 10L * PAUSE_CHECK_BYTES
+    stats.tenants("index").throttledNanos shouldBe 0L
+    stats.tenants("index").active shouldBe false
+  }
+
+  it should "account background work once enough bytes have accumulated" in {
+    val scheduler = new CryptoScheduler(0.0, 1.0)
+    val work = scheduler.work("index", background = true)
+    process(work, PAUSE_CHECK_BYTES - 1)
+    scheduler.stats.tenants("index").backgroundBytes shouldBe 0L
+
+    process(work, 1)
+    scheduler.stats.tenants("index").backgroundBytes shouldBe PAUSE_CHECK_BYTES.toLong
+    scheduler.stats.tenants("index").active shouldBe true
+  }
+
+  it should "not pause background work while the background rate is 0" in {
+    val scheduler = new CryptoScheduler(0.0, 1.0)
+    val work = scheduler.work("index", background = true)
+    (1 to 10).foreach(_ => process(work, PAUSE_CHECK_BYTES))
+
+    scheduler.stats.tenants("index").shareMbPerSec shouldBe 0.0
+    scheduler.stats.tenants("index").throttledNanos shouldBe 0L
+  }
+
+  it should "pace the background work of a tenant to its share" in {
+    val scheduler = new CryptoScheduler(1.0, 1.0)
+    val work = scheduler.work("index", background = true)
+    // 256KB at 1MB per second take 250ms
+    (1 to 4).foreach(_ => process(work, PAUSE_CHECK_BYTES))
+
+    TimeUnit.NANOSECONDS.toMillis(scheduler.stats.tenants("index").throttledNanos) should be > 100L
+  }
+
+  it should "only pause once pause() is called, i.e. once the reader or writer lock is released" in {
+    val scheduler = new CryptoScheduler(1.0, 1.0)
+    val work = scheduler.work("index", background = true)
+    (1 to 4).foreach(_ => work.processed(PAUSE_CHECK_BYTES))
+    scheduler.stats.tenants("index").throttledNanos shouldBe 0L
+
+    work.pause()
+    scheduler.stats.tenants("index").backgroundBytes shouldBe 4L * PAUSE_CHECK_BYTES
+    TimeUnit.NANOSECONDS.toMillis(scheduler.stats.tenants("index").throttledNanos) should be > 100L
+  }
+
+  it should "classify the work of a thread marked as background as background, whatever the file was opened for" in {
+    val scheduler = new CryptoScheduler(0.0, 1.0)
+    val work = scheduler.work("index", background = false)
+    CryptoScheduler.startBackground()
+    try {
+      process(work, PAUSE_CHECK_BYTES)
+    } finally {
+      CryptoScheduler.endBackground()
+    }
+
+    scheduler.stats.tenants("index").backgroundBytes shouldBe PAUSE_CHECK_BYTES.toLong
+    scheduler.stats.tenants("index").foregroundBytes shouldBe 0L
+    scheduler.stats.searchActive shouldBe false
+
+    process(work, 1024)
+    scheduler.stats.tenants("index").foregroundBytes shouldBe 1024L
+  }
+
+  behavior of "CryptoMergeListener"
+  it should "mark the merge thread as background for the duration of the merge" in {
+    val listener = new CryptoMergeListener
+    val merge = mock[OnGoingMerge]
+    CryptoScheduler.isBackgroundThread shouldBe false
+
+    listener.beforeMerge(merge)
+    CryptoScheduler.isBackgroundThread shouldBe true
+    listener.afterMerge(merge)
+    CryptoScheduler.isBackgroundThread shouldBe false
+  }
+
+  behavior of "#rebalance"
+  it should "split the background rate between active tenants by weight" in {
+    val scheduler = new CryptoScheduler(4.0, 1.0)
+    scheduler.setWeight("heavy", 3.0)
+    process(scheduler.work("heavy", background = true), PAUSE_CHECK_BYTES)
+    scheduler.stats.tenants("heavy").shareMbPerSec shouldBe 4.0
+
+    process(scheduler.work("light", background = true), PAUSE_CHECK_BYTES)
+    val stats = scheduler.stats
+    stats.tenants("heavy").shareMbPerSec shouldBe 3.0
+    stats.tenants("light").shareMbPerSec shouldBe 1.0
+  }
+
+  it should "leave background work only its share of the rate while searches are decrypting" in {
+    val scheduler = new CryptoScheduler(4.0, 0.5)
+    scheduler.work("searched", background = false).processed(1024)
+    process(scheduler.work("merged", background = true), PAUSE_CHECK_BYTES)
+
+    scheduler.stats.tenants("merged").shareMbPerSec shouldBe 2.0
+  }
+
+  behavior of "#removeTenant"
+  it should "forget a tenant and give its share to the others" in {
+    val scheduler = new CryptoScheduler(4.0, 1.0)
+    process(scheduler.work("removed", background = true), PAUSE_CHECK_BYTES)
+    process(scheduler.work("kept", background = true), PAUSE_CHECK_BYTES)
+    scheduler.stats.tenants("kept").shareMbPerSec shouldBe 2.0
+
+    scheduler.removeTenant("removed")
+
+    scheduler.stats.tenants.keySet shouldBe Set("kept")
+    scheduler.stats.tenants("kept").shareMbPerSec shouldBe 4.0
+  }
+
+  behavior of "#setWeight"
+  it should "reject weights that are not positive" in {
+    val scheduler = new CryptoScheduler(0.0, 0.5)
+    an[IllegalArgumentException] should be thrownBy scheduler.setWeight("index", 0.0)
+    an[IllegalArgumentException] should be thrownBy scheduler.setBackgroundMbPerSec(-1.0)
+    an[IllegalArgumentException] should be thrownBy scheduler.setSearchShare(1.5)
+  }
+
+  behavior of "CryptoSchedulerStats#toXContent"
+  it should "write the rate and the usage of every tenant" in {
+    val scheduler = new CryptoScheduler(0.0, 0.5)
+    scheduler.setWeight("index", 2.0)
+    scheduler.work("index", background = false).processed(1024)
+    val builder = XContentFactory.jsonBuilder()
+    scheduler.stats.toXContent(builder, ToXContent.EMPTY_PARAMS)
+
+    builder.string() shouldBe "{\"background_limit_in_mb_per_sec\":0.0,\"search_active\":true,\"tenants\":{\"index\":{" +
+      "\"weight\":2.0,\"active\":false,\"share_in_mb_per_sec\":0.0,\"foreground_in_bytes\":1024,\"background_in_bytes\":0," +
+      "\"throttled_time_in_millis\":0}}}"
+  }
+
+  behavior of "CryptoSchedulerComponent"
+  it should "configure the scheduler of the node from the node settings" in {
+    val settings = ImmutableSettings.settingsBuilder
+      .put(CryptoScheduler.BACKGROUND_MB_PER_SEC_SETTING, 200)
+      .put(CryptoScheduler.SEARCH_SHARE_SETTING, 0.25)
+      .build
+    try {
+      val component = new CryptoSchedulerComponent(settings)
+
+      component.scheduler should be theSameInstanceAs CryptoScheduler.node
+      component.scheduler.stats.backgroundMbPerSec shouldBe 200.0
+    } finally {
+      CryptoScheduler.node.setBackgroundMbPerSec(CryptoScheduler.DEFAULT_BACKGROUND_MB_PER_SEC)
+      CryptoScheduler.node.setSearchShare(CryptoScheduler.DEFAULT_SEARCH_SHARE)
+    }
+  }
+}
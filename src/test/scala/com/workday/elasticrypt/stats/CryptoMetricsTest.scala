@@ -0,0 +1,113 @@
+package com.workday.elasticrypt.stats
+
+import java.io.IOException
+
+import com.workday.elasticrypt.scheduler.CryptoScheduler
+import org.elasticsearch.common.settings.ImmutableSettings
+import org.elasticsearch.common.xcontent.{ToXContent, XContentFactory}
+import org.elasticsearch.index.Index
+import org.elasticsearch.indices.IndicesLifecycle
+import org.mockito.Mockito._
+import org.scalatest.mockito.MockitoSugar
+import org.scalatest.{BeforeAndAfterEach, FlatSpec, Matchers}
+
+class CryptoMetricsTest extends FlatSpec with Matchers with MockitoSugar with BeforeAndAfterEach {
+
+  // CryptoMetrics is shared with the suites running in parallel, so every index name is specific to this suite
+  val index = "crypto_metrics_test"
+  val other = "crypto_metrics_test_other"
+
+  override def beforeEach(): Unit = {
+    CryptoMetrics.removeIndex(index)
+    CryptoMetrics.removeIndex(other)
+  }
+
+  behavior of "#extensionOf"
+  it should "use the extension, or the name before the generation" in {
+    CryptoMetrics.extensionOf("_0_Lucene41_0.tim") shouldBe "tim"
+    CryptoMetrics.extensionOf("_1.fdt") shouldBe "fdt"
+    CryptoMetrics.extensionOf("translog-12") shouldBe "translog"
+    CryptoMetrics.extensionOf("translog-12.recovering") shouldBe "recovering"
+    CryptoMetrics.extensionOf("noextension") shouldBe CryptoMetrics.NO_EXTENSION
+    CryptoMetrics.extensionOf("trailing.") shouldBe CryptoMetrics.NO_EXTENSION
+  }
+
+  behavior of "#forFile"
+  it should "share the metrics of files of the same index and extension" in {
+    CryptoMetrics.forFile(index, "_0.tim") should be theSameInstanceAs CryptoMetrics.forFile(index, "_1.tim")
+    CryptoMetrics.forFile(index, "_0.tim") should not be theSameInstanceAs(CryptoMetrics.forFile(index, "_0.doc"))
+    CryptoMetrics.forFile(index, "_0.tim") should not be theSameInstanceAs(CryptoMetrics.forFile(other, "_0.tim"))
+  }
+
+  behavior of "#snapshot"
+  it should "break the counters down per index and extension" in {
+    val tim = CryptoMetrics.forFile(index, "_0.tim")
+    tim.pageDecrypted(1024, 2000L)
+    tim.pageDecrypted(1024, 2000L)
+    tim.refill()
+    tim.seek()
+    tim.cacheHit()
+    tim.readerOpened()
+    CryptoMetrics.forFile(index, "_0.doc").pageEncrypted(512, 1000L)
+    CryptoMetrics.forKeyFetch(other).time("key")
+
+    val stats = CryptoMetrics.snapshot
+    stats.indices.keySet should contain allOf (index, other)
+    val timStats = stats.indices(index).extensions("tim")
+    (timStats.bytesDecrypted, timStats.pagesDecrypted, timStats.refills, timStats.seeks) shouldBe ((2048L, 2L, 1L, 1L))
+    (timStats.cacheHits, timStats.cacheMisses, timStats.openReaders) shouldBe ((1L, 0L, 1L))
+    timStats.decryptLatency.count shouldBe 2L
+    stats.indices(index).extensions("doc").bytesEncrypted shouldBe 512L
+    stats.indices(index).keyFetches shouldBe None
+    stats.indices(other).keyFetches.map(_.fetches) shouldBe Some(1L)
+  }
+
+  it should "forget removed indices" in {
+    CryptoMetrics.forFile(index, "_0.tim").seek()
+    CryptoMetrics.removeIndex(index)
+
+    CryptoMetrics.snapshot.indices.keySet should not contain index
+  }
+
+  behavior of "CryptoMetricsComponent"
+  it should "forget the metrics and the scheduler tenant of an index once its last shard is closed on the node" in {
+    val indicesLifecycle = mock[IndicesLifecycle]
+    val component = new CryptoMetricsComponent(ImmutableSettings.EMPTY, indicesLifecycle)
+    verify(indicesLifecycle).addListener(component.listener)
+    CryptoMetrics.forFile(index, "_0.tim").seek()
+    CryptoMetrics.forFile(other, "_0.tim").seek()
+    CryptoScheduler.node.work(index, background = false)
+
+    component.listener.afterIndexClosed(new Index(index), ImmutableSettings.EMPTY)
+
+    CryptoMetrics.snapshot.indices.keySet should not contain index
+    CryptoMetrics.snapshot.indices.keySet should contain(other)
+    CryptoScheduler.node.stats.tenants.keySet should not contain index
+  }
+
+  behavior of "KeyFetchMetrics#time"
+  it should "count failed fetches and rethrow" in {
+    val metrics = CryptoMetrics.forKeyFetch(index)
+
+    an[IOException] should be thrownBy metrics.time(throw new IOException("unreachable"))
+    metrics.time("key") shouldBe "key"
+
+    val stats = metrics.snapshot
+    (stats.fetches, stats.failures, stats.latency.count) shouldBe ((2L, 1L, 2L))
+  }
+
+  behavior of "CryptoStats#toXContent"
+  it should "write the header verification and per index sections" in {
+    CryptoMetrics.forFile(index, "_0.tim").pageDecrypted(1024, 2000L)
+    val builder = XContentFactory.jsonBuilder().startObject()
+    CryptoMetrics.snapshot.toXContent(builder, ToXContent.EMPTY_PARAMS)
+    val json = builder.endObject().string()
+
+    json should include("\"header_verification\":{\"verifications\":")
+    json should include("\"crypto_buffers\":{\"limit_size_in_bytes\":")
+    json should include("\"scheduler\":{\"background_limit_in_mb_per_sec\":")
+    json should include(s"\"$index\":{\"extensions\":{\"tim\":{\"bytes_encrypted\":0,\"pages_encrypted\":0,\"bytes_decrypted\":1024")
+    json should include("\"indices\":{")
+    json should include("\"decrypt_latency\":{\"count\":1")
+  }
+}
@@ -0,0 +1,49 @@
+package com.workday.elasticrypt.stats
+
+import org.elasticsearch.common.xcontent.{ToXContent, XContentFactory}
+import org.scalatest.{FlatSpec, Matchers}
+
+class LatencyHistogramTest extends FlatSpec with Matchers {
+
+  behavior of "#bucketOf"
+  it should "put latencies in power-of-two microsecond buckets" in {
+    LatencyHistogram.bucketOf(0L) shouldBe 0
+    LatencyHistogram.bucketOf(999L) shouldBe 0
+    LatencyHistogram.bucketOf(1000L) shouldBe 1
+    LatencyHistogram.bucketOf(3999L) shouldBe 2
+    LatencyHistogram.bucketOf(4000L) shouldBe 3
+    LatencyHistogram.bucketOf(Long.MaxValue) shouldBe LatencyHistogram.NUM_BUCKETS - 1
+  }
+
+  behavior of "#snapshot"
+  it should "count latencies and estimate percentiles from the bucket bounds" in {
+    val histogram = new LatencyHistogram
+    (1 to 98).foreach(_ => histogram.record(1500L))
+    histogram.record(100000L)
+    histogram.record(100000L)
+
+    val snapshot = histogram.snapshot
+    snapshot.count shouldBe 100L
+    snapshot.totalNanos shouldBe 98L * 1500 + 200000
+    snapshot.percentileMicros(0.5) shouldBe 2L
+    snapshot.percentileMicros(0.99) shouldBe 128L
+    snapshot.meanMicros shouldBe 3.47 +- 0.001
+  }
+
+  it should "report zeros when empty" in {
+    val snapshot = new LatencyHistogram().snapshot
+
+    snapshot.percentileMicros(0.99) shouldBe 0L
+    snapshot.meanMicros shouldBe 0.0
+  }
+
+  behavior of "#toXContent"
+  it should "write the count, total, mean and percentiles" in {
+    val histogram = new LatencyHistogram
+    histogram.record(1500L)
+    val builder = XContentFactory.jsonBuilder()
+    histogram.snapshot.toXContent(builder, ToXContent.EMPTY_PARAMS)
+
+    builder.string() shouldBe """{"count":1,"total_time_in_micros":1,"mean_in_micros":1.5,"p50_in_micros":2,"p99_in_micros":2}"""
+  }
+}
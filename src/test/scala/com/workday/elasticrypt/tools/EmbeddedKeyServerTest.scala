@@ -0,0 +1,123 @@
+package com.workday.elasticrypt.tools
+
+import java.io.{File, IOException, PrintWriter}
+import java.net.{HttpURLConnection, URL}
+import java.util.Random
+
+import com.workday.elasticrypt.HttpKeyProvider
+import org.scalatest.{FlatSpec, Matchers}
+
+class EmbeddedKeyServerTest extends FlatSpec with Matchers {
+
+  def withServer(config: KeyServerConfig)(test: EmbeddedKeyServer => Unit): Unit = {
+    val server = new EmbeddedKeyServer(config, threads = 2).start()
+    try test(server) finally server.stop()
+  }
+
+  def paddedKey(key: String): Array[Byte] = key.getBytes.slice(0, 32) ++ Array.fill[Byte](32 - key.length)(1)
+
+  behavior of "LatencyDistribution#parse"
+  it should "parse every distribution" in {
+    LatencyDistribution.parse("none") shouldBe LatencyDistribution.NoLatency
+    LatencyDistribution.parse("constant:200") shouldBe LatencyDistribution.Constant(200)
+    LatencyDistribution.parse("uniform:5:50") shouldBe LatencyDistribution.Uniform(5, 50)
+    LatencyDistribution.parse("lognormal:20:1.5") shouldBe LatencyDistribution.LogNormal(20.0, 1.5)
+  }
+
+  it should "reject unknown and malformed distributions" in {
+    an[IllegalArgumentException] should be thrownBy LatencyDistribution.parse("gaussian:5")
+    an[IllegalArgumentException] should be thrownBy LatencyDistribution.parse("constant:slow")
+    an[IllegalArgumentException] should be thrownBy LatencyDistribution.parse("uniform:50:5")
+  }
+
+  behavior of "LatencyDistribution#sampleMillis"
+  it should "stay within the bounds of a uniform distribution" in {
+    val random = new Random(1)
+    val samples = Seq.fill(1000)(LatencyDistribution.Uniform(5, 10).sampleMillis(random))
+
+    samples.min shouldBe 5L
+    samples.max shouldBe 10L
+  }
+
+  behavior of "#EmbeddedKeyServer"
+  it should "serve configured and derived keys to HttpKeyProvider" in {
+    withServer(KeyServerConfig(keys = Map("tenant" -> "configured-secret"))) { server =>
+      val provider = new HttpKeyProvider(server.uri)
+
+      provider.getKey("tenant").getEncoded shouldBe paddedKey("configured-secret")
+      provider.getKey("other").getEncoded shouldBe paddedKey("key-other")
+      server.stats shouldBe KeyServerStats(2, 0, 0)
+    }
+  }
+
+  it should "add the configured latency" in {
+    withServer(KeyServerConfig(latency = LatencyDistribution.Constant(100))) { server =>
+      val start = System.nanoTime
+      new HttpKeyProvider(server.uri).getKey("tenant")
+
+      (System.nanoTime - start) should be >= 100000000L
+    }
+  }
+
+  it should "inject errors and dropped connections, and change them while running" in {
+    withServer(KeyServerConfig(errorRate = 1.0)) { server =>
+      val provider = new HttpKeyProvider(server.uri)
+      an[IOException] should be thrownBy provider.getKey("tenant")
+
+      server.setConfig(KeyServerConfig(dropRate = 1.0))
+      an[IOException] should be thrownBy provider.getKey("tenant")
+
+      server.setConfig(KeyServerConfig())
+      provider.getKey("tenant").getEncoded shouldBe paddedKey("key-tenant")
+      // HttpClient retries a GET whose connection was dropped, so every retry is dropped again
+      server.stats.errors shouldBe 1L
+      server.stats.drops should be >= 1L
+      server.stats.requests shouldBe server.stats.drops + 2
+    }
+  }
+
+  it should "make HttpKeyProvider fail with an IOException naming the status of injected errors" in {
+    withServer(KeyServerConfig(errorRate = 1.0)) { server =>
+      val thrown = the[IOException] thrownBy new HttpKeyProvider(server.uri).getKey("tenant")
+
+      thrown.getMessage should include("HTTP 500")
+      thrown.getMessage should include("injected failure")
+    }
+  }
+
+  it should "answer 500 for injected errors and 400 without an index name" in {
+    withServer(KeyServerConfig(errorRate = 1.0)) { server =>
+      val failing = new URL(server.uri.toString + "?indexName=tenant").openConnection.asInstanceOf[HttpURLConnection]
+      failing.getResponseCode shouldBe 500
+
+      server.setConfig(KeyServerConfig())
+      val missing = server.uri.toURL.openConnection.asInstanceOf[HttpURLConnection]
+      missing.getResponseCode shouldBe 400
+    }
+  }
+
+  behavior of "#fromOptions"
+  it should "configure the server from command-line options" in {
+    val file = File.createTempFile("key_server_test", ".properties")
+    val writer = new PrintWriter(file)
+    writer.write("tenant=from-file\n")
+    writer.close()
+    try {
+      val values = EmbeddedKeyServer.collect(List("--keys", file.getPath, "--server-threads", "1"), EmbeddedKeyServer.SERVER_VALUES, Map.empty)
+      val server = EmbeddedKeyServer.fromOptions(values).start()
+      try {
+        new HttpKeyProvider(server.uri).getKey("tenant").getEncoded shouldBe paddedKey("from-file")
+      } finally {
+        server.stop()
+      }
+    } finally {
+      file.delete()
+    }
+  }
+
+  it should "reject malformed options" in {
+    an[IllegalArgumentException] should be thrownBy EmbeddedKeyServer.fromOptions(Map("--error-rate" -> "often"))
+    an[IllegalArgumentException] should be thrownBy EmbeddedKeyServer.fromOptions(Map("--error-rate" -> "0.8", "--drop-rate" -> "0.5"))
+    an[IllegalArgumentException] should be thrownBy EmbeddedKeyServer.collect(List("--unknown", "1"), EmbeddedKeyServer.SERVER_VALUES, Map.empty)
+  }
+}
@@ -0,0 +1,140 @@
+package com.workday.elasticrypt.tools
+
+import java.io.{ByteArrayOutputStream, File, PrintStream, RandomAccessFile}
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.util.zip.CRC32
+
+import com.workday.elasticrypt.stats.CryptoMetrics
+import com.workday.elasticrypt.{HardcodedKeyProvider, KeyProvider}
+import org.apache.lucene.codecs.CodecUtil
+import org.apache.lucene.util.{AESWriter, HmacFileHeader}
+import org.scalatest.{BeforeAndAfterEach, FlatSpec, Matchers}
+
+class EncryptedShardScannerTest extends FlatSpec with Matchers with BeforeAndAfterEach {
+
+  val indexName = "test"
+  val keyProvider = new HardcodedKeyProvider()
+  var dataPath: File = _
+
+  override def beforeEach = {
+    dataPath = Files.createTempDirectory("ess_test").toFile
+    super.beforeEach()
+  }
+
+  override def afterEach = {
+    Option(dataPath.listFiles).foreach(_.foreach(_.delete()))
+    dataPath.delete()
+    super.afterEach()
+  }
+
+  /** Returns the given data followed by a Lucene checksum footer */
+  def withFooter(data: Array[Byte]): Array[Byte] = {
+    val footer = ByteBuffer.allocate(CodecUtil.footerLength())
+    footer.putInt(CodecUtil.FOOTER_MAGIC).putInt(0)
+    val crc = new CRC32()
+    crc.update(data)
+    crc.update(footer.array, 0, footer.position)
+    footer.putLong(crc.getValue)
+    data ++ footer.array
+  }
+
+  def writeFile(name: String, plainText: Array[Byte], pageSize: Int = 64, provider: KeyProvider = keyProvider): File = {
+    val file = new File(dataPath, name)
+    val raf = new RandomAccessFile(file, "rw")
+    val writer = new AESWriter(name, raf, pageSize, provider, indexName, new HmacFileHeader(raf, provider, indexName))
+    writer.write(plainText, 0, plainText.length)
+    writer.close()
+    file
+  }
+
+  def scan(options: ScannerOptions, provider: KeyProvider = keyProvider): Seq[FileScanResult] = {
+    new EncryptedShardScanner(options, provider, new PrintStream(new ByteArrayOutputStream())).run()
+  }
+
+  val data = (0 until 200000).map(i => (i * 7).toByte).toArray
+
+  behavior of "#run"
+  it should "validate the padding and checksum of every page range" in {
+    writeFile("_0.cfs", withFooter(data))
+    writeFile("translog-1", data)
+
+    val results = scan(ScannerOptions(dataPath, pagesPerTask = 3, parallelism = 4))
+
+    results.map(_.status).toSet shouldBe Set(EncryptedShardScanner.OK)
+    results.find(_.path.endsWith("_0.cfs")).get.plaintextBytes shouldBe data.length + CodecUtil.footerLength()
+  }
+
+  it should "report checksum mismatches" in {
+    val plainText = withFooter(data)
+    plainText(12345) = (plainText(12345) + 1).toByte
+    writeFile("_0.cfs", plainText)
+
+    val results = scan(ScannerOptions(dataPath, pagesPerTask = 5))
+
+    results.map(_.status) shouldBe Seq(EncryptedShardScanner.FAILED)
+    results.head.message should include ("Checksum mismatch")
+  }
+
+  it should "report files written with another key" in {
+    writeFile("_0.cfs", withFooter(data), provider = new HardcodedKeyProvider(Array.fill[Byte](32)(2)))
+
+    val results = scan(ScannerOptions(dataPath))
+
+    results.map(_.status) shouldBe Seq(EncryptedShardScanner.FAILED)
+    results.head.message should include ("KeyMismatchException")
+  }
+
+  it should "skip files that are not encrypted" in {
+    Files.write(new File(dataPath, "_0.unencrypted").toPath, withFooter(data))
+
+    scan(ScannerOptions(dataPath)).map(_.status) shouldBe Seq(EncryptedShardScanner.SKIPPED)
+  }
+
+  it should "rewrite valid files with the page size of the plugin" in {
+    writeFile("_0.cfs", withFooter(data), pageSize = 16)
+
+    scan(ScannerOptions(dataPath, pageSize = 16, rewrite = true)).map(_.status) shouldBe Seq(EncryptedShardScanner.REWRITTEN)
+    scan(ScannerOptions(dataPath)).map(_.status) shouldBe Seq(EncryptedShardScanner.OK)
+    dataPath.listFiles.map(_.getName).toSeq shouldBe Seq("_0.cfs")
+  }
+
+  it should "close the readers it validates and rewrites files with" in {
+    writeFile("_0.esstest", withFooter(data))
+    val metrics = CryptoMetrics.forFile(CryptoMetrics.UNKNOWN_INDEX, "_0.esstest")
+
+    scan(ScannerOptions(dataPath, rewrite = true)).map(_.status) shouldBe Seq(EncryptedShardScanner.REWRITTEN)
+
+    metrics.snapshot.openReaders shouldBe 0L
+  }
+
+  it should "resume from the progress file" in {
+    writeFile("_0.cfs", withFooter(data))
+    val progressFile = File.createTempFile("ess_progress", ".txt")
+    progressFile.delete()
+
+    scan(ScannerOptions(dataPath, progressFile = Some(progressFile))).size shouldBe 1
+    writeFile("_1.cfs", withFooter(data))
+    val results = scan(ScannerOptions(dataPath, progressFile = Some(progressFile)))
+    progressFile.delete()
+
+    results.map(_.path) shouldBe Seq(new File(dataPath, "_1.cfs").getPath)
+  }
+
+  behavior of "ScannerOptions#parse"
+  it should "parse flags and values" in {
+    val options = ScannerOptions.parse(Seq("--data", "/tmp/data", "--rewrite", "--page-size", "32", "--threads", "2"))
+
+    options shouldBe ScannerOptions(new File("/tmp/data"), pageSize = 32, rewrite = true, parallelism = 2)
+  }
+
+  it should "reject unknown or missing arguments" in {
+    an[IllegalArgumentException] shouldBe thrownBy {
+      ScannerOptions.parse(Seq("--data", "/tmp/data", "--unknown"))
+    }
+    an[IllegalArgumentException] shouldBe thrownBy {
+      ScannerOptions.parse(Seq("--rewrite"))
+    }
+  }
+
+}
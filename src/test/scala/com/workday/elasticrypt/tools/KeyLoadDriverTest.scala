@@ -0,0 +1,67 @@
+package com.workday.elasticrypt.tools
+
+import java.io.IOException
+import javax.crypto.spec.SecretKeySpec
+
+import com.workday.elasticrypt.{HardcodedKeyProvider, HttpKeyProvider, KeyProvider}
+import org.scalatest.{FlatSpec, Matchers}
+
+class KeyLoadDriverTest extends FlatSpec with Matchers {
+
+  behavior of "#run"
+  it should "call getKey from every client until the duration has passed" in {
+    val result = KeyLoadDriver.run(new HardcodedKeyProvider(), IndexedSeq("a", "b"), 4, 100)
+
+    result.requests should be > 0L
+    result.failures shouldBe empty
+    result.elapsedMillis should be >= 100L
+    result.latenciesNanos shouldBe sorted
+  }
+
+  it should "count failures per exception class" in {
+    val failing = new KeyProvider {
+      override def getKey(indexName: String): SecretKeySpec = throw new IOException("key service down")
+    }
+
+    val result = KeyLoadDriver.run(failing, IndexedSeq("a"), 2, 50)
+
+    result.failures.keySet shouldBe Set(classOf[IOException].getName)
+    result.failures.values.sum shouldBe result.requests
+  }
+
+  it should "measure the latency injected by an EmbeddedKeyServer" in {
+    val server = new EmbeddedKeyServer(KeyServerConfig(latency = LatencyDistribution.Constant(20)), threads = 2).start()
+    try {
+      val result = KeyLoadDriver.run(new HttpKeyProvider(server.uri), IndexedSeq("a", "b"), 2, 200)
+
+      result.requests should be > 0L
+      result.failures shouldBe empty
+      result.percentileMillis(0.5) should be >= 20.0
+      server.stats.requests shouldBe result.requests
+    } finally {
+      server.stop()
+    }
+  }
+
+  it should "report the errors injected by an EmbeddedKeyServer as IOExceptions" in {
+    val server = new EmbeddedKeyServer(KeyServerConfig(errorRate = 1.0), threads = 2).start()
+    try {
+      val result = KeyLoadDriver.run(new HttpKeyProvider(server.uri), IndexedSeq("a"), 2, 100)
+
+      result.requests should be > 0L
+      result.failures shouldBe Map(classOf[IOException].getName -> result.requests)
+    } finally {
+      server.stop()
+    }
+  }
+
+  behavior of "KeyLoadResult#percentileMillis"
+  it should "return the nearest rank in milliseconds" in {
+    val result = KeyLoadResult(4, Map.empty, 1000, IndexedSeq(1000000L, 2000000L, 3000000L, 40000000L))
+
+    result.percentileMillis(0.5) shouldBe 2.0
+    result.percentileMillis(0.99) shouldBe 40.0
+    result.requestsPerSecond shouldBe 4.0
+    KeyLoadResult(0, Map.empty, 0, IndexedSeq.empty).percentileMillis(0.99) shouldBe 0.0
+  }
+}
@@ -6,6 +6,7 @@ import java.nio.channels.{ReadableByteChannel, WritableByteChannel}
 import javax.crypto.spec.SecretKeySpec
 
 import com.workday.elasticrypt.KeyProvider
+import com.workday.elasticrypt.breaker.CryptoBufferBreaker
 import org.apache.lucene.util.HmacUtil
 import org.scalatest.BeforeAndAfterEach
 
@@ -82,58 +83,176 @@ class EncryptedFileChannelTest extends FlatSpec with Matchers with MockitoSugar
     }
   }
 
+  def writeTestFile(data: Array[Byte]): EncryptedFileChannel = {
+    val efc = new EncryptedFileChannel(fileName, new RandomAccessFile(absolutePathFileName, "rw"), 10, getMockKeyProvider, indexName)
+    efc.write(java.nio.ByteBuffer.wrap(data))
+    efc
+  }
+
+  def readTestFile(): Array[Byte] = {
+    val efc = new EncryptedFileChannel(fileName, new RandomAccessFile(absolutePathFileName, "r"), 10, getMockKeyProvider, indexName)
+    val bytes = new Array[Byte](efc.size().toInt)
+    efc.read(java.nio.ByteBuffer.wrap(bytes))
+    efc.close()
+    bytes
+  }
+
+  val testBytes = (0 until 1000).map(_.toByte).toArray[Byte]
+
   behavior of "#transferFrom"
-  it should "throw an exception" in {
-    val efc = getMockChannel
+  it should "encrypt bytes from the source channel at the given position" in {
+    val efc = writeTestFile(testBytes)
+    val src = java.nio.channels.Channels.newChannel(new java.io.ByteArrayInputStream(Array.fill[Byte](300)(7)))
+
+    efc.transferFrom(src, 900, 300) shouldBe 300
+    efc.position() shouldBe 1000
+    efc.size() shouldBe 1200
+    efc.close()
+
+    readTestFile() shouldBe testBytes.take(900) ++ Array.fill[Byte](300)(7)
+  }
+
+  it should "transfer nothing past the end of the file" in {
+    val efc = writeTestFile(testBytes)
     val src = mock[ReadableByteChannel]
 
-    an[UnsupportedOperationException] shouldBe thrownBy {
+    efc.transferFrom(src, 1001, 100) shouldBe 0
+    verify(src, times(0)).read(any[java.nio.ByteBuffer])
+    efc.close()
+  }
+
+  it should "throw an exception on a read-only file and leave it readable" in {
+    writeTestFile(testBytes).close()
+    val efc = new EncryptedFileChannel(fileName, new RandomAccessFile(absolutePathFileName, "r"), 10, getMockKeyProvider, indexName)
+    val src = mock[ReadableByteChannel]
+
+    an[java.nio.channels.NonWritableChannelException] shouldBe thrownBy {
       efc.transferFrom(src, 0, 100)
     }
+    an[java.nio.channels.NonWritableChannelException] shouldBe thrownBy {
+      efc.write(java.nio.ByteBuffer.wrap(testBytes), 0)
+    }
+    val bytes = new Array[Byte](10)
+    efc.read(java.nio.ByteBuffer.wrap(bytes), 0)
+    bytes shouldBe testBytes.take(10)
+    efc.close()
   }
 
   behavior of "#position"
-  it should "throw an exception with no parameters" in {
-    val efc = getMockChannel
+  it should "track the writer position" in {
+    val efc = writeTestFile(testBytes)
+    efc.position() shouldBe 1000
 
-    an[UnsupportedOperationException] shouldBe thrownBy {
-      efc.position()
+    efc.position(10).position() shouldBe 10
+    efc.close()
+  }
+
+  it should "track the reader position" in {
+    writeTestFile(testBytes).close()
+    val efc = new EncryptedFileChannel(fileName, new RandomAccessFile(absolutePathFileName, "r"), 10, getMockKeyProvider, indexName)
+    efc.position() shouldBe 0
+
+    efc.position(500).position() shouldBe 500
+    val bytes = new Array[Byte](10)
+    efc.read(java.nio.ByteBuffer.wrap(bytes))
+    bytes shouldBe testBytes.slice(500, 510)
+
+    an[IllegalArgumentException] shouldBe thrownBy {
+      efc.position(1000)
     }
+    efc.close()
   }
-  it should "throw an exception with parameters" in {
+
+  it should "reject negative positions" in {
     val efc = getMockChannel
 
-    an[UnsupportedOperationException] shouldBe thrownBy {
-      efc.position(100)
+    an[IllegalArgumentException] shouldBe thrownBy {
+      efc.position(-1)
     }
   }
 
   behavior of "#transferTo"
-  it should "throw an exception" in {
-    val efc = getMockChannel
+  it should "decrypt bytes into the target channel" in {
+    val efc = writeTestFile(testBytes)
+    val out = new java.io.ByteArrayOutputStream()
+
+    efc.transferTo(100, 5000, java.nio.channels.Channels.newChannel(out)) shouldBe 900
+    efc.position() shouldBe 1000
+    efc.close()
+
+    out.toByteArray shouldBe testBytes.drop(100)
+  }
+
+  it should "stop when the target does not accept more bytes" in {
+    val efc = writeTestFile(testBytes)
     val dst = mock[WritableByteChannel]
+    when(dst.write(any[java.nio.ByteBuffer])).thenReturn(0)
 
-    an[UnsupportedOperationException] shouldBe thrownBy {
-      efc.transferTo(0, 100, dst)
-    }
+    efc.transferTo(0, 100, dst) shouldBe 0
+    efc.close()
+  }
+
+  it should "account the transfer buffer in the breaker until the channel is closed" in {
+    writeTestFile(testBytes).close()
+    val breaker = new CryptoBufferBreaker(Long.MaxValue, 1.0)
+    val efc = new EncryptedFileChannel(fileName, new RandomAccessFile(absolutePathFileName, "r"), 10, getMockKeyProvider, indexName,
+      breaker = breaker)
+    breaker.usedBytes shouldBe 0L
+
+    efc.transferTo(0, 1000, java.nio.channels.Channels.newChannel(new java.io.ByteArrayOutputStream())) shouldBe 1000
+    breaker.usedBytes shouldBe 10L * EncryptedFileChannel.BLOCKSIZE * EncryptedFileChannel.TRANSFER_PAGES
+    efc.close()
+    breaker.usedBytes shouldBe 0L
+  }
+
+  it should "not change the position of a read-only channel" in {
+    writeTestFile(testBytes).close()
+    val efc = new EncryptedFileChannel(fileName, new RandomAccessFile(absolutePathFileName, "r"), 10, getMockKeyProvider, indexName)
+    efc.position(10)
+    val out = new java.io.ByteArrayOutputStream()
+
+    efc.transferTo(100, 5000, java.nio.channels.Channels.newChannel(out)) shouldBe 900
+    efc.position() shouldBe 10
+    out.toByteArray shouldBe testBytes.drop(100)
+    efc.close()
   }
 
   behavior of "#size"
-  it should "throw an exception" in {
-    val efc = getMockChannel
+  it should "return the writer length" in {
+    val efc = writeTestFile(testBytes)
+    efc.size() shouldBe 1000
+    efc.close()
+  }
 
-    an[UnsupportedOperationException] shouldBe thrownBy {
-      efc.size()
-    }
+  it should "return the reader length" in {
+    writeTestFile(testBytes).close()
+    readTestFile().length shouldBe 1000
   }
 
   behavior of "#truncate"
-  it should "throw an exception" in {
-    val efc = getMockChannel
+  it should "cut the file at the given size" in {
+    val efc = writeTestFile(testBytes)
+    efc.truncate(321).size() shouldBe 321
+    efc.position() shouldBe 321
+    efc.close()
 
-    an[UnsupportedOperationException] shouldBe thrownBy {
+    readTestFile() shouldBe testBytes.take(321)
+  }
+
+  it should "not grow the file" in {
+    val efc = writeTestFile(testBytes)
+    efc.truncate(2000).size() shouldBe 1000
+    efc.close()
+  }
+
+  it should "throw an exception on a read-only file" in {
+    writeTestFile(testBytes).close()
+    val efc = new EncryptedFileChannel(fileName, new RandomAccessFile(absolutePathFileName, "r"), 10, getMockKeyProvider, indexName)
+
+    an[java.nio.channels.NonWritableChannelException] shouldBe thrownBy {
       efc.truncate(100)
     }
+    efc.close()
   }
 
   behavior of "#lock"
@@ -223,6 +342,24 @@ class EncryptedFileChannelTest extends FlatSpec with Matchers with MockitoSugar
     verify(mockReader, times(1)).read(bytes)
   }
 
+  it should "not change the position of a read-only channel on a positional read" in {
+    writeTestFile(testBytes).close()
+    val efc = new EncryptedFileChannel(fileName, new RandomAccessFile(absolutePathFileName, "r"), 10, getMockKeyProvider, indexName)
+    efc.position(10)
+
+    val bytes = new Array[Byte](10)
+    efc.read(java.nio.ByteBuffer.wrap(bytes), 500) shouldBe 10
+    bytes shouldBe testBytes.slice(500, 510)
+    efc.position() shouldBe 10
+
+    // A channel read up to its end stays there
+    efc.read(java.nio.ByteBuffer.wrap(new Array[Byte](990))) shouldBe 990
+    efc.read(java.nio.ByteBuffer.wrap(bytes), 0) shouldBe 10
+    efc.position() shouldBe 1000
+    efc.read(java.nio.ByteBuffer.wrap(bytes)) shouldBe -1
+    efc.close()
+  }
+
   it should "read Array of ByteBuffers from reader" in {
     val efc = spy(getMockChannel)
     val mockReader = mock[AESReader]
@@ -249,8 +386,17 @@ class EncryptedFileChannelTest extends FlatSpec with Matchers with MockitoSugar
     verify(mockWriter, times(2)).flush()
   }
 
+  it should "do nothing on a read-only file" in {
+    writeTestFile(testBytes).close()
+    val efc = new EncryptedFileChannel(fileName, new RandomAccessFile(absolutePathFileName, "r"), 10, getMockKeyProvider, indexName)
+
+    efc.force(metaData = true)
+    efc.size() shouldBe 1000
+    efc.close()
+  }
+
   behavior of "#implCloseChannel"
-  it should "close both reader & writer" in {
+  it should "close the writer and leave an unopened reader alone" in {
     val efc = spy(getMockChannel)
     val mockWriter = mock[AESWriter]
     doReturn(mockWriter).when(efc).writer
@@ -258,8 +404,35 @@ class EncryptedFileChannelTest extends FlatSpec with Matchers with MockitoSugar
     doReturn(mockReader).when(efc).reader
 
     efc.implCloseChannel()
-    verify(mockReader, times(1)).close()
+    verify(mockReader, times(0)).close()
     verify(mockWriter, times(1)).close()
   }
 
+  behavior of "#isWritable"
+  it should "decide once, when the channel is opened, whether it writes the file" in {
+    val writing = writeTestFile(testBytes)
+    writing.isWritable shouldBe true
+    writing.close()
+
+    val raf = spy(new RandomAccessFile(absolutePathFileName, "rw"))
+    val efc = new EncryptedFileChannel(fileName, raf, 10, getMockKeyProvider, indexName)
+    efc.isWritable shouldBe false
+    an[java.nio.channels.NonWritableChannelException] shouldBe thrownBy {
+      efc.write(java.nio.ByteBuffer.wrap(testBytes))
+    }
+    efc.isWritable shouldBe false
+
+    verify(raf, times(1)).length()
+    efc.close()
+  }
+
+  it should "close a read-only channel without opening a writer" in {
+    writeTestFile(testBytes).close()
+    val efc = new EncryptedFileChannel(fileName, new RandomAccessFile(absolutePathFileName, "r"), 10, getMockKeyProvider, indexName)
+    efc.size() shouldBe 1000
+
+    efc.close()
+    efc.isOpen shouldBe false
+  }
+
 }
@@ -52,7 +52,9 @@ class EncryptedTranslogTest extends FlatSpec with Matchers with MockitoSugar wit
     shard
   }
 
-  def getEFT = {
+  def getEFT: EncryptedTranslog = newEFT(compress = false)
+
+  def newEFT(compress: Boolean): EncryptedTranslog = {
     val shard = getMockShard
     val indexStore = mock[IndexStore]
     val path = mock[Path]
@@ -67,8 +69,10 @@ class EncryptedTranslogTest extends FlatSpec with Matchers with MockitoSugar wit
     doReturn("simple").when(settings).get("type", Type.BUFFERED.name)
     doReturn(new ByteSizeValue(100)).when(settings).getAsBytesSize("buffer_size", ByteSizeValue.parseBytesSizeValue("64k"))
     doReturn(new ByteSizeValue(100)).when(settings).getAsBytesSize("transient_buffer_size", ByteSizeValue.parseBytesSizeValue("8k"))
+    doReturn(compress).when(settings).getAsBoolean(EncryptedTranslog.COMPRESS_SETTING, false)
 
-    new EncryptedTranslog(shard, settings, mock[IndexSettingsService], mock[BigArrays], indexStore, mock[NodeKeyProviderComponent])
+    new EncryptedTranslog(shard, settings, mock[IndexSettingsService], mock[BigArrays], indexStore, mock[NodeKeyProviderComponent],
+      mock[ThreadPool])
   }
 
   behavior of "#createRafReference"
@@ -76,6 +80,11 @@ class EncryptedTranslogTest extends FlatSpec with Matchers with MockitoSugar wit
     getEFT.createRafReference(f, mock[ESLogger]) shouldBe an[EncryptedRafReference]
   }
 
+  it should "compress the translog if enabled in the index settings" in {
+    newEFT(compress = true).createRafReference(f, mock[ESLogger]).channel() shouldBe a[FrameCompressingFileChannel]
+    newEFT(compress = false).createRafReference(f, mock[ESLogger]).channel() shouldBe an[EncryptedFileChannel]
+  }
+
   behavior of "#translogStreamFor"
   it should "create EncryptedTranslogStream" in {
     getEFT.translogStreamFor(f) shouldBe an[EncryptedTranslogStream]
@@ -95,7 +104,8 @@ class EncryptedTranslogTest extends FlatSpec with Matchers with MockitoSugar wit
     doReturn(Seq(Paths.get("/tmp/test")).toArray[Path]).when(indexStore).shardTranslogLocations(any[ShardId])
 
     val requester = mock[KeyProvider]
-    val eft = spy(new EncryptedTranslog(shard, settings, mock[IndexSettingsService], bigArrays, indexStore, mockedNodeKeyProviderComponent))
+    val eft = spy(new EncryptedTranslog(shard, settings, mock[IndexSettingsService], bigArrays, indexStore, mockedNodeKeyProviderComponent,
+      threadPool))
     doReturn(requester).when(mockedNodeKeyProviderComponent).keyProvider
 
     val keyBytes = (1 to 32).map(_.toByte).toArray[Byte]
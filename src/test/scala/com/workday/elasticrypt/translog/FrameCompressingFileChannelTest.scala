@@ -0,0 +1,229 @@
+package com.workday.elasticrypt.translog
+
+import java.io.{ByteArrayOutputStream, File, RandomAccessFile}
+import java.nio.ByteBuffer
+import java.nio.channels.{Channels, NonWritableChannelException}
+import java.util.concurrent.Executors
+import javax.crypto.spec.SecretKeySpec
+
+import com.workday.elasticrypt.KeyProvider
+import com.workday.elasticrypt.breaker.CryptoBufferBreaker
+import org.apache.lucene.util.{FileHeader, HmacFileHeader, HmacUtil}
+import org.mockito.Mockito._
+import org.scalatest.mockito.MockitoSugar
+import org.scalatest.{BeforeAndAfterAll, BeforeAndAfterEach, FlatSpec, Matchers}
+
+class FrameCompressingFileChannelTest extends FlatSpec with Matchers with MockitoSugar
+  with BeforeAndAfterEach with BeforeAndAfterAll {
+
+  val indexName = "test"
+  val fileName = "/tmp/fcfc_test"
+  val plainFileName = "/tmp/fcfc_plain_test"
+  val f = new File(fileName)
+  val plainFile = new File(plainFileName)
+  val pageSize = 4
+  val frameSize = 1000
+  val executor = Executors.newFixedThreadPool(2)
+
+  override def beforeEach = {
+    Seq(f, plainFile).filter(_.exists()).foreach(_.delete())
+    super.beforeEach()
+  }
+
+  override def afterEach = {
+    Seq(f, plainFile).filter(_.exists()).foreach(_.delete())
+    super.afterEach()
+  }
+
+  override def afterAll = {
+    executor.shutdownNow()
+    super.afterAll()
+  }
+
+  def getMockKeyProvider = {
+    val keyProvider = mock[KeyProvider]
+    val encodedKeyBytes = (1 to 32).map(_.toByte).toArray
+    val secretKeySpec = new SecretKeySpec(encodedKeyBytes, 0, encodedKeyBytes.length, HmacUtil.DATA_CIPHER_ALGORITHM)
+    when(keyProvider.getKey(indexName)).thenReturn(secretKeySpec)
+    keyProvider
+  }
+
+  def newChannel(mode: String, breaker: CryptoBufferBreaker = CryptoBufferBreaker.node): FrameCompressingFileChannel = {
+    val raf = new RandomAccessFile(f, mode)
+    val encrypted = new EncryptedFileChannel(f.getName, raf, pageSize, getMockKeyProvider, indexName, FileHeader.LZ4_FRAMES, breaker)
+    new FrameCompressingFileChannel(f.getName, encrypted, frameSize, breaker)
+  }
+
+  /* Translog-like data: repetitive JSON with a counter */
+  def operations(count: Int): Array[Byte] =
+    (0 until count).map(i => s"""{"_id":"$i","user":"kimchy","message":"trying out elasticsearch"}""").mkString.getBytes
+
+  def readAt(channel: FrameCompressingFileChannel, position: Long, length: Int): Array[Byte] = {
+    val buffer = ByteBuffer.allocate(length)
+    channel.read(buffer, position) shouldBe length
+    buffer.array
+  }
+
+  behavior of "#write"
+  it should "compress data spanning many frames and read it back at any position" in {
+    val data = operations(200)
+    val channel = newChannel("rw")
+    data.grouped(333).foreach(chunk => channel.write(ByteBuffer.wrap(chunk)))
+
+    channel.size() shouldBe data.length
+    channel.position() shouldBe data.length
+    readAt(channel, 0, data.length) shouldBe data
+    readAt(channel, 995, 10) shouldBe data.slice(995, 1005)
+    readAt(channel, data.length - 5, 5) shouldBe data.takeRight(5)
+    channel.read(ByteBuffer.allocate(1), data.length) shouldBe -1
+    channel.close()
+
+    val reader = newChannel("r")
+    reader.size() shouldBe data.length
+    readAt(reader, 2500, 1234) shouldBe data.slice(2500, 3734)
+    readAt(reader, 0, data.length) shouldBe data
+    reader.close()
+  }
+
+  it should "write fewer bytes to disk than an uncompressed encrypted channel" in {
+    val data = operations(500)
+    val channel = newChannel("rw")
+    channel.write(ByteBuffer.wrap(data))
+    channel.close()
+
+    val plain = new EncryptedFileChannel(plainFile.getName, new RandomAccessFile(plainFile, "rw"), pageSize, getMockKeyProvider, indexName)
+    plain.write(ByteBuffer.wrap(data))
+    plain.close()
+
+    f.length should be < plainFile.length / 2
+  }
+
+  it should "record the frame layout in the file header" in {
+    val channel = newChannel("rw")
+    channel.write(ByteBuffer.wrap(operations(1)))
+    channel.close()
+
+    val raf = new RandomAccessFile(f, "r")
+    val header = new HmacFileHeader(raf, getMockKeyProvider, indexName)
+    header.readHeader()
+    raf.close()
+    header.compression shouldBe FileHeader.LZ4_FRAMES
+  }
+
+  it should "only append" in {
+    val channel = newChannel("rw")
+    channel.write(ByteBuffer.wrap(operations(10)))
+
+    an[UnsupportedOperationException] shouldBe thrownBy {
+      channel.write(ByteBuffer.wrap(operations(1)), 0)
+    }
+    channel.close()
+
+    val reader = newChannel("r")
+    a[NonWritableChannelException] shouldBe thrownBy {
+      reader.write(ByteBuffer.wrap(operations(1)))
+    }
+    reader.close()
+  }
+
+  behavior of "#force"
+  it should "write out a partial frame and keep appending after it" in {
+    val data = operations(50)
+    val channel = newChannel("rw")
+    channel.write(ByteBuffer.wrap(data, 0, 100))
+    channel.force(false)
+    channel.write(ByteBuffer.wrap(data, 100, data.length - 100))
+
+    readAt(channel, 50, 100) shouldBe data.slice(50, 150)
+    channel.close()
+
+    val reader = newChannel("r")
+    readAt(reader, 0, data.length) shouldBe data
+    reader.close()
+  }
+
+  behavior of "#truncate"
+  it should "drop the end of the frame being collected only" in {
+    val data = operations(50)
+    val channel = newChannel("rw")
+    channel.write(ByteBuffer.wrap(data))
+    val framed = data.length / frameSize * frameSize
+
+    channel.truncate(framed + 10)
+    channel.size() shouldBe framed + 10
+    an[UnsupportedOperationException] shouldBe thrownBy {
+      channel.truncate(framed - 1)
+    }
+    channel.close()
+  }
+
+  behavior of "#transferTo"
+  it should "decompress into the target channel" in {
+    val data = operations(100)
+    val channel = newChannel("rw")
+    channel.write(ByteBuffer.wrap(data))
+
+    val out = new ByteArrayOutputStream()
+    channel.transferTo(100, 3000, Channels.newChannel(out)) shouldBe 3000
+    out.toByteArray shouldBe data.slice(100, 3100)
+    channel.close()
+  }
+
+  behavior of "#close"
+  it should "release the buffers accounted in the breaker" in {
+    val breaker = new CryptoBufferBreaker(Long.MaxValue, 1.0)
+    val channel = newChannel("rw", breaker)
+    breaker.usedBytes should be >= 2L * frameSize
+
+    channel.write(ByteBuffer.wrap(operations(100)))
+    readAt(channel, 0, 3000)
+    channel.transferTo(0, 3000, Channels.newChannel(new ByteArrayOutputStream())) shouldBe 3000
+    breaker.usedBytes should be >= 4L * frameSize
+    channel.close()
+    breaker.usedBytes shouldBe 0L
+  }
+
+  behavior of "FrameDecompressingInputStream"
+  it should "decompress a compressed translog during replay" in {
+    val data = operations(300)
+    val channel = newChannel("rw")
+    channel.write(ByteBuffer.wrap(data))
+    channel.close()
+
+    val in = new FrameDecompressingInputStream(new ParallelDecryptingInputStream(f, pageSize, getMockKeyProvider, indexName, executor, 3, 2))
+    val out = new ByteArrayOutputStream()
+    val buffer = new Array[Byte](77)
+    Iterator.continually(in.read(buffer)).takeWhile(_ != -1).foreach(out.write(buffer, 0, _))
+    in.close()
+    out.toByteArray shouldBe data
+  }
+
+  it should "release the buffers accounted in the breaker on close" in {
+    val channel = newChannel("rw")
+    channel.write(ByteBuffer.wrap(operations(100)))
+    channel.close()
+
+    val ringBreaker = new CryptoBufferBreaker(Long.MaxValue, 1.0)
+    val breaker = new CryptoBufferBreaker(Long.MaxValue, 1.0)
+    val in = new FrameDecompressingInputStream(
+      new ParallelDecryptingInputStream(f, pageSize, getMockKeyProvider, indexName, executor, 3, 2, ringBreaker), breaker)
+    in.read()
+    breaker.usedBytes should be >= frameSize.toLong
+    in.close()
+    breaker.usedBytes shouldBe 0L
+    ringBreaker.usedBytes shouldBe 0L
+  }
+
+  it should "pass uncompressed translogs through" in {
+    val data = operations(30)
+    val plain = new EncryptedFileChannel(f.getName, new RandomAccessFile(f, "rw"), pageSize, getMockKeyProvider, indexName)
+    plain.write(ByteBuffer.wrap(data))
+    plain.close()
+
+    val in = new FrameDecompressingInputStream(new ParallelDecryptingInputStream(f, pageSize, getMockKeyProvider, indexName, executor, 3, 2))
+    val out = new ByteArrayOutputStream()
+    Iterator.continually(in.read()).takeWhile(_ != -1).foreach(b => out.write(b))
+    in.close()
+    out.toByteArray shouldBe data
+  }
+}
@@ -0,0 +1,144 @@
+package com.workday.elasticrypt.translog
+
+import java.io.{File, IOException, RandomAccessFile}
+import java.util.concurrent.Executors
+import javax.crypto.spec.SecretKeySpec
+
+import com.workday.elasticrypt.KeyProvider
+import com.workday.elasticrypt.breaker.CryptoBufferBreaker
+import org.apache.lucene.util.{AESWriter, HmacFileHeader, HmacUtil}
+import org.mockito.Mockito._
+import org.scalatest.mockito.MockitoSugar
+import org.scalatest.{BeforeAndAfterAll, BeforeAndAfterEach, FlatSpec, Matchers}
+
+class ParallelDecryptingInputStreamTest extends FlatSpec with Matchers with MockitoSugar
+  with BeforeAndAfterEach with BeforeAndAfterAll {
+
+  val indexName = "test"
+  val fileName = "/tmp/pdis_test"
+  val f = new File(fileName)
+  val pageSize = 4
+  val executor = Executors.newFixedThreadPool(4)
+
+  override def beforeEach = {
+    if (f.exists()) {
+      f.delete()
+    }
+    super.beforeEach()
+  }
+
+  override def afterEach = {
+    if (f.exists()) {
+      f.delete()
+    }
+    super.afterEach()
+  }
+
+  override def afterAll = {
+    executor.shutdownNow()
+    super.afterAll()
+  }
+
+  def getMockKeyProvider = {
+    val keyProvider = mock[KeyProvider]
+    val encodedKeyBytes = (1 to 32).map(_.toByte).toArray
+    val secretKeySpec = new SecretKeySpec(encodedKeyBytes, 0, encodedKeyBytes.length, HmacUtil.DATA_CIPHER_ALGORITHM)
+    when(keyProvider.getKey(indexName)).thenReturn(secretKeySpec)
+    keyProvider
+  }
+
+  def writeFile(data: Array[Byte]): Unit = {
+    val keyProvider = getMockKeyProvider
+    val raf = new RandomAccessFile(f, "rw")
+    val writer = new AESWriter(f.getName, raf, pageSize, keyProvider, indexName, new HmacFileHeader(raf, keyProvider, indexName))
+    writer.write(data, 0, data.length)
+    writer.close()
+  }
+
+  def readAll(in: ParallelDecryptingInputStream): Array[Byte] = {
+    val out = new java.io.ByteArrayOutputStream()
+    val buffer = new Array[Byte](37)
+    Iterator.continually(in.read(buffer)).takeWhile(_ != -1).foreach(out.write(buffer, 0, _))
+    in.close()
+    out.toByteArray
+  }
+
+  behavior of "#read"
+  it should "decrypt a file spanning many chunks in order" in {
+    val data = (0 until 10000).map(_.toByte).toArray
+    writeFile(data)
+
+    val in = new ParallelDecryptingInputStream(f, pageSize, getMockKeyProvider, indexName, executor, 3, 2)
+    readAll(in) shouldBe data
+  }
+
+  it should "decrypt a file whose last page is a full block of padding" in {
+    val data = (0 until pageSize * 16 * 5 + 32).map(_.toByte).toArray
+    writeFile(data)
+
+    val in = new ParallelDecryptingInputStream(f, pageSize, getMockKeyProvider, indexName, executor, 2, 4)
+    readAll(in) shouldBe data
+  }
+
+  it should "read single bytes" in {
+    val data = "READ_WRITE_TEST".map(_.toByte).toArray
+    writeFile(data)
+
+    val in = new ParallelDecryptingInputStream(f, pageSize, getMockKeyProvider, indexName, executor, 1, 1)
+    Iterator.continually(in.read()).takeWhile(_ != -1).map(_.toByte).toArray shouldBe data
+    in.close()
+  }
+
+  it should "fail on a truncated page" in {
+    writeFile((0 until 1000).map(_.toByte).toArray)
+    val raf = new RandomAccessFile(f, "rw")
+    raf.setLength(raf.length - 5)
+    raf.close()
+
+    val in = new ParallelDecryptingInputStream(f, pageSize, getMockKeyProvider, indexName, executor, 2, 2)
+    an[IOException] shouldBe thrownBy {
+      readAll(in)
+    }
+    in.close()
+  }
+
+  it should "decrypt on the given executor, at most readAhead chunks ahead of the consumer" in {
+    writeFile((0 until 10000).map(_.toByte).toArray)
+    val submitted = new java.util.concurrent.atomic.AtomicInteger()
+    val counting = new java.util.concurrent.Executor {
+      override def execute(command: Runnable): Unit = {
+        submitted.incrementAndGet()
+        executor.execute(command)
+      }
+    }
+
+    val in = new ParallelDecryptingInputStream(f, pageSize, getMockKeyProvider, indexName, counting, 3)
+    in.read()
+    submitted.get shouldBe ParallelDecryptingInputStream.DEFAULT_READ_AHEAD
+    in.close()
+  }
+
+  behavior of "#close"
+  it should "reject reads after close" in {
+    writeFile("READ_WRITE_TEST".map(_.toByte).toArray)
+    val in = new ParallelDecryptingInputStream(f, pageSize, getMockKeyProvider, indexName, executor)
+    in.close()
+
+    an[IOException] shouldBe thrownBy {
+      in.read()
+    }
+  }
+
+  it should "release the read-ahead ring accounted in the breaker since the first read" in {
+    writeFile((0 until 10000).map(_.toByte).toArray)
+    val breaker = new CryptoBufferBreaker(Long.MaxValue, 1.0)
+    val in = new ParallelDecryptingInputStream(f, pageSize, getMockKeyProvider, indexName, executor, 3, 2, breaker)
+    breaker.usedBytes shouldBe 0L
+
+    in.read()
+    breaker.usedBytes should be > 0L
+    in.close()
+    breaker.usedBytes shouldBe 0L
+  }
+
+}
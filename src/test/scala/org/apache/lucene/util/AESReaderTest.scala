@@ -1,5 +1,12 @@
 package org.apache.lucene.util
 
+import java.io.{File, RandomAccessFile}
+import java.nio.ByteBuffer
+import java.util.concurrent.TimeUnit
+import javax.crypto.spec.SecretKeySpec
+
+import com.workday.elasticrypt.KeyProvider
+import org.mockito.Mockito._
 import org.scalatest.mockito.MockitoSugar
 import org.scalatest.{FlatSpec, Matchers}
 
@@ -33,6 +40,88 @@ class AESReaderTest extends FlatSpec with Matchers with MockitoSugar {
 
   }
 
+  it should "decrypt whole pages straight into direct and heap buffers" in {
+    val f = new File("/tmp/aesreader_test")
+    f.delete()
+    val keyBytes = (1 to 32).map(_.toByte).toArray[Byte]
+    val keyProvider = mock[KeyProvider]
+    when(keyProvider.getKey("test")).thenReturn(new SecretKeySpec(keyBytes, HmacUtil.DATA_CIPHER_ALGORITHM))
+
+    val data = (0 until 5000).map(i => (i * 31).toByte).toArray[Byte]
+    val writer = new AESWriter("test", new RandomAccessFile(f, "rw"), 4, keyProvider, "test", mock[FileHeader])
+    writer.write(data, 0, data.length)
+    writer.close()
+
+    val reader = new AESReader("test", new RandomAccessFile(f, "r"), 4, keyProvider, "test", mock[FileHeader])
+    val direct = ByteBuffer.allocateDirect(1000)
+    reader.read(direct) shouldBe 1000
+    val heap = ByteBuffer.allocate(4000)
+    reader.read(heap) shouldBe 4000
+    reader.read(ByteBuffer.allocate(1)) shouldBe -1
+    reader.close()
+    f.delete()
+
+    val bytes = new Array[Byte](5000)
+    direct.flip()
+    direct.get(bytes, 0, 1000)
+    heap.flip()
+    heap.get(bytes, 1000, 4000)
+    bytes shouldBe data
+  }
+
+  it should "read single bytes up to the end but not the padding" in {
+    val f = new File("/tmp/aesreader_test")
+    f.delete()
+    val keyBytes = (1 to 32).map(_.toByte).toArray[Byte]
+    val keyProvider = mock[KeyProvider]
+    when(keyProvider.getKey("test")).thenReturn(new SecretKeySpec(keyBytes, HmacUtil.DATA_CIPHER_ALGORITHM))
+
+    val data = (0 until 100).map(_.toByte).toArray[Byte]
+    val writer = new AESWriter("test", new RandomAccessFile(f, "rw"), 4, keyProvider, "test", mock[FileHeader])
+    writer.write(data, 0, data.length)
+    writer.close()
+
+    val reader = new AESReader("test", new RandomAccessFile(f, "r"), 4, keyProvider, "test", mock[FileHeader])
+    Iterator.continually(reader.read()).takeWhile(_ != -1).map(_.toByte).toArray shouldBe data
+
+    reader.seek(90)
+    val bytes = new Array[Byte](64)
+    reader.read(bytes, 0, 64) shouldBe 10
+    reader.close()
+    f.delete()
+  }
+
+  behavior of "#releaseBuffers"
+  it should "release the buffers of an idle reader and allocate them again on the next read" in {
+    val f = new File("/tmp/aesreader_release_test")
+    f.delete()
+    val keyBytes = (1 to 32).map(_.toByte).toArray[Byte]
+    val keyProvider = mock[KeyProvider]
+    when(keyProvider.getKey("test")).thenReturn(new SecretKeySpec(keyBytes, HmacUtil.DATA_CIPHER_ALGORITHM))
+
+    val data = (0 until 1000).map(i => (i * 7).toByte).toArray[Byte]
+    val writer = new AESWriter("test", new RandomAccessFile(f, "rw"), 4, keyProvider, "test", mock[FileHeader])
+    writer.write(data, 0, data.length)
+    writer.close()
+
+    val reader = new AESReader("test", new RandomAccessFile(f, "r"), 4, keyProvider, "test", mock[FileHeader])
+    val bytes = new Array[Byte](1000)
+    reader.read(bytes, 0, 100) shouldBe 100
+
+    // The reader was just used, so it only counts as idle once the idle time has elapsed
+    reader.releaseBuffers(TimeUnit.MINUTES.toNanos(1)) shouldBe 0L
+    Thread.sleep(20)
+    reader.releaseBuffers(TimeUnit.MILLISECONDS.toNanos(10)) shouldBe 128L
+    reader.read(bytes, 100, 400) shouldBe 400
+    reader.releaseBuffers(0L) shouldBe 128L
+    reader.read(bytes, 500, 500) shouldBe 500
+    bytes shouldBe data
+
+    reader.close()
+    reader.releaseBuffers(0L) shouldBe 0L
+    f.delete()
+  }
+
   behavior of "#seek"
   it should "seek" in {
 
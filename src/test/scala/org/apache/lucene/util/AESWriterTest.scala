@@ -1,5 +1,11 @@
 package org.apache.lucene.util
 
+import java.io.{File, RandomAccessFile}
+import java.nio.ByteBuffer
+import javax.crypto.spec.SecretKeySpec
+
+import com.workday.elasticrypt.KeyProvider
+import org.mockito.Mockito._
 import org.scalatest.mockito.MockitoSugar
 import org.scalatest.{FlatSpec, Matchers}
 
@@ -35,6 +41,59 @@ class AESWriterTest extends FlatSpec with Matchers with MockitoSugar {
 
   }
 
+  it should "encrypt whole pages straight from a direct buffer" in {
+    val f = new File("/tmp/aeswriter_test")
+    f.delete()
+    val keyBytes = (1 to 32).map(_.toByte).toArray[Byte]
+    val keyProvider = mock[KeyProvider]
+    when(keyProvider.getKey("test")).thenReturn(new SecretKeySpec(keyBytes, HmacUtil.DATA_CIPHER_ALGORITHM))
+
+    val data = (0 until 5000).map(i => (i * 31).toByte).toArray[Byte]
+    val writer = new AESWriter("test", new RandomAccessFile(f, "rw"), 4, keyProvider, "test", mock[FileHeader])
+    writer.write(data, 0, 10)
+    val direct = ByteBuffer.allocateDirect(data.length - 10)
+    direct.put(data, 10, data.length - 10)
+    direct.flip()
+    writer.write(direct) shouldBe data.length - 10
+    writer.length() shouldBe data.length
+    writer.close()
+
+    val reader = new AESReader("test", new RandomAccessFile(f, "r"), 4, keyProvider, "test", mock[FileHeader])
+    val bytes = new Array[Byte](data.length)
+    reader.read(bytes) shouldBe data.length
+    reader.close()
+    f.delete()
+
+    bytes shouldBe data
+  }
+
+  it should "encrypt whole pages straight from a byte array once the buffer cache is empty" in {
+    val f = new File("/tmp/aeswriter_test")
+    f.delete()
+    val keyBytes = (1 to 32).map(_.toByte).toArray[Byte]
+    val keyProvider = mock[KeyProvider]
+    when(keyProvider.getKey("test")).thenReturn(new SecretKeySpec(keyBytes, HmacUtil.DATA_CIPHER_ALGORITHM))
+
+    val data = (0 until 5000).map(i => (i * 31).toByte).toArray[Byte]
+    val writer = new AESWriter("test", new RandomAccessFile(f, "rw"), 4, keyProvider, "test", mock[FileHeader])
+    writer.write(data, 0, 10)
+    writer.write(data, 10, 100)
+    writer.directPages shouldBe 0L
+    writer.write(data, 110, data.length - 110)
+    // 64-byte pages: the rest of the second page goes through the buffer cache, the 76 whole pages after it do not
+    writer.directPages shouldBe 76L
+    writer.length() shouldBe data.length
+    writer.close()
+
+    val reader = new AESReader("test", new RandomAccessFile(f, "r"), 4, keyProvider, "test", mock[FileHeader])
+    val bytes = new Array[Byte](data.length)
+    reader.read(bytes) shouldBe data.length
+    reader.close()
+    f.delete()
+
+    bytes shouldBe data
+  }
+
   behavior of "#setLength"
   it should "setLength" in {
 
@@ -0,0 +1,154 @@
+package org.apache.lucene.util
+
+import java.io.{File, RandomAccessFile}
+import javax.crypto.spec.SecretKeySpec
+
+import com.workday.elasticrypt.KeyProvider
+import org.mockito.Mockito._
+import org.scalatest.mockito.MockitoSugar
+import org.scalatest.{BeforeAndAfterEach, FlatSpec, Matchers}
+
+class HmacFileHeaderTest extends FlatSpec with Matchers with MockitoSugar with BeforeAndAfterEach {
+
+  val indexName = "test"
+  val fileName = "/tmp/hfh_test"
+  val f = new File(fileName)
+
+  override def beforeEach = {
+    if (f.exists()) {
+      f.delete()
+    }
+    super.beforeEach()
+  }
+
+  override def afterEach = {
+    if (f.exists()) {
+      f.delete()
+    }
+    super.afterEach()
+  }
+
+  def getKeyProvider(firstByte: Int) = {
+    val keyProvider = mock[KeyProvider]
+    val keyBytes = (firstByte until firstByte + 32).map(_.toByte).toArray
+    when(keyProvider.getKey(indexName)).thenReturn(new SecretKeySpec(keyBytes, HmacUtil.DATA_CIPHER_ALGORITHM))
+    keyProvider
+  }
+
+  def writeHeader(keyProvider: KeyProvider): Long = {
+    val raf = new RandomAccessFile(f, "rw")
+    val offset = new HmacFileHeader(raf, keyProvider, indexName).writeHeader()
+    raf.close()
+    offset
+  }
+
+  def readHeader(keyProvider: KeyProvider): Long = {
+    val raf = new RandomAccessFile(f, "r")
+    try {
+      new HmacFileHeader(raf, keyProvider, indexName).readHeader()
+      raf.getFilePointer
+    } finally {
+      raf.close()
+    }
+  }
+
+  behavior of "#writeHeader"
+  it should "record the key version of versioned keys" in {
+    val keyProvider = getKeyProvider(1)
+    when(keyProvider.getKeyVersion(indexName)).thenReturn(3)
+    when(keyProvider.getKey(indexName, 3)).thenReturn(new SecretKeySpec((3 until 35).map(_.toByte).toArray, "AES"))
+    val offset = writeHeader(keyProvider)
+
+    val raf = new RandomAccessFile(f, "r")
+    val header = new HmacFileHeader(raf, keyProvider, indexName)
+    header.readHeader()
+    raf.getFilePointer shouldBe offset
+    raf.close()
+    header.keyVersion shouldBe 3
+    new String(header.indexNameBytes) shouldBe indexName
+  }
+
+  it should "keep the original layout for unversioned keys" in {
+    val offset = writeHeader(getKeyProvider(1))
+
+    val raf = new RandomAccessFile(f, "r")
+    raf.readInt shouldBe indexName.length
+    raf.close()
+    readHeader(getKeyProvider(1)) shouldBe offset
+  }
+
+  it should "record the compression layout of compressed files" in {
+    val keyProvider = getKeyProvider(1)
+    val raf = new RandomAccessFile(f, "rw")
+    val writtenHeader = new HmacFileHeader(raf, keyProvider, indexName)
+    writtenHeader.compression = FileHeader.LZ4_FRAMES
+    val offset = writtenHeader.writeHeader()
+    raf.seek(0)
+    raf.readInt shouldBe HmacFileHeader.COMPRESSED_HEADER_MARKER
+    raf.close()
+
+    val reader = new RandomAccessFile(f, "r")
+    val header = new HmacFileHeader(reader, keyProvider, indexName)
+    header.readHeader()
+    reader.getFilePointer shouldBe offset
+    reader.close()
+    header.compression shouldBe FileHeader.LZ4_FRAMES
+    header.keyVersion shouldBe 0
+    new String(header.indexNameBytes) shouldBe indexName
+  }
+
+  behavior of "#readHeader"
+  it should "accept the key the file was written with and cache the result" in {
+    val keyProvider = getKeyProvider(1)
+    val offset = writeHeader(keyProvider)
+
+    val before = HmacHeaderVerifier.stats
+    readHeader(keyProvider) shouldBe offset
+    readHeader(getKeyProvider(1)) shouldBe offset
+    val after = HmacHeaderVerifier.stats
+
+    after.verifications - before.verifications shouldBe 1
+    after.cacheHits - before.cacheHits shouldBe 1
+  }
+
+  it should "fail fast on a different key" in {
+    writeHeader(getKeyProvider(1))
+
+    val before = HmacHeaderVerifier.stats
+    a[KeyMismatchException] shouldBe thrownBy {
+      readHeader(getKeyProvider(2))
+    }
+    HmacHeaderVerifier.stats.failures - before.failures shouldBe 1
+  }
+
+  it should "make AESReader fail before decrypting any page" in {
+    val keyProvider = getKeyProvider(1)
+    val raf = new RandomAccessFile(f, "rw")
+    val writer = new AESWriter(f.getName, raf, 4, keyProvider, indexName, new HmacFileHeader(raf, keyProvider, indexName))
+    writer.write("READ_WRITE_TEST".map(_.toByte).toArray, 0, 15)
+    writer.close()
+
+    val wrongKeyProvider = getKeyProvider(2)
+    val readerRaf = new RandomAccessFile(f, "r")
+    a[KeyMismatchException] shouldBe thrownBy {
+      new AESReader(f.getName, readerRaf, 4, wrongKeyProvider, indexName, new HmacFileHeader(readerRaf, wrongKeyProvider, indexName))
+    }
+  }
+
+  it should "fetch the key once for the header and the reader or writer" in {
+    val keyProvider = getKeyProvider(1)
+    val raf = new RandomAccessFile(f, "rw")
+    val writer = new AESWriter(f.getName, raf, 4, keyProvider, indexName, new HmacFileHeader(raf, keyProvider, indexName))
+    writer.write("READ_WRITE_TEST".map(_.toByte).toArray, 0, 15)
+    writer.close()
+    verify(keyProvider, times(1)).getKey(indexName)
+
+    val readerRaf = new RandomAccessFile(f, "r")
+    val header = new HmacFileHeader(readerRaf, keyProvider, indexName)
+    val reader = new AESReader(f.getName, readerRaf, 4, keyProvider, indexName, header)
+    reader.close()
+    verify(keyProvider, times(2)).getKey(indexName)
+    reader.getKey should be theSameInstanceAs header.key
+  }
+
+}
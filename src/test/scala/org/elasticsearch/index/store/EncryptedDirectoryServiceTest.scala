@@ -2,11 +2,14 @@ package org.elasticsearch.index.store
 
 import java.io.File
 
+import com.workday.elasticrypt.scheduler.CryptoMergeListener
 import org.elasticsearch.client.Client
 import org.elasticsearch.common.settings.Settings
 import org.elasticsearch.index.Index
+import org.elasticsearch.index.merge.scheduler.MergeSchedulerProvider
 import org.elasticsearch.index.shard.ShardId
-import org.mockito.Mockito.when
+import org.mockito.Matchers.any
+import org.mockito.Mockito.{verify, when}
 import org.scalatest.mockito.MockitoSugar
 import org.scalatest.{FlatSpec, Matchers}
 
@@ -22,11 +25,27 @@ class EncryptedDirectoryServiceTest extends FlatSpec with Matchers with MockitoS
     when(settings.getAsBoolean("logger.logHostAddress", false)).thenReturn(false)
     when(settings.getAsBoolean("logger.logHostName", false)).thenReturn(false)
     when(settings.get("name")).thenReturn("test")
+    when(settings.getAsInt(EncryptedDirectoryService.HANDLE_POOL_SIZE_SETTING,
+      EncryptedDirectory.DEFAULT_HANDLE_POOL_SIZE)).thenReturn(4)
 
     val file = new File("/tmp")
 
-    val eds = new EncryptedDirectoryService(shardId, settings, mock[EncryptedIndexStore], mock[Client], mock[NodeKeyProviderComponent])
+    val eds = new EncryptedDirectoryService(shardId, settings, mock[EncryptedIndexStore], mock[Client], mock[NodeKeyProviderComponent],
+      mock[MergeSchedulerProvider])
     eds.newFSDirectory(file, null) shouldBe an[EncryptedDirectory]
   }
 
+  behavior of "#EncryptedDirectoryService"
+  it should "have the merges of the shard paced by the CryptoScheduler" in {
+    val shardId = mock[ShardId]
+    when(shardId.index()).thenReturn(mock[Index])
+    val settings = mock[Settings]
+    when(settings.get("name")).thenReturn("test")
+    val mergeScheduler = mock[MergeSchedulerProvider]
+
+    new EncryptedDirectoryService(shardId, settings, mock[EncryptedIndexStore], mock[Client], mock[NodeKeyProviderComponent], mergeScheduler)
+
+    verify(mergeScheduler).addListener(any[CryptoMergeListener])
+  }
+
 }
@@ -4,9 +4,11 @@ import java.io.{File, PrintWriter, RandomAccessFile}
 import javax.crypto.spec.SecretKeySpec
 
 import com.workday.elasticrypt.KeyProvider
-import org.apache.lucene.store.{FlushInfo, IOContext, LockFactory}
+import com.workday.elasticrypt.breaker.CryptoBufferBreaker
+import org.apache.lucene.store.{FlushInfo, IOContext, LockFactory, MergeInfo}
 import org.apache.lucene.util.{AESReader, FileHeader, HmacUtil}
 import org.elasticsearch.client.Client
+import org.elasticsearch.common.breaker.CircuitBreakingException
 import org.elasticsearch.common.collect.ImmutableMap
 import org.elasticsearch.common.settings.Settings
 import org.elasticsearch.index.Index
@@ -67,11 +69,74 @@ class EncryptedDirectoryTest extends FlatSpec with Matchers with MockitoSugar wi
     when(settings.get("url")).thenReturn("test")
     when(settings.getAsMap).thenReturn(ImmutableMap.of("url", "test"))
 
-    val ed = spy(new EncryptedDirectory(path, mock[LockFactory], getMockShardId, mock[Client], mock[NodeKeyProviderComponent]))
+    val component = mock[NodeKeyProviderComponent]
+    doReturn(mock[KeyProvider]).when(component).keyProvider
+    val ed = spy(new EncryptedDirectory(path, mock[LockFactory], getMockShardId, mock[Client], component))
     doReturn(mock[AESReader]).when(ed).createAESReader(any(), any(), any(), any(), any())
     ed.openInput("edt_test", context).toString.contains("AESIndexInput") shouldBe true
   }
 
+  it should "reuse the cached header offset and length when a file is reopened" in {
+    val encodedKeyBytes = (1 to 32).map(_.toByte).toArray
+    val secretKeySpec = new SecretKeySpec(encodedKeyBytes, 0, encodedKeyBytes.length, HmacUtil.DATA_CIPHER_ALGORITHM)
+    val component = mock[NodeKeyProviderComponent]
+    var fetches = 0
+    val keyProvider = new KeyProvider {
+      override def getKey(indexName: String): SecretKeySpec = {
+        fetches += 1
+        secretKeySpec
+      }
+    }
+    doReturn(keyProvider).when(component).keyProvider
+
+    val ed = spy(new EncryptedDirectory(new File("/tmp"), mock[LockFactory], getMockShardId, mock[Client], component, 2))
+    val testData = "READ_WRITE_TEST".map(_.toByte).toArray[Byte]
+    val output = ed.createOutput("edt_test", IOContext.DEFAULT)
+    output.writeBytes(testData, testData.length)
+    output.close()
+
+    val fetchesPerOpen = (1 to 3).map { _ =>
+      val before = fetches
+      val input = ed.openInput("edt_test", IOContext.DEFAULT)
+      val bytes = new Array[Byte](testData.length)
+      input.length shouldBe testData.length
+      input.readBytes(bytes, 0, bytes.length)
+      input.close()
+      bytes shouldBe testData
+      fetches - before
+    }
+    verify(ed, times(1)).createAESReader(any(), any(), any(), any(), any())
+    // The first open fetches the key once, for the header and the reader; reopens use the key cached with the metadata
+    fetchesPerOpen shouldBe Seq(1, 0, 0)
+
+    ed.deleteFile("edt_test")
+    ed.fileCache.getMetadata("edt_test") shouldBe None
+  }
+
+  it should "only refuse inputs read once when their buffers exceed the limit" in {
+    val encodedKeyBytes = (1 to 32).map(_.toByte).toArray
+    val secretKeySpec = new SecretKeySpec(encodedKeyBytes, 0, encodedKeyBytes.length, HmacUtil.DATA_CIPHER_ALGORITHM)
+    val keyProvider = mock[KeyProvider]
+    when(keyProvider.getKey(anyString())).thenReturn(secretKeySpec)
+    when(keyProvider.getKey(anyString(), anyInt())).thenReturn(secretKeySpec)
+    val component = mock[NodeKeyProviderComponent]
+    doReturn(keyProvider).when(component).keyProvider
+    val breaker = new CryptoBufferBreaker(0, 1.0)
+    val ed = spy(new EncryptedDirectory(new File("/tmp"), mock[LockFactory], getMockShardId, mock[Client], component))
+    doReturn(breaker).when(ed).breaker
+    val output = ed.createOutput("edt_test", IOContext.DEFAULT)
+    output.writeByte(1)
+    output.close()
+
+    // A refresh opens new segments with IOContext.READ, and failing it would fail the engine
+    ed.openInput("edt_test", IOContext.READ).close()
+    ed.openInput("edt_test", new IOContext(new MergeInfo(1, 1, false, 1))).close()
+    breaker.stats.trips shouldBe 0L
+
+    a[CircuitBreakingException] should be thrownBy ed.openInput("edt_test", IOContext.READONCE)
+    breaker.stats.trips shouldBe 1L
+  }
+
   behavior of "#createOutput"
   it should "open raw input for segment files" in {
     new PrintWriter("/tmp/segments_test") {
@@ -134,4 +199,14 @@ class EncryptedDirectoryTest extends FlatSpec with Matchers with MockitoSugar wi
     bytes shouldBe testData.map(_.toByte).toArray[Byte]
   }
 
+  behavior of "#isBackground"
+  it should "treat read-once inputs as background work, and leave merges to their thread" in {
+    val ed = new EncryptedDirectory(new File("/tmp"), mock[LockFactory], getMockShardId, mock[Client], mock[NodeKeyProviderComponent])
+
+    ed.isBackground(new IOContext(new MergeInfo(10, 1024, false, 1))) shouldBe false
+    ed.isBackground(IOContext.READONCE) shouldBe true
+    ed.isBackground(IOContext.READ) shouldBe false
+    ed.isBackground(new IOContext(new FlushInfo(1, 1))) shouldBe false
+  }
+
 }
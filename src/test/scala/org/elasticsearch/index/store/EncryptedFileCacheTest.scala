@@ -0,0 +1,78 @@
+package org.elasticsearch.index.store
+
+import java.io.{File, PrintWriter}
+import javax.crypto.spec.SecretKeySpec
+
+import org.apache.lucene.util.HmacUtil
+import org.scalatest.mockito.MockitoSugar
+import org.scalatest.{BeforeAndAfterEach, FlatSpec, Matchers}
+
+class EncryptedFileCacheTest extends FlatSpec with Matchers with MockitoSugar with BeforeAndAfterEach {
+
+  val fileName = "/tmp/efc_test"
+  val f = new File(fileName)
+  val encodedKeyBytes = (1 to 32).map(_.toByte).toArray
+  val secretKeySpec = new SecretKeySpec(encodedKeyBytes, 0, encodedKeyBytes.length, HmacUtil.DATA_CIPHER_ALGORITHM)
+  val metadata = EncryptedFileMetadata(12, 100, 64, 0, secretKeySpec)
+
+  override def beforeEach = {
+    new PrintWriter(fileName) {
+      write("test"); close()
+    }
+    super.beforeEach()
+  }
+
+  override def afterEach = {
+    if (f.exists()) {
+      f.delete()
+    }
+    super.afterEach()
+  }
+
+  behavior of "#matches"
+  it should "only match the same page size" in {
+    metadata.matches(64) shouldBe true
+    metadata.matches(32) shouldBe false
+  }
+
+  behavior of "#releaseHandle"
+  it should "pool released handles up to the limit" in {
+    val cache = new EncryptedFileCache(1)
+    cache.putMetadata("efc_test", metadata)
+
+    val raf1 = cache.acquireHandle("efc_test", f)
+    val raf2 = cache.acquireHandle("efc_test", f)
+    cache.releaseHandle("efc_test", metadata, raf1)
+    cache.releaseHandle("efc_test", metadata, raf2)
+
+    raf1.getChannel.isOpen shouldBe true
+    raf2.getChannel.isOpen shouldBe false
+    cache.acquireHandle("efc_test", f) should be theSameInstanceAs raf1
+  }
+
+  it should "close handles of invalidated files" in {
+    val cache = new EncryptedFileCache(1)
+    cache.putMetadata("efc_test", metadata)
+
+    val raf = cache.acquireHandle("efc_test", f)
+    cache.invalidate("efc_test")
+    cache.releaseHandle("efc_test", metadata, raf)
+
+    raf.getChannel.isOpen shouldBe false
+    cache.getMetadata("efc_test") shouldBe None
+  }
+
+  behavior of "#clear"
+  it should "close all pooled handles" in {
+    val cache = new EncryptedFileCache(2)
+    cache.putMetadata("efc_test", metadata)
+
+    val raf = cache.acquireHandle("efc_test", f)
+    cache.releaseHandle("efc_test", metadata, raf)
+    cache.clear()
+
+    raf.getChannel.isOpen shouldBe false
+    cache.getMetadata("efc_test") shouldBe None
+  }
+
+}
@@ -0,0 +1,177 @@
+package org.elasticsearch.index.store
+
+import java.io.File
+import java.nio.file.Files
+import java.util.concurrent.Executor
+import javax.crypto.spec.SecretKeySpec
+
+import scala.collection.JavaConverters.{collectionAsScalaIterableConverter, iterableAsScalaIterableConverter}
+
+import com.workday.elasticrypt.KeyProvider
+import com.workday.elasticrypt.stats.CryptoMetrics
+import org.apache.lucene.document.{Document, Field, NumericDocValuesField, TextField}
+import org.apache.lucene.index.{DirectoryReader, IndexFileNames, IndexWriter, IndexWriterConfig, SegmentReader}
+import org.apache.lucene.store.{Directory, IOContext, IndexInput, LockFactory, RAMDirectory}
+import org.apache.lucene.util.HmacUtil
+import org.elasticsearch.client.Client
+import org.elasticsearch.common.lucene.Lucene
+import org.elasticsearch.common.settings.ImmutableSettings
+import org.elasticsearch.index.shard.ShardId
+import org.mockito.Mockito._
+import org.scalatest.mockito.MockitoSugar
+import org.scalatest.{FlatSpec, Matchers}
+
+class EncryptedShardWarmerTest extends FlatSpec with Matchers with MockitoSugar {
+  import EncryptedShardWarmer._
+
+  val sameThread = new Executor {
+    override def execute(command: Runnable): Unit = command.run()
+  }
+
+  /* Directory that records the files opened */
+  class RecordingDirectory extends RAMDirectory {
+    var opened = Seq.empty[String]
+
+    override def openInput(name: String, context: IOContext): IndexInput = {
+      opened :+= name
+      super.openInput(name, context)
+    }
+  }
+
+  def withSegments(compound: Boolean)(test: (RecordingDirectory, Seq[SegmentReader]) => Unit): Unit = {
+    val directory = new RecordingDirectory
+    val writer = new IndexWriter(directory, new IndexWriterConfig(Lucene.VERSION, Lucene.STANDARD_ANALYZER).setUseCompoundFile(compound))
+    (0 until 100).foreach { i =>
+      val doc = new Document
+      doc.add(new TextField("body", s"document number $i", Field.Store.NO))
+      doc.add(new NumericDocValuesField("price", i))
+      writer.addDocument(doc)
+    }
+    writer.close()
+
+    val reader = DirectoryReader.open(directory)
+    try {
+      directory.opened = Seq.empty
+      test(directory, reader.leaves.asScala.map(_.reader.asInstanceOf[SegmentReader]))
+    } finally {
+      reader.close()
+    }
+  }
+
+  def filesOf(segments: Seq[SegmentReader]): Seq[String] = segments.flatMap(_.getSegmentInfo.files.asScala)
+
+  behavior of "#warmSegment"
+  it should "read the files with the given extensions" in {
+    withSegments(compound = false) { (directory, segments) =>
+      val hot = filesOf(segments).filter(name => Set("tim", "dvd").contains(IndexFileNames.getExtension(name)))
+      hot.size shouldBe 2
+
+      warmSegment(directory, filesOf(segments), Set("tim", "dvd"), new WarmBudget(Long.MaxValue, Long.MaxValue)) shouldBe
+        ((2, hot.map(directory.fileLength).sum))
+      directory.opened should contain theSameElementsAs hot
+    }
+  }
+
+  it should "read the files with the given extensions inside compound files" in {
+    withSegments(compound = true) { (directory, segments) =>
+      val (files, bytes) = warmSegment(directory, filesOf(segments), Set("tim", "dvd"), new WarmBudget(Long.MaxValue, Long.MaxValue))
+
+      files shouldBe 2
+      bytes should be > 0L
+      // Only the compound file and its table of entries are opened; the files inside are slices of the compound file
+      directory.opened.map(IndexFileNames.getExtension).toSet shouldBe
+        Set(IndexFileNames.COMPOUND_FILE_EXTENSION, IndexFileNames.COMPOUND_FILE_ENTRIES_EXTENSION)
+    }
+  }
+
+  it should "read the cipher text of encrypted files without decrypting it" in {
+    val indexName = "encrypted_shard_warmer_test"
+    val path = Files.createTempDirectory("esw_test").toFile
+    val keyProvider = new KeyProvider {
+      override def getKey(indexName: String): SecretKeySpec =
+        new SecretKeySpec((1 to 32).map(_.toByte).toArray, HmacUtil.DATA_CIPHER_ALGORITHM)
+    }
+    val component = mock[NodeKeyProviderComponent]
+    doReturn(keyProvider).when(component).keyProvider
+    val shardId = mock[ShardId]
+    when(shardId.getIndex).thenReturn(indexName)
+    val directory = new EncryptedDirectory(path, mock[LockFactory], shardId, mock[Client], component)
+    try {
+      val data = (0 until 100000).map(_.toByte).toArray
+      val output = directory.createOutput("_0.tim", IOContext.DEFAULT)
+      output.writeBytes(data, data.length)
+      output.close()
+      val metrics = CryptoMetrics.forFile(indexName, "_0.tim")
+      val decryptedBefore = metrics.snapshot.bytesDecrypted
+
+      val read = warmFile(directory, "_0.tim", new WarmBudget(Long.MaxValue, Long.MaxValue))
+
+      read should be > data.length.toLong
+      read should be < new File(path, "_0.tim").length
+      // Opening the file only decrypts its last page, to find its length
+      metrics.snapshot.bytesDecrypted - decryptedBefore should be <= 1024L
+      directory.fileCache.getMetadata("_0.tim") should not be None
+    } finally {
+      directory.close()
+      Option(path.listFiles).foreach(_.foreach(_.delete()))
+      path.delete()
+    }
+  }
+
+  it should "stop when the byte budget is used up" in {
+    withSegments(compound = false) { (directory, segments) =>
+      val budget = new WarmBudget(10, Long.MaxValue)
+
+      warmSegment(directory, filesOf(segments), Set("tim", "dvd"), budget)._2 shouldBe 10L
+      budget.used shouldBe 10L
+    }
+  }
+
+  it should "read nothing once the time is up" in {
+    withSegments(compound = false) { (directory, segments) =>
+      warmSegment(directory, filesOf(segments), Set("tim", "dvd"), new WarmBudget(Long.MaxValue, 0))._2 shouldBe 0L
+    }
+  }
+
+  behavior of "#isEnabled"
+  it should "only warm encrypted indices it was enabled for" in {
+    val encrypted = ImmutableSettings.settingsBuilder.put(STORE_TYPE_SETTING, STORE_TYPE)
+
+    isEnabled(encrypted.build) shouldBe false
+    isEnabled(encrypted.put(ENABLED_SETTING, true).build) shouldBe true
+    isEnabled(ImmutableSettings.settingsBuilder.put(STORE_TYPE_SETTING, "niofs").put(ENABLED_SETTING, true).build) shouldBe false
+  }
+
+  behavior of "#warm"
+  it should "warm every segment with the configured extensions" in {
+    withSegments(compound = false) { (directory, segments) =>
+      val settings = ImmutableSettings.settingsBuilder.putArray(EXTENSIONS_SETTING, ".nvd", "tim").build
+
+      new EncryptedShardWarmer().warm(new ShardId("test", 0), directory, segments, settings, sameThread).awaitTermination()
+      directory.opened.map(IndexFileNames.getExtension) should contain theSameElementsAs Seq("nvd", "tim")
+    }
+  }
+
+  it should "stop waiting for segments whose warming did not start within the timeout" in {
+    withSegments(compound = false) { (directory, segments) =>
+      val stalled = new Executor {
+        override def execute(command: Runnable): Unit = ()
+      }
+      val settings = ImmutableSettings.settingsBuilder.put(TIMEOUT_SETTING, "50ms").build
+
+      val start = System.nanoTime
+      new EncryptedShardWarmer().warm(new ShardId("test", 0), directory, segments, settings, stalled).awaitTermination()
+      (System.nanoTime - start) should be < 5000000000L
+    }
+  }
+
+  it should "terminate when warming a segment fails" in {
+    withSegments(compound = false) { (directory, segments) =>
+      val failing: Directory = new RAMDirectory {
+        override def openInput(name: String, context: IOContext): IndexInput = throw new IllegalStateException("closed")
+      }
+
+      new EncryptedShardWarmer().warm(new ShardId("test", 0), failing, segments, ImmutableSettings.EMPTY, sameThread).awaitTermination()
+    }
+  }
+}
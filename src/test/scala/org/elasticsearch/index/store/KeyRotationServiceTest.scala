@@ -0,0 +1,167 @@
+package org.elasticsearch.index.store
+
+import java.io.File
+import java.nio.file.Files
+import javax.crypto.spec.SecretKeySpec
+
+import com.workday.elasticrypt.KeyProvider
+import org.apache.lucene.store.{IOContext, LockFactory}
+import org.apache.lucene.util.HmacUtil
+import org.elasticsearch.client.Client
+import org.elasticsearch.index.Index
+import org.elasticsearch.index.shard.ShardId
+import org.mockito.Mockito._
+import org.scalatest.mockito.MockitoSugar
+import org.scalatest.{BeforeAndAfterEach, FlatSpec, Matchers}
+
+class KeyRotationServiceTest extends FlatSpec with Matchers with MockitoSugar with BeforeAndAfterEach {
+
+  /** Key provider that keeps every version of the key and can be rotated */
+  class VersionedKeyProvider extends KeyProvider {
+    @volatile var currentVersion = 1
+
+    def getKey(indexName: String): SecretKeySpec = getKey(indexName, currentVersion)
+
+    override def getKeyVersion(indexName: String): Int = currentVersion
+
+    override def getKey(indexName: String, keyVersion: Int): SecretKeySpec = {
+      val keyBytes = (keyVersion until keyVersion + 32).map(_.toByte).toArray
+      new SecretKeySpec(keyBytes, HmacUtil.DATA_CIPHER_ALGORITHM)
+    }
+  }
+
+  var path: File = _
+  val testData = (0 until 100000).map(i => (i * 31).toByte).toArray
+
+  override def beforeEach = {
+    path = Files.createTempDirectory("krs_test").toFile
+    super.beforeEach()
+  }
+
+  override def afterEach = {
+    Option(path.listFiles).foreach(_.foreach { file =>
+      Option(file.listFiles).foreach(_.foreach(_.delete()))
+      file.delete()
+    })
+    path.delete()
+    super.afterEach()
+  }
+
+  def getMockShardId = {
+    val mockShardId = mock[ShardId]
+    val mockIndex = mock[Index]
+    when(mockIndex.getName).thenReturn("test")
+    when(mockShardId.getIndex).thenReturn("test")
+    when(mockShardId.index).thenReturn(mockIndex)
+    mockShardId
+  }
+
+  def newDirectory(keyProvider: KeyProvider): EncryptedDirectory = {
+    val component = mock[NodeKeyProviderComponent]
+    doReturn(keyProvider).when(component).keyProvider
+    new EncryptedDirectory(path, mock[LockFactory], getMockShardId, mock[Client], component, 2)
+  }
+
+  def writeFile(ed: EncryptedDirectory, name: String): Unit = {
+    val output = ed.createOutput(name, IOContext.DEFAULT)
+    output.writeBytes(testData, testData.length)
+    output.close()
+  }
+
+  def readFile(ed: EncryptedDirectory, name: String): Array[Byte] = {
+    val input = ed.openInput(name, IOContext.DEFAULT)
+    val bytes = new Array[Byte](input.length.toInt)
+    input.readBytes(bytes, 0, bytes.length)
+    input.close()
+    bytes
+  }
+
+  behavior of "#run"
+  it should "re-encrypt every file with the current key version" in {
+    val keyProvider = new VersionedKeyProvider
+    val ed = newDirectory(keyProvider)
+    writeFile(ed, "_0.cfs")
+    writeFile(ed, "_1.cfs")
+    readFile(ed, "_0.cfs") shouldBe testData
+
+    keyProvider.currentVersion = 2
+    val progress = new KeyRotationService(ed, 100.0).run()
+
+    progress.state shouldBe KeyRotationService.COMPLETED
+    progress.targetKeyVersion shouldBe 2
+    progress.totalFiles shouldBe 2
+    progress.rotatedFiles shouldBe 2
+    progress.processedBytes shouldBe progress.totalBytes
+    progress.etaMillis shouldBe 0
+    ed.keyVersionOf("_0.cfs") shouldBe 2
+    ed.keyVersionOf("_1.cfs") shouldBe 2
+    readFile(ed, "_0.cfs") shouldBe testData
+    readFile(ed, "_1.cfs") shouldBe testData
+    new File(path, KeyRotationService.STAGING_DIRECTORY).exists shouldBe false
+    ed.close()
+  }
+
+  it should "remove a staging directory left behind by a failed rotation" in {
+    val keyProvider = new VersionedKeyProvider
+    val ed = newDirectory(keyProvider)
+    writeFile(ed, "_0.cfs")
+    val staging = new File(path, KeyRotationService.STAGING_DIRECTORY)
+    staging.mkdirs()
+    new File(staging, "_1.cfs").createNewFile()
+
+    ed.listAll() should contain only "_0.cfs"
+    ed.encryptedFileNames shouldBe Seq("_0.cfs")
+    keyProvider.currentVersion = 2
+    new KeyRotationService(ed).run().rotatedFiles shouldBe 1
+
+    staging.exists shouldBe false
+    ed.close()
+  }
+
+  it should "skip files already encrypted with the current key version" in {
+    val keyProvider = new VersionedKeyProvider
+    val ed = newDirectory(keyProvider)
+    writeFile(ed, "_0.cfs")
+
+    val progress = new KeyRotationService(ed).run()
+
+    progress.state shouldBe KeyRotationService.COMPLETED
+    progress.totalFiles shouldBe 0
+    ed.close()
+  }
+
+  it should "not rotate files that are still being written" in {
+    val keyProvider = new VersionedKeyProvider
+    val ed = newDirectory(keyProvider)
+    writeFile(ed, "_0.cfs")
+    val output = ed.createOutput("_1.cfs", IOContext.DEFAULT)
+    output.writeBytes(testData, testData.length)
+    output.flush()
+
+    keyProvider.currentVersion = 2
+    val progress = new KeyRotationService(ed).run()
+    output.close()
+
+    progress.rotatedFiles shouldBe 1
+    ed.keyVersionOf("_1.cfs") shouldBe 1
+    readFile(ed, "_1.cfs") shouldBe testData
+    ed.close()
+  }
+
+  behavior of "#cancel"
+  it should "keep the original files" in {
+    val keyProvider = new VersionedKeyProvider
+    val ed = newDirectory(keyProvider)
+    writeFile(ed, "_0.cfs")
+
+    keyProvider.currentVersion = 2
+    val rotation = new KeyRotationService(ed)
+    rotation.cancel()
+    rotation.run().state shouldBe KeyRotationService.CANCELLED
+
+    ed.keyVersionOf("_0.cfs") shouldBe 1
+    readFile(ed, "_0.cfs") shouldBe testData
+    ed.close()
+  }
+
+}
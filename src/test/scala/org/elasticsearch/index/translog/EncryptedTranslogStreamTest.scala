@@ -1,13 +1,13 @@
 package org.elasticsearch.index.translog
 
-import java.io.{EOFException, File, IOException, RandomAccessFile}
+import java.io.{EOFException, File, IOException, InputStream, RandomAccessFile}
 import java.nio.channels.FileChannel
+import java.util.concurrent.Executor
 import javax.crypto.spec.SecretKeySpec
 
 import com.workday.elasticrypt.KeyProvider
 import org.apache.lucene.util.{FileHeader, HmacUtil}
 import org.scalatest.BeforeAndAfterEach
-import sun.nio.ch.ChannelInputStream
 
 //scalastyle: off
 import scala.collection.mutable._
@@ -24,6 +24,9 @@ class EncryptedTranslogStreamTest extends FlatSpec with Matchers with MockitoSug
   val indexName = "test"
   val fileName = "/tmp/ets_test"
   val f = new File(fileName)
+  val sameThread = new Executor {
+    override def execute(command: Runnable): Unit = command.run()
+  }
 
   override def beforeEach = {
     if (f.exists()) {
@@ -42,7 +45,7 @@ class EncryptedTranslogStreamTest extends FlatSpec with Matchers with MockitoSug
   behavior of "#writeHeader"
   it should "return 0" in {
     val keyProvider = mock[KeyProvider]
-    val ets = new EncryptedTranslogStream(10, keyProvider, indexName)
+    val ets = new EncryptedTranslogStream(10, keyProvider, indexName, sameThread)
 
     ets.writeHeader(mock[FileChannel]) shouldBe 0
   }
@@ -52,10 +55,11 @@ class EncryptedTranslogStreamTest extends FlatSpec with Matchers with MockitoSug
     val keyProvider = mock[KeyProvider]
     when(keyProvider.getKey(indexName)).thenReturn(mock[SecretKeySpec])
 
-    val ets = spy(new EncryptedTranslogStream(10, keyProvider, indexName))
-    doThrow(new EOFException(indexName)).when(ets).createInputStreamStreamInput(any[ChannelInputStream])
+    val ets = spy(new EncryptedTranslogStream(10, keyProvider, indexName, sameThread))
+    doThrow(new EOFException(indexName)).when(ets).createInputStreamStreamInput(any[InputStream])
 
     val translogFile = new File(fileName)
+    translogFile.createNewFile()
     an[TruncatedTranslogException] shouldBe thrownBy {
       ets.openInput(translogFile)
     }
@@ -65,10 +69,11 @@ class EncryptedTranslogStreamTest extends FlatSpec with Matchers with MockitoSug
     val keyProvider = mock[KeyProvider]
     when(keyProvider.getKey(indexName)).thenReturn(mock[SecretKeySpec])
 
-    val ets = spy(new EncryptedTranslogStream(10, keyProvider, indexName))
-    doThrow(new IOException(indexName)).when(ets).createInputStreamStreamInput(any[ChannelInputStream])
+    val ets = spy(new EncryptedTranslogStream(10, keyProvider, indexName, sameThread))
+    doThrow(new IOException(indexName)).when(ets).createInputStreamStreamInput(any[InputStream])
 
     val translogFile = new File(fileName)
+    translogFile.createNewFile()
     an[TranslogCorruptedException] shouldBe thrownBy {
       ets.openInput(translogFile)
     }
@@ -80,7 +85,7 @@ class EncryptedTranslogStreamTest extends FlatSpec with Matchers with MockitoSug
     val keyProvider = mock[KeyProvider]
     when(keyProvider.getKey(indexName)).thenReturn(secretKeySpec)
 
-    val ets = spy(new EncryptedTranslogStream(10, keyProvider, indexName))
+    val ets = spy(new EncryptedTranslogStream(10, keyProvider, indexName, sameThread))
     val existingTranslogFile = spy(new File(fileName))
 
     if (existingTranslogFile.exists()) {
@@ -2,7 +2,12 @@ package org.elasticsearch.plugins
 
 import java.util.Collections
 
+import com.workday.elasticrypt.action.{ElasticryptStatsAction, TransportElasticryptStatsAction}
 import com.workday.elasticrypt.modules.EncryptedNodeModule
+import com.workday.elasticrypt.rest.RestElasticryptStatsAction
+import org.elasticsearch.action.ActionModule
+import org.elasticsearch.rest.RestModule
+import org.mockito.Mockito._
 import org.scalatest.{FlatSpec, Matchers}
 import org.scalatest.mockito.MockitoSugar
 
@@ -25,4 +30,17 @@ class ElasticryptPluginsTest extends FlatSpec with Matchers with MockitoSugar {
     plugin.modules() shouldBe Collections.singletonList(classOf[EncryptedNodeModule])
   }
 
+  behavior of "#onModule"
+  it should "register the stats REST action" in {
+    val module = mock[RestModule]
+    new ElasticryptPlugins().onModule(module)
+    verify(module).addRestAction(classOf[RestElasticryptStatsAction])
+  }
+
+  it should "register the nodes-level stats action" in {
+    val module = mock[ActionModule]
+    new ElasticryptPlugins().onModule(module)
+    verify(module).registerAction(ElasticryptStatsAction, classOf[TransportElasticryptStatsAction])
+  }
+
 }